@@ -0,0 +1,98 @@
+package es.agonzalez.multiagent.app.config;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+
+/**
+ * Coste por llamada de registrar una respuesta LLM: meters cacheados (MetricsService actual) frente
+ * al camino anterior, que resolvía builder + tags + Id contra el registry en cada llamada. La variante
+ * contended repite el camino cacheado desde varios hilos sobre las mismas series.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsServiceBenchmark {
+
+    private static final String[] MODELS = { "llama3.2:3b", "qwen2.5:7b", "mistral:7b", "phi3:mini" };
+    private static final String[] INTENTS = { "CHAT", "RECIPE" };
+
+    private MeterRegistry registry;
+    private MetricsService metrics;
+    private int seq;
+
+    @Setup
+    public void setup() {
+        registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        metrics = new MetricsService();
+        ReflectionTestUtils.setField(metrics, "registry", registry);
+        metrics.init();
+        // Mismas series ya registradas en ambos caminos: se mide el estado estacionario
+        for (String m : MODELS) for (String i : INTENTS) {
+            metrics.recordLlmSuccess(m, i, 1, 1, 1);
+            legacyRecord(m, i, "ok", 1, 1, 1);
+        }
+    }
+
+    @Benchmark
+    public void cachedRecordSuccess() {
+        int n = seq++;
+        metrics.recordLlmSuccess(MODELS[n & 3], INTENTS[n & 1], 120, 40, 850);
+    }
+
+    /** Índice por hilo: un contador compartido añadiría su propia contención a la medida */
+    @State(Scope.Thread)
+    public static class ThreadSeq {
+        int n;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void cachedRecordSuccessContended(ThreadSeq s) {
+        int n = s.n++;
+        metrics.recordLlmSuccess(MODELS[n & 3], INTENTS[n & 1], 120, 40, 850);
+    }
+
+    @Benchmark
+    public void legacyBuilderPerCall() {
+        int n = seq++;
+        legacyRecord(MODELS[n & 3], INTENTS[n & 1], "ok", 120, 40, 850);
+    }
+
+    /** Copia del recordLlm previo a la caché de meters (referencia del benchmark). */
+    private void legacyRecord(String model, String intent, String status, int promptTokens, int completionTokens, long latencyMs) {
+        Timer.builder("multiagent_llm_latency")
+            .description("Latencia LLM por modelo/intent/status")
+            .tag("model", model)
+            .tag("intent", intent)
+            .tag("status", status)
+            .register(registry)
+            .record(latencyMs, TimeUnit.MILLISECONDS);
+        Counter.builder("multiagent_llm_prompt_tokens_total").description("Prompt tokens consumidos")
+            .tag("model", model).tag("intent", intent).register(registry).increment(promptTokens);
+        Counter.builder("multiagent_llm_completion_tokens_total").description("Completion tokens generados")
+            .tag("model", model).tag("intent", intent).register(registry).increment(completionTokens);
+        Counter.builder("multiagent_llm_tokens_total").description("Total tokens (prompt+completion)")
+            .tag("model", model).tag("intent", intent).register(registry).increment(promptTokens + completionTokens);
+    }
+}
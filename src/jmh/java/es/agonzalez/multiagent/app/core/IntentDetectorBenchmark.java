@@ -0,0 +1,113 @@
+package es.agonzalez.multiagent.app.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link IntentDetector#detect} sobre una mezcla parecida al tráfico real: la mayoría de mensajes son
+ * conversación sin comando y el resto comandos de cada tipo. Se compara el trie actual con la cadena de
+ * regex anterior ({@link LegacyRegexDetector}), que probaba hasta nueve patrones por mensaje.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntentDetectorBenchmark {
+
+    private static final String[] CORPUS = {
+        "hola, ¿qué tal?",
+        "jajaja buenísimo",
+        "alguien sabe a qué hora empieza el directo",
+        "gg",
+        "  no me lo puedo creer, otra vez lag  ",
+        "¿me pasas el enlace del vídeo de ayer?",
+        "buenas noches a todos",
+        "!ai ¿cuál es la capital de Australia?",
+        "!AI cuéntame un chiste corto",
+        "!recipe tortilla de patatas sin cebolla",
+        "!recipe pasta con lo que tengo en la nevera: tomate, atún y aceitunas",
+        "!weather Madrid",
+        "!npc saluda al nuevo",
+        "!follow",
+        "!voice hola a todos",
+        "!voice off",
+        "!forget",
+        "!memoria on",
+        "!memoria off",
+        "!aiuda (no es un comando)",
+        "!",
+    };
+
+    private static final String PLAIN = "  no me lo puedo creer, otra vez lag en la partida de anoche, ¿a alguien más le pasó?  ";
+
+    private final IntentDetector detector = new IntentDetector();
+    private final LegacyRegexDetector legacy = new LegacyRegexDetector();
+    private int next;
+
+    private String nextText() {
+        String text = CORPUS[next];
+        next = next + 1 == CORPUS.length ? 0 : next + 1;
+        return text;
+    }
+
+    @Benchmark
+    public String detectMixed() {
+        return detector.detect(nextText());
+    }
+
+    /** Peor caso habitual: mensaje largo sin comando */
+    @Benchmark
+    public String detectPlainChat() {
+        return detector.detect(PLAIN);
+    }
+
+    @Benchmark
+    public String legacyMixed() {
+        return legacy.detect(nextText());
+    }
+
+    @Benchmark
+    public String legacyPlainChat() {
+        return legacy.detect(PLAIN);
+    }
+
+    /** Copia del detect previo al trie (referencia del benchmark, con su patrón de memory_off erróneo). */
+    static final class LegacyRegexDetector {
+        private static final Pattern RECIPE = Pattern.compile("^!recipe\\b", Pattern.CASE_INSENSITIVE);
+        private static final Pattern WEATHER = Pattern.compile("^!weather\\b", Pattern.CASE_INSENSITIVE);
+        private static final Pattern NPC = Pattern.compile("^!npc\\b", Pattern.CASE_INSENSITIVE);
+        private static final Pattern FOLLOW = Pattern.compile("^!follow\\b", Pattern.CASE_INSENSITIVE);
+        private static final Pattern VOICE = Pattern.compile("^!voice\\b", Pattern.CASE_INSENSITIVE);
+        private static final Pattern FORGET = Pattern.compile("^!forget\\b", Pattern.CASE_INSENSITIVE);
+        private static final Pattern MEMON = Pattern.compile("^!memoria\\s+on\\b", Pattern.CASE_INSENSITIVE);
+        private static final Pattern MEMOFF = Pattern.compile("^!voice\\s+off\\b", Pattern.CASE_INSENSITIVE);
+        private static final Pattern CHAT = Pattern.compile("^!ai\\b", Pattern.CASE_INSENSITIVE);
+
+        String detect(String text) {
+            if (text == null || text.isBlank()) return null;
+            var t = text.trim();
+            if (RECIPE.matcher(t).find()) return "recipe_request";
+            if (WEATHER.matcher(t).find()) return "weather";
+            if (NPC.matcher(t).find()) return "npc_chat";
+            if (CHAT.matcher(t).find()) return "chat";
+            if (FOLLOW.matcher(t).find()) return "respond_follow";
+            if (VOICE.matcher(t).find()) return "play_voice";
+            if (FORGET.matcher(t).find()) return "memory_forget";
+            if (MEMON.matcher(t).find()) return "memory_on";
+            if (MEMOFF.matcher(t).find()) return "memory_off";
+            return null;
+        }
+    }
+}
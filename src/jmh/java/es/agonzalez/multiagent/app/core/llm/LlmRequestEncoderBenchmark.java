@@ -0,0 +1,80 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import es.agonzalez.multiagent.app.core.models.Message;
+import es.agonzalez.multiagent.app.core.workflows.chat.steps.GenerateStep;
+
+/**
+ * Serialización del cuerpo de una petición de chat típica (system prompt, resumen, 16 turnos y el
+ * mensaje actual): {@link LlmRequestEncoder}, que usa LlmClient, frente a construir el mapa y pasarlo
+ * por {@code ObjectMapper.writeValueAsBytes}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LlmRequestEncoderBenchmark {
+
+    private final ObjectMapper om = new ObjectMapper();
+    private LlmRequestEncoder encoder;
+    private List<Message> messages;
+    private Map<String, Object> params;
+
+    @Setup
+    public void setup() {
+        encoder = new LlmRequestEncoder(om);
+        encoder.preEncode(GenerateStep.SYSTEM_PROMPT);
+        encoder.keepAlive("30m");
+        params = Map.of("temperature", 0.4, "top_p", 0.9, "num_ctx", 4096);
+
+        messages = new ArrayList<>();
+        messages.add(Message.system(GenerateStep.SYSTEM_PROMPT));
+        messages.add(Message.system("Resumen previo del usuario:\nLe gusta la cocina mediterránea, es celíaco y juega por las noches."));
+        for (int i = 0; i < GenerateStep.HISTORY_WINDOW; i++) {
+            messages.add(i % 2 == 0
+                ? Message.user("¿Qué puedo cenar hoy con arroz, calabacín y huevos? Turno " + i)
+                : Message.assistant("Un arroz salteado con calabacín y huevo a la plancha: rápido y sin gluten. Turno " + i));
+        }
+        messages.add(Message.user("¿Y algo de postre con \"plátano\" y chocolate?"));
+    }
+
+    @Benchmark
+    public byte[] encoder() throws IOException {
+        return encoder.encode("llama3.2:3b", messages, params, false, false);
+    }
+
+    /** Referencia: mapa intermedio + ObjectMapper (cómo se construía el payload antes del encoder) */
+    @Benchmark
+    public byte[] objectMapperMap() throws IOException {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("model", "llama3.2:3b");
+        payload.put("stream", false);
+        payload.put("keep_alive", "30m");
+        List<Map<String, String>> msgs = new ArrayList<>(messages.size());
+        for (Message m : messages) msgs.add(Map.of("role", m.role(), "content", m.content()));
+        payload.put("messages", msgs);
+        payload.putAll(params);
+        return om.writeValueAsBytes(payload);
+    }
+}
@@ -0,0 +1,59 @@
+package es.agonzalez.multiagent.app.core.mappers;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatResult;
+import es.agonzalez.multiagent.app.dtos.AIRequest;
+import es.agonzalez.multiagent.app.dtos.AIResponse;
+
+/**
+ * Cola de cada respuesta de /ai: resultado del workflow a {@link AIResponse} y su serialización JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseMapperBenchmark {
+
+    private final ResponseMapper mapper = new ResponseMapper();
+    private final ObjectMapper om = new ObjectMapper();
+    private ChatResult result;
+    private AIRequest request;
+
+    @Setup
+    public void setup() {
+        result = ChatResult.ok("Un arroz salteado con calabacín y huevo a la plancha: rápido y sin gluten.",
+            Map.of("model", "llama3.2:3b", "latencyMs", 850L, "summaryUpdated", false));
+        request = new AIRequest();
+        request.setUserId("user-42");
+        request.setText("!ai ¿qué ceno hoy?");
+        request.setIntent("chat");
+    }
+
+    @Benchmark
+    public AIResponse mapChat() {
+        return mapper.mapChatResult(result, request, "chat", "Agent.Chat");
+    }
+
+    @Benchmark
+    public byte[] mapAndSerialize() throws JsonProcessingException {
+        return om.writeValueAsBytes(mapper.mapChatResult(result, request, "chat", "Agent.Chat"));
+    }
+}
@@ -0,0 +1,98 @@
+package es.agonzalez.multiagent.app.memory.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+
+/**
+ * Historial en fichero (modo directo, sin write-behind) con historiales de distintos tamaños:
+ * append de un turno, lectura de la ventana del chat, carga completa (cola de maxHistoryLines) y
+ * recuento de líneas.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileMemoryStoreBenchmark {
+
+    private static final String READER = "bench-reader";
+    private static final String WRITER = "bench-writer";
+    private static final String TURN = "Hola, ¿me recomiendas algo para cenar que no lleve gluten? Tengo arroz y verduras.";
+
+    /** Líneas del historial leído; también el límite de rotación */
+    @Param({ "100", "1000", "10000" })
+    public int historyLines;
+
+    private Path dir;
+    private FileMemoryStore store;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("jmh-memory");
+        AppProperties props = new AppProperties();
+        props.setDatadir(dir.toString());
+        props.setMaxHistoryLines(historyLines);
+        AppProperties.Llm llm = new AppProperties.Llm();
+        llm.setUrl("http://localhost");
+        props.setLlm(llm);
+
+        store = new FileMemoryStore();
+        ReflectionTestUtils.setField(store, "props", props);
+        store.init();
+        for (int i = 0; i < historyLines; i++) store.append(READER, i % 2 == 0 ? "user" : "assistant", TURN + " #" + i);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.shutdown();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+        }
+    }
+
+    /** Un turno (append + comprobación de rotación, como MemoryService) */
+    @Benchmark
+    public boolean appendTurn() throws IOException {
+        store.append(WRITER, "user", TURN);
+        return store.rotateIfNeeded(WRITER);
+    }
+
+    /** Ventana que carga LoadMemoryStep por petición de chat */
+    @Benchmark
+    public List<String> loadChatWindow() throws IOException {
+        return store.loadLast(READER, 32);
+    }
+
+    @Benchmark
+    public List<String> loadFull() throws IOException {
+        return store.load(READER);
+    }
+
+    @Benchmark
+    public int countLines() throws IOException {
+        return store.countLines(READER);
+    }
+}
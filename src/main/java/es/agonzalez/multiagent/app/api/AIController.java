@@ -1,31 +1,251 @@
 package es.agonzalez.multiagent.app.api;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.MessageSource;
+import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.config.RateLimitingFilter;
 import es.agonzalez.multiagent.app.core.workflows.WorkflowRunner;
+import es.agonzalez.multiagent.app.dtos.AIBatchItem;
 import es.agonzalez.multiagent.app.dtos.AIRequest;
 import es.agonzalez.multiagent.app.dtos.AIResponse;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
+import jakarta.validation.Validator;
 
 
 @RestController
 @RequestMapping("/api/v1")
 @Tag(name = "Chat & AI", description = "Endpoints de interacción con agentes IA")
 public class AIController {
+    private static final Logger log = LoggerFactory.getLogger(AIController.class);
+
     @Autowired
     private WorkflowRunner runner;
+    @Autowired
+    private AppProperties appProperties;
+    @Autowired
+    private ObjectMapper om;
+    @Autowired
+    private Validator validator;
+    @Autowired
+    private MessageSource messages;
+    @Autowired(required = false)
+    private RateLimitingFilter rateLimiter;
+    /**
+     * Coordinador y elementos de los lotes, fuera de applicationTaskExecutor: el coordinador espera en
+     * el semáforo y cada elemento a los pasos de su workflow, que van a ese pool. Con hilos virtuales el
+     * límite lo pone sólo {@code multiagent.batch.parallelism}.
+     */
+    private final ExecutorService batchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    /**
+     * Generaciones SSE: cada una ocupa su hilo hasta el último token. En applicationTaskExecutor (8 hilos
+     * de plataforma y cola sin límite sin VIRTUAL_THREADS) el noveno stream esperaría en la cola mientras
+     * corre el timeout de su emitter; la concurrencia real la acota el limitador por modelo.
+     */
+    private final ExecutorService streamExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
     @PostMapping("/ai")
     @Operation(summary = "Ejecuta un workflow IA", description = "Procesa un input del usuario y devuelve respuesta del agente / modelo.")
-    public ResponseEntity<AIResponse> chat(@Valid @RequestBody AIRequest req) {
-    return ResponseEntity.ok().body(runner.applyWorkflow(req));
+    public Object chat(@Valid @RequestBody AIRequest req) {
+        // Con multiagent.llm.async el hilo de Tomcat vuelve al pool mientras responde el LLM. Sin él se
+        // devuelve la respuesta directamente: un future ya completado costaría un startAsync y un
+        // re-dispatch por petición. Spring elige el manejador por el tipo del valor devuelto.
+        if (appProperties.getLlm().isAsync()) {
+            return runner.applyWorkflowAsync(req).thenApply(body -> ResponseEntity.ok().body(body));
+        }
+        return ResponseEntity.ok().body(runner.applyWorkflow(req));
+    }
+
+    /**
+     * Versión Server-Sent-Events de /ai. Emite un evento "token" por cada fragmento generado por el
+     * LLM y un evento final "done" con la AIResponse completa (o "error" si el workflow falla).
+     * Los intents sin soporte de streaming sólo emiten el evento "done".
+     */
+    @PostMapping(value = "/ai/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @Operation(summary = "Ejecuta un workflow IA en streaming", description = "Igual que /ai pero devuelve los tokens generados vía Server-Sent-Events a medida que llegan.")
+    public SseEmitter stream(@Valid @RequestBody AIRequest req) {
+        SseEmitter emitter = new SseEmitter(appProperties.getLlm().getStreamTimeoutMs());
+        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        try {
+            streamExecutor.execute(() -> {
+                if (mdc != null) MDC.setContextMap(mdc);
+                try {
+                    AIResponse response = runner.applyWorkflowStreaming(req, token -> send(emitter, "token", Map.of("content", token)));
+                    send(emitter, "ok".equals(response.status()) ? "done" : "error", response);
+                    emitter.complete();
+                } catch (RuntimeException e) {
+                    log.warn("Stream interrumpido userId={}: {}", req.getUserId(), e.getMessage());
+                    emitter.completeWithError(e);
+                } finally {
+                    MDC.clear();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Parada en curso
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Service shutting down", e);
+        }
+        return emitter;
+    }
+
+    /**
+     * Ejecuta un lote de AIRequest con como mucho {@code multiagent.batch.parallelism} en curso y
+     * devuelve una línea JSON ({@link AIBatchItem}) por elemento según terminan, no en el orden del lote.
+     * Cada elemento consume un token del rate limiting (el primero usa el de la propia petición) y uno
+     * inválido o sin token no corta el lote: su línea lleva {@code status: "error"} y el motivo.
+     */
+    @PostMapping(value = "/ai/batch", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @Operation(summary = "Ejecuta un lote de workflows IA", description = "Procesa varias peticiones de /ai en paralelo y devuelve cada AIResponse en NDJSON a medida que termina.")
+    public ResponseEntity<ResponseBodyEmitter> batch(@RequestBody List<AIRequest> reqs, HttpServletRequest http) {
+        var config = appProperties.getBatch();
+        if (reqs == null || reqs.isEmpty()) throw badRequest("validation.batch.empty");
+        if (reqs.size() > config.getMaxItems()) throw badRequest("validation.batch.size", config.getMaxItems());
+
+        String rateKey = rateLimiter == null ? null : rateLimiter.keyFor(http);
+        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(config.getTimeoutMs());
+        AtomicBoolean closed = new AtomicBoolean();
+        emitter.onTimeout(() -> closed.set(true));
+        emitter.onError(e -> closed.set(true));
+        batchExecutor.execute(() -> runBatch(reqs, rateKey, mdc, config.getParallelism(), emitter, closed));
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(emitter);
+    }
+
+    private void runBatch(List<AIRequest> reqs, String rateKey, Map<String, String> mdc, int parallelism,
+                          ResponseBodyEmitter emitter, AtomicBoolean closed) {
+        Semaphore slots = new Semaphore(parallelism);
+        try {
+            for (int i = 0; i < reqs.size() && !closed.get(); i++) {
+                int index = i;
+                AIRequest req = reqs.get(i);
+                String invalid = violations(req);
+                if (invalid != null) {
+                    sendLine(emitter, AIBatchItem.of(index, AIResponse.error(null, invalid, "validation_error")), closed);
+                    continue;
+                }
+                if (index > 0 && rateLimiter != null && !rateLimiter.tryConsume(rateKey)) {
+                    sendLine(emitter, AIBatchItem.of(index, AIResponse.error(null, "Too many requests", "rate_limited")), closed);
+                    continue;
+                }
+                slots.acquire();
+                try {
+                    batchExecutor.execute(() -> {
+                        if (mdc != null) MDC.setContextMap(mdc);
+                        try {
+                            sendLine(emitter, AIBatchItem.of(index, runner.applyWorkflow(req)), closed);
+                        } finally {
+                            MDC.clear();
+                            slots.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Parada en curso: los elementos sin lanzar se cierran con error en vez de omitirse
+                    slots.release();
+                    sendLine(emitter, AIBatchItem.of(index, AIResponse.error(null, "Service shutting down", "shutting_down")), closed);
+                }
+            }
+            slots.acquire(parallelism);
+            if (closed.get()) {
+                log.warn("Lote interrumpido: cliente desconectado o timeout ({} elementos)", reqs.size());
+            } else {
+                emitter.complete();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            emitter.completeWithError(e);
+        }
+    }
+
+    /** Deja de aceptar lotes y streams y espera a los que están en curso (acotado por drainTimeoutMs). */
+    @PreDestroy
+    public void drain() {
+        batchExecutor.shutdown();
+        streamExecutor.shutdown();
+        long timeout = appProperties.getBatch().getDrainTimeoutMs();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            if (!batchExecutor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                batchExecutor.shutdownNow();
+                log.warn("Parada con elementos de lote en curso tras {} ms", timeout);
+            }
+            if (!streamExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                streamExecutor.shutdownNow();
+                log.warn("Parada con streams SSE en curso tras {} ms", timeout);
+            }
+        } catch (InterruptedException e) {
+            batchExecutor.shutdownNow();
+            streamExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String violations(AIRequest req) {
+        if (req == null) return "null";
+        var found = validator.validate(req);
+        if (found.isEmpty()) return null;
+        return found.stream().map(v -> v.getMessage()).sorted().collect(Collectors.joining("; "));
+    }
+
+    /** Escribe la línea entera de una vez: varios elementos terminan a la vez y no deben intercalarse */
+    private void sendLine(ResponseBodyEmitter emitter, AIBatchItem item, AtomicBoolean closed) {
+        if (closed.get()) return;
+        try {
+            byte[] json = om.writeValueAsBytes(item);
+            byte[] line = new byte[json.length + 1];
+            System.arraycopy(json, 0, line, 0, json.length);
+            line[json.length] = '\n';
+            emitter.send(line, MediaType.APPLICATION_NDJSON);
+        } catch (JsonProcessingException e) {
+            log.error("No se pudo serializar el elemento {} del lote", item.index(), e);
+        } catch (IOException | IllegalStateException e) {
+            // Cliente desconectado: no se lanzan más elementos, los que están en curso terminan
+            closed.set(true);
+        }
+    }
+
+    private ResponseStatusException badRequest(String key, Object... args) {
+        String msg = messages.getMessage(key, args, key, LocaleContextHolder.getLocale());
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, msg);
+    }
+
+    private static void send(SseEmitter emitter, String event, Object data) {
+        try {
+            emitter.send(SseEmitter.event().name(event).data(data, MediaType.APPLICATION_JSON));
+        } catch (IOException e) {
+            // Cliente desconectado: se propaga para cortar la lectura del stream del LLM
+            throw new IllegalStateException("sse_client_disconnected", e);
+        }
     }
-    
 }
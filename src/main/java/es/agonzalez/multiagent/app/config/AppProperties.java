@@ -1,11 +1,17 @@
 package es.agonzalez.multiagent.app.config;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.annotation.Validated;
 
 import es.agonzalez.multiagent.app.util.Sanitizers;
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.DecimalMax;
+import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotBlank;
 
@@ -20,6 +26,14 @@ public class AppProperties {
     @Min(value = 10, message = "{validation.maxHistoryLines.min}")
     private int maxHistoryLines = 200;
 
+    /** Tamaño máximo del fichero de historial antes de rotar (segunda condición; 0 desactiva) */
+    @Min(value = 0, message = "{validation.maxHistoryBytes.min}")
+    private long maxHistoryBytes = 8L * 1024 * 1024;
+
+    /** Intervalo de la reconciliación en segundo plano de contadores de líneas con los ficheros */
+    @Min(value = 1000, message = "{validation.historyReconcileIntervalMs.min}")
+    private long historyReconcileIntervalMs = 600000;
+
     @Min(value = 1, message = "{validation.summarizationEvery.min}")
     private int summarizationEvery = 10;
 
@@ -29,9 +43,43 @@ public class AppProperties {
     @NotBlank(message = "{validation.modelconfig.notBlank}")
     private String modelconfig;
 
+    /** Tabla comando -> intent -> agente de IntentDetector (classpath: o file:) */
+    @NotBlank(message = "{validation.intentconfig.notBlank}")
+    private String intentconfig = "classpath:intents.yaml";
+
     @Valid
     private Llm llm = new Llm();
 
+    @Valid
+    private WriteBehind writeBehind = new WriteBehind();
+
+    @Valid
+    private MemoryCache memoryCache = new MemoryCache();
+
+    @Valid
+    private SegmentLog segmentLog = new SegmentLog();
+
+    @Valid
+    private Summarization summarization = new Summarization();
+
+    @Valid
+    private Metrics metrics = new Metrics();
+
+    @Valid
+    private ResponseCache responseCache = new ResponseCache();
+
+    @Valid
+    private SemanticCache semanticCache = new SemanticCache();
+
+    @Valid
+    private Hedge hedge = new Hedge();
+
+    @Valid
+    private Limiter limiter = new Limiter();
+
+    @Valid
+    private Batch batch = new Batch();
+
     // Normalización movida al setter para evitar método @PostConstruct innecesario (reduce warnings)
 
     public String getDatadir() { return datadir; }
@@ -40,14 +88,40 @@ public class AppProperties {
     }
     public int getMaxHistoryLines() { return maxHistoryLines; }
     public void setMaxHistoryLines(int maxHistoryLines) { this.maxHistoryLines = maxHistoryLines; }
+    public long getMaxHistoryBytes() { return maxHistoryBytes; }
+    public void setMaxHistoryBytes(long maxHistoryBytes) { this.maxHistoryBytes = maxHistoryBytes; }
+    public long getHistoryReconcileIntervalMs() { return historyReconcileIntervalMs; }
+    public void setHistoryReconcileIntervalMs(long historyReconcileIntervalMs) { this.historyReconcileIntervalMs = historyReconcileIntervalMs; }
     public int getSummarizationEvery() { return summarizationEvery; }
     public void setSummarizationEvery(int summarizationEvery) { this.summarizationEvery = summarizationEvery; }
     public int getMaxLineLength() { return maxLineLength; }
     public void setMaxLineLength(int maxLineLength) { this.maxLineLength = maxLineLength; }
     public String getModelconfig() { return modelconfig; }
     public void setModelconfig(String modelconfig) { this.modelconfig = modelconfig; }
+    public String getIntentconfig() { return intentconfig; }
+    public void setIntentconfig(String intentconfig) { this.intentconfig = intentconfig; }
     public Llm getLlm() { return llm; }
     public void setLlm(Llm llm) { this.llm = llm; }
+    public WriteBehind getWriteBehind() { return writeBehind; }
+    public void setWriteBehind(WriteBehind writeBehind) { this.writeBehind = writeBehind; }
+    public MemoryCache getMemoryCache() { return memoryCache; }
+    public void setMemoryCache(MemoryCache memoryCache) { this.memoryCache = memoryCache; }
+    public SegmentLog getSegmentLog() { return segmentLog; }
+    public void setSegmentLog(SegmentLog segmentLog) { this.segmentLog = segmentLog; }
+    public Summarization getSummarization() { return summarization; }
+    public void setSummarization(Summarization summarization) { this.summarization = summarization; }
+    public Metrics getMetrics() { return metrics; }
+    public void setMetrics(Metrics metrics) { this.metrics = metrics; }
+    public ResponseCache getResponseCache() { return responseCache; }
+    public void setResponseCache(ResponseCache responseCache) { this.responseCache = responseCache; }
+    public SemanticCache getSemanticCache() { return semanticCache; }
+    public void setSemanticCache(SemanticCache semanticCache) { this.semanticCache = semanticCache; }
+    public Hedge getHedge() { return hedge; }
+    public void setHedge(Hedge hedge) { this.hedge = hedge; }
+    public Limiter getLimiter() { return limiter; }
+    public void setLimiter(Limiter limiter) { this.limiter = limiter; }
+    public Batch getBatch() { return batch; }
+    public void setBatch(Batch batch) { this.batch = batch; }
 
     @Validated
     public static class Llm {
@@ -55,10 +129,301 @@ public class AppProperties {
         private String url;
     @Min(value = 100, message = "{validation.llm.timeoutMs.min}")
         private long timeoutMs = 5000;
+        /** Tiempo máximo de una respuesta en streaming (SSE) completa */
+    @Min(value = 1000, message = "{validation.llm.streamTimeoutMs.min}")
+        private long streamTimeoutMs = 120000;
+        /** Pool de backends Ollama; si está vacío se usa sólo {@code url} */
+        private List<String> urls = new ArrayList<>();
+        /** Fallos consecutivos (5xx, timeout, E/S) que sacan un backend de la rotación */
+    @Min(value = 1, message = "{validation.llm.ejectFailures.min}")
+        private int ejectFailures = 3;
+    @Min(value = 100, message = "{validation.llm.ejectMs.min}")
+        private long ejectMs = 30000;
+        /** Rampa de peso tras volver a la rotación (0 = tráfico completo inmediato) */
+    @Min(value = 0, message = "{validation.llm.slowStartMs.min}")
+        private long slowStartMs = 30000;
+        /** keep_alive enviado a Ollama: el modelo (y su caché de prompt) sigue cargado entre peticiones */
+        private String keepAlive = "30m";
+        /**
+         * Ventana de historial anclada por usuario para que el prefijo del prompt se repita entre turnos.
+         * Opt-in: Ollama guarda un único prompt por slot y con usuarios intercalados casi todo es fallo.
+         */
+        private boolean prefixReuse = false;
+    @Min(value = 1, message = "{validation.llm.prefixMaxUsers.min}")
+        private int prefixMaxUsers = 10000;
+        /** /ai sin bloquear el hilo mientras responde el LLM (chatAsync sobre HttpClient.sendAsync) */
+        private boolean async = false;
 
         public String getUrl() { return url; }
         public void setUrl(String url) { this.url = url; }
         public long getTimeoutMs() { return timeoutMs; }
         public void setTimeoutMs(long timeoutMs) { this.timeoutMs = timeoutMs; }
+        public long getStreamTimeoutMs() { return streamTimeoutMs; }
+        public void setStreamTimeoutMs(long streamTimeoutMs) { this.streamTimeoutMs = streamTimeoutMs; }
+        public List<String> getUrls() { return urls; }
+        public void setUrls(List<String> urls) { this.urls = urls == null ? new ArrayList<>() : urls; }
+        public int getEjectFailures() { return ejectFailures; }
+        public void setEjectFailures(int ejectFailures) { this.ejectFailures = ejectFailures; }
+        public long getEjectMs() { return ejectMs; }
+        public void setEjectMs(long ejectMs) { this.ejectMs = ejectMs; }
+        public long getSlowStartMs() { return slowStartMs; }
+        public void setSlowStartMs(long slowStartMs) { this.slowStartMs = slowStartMs; }
+        public String getKeepAlive() { return keepAlive; }
+        public void setKeepAlive(String keepAlive) { this.keepAlive = keepAlive; }
+        public boolean isPrefixReuse() { return prefixReuse; }
+        public void setPrefixReuse(boolean prefixReuse) { this.prefixReuse = prefixReuse; }
+        public int getPrefixMaxUsers() { return prefixMaxUsers; }
+        public void setPrefixMaxUsers(int prefixMaxUsers) { this.prefixMaxUsers = prefixMaxUsers; }
+        public boolean isAsync() { return async; }
+        public void setAsync(boolean async) { this.async = async; }
+
+        /** Backends del pool por defecto: {@code urls} si se configuró, si no {@code url} */
+        public List<String> backends() {
+            return urls.isEmpty() ? List.of(url) : List.copyOf(urls);
+        }
+    }
+
+    /**
+     * Modo write-behind del historial en fichero: appends en buffer por usuario y volcado por lotes
+     * (group-commit) desde un único hilo escritor.
+     */
+    @Validated
+    public static class WriteBehind {
+        public enum Durability { NONE, BATCH, PER_WRITE }
+
+        private boolean enabled = false;
+    @Min(value = 1, message = "{validation.writeBehind.flushIntervalMs.min}")
+        private long flushIntervalMs = 50;
+    @Min(value = 100, message = "{validation.writeBehind.checkpointIntervalMs.min}")
+        private long checkpointIntervalMs = 1000;
+        private Durability durability = Durability.BATCH;
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+        public long getFlushIntervalMs() { return flushIntervalMs; }
+        public void setFlushIntervalMs(long flushIntervalMs) { this.flushIntervalMs = flushIntervalMs; }
+        public long getCheckpointIntervalMs() { return checkpointIntervalMs; }
+        public void setCheckpointIntervalMs(long checkpointIntervalMs) { this.checkpointIntervalMs = checkpointIntervalMs; }
+        public Durability getDurability() { return durability; }
+        public void setDurability(Durability durability) { this.durability = durability; }
+    }
+
+    /**
+     * Caché en proceso de los turnos recientes por usuario delante del MemoryStore.
+     */
+    @Validated
+    public static class MemoryCache {
+        private boolean enabled = true;
+    @Min(value = 1, message = "{validation.memoryCache.linesPerUser.min}")
+        private int linesPerUser = 128;
+    @Min(value = 0, message = "{validation.memoryCache.maxBytes.min}")
+        private long maxBytes = 32L * 1024 * 1024;
+        /** Caducidad de cada entrada desde que se carga del store (ms) */
+    @Min(value = 1, message = "{validation.memoryCache.ttlMs.min}")
+        private long ttlMs = 10 * 60 * 1000L;
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+        public int getLinesPerUser() { return linesPerUser; }
+        public void setLinesPerUser(int linesPerUser) { this.linesPerUser = linesPerUser; }
+        public long getMaxBytes() { return maxBytes; }
+        public void setMaxBytes(long maxBytes) { this.maxBytes = maxBytes; }
+        public long getTtlMs() { return ttlMs; }
+        public void setTtlMs(long ttlMs) { this.ttlMs = ttlMs; }
+    }
+
+    /**
+     * Historial en log binario segmentado (SegmentedLogMemoryStore) en lugar de un TSV por usuario.
+     */
+    public static class SegmentLog {
+        private boolean enabled = false;
+    @Min(value = 4096, message = "{validation.segmentLog.segmentBytes.min}")
+        private long segmentBytes = 64L * 1024 * 1024;
+        /** Copia al arrancar el historial TSV existente (una sola vez) */
+        private boolean migrateOnStartup = true;
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+        public long getSegmentBytes() { return segmentBytes; }
+        public void setSegmentBytes(long segmentBytes) { this.segmentBytes = segmentBytes; }
+        public boolean isMigrateOnStartup() { return migrateOnStartup; }
+        public void setMigrateOnStartup(boolean migrateOnStartup) { this.migrateOnStartup = migrateOnStartup; }
+    }
+
+    /**
+     * Resúmenes de conversación: en segundo plano (pool acotado) o en la propia petición.
+     */
+    public static class Summarization {
+        private boolean async = true;
+        /** Actualiza el resumen previo con los turnos nuevos en lugar de resumir toda la ventana */
+        private boolean incremental = true;
+    @Min(value = 1, message = "{validation.summarization.concurrency.min}")
+        private int concurrency = 1;
+    @Min(value = 1, message = "{validation.summarization.queueCapacity.min}")
+        private int queueCapacity = 256;
+    @Min(value = 0, message = "{validation.summarization.drainTimeoutMs.min}")
+        private long drainTimeoutMs = 10000;
+
+        public boolean isAsync() { return async; }
+        public void setAsync(boolean async) { this.async = async; }
+        public boolean isIncremental() { return incremental; }
+        public void setIncremental(boolean incremental) { this.incremental = incremental; }
+        public int getConcurrency() { return concurrency; }
+        public void setConcurrency(int concurrency) { this.concurrency = concurrency; }
+        public int getQueueCapacity() { return queueCapacity; }
+        public void setQueueCapacity(int queueCapacity) { this.queueCapacity = queueCapacity; }
+        public long getDrainTimeoutMs() { return drainTimeoutMs; }
+        public void setDrainTimeoutMs(long drainTimeoutMs) { this.drainTimeoutMs = drainTimeoutMs; }
+    }
+
+    /**
+     * Métricas LLM: límite de modelos distintos con etiqueta propia (el resto se agrupa en "other").
+     */
+    public static class Metrics {
+    @Min(value = 1, message = "{validation.metrics.maxModels.min}")
+        private int maxModels = 32;
+
+        public int getMaxModels() { return maxModels; }
+        public void setMaxModels(int maxModels) { this.maxModels = maxModels; }
+    }
+
+    /**
+     * Caché de respuestas del LLM para el workflow de recetas (LlmResponseCache).
+     */
+    public static class ResponseCache {
+        private boolean enabled = true;
+    @Min(value = 1000, message = "{validation.responseCache.ttlMs.min}")
+        private long ttlMs = 6L * 60 * 60 * 1000;
+    @Min(value = 0, message = "{validation.responseCache.maxBytes.min}")
+        private long maxBytes = 16L * 1024 * 1024;
+        /** Guarda también cada respuesta en datadir/llm-cache para sobrevivir a reinicios */
+        private boolean persist = false;
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+        public long getTtlMs() { return ttlMs; }
+        public void setTtlMs(long ttlMs) { this.ttlMs = ttlMs; }
+        public long getMaxBytes() { return maxBytes; }
+        public void setMaxBytes(long maxBytes) { this.maxBytes = maxBytes; }
+        public boolean isPersist() { return persist; }
+        public void setPersist(boolean persist) { this.persist = persist; }
+    }
+
+    /**
+     * Caché semántica de respuestas (SemanticCache) para los agentes de la sección semantic-cache de models.yaml.
+     */
+    public static class SemanticCache {
+        private boolean enabled = false;
+        /** Modelo de Ollama que calcula los embeddings (/api/embeddings) */
+    @NotBlank(message = "{validation.semanticCache.embedModel.notBlank}")
+        private String embedModel = "nomic-embed-text";
+        /** Similitud coseno mínima para servir una respuesta cacheada */
+    @DecimalMin(value = "0.5", message = "{validation.semanticCache.threshold.range}")
+    @DecimalMax(value = "1.0", message = "{validation.semanticCache.threshold.range}")
+        private double threshold = 0.92;
+    @Min(value = 1000, message = "{validation.semanticCache.ttlMs.min}")
+        private long ttlMs = 24L * 60 * 60 * 1000;
+    @Min(value = 1, message = "{validation.semanticCache.maxEntries.min}")
+        private int maxEntries = 5000;
+        /** Guarda el índice en datadir/semantic-cache para sobrevivir a reinicios */
+        private boolean persist = true;
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+        public String getEmbedModel() { return embedModel; }
+        public void setEmbedModel(String embedModel) { this.embedModel = embedModel; }
+        public double getThreshold() { return threshold; }
+        public void setThreshold(double threshold) { this.threshold = threshold; }
+        public long getTtlMs() { return ttlMs; }
+        public void setTtlMs(long ttlMs) { this.ttlMs = ttlMs; }
+        public int getMaxEntries() { return maxEntries; }
+        public void setMaxEntries(int maxEntries) { this.maxEntries = maxEntries; }
+        public boolean isPersist() { return persist; }
+        public void setPersist(boolean persist) { this.persist = persist; }
+    }
+
+    /**
+     * Hedging de llamadas LLM (LlmHedger) para los agentes listados en la sección hedge de models.yaml.
+     */
+    public static class Hedge {
+        /** Percentil de latencia observada tras el que se lanza la copia */
+    @Min(value = 50, message = "{validation.hedge.percentile.range}")
+    @Max(value = 99, message = "{validation.hedge.percentile.range}")
+        private int percentile = 95;
+        /** Copias permitidas por cada 100 llamadas elegibles */
+    @Min(value = 0, message = "{validation.hedge.budgetPercent.range}")
+    @Max(value = 100, message = "{validation.hedge.budgetPercent.range}")
+        private int budgetPercent = 5;
+    @Min(value = 0, message = "{validation.hedge.minDelayMs.min}")
+        private long minDelayMs = 50;
+        /** Llamadas observadas de un modelo antes de empezar a duplicar */
+    @Min(value = 1, message = "{validation.hedge.minSamples.min}")
+        private int minSamples = 20;
+
+        public int getPercentile() { return percentile; }
+        public void setPercentile(int percentile) { this.percentile = percentile; }
+        public int getBudgetPercent() { return budgetPercent; }
+        public void setBudgetPercent(int budgetPercent) { this.budgetPercent = budgetPercent; }
+        public long getMinDelayMs() { return minDelayMs; }
+        public void setMinDelayMs(long minDelayMs) { this.minDelayMs = minDelayMs; }
+        public int getMinSamples() { return minSamples; }
+        public void setMinSamples(int minSamples) { this.minSamples = minSamples; }
+    }
+
+    /**
+     * Límite de concurrencia adaptativo por modelo (ConcurrencyLimiter) con cola de espera acotada.
+     */
+    public static class Limiter {
+        private boolean enabled = true;
+    @Min(value = 1, message = "{validation.limiter.initialLimit.min}")
+        private int initialLimit = 8;
+    @Min(value = 1, message = "{validation.limiter.minLimit.min}")
+        private int minLimit = 1;
+    @Min(value = 1, message = "{validation.limiter.maxLimit.min}")
+        private int maxLimit = 64;
+        /** Llamadas esperando hueco como máximo; las que no caben se rechazan al momento */
+    @Min(value = 0, message = "{validation.limiter.queueSize.min}")
+        private int queueSize = 32;
+    @Min(value = 0, message = "{validation.limiter.maxWaitMs.min}")
+        private long maxWaitMs = 2000;
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+        public int getInitialLimit() { return initialLimit; }
+        public void setInitialLimit(int initialLimit) { this.initialLimit = initialLimit; }
+        public int getMinLimit() { return minLimit; }
+        public void setMinLimit(int minLimit) { this.minLimit = minLimit; }
+        public int getMaxLimit() { return maxLimit; }
+        public void setMaxLimit(int maxLimit) { this.maxLimit = maxLimit; }
+        public int getQueueSize() { return queueSize; }
+        public void setQueueSize(int queueSize) { this.queueSize = queueSize; }
+        public long getMaxWaitMs() { return maxWaitMs; }
+        public void setMaxWaitMs(long maxWaitMs) { this.maxWaitMs = maxWaitMs; }
+    }
+
+    /**
+     * Endpoint /ai/batch: lotes de AIRequest ejecutados en paralelo y devueltos en NDJSON.
+     */
+    public static class Batch {
+    @Min(value = 1, message = "{validation.batch.maxItems.min}")
+        private int maxItems = 1000;
+        /** Elementos de un mismo lote en ejecución a la vez */
+    @Min(value = 1, message = "{validation.batch.parallelism.min}")
+        private int parallelism = 8;
+        /** Duración máxima de la respuesta completa */
+    @Min(value = 1000, message = "{validation.batch.timeoutMs.min}")
+        private long timeoutMs = 600000;
+        /** Espera al parar a que terminen los elementos en curso antes de interrumpirlos */
+    @Min(value = 0, message = "{validation.batch.drainTimeoutMs.min}")
+        private long drainTimeoutMs = 10000;
+
+        public int getMaxItems() { return maxItems; }
+        public void setMaxItems(int maxItems) { this.maxItems = maxItems; }
+        public int getParallelism() { return parallelism; }
+        public void setParallelism(int parallelism) { this.parallelism = parallelism; }
+        public long getTimeoutMs() { return timeoutMs; }
+        public void setTimeoutMs(long timeoutMs) { this.timeoutMs = timeoutMs; }
+        public long getDrainTimeoutMs() { return drainTimeoutMs; }
+        public void setDrainTimeoutMs(long drainTimeoutMs) { this.drainTimeoutMs = drainTimeoutMs; }
     }
 }
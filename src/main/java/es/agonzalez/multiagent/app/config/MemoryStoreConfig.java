@@ -0,0 +1,54 @@
+package es.agonzalez.multiagent.app.config;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import es.agonzalez.multiagent.app.memory.MemoryStore;
+import es.agonzalez.multiagent.app.memory.impl.CachingMemoryStore;
+import es.agonzalez.multiagent.app.memory.impl.FileMemoryStore;
+import es.agonzalez.multiagent.app.memory.impl.HistoryMigration;
+import es.agonzalez.multiagent.app.memory.impl.SegmentedLogMemoryStore;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Composición del MemoryStore que usa MemoryService: la implementación en fichero (o el log
+ * segmentado si está habilitado) envuelta, si está habilitada, en la caché de turnos recientes.
+ */
+@Configuration
+public class MemoryStoreConfig {
+    @Autowired
+    private AppProperties props;
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(prefix = "multiagent.segment-log", name = "enabled", havingValue = "true")
+    public SegmentedLogMemoryStore segmentedLogMemoryStore(MeterRegistry meterRegistry) throws IOException {
+        Path datadir = Paths.get(props.getDatadir());
+        Path segmentsDir = datadir.resolve("segments");
+        SegmentedLogMemoryStore store = new SegmentedLogMemoryStore(segmentsDir, datadir.resolve("summary"),
+            props.getSegmentLog().getSegmentBytes(), props.getMaxHistoryLines(), props.getMaxHistoryBytes(),
+            props.getMaxLineLength(), meterRegistry);
+        if (props.getSegmentLog().isMigrateOnStartup()) {
+            HistoryMigration.migrate(datadir.resolve("history"), segmentsDir, store, props.getMaxHistoryLines());
+        }
+        return store;
+    }
+
+    @Bean
+    @Primary
+    public MemoryStore memoryStore(FileMemoryStore fileStore, ObjectProvider<SegmentedLogMemoryStore> segmented,
+                                   MeterRegistry meterRegistry) {
+        SegmentedLogMemoryStore segmentedStore = segmented.getIfAvailable();
+        MemoryStore base = segmentedStore != null ? segmentedStore : fileStore;
+        var cache = props.getMemoryCache();
+        if (cache == null || !cache.isEnabled()) return base;
+        return new CachingMemoryStore(base, cache.getLinesPerUser(), cache.getMaxBytes(), cache.getTtlMs(), meterRegistry);
+    }
+}
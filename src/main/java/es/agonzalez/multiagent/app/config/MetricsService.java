@@ -2,6 +2,7 @@ package es.agonzalez.multiagent.app.config;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
@@ -17,6 +18,8 @@ import jakarta.annotation.PostConstruct;
 public class MetricsService {
     @Autowired
     private MeterRegistry registry;
+    @Autowired(required = false)
+    private AppProperties props;
 
     private Counter messages;
     private Counter errors;
@@ -27,11 +30,29 @@ public class MetricsService {
     private static final String LLM_COMPLETION_TOKENS = "multiagent_llm_completion_tokens_total";
     private static final String LLM_TOTAL_TOKENS = "multiagent_llm_tokens_total";
     private static final String LLM_ERRORS = "multiagent_llm_errors_total"; // counter per model/intent/reason
-    
+    private static final String LLM_PROMPT_REUSE = "multiagent_llm_prompt_reuse_total"; // counter per model/intent/result
+    private static final String LLM_PROMPT_SAVED = "multiagent_llm_prompt_tokens_saved_total";
+    static final String OTHER_MODEL = "other";
+
+    /** Clave de la caché de meters: qualifier es el status (latencia) o el reason (errores) */
+    private record MeterKey(String model, String intent, String qualifier) {}
+    private record LlmMeters(Timer latency, Counter promptTokens, Counter completionTokens, Counter totalTokens) {}
+
+    /*
+     * Meters ya resueltos: el camino caliente es un get() sin bloqueo sobre ConcurrentHashMap, sin
+     * builders, tags ni Ids por llamada. Sólo el primer uso de cada clave pasa por el registry.
+     */
+    private final ConcurrentHashMap<MeterKey, LlmMeters> llmMeters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<MeterKey, Counter> errorCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<MeterKey, Counter> reuseCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<MeterKey, Counter> savedCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> modelLabels = new ConcurrentHashMap<>();
+    private int maxModels = 32;
 
     @PostConstruct
     public void init() 
     {
+        if (props != null) this.maxModels = props.getMetrics().getMaxModels();
         this.messages = Counter.builder("multiagent_messages_total").description("Total de mensajes recibidos").register(registry);
         this.errors = Counter.builder("multiagent_errors_total").description("Total de errores de procesamiento").register(registry);
 
@@ -63,41 +84,92 @@ public class MetricsService {
     }
     public void recordLlmErrorWithReason(String model, String intent, String reason, long latencyMs) {
         recordLlm(model, intent, "error", -1, -1, latencyMs);
-        model = model == null ? "unknown" : model;
-        intent = intent == null ? "unknown" : intent;
         reason = (reason == null || reason.isBlank()) ? "unknown" : reason;
-        Counter.builder(LLM_ERRORS)
-            .description("Errores LLM por modelo/intent/reason")
-            .tag("model", model)
-            .tag("intent", intent)
-            .tag("reason", reason)
-            .register(registry)
-            .increment();
+        var key = new MeterKey(modelLabel(model), intent == null ? "unknown" : intent, reason);
+        Counter c = errorCounters.get(key);
+        if (c == null) {
+            c = errorCounters.computeIfAbsent(key, k -> Counter.builder(LLM_ERRORS)
+                .description("Errores LLM por modelo/intent/reason")
+                .tag("model", k.model())
+                .tag("intent", k.intent())
+                .tag("reason", k.qualifier())
+                .register(registry));
+        }
+        c.increment();
     }
 
-    private void recordLlm(String model, String intent, String status, int promptTokens, int completionTokens, long latencyMs) {
-        model = model == null ? "unknown" : model;
-        intent = intent == null ? "unknown" : intent;
-        status = status == null ? "unknown" : status;
-        Timer.builder(LLM_LATENCY)
-            .description("Latencia LLM por modelo/intent/status")
-            .tag("model", model)
-            .tag("intent", intent)
-            .tag("status", status)
-            .register(registry)
-            .record(latencyMs, TimeUnit.MILLISECONDS);
-        if(promptTokens >= 0) {
-            Counter.builder(LLM_PROMPT_TOKENS).description("Prompt tokens consumidos")
-                .tag("model", model).tag("intent", intent).register(registry).increment(promptTokens);
-        }
-        if(completionTokens >= 0) {
-            Counter.builder(LLM_COMPLETION_TOKENS).description("Completion tokens generados")
-                .tag("model", model).tag("intent", intent).register(registry).increment(completionTokens);
+    /**
+     * Reutilización del prefijo del prompt entre turnos de un usuario. {@code result}: hit (Ollama sólo
+     * evaluó lo nuevo), miss (prefijo conservado pero reevaluado, p. ej. otro prompt ocupó la caché) o
+     * reset (ventana reanclada). {@code savedTokens} es la estimación de tokens de prompt no reevaluados.
+     */
+    public void recordPromptReuse(String model, String intent, String result, int savedTokens) {
+        var key = new MeterKey(modelLabel(model), intent == null ? "unknown" : intent, result == null ? "unknown" : result);
+        Counter c = reuseCounters.get(key);
+        if (c == null) {
+            c = reuseCounters.computeIfAbsent(key, k -> Counter.builder(LLM_PROMPT_REUSE)
+                .description("Peticiones por resultado de la reutilización del prefijo del prompt")
+                .tag("model", k.model())
+                .tag("intent", k.intent())
+                .tag("result", k.qualifier())
+                .register(registry));
         }
-        if(promptTokens >= 0 && completionTokens >= 0) {
-            Counter.builder(LLM_TOTAL_TOKENS).description("Total tokens (prompt+completion)")
-                .tag("model", model).tag("intent", intent).register(registry).increment(promptTokens + completionTokens);
+        c.increment();
+        if (savedTokens <= 0) return;
+        var savedKey = new MeterKey(key.model(), key.intent(), "");
+        Counter saved = savedCounters.get(savedKey);
+        if (saved == null) {
+            saved = savedCounters.computeIfAbsent(savedKey, k -> Counter.builder(LLM_PROMPT_SAVED)
+                .description("Tokens de prompt servidos desde la caché de Ollama (estimación)")
+                .tag("model", k.model())
+                .tag("intent", k.intent())
+                .register(registry));
         }
+        saved.increment(savedTokens);
+    }
+
+    private void recordLlm(String model, String intent, String status, int promptTokens, int completionTokens, long latencyMs) {
+        var key = new MeterKey(modelLabel(model), intent == null ? "unknown" : intent, status == null ? "unknown" : status);
+        LlmMeters m = llmMeters.get(key);
+        if (m == null) m = llmMeters.computeIfAbsent(key, this::registerLlmMeters);
+        m.latency().record(latencyMs, TimeUnit.MILLISECONDS);
+        if(promptTokens >= 0) m.promptTokens().increment(promptTokens);
+        if(completionTokens >= 0) m.completionTokens().increment(completionTokens);
+        if(promptTokens >= 0 && completionTokens >= 0) m.totalTokens().increment(promptTokens + completionTokens);
+    }
+
+    /**
+     * Registra (una sola vez por clave) los meters de una combinación modelo/intent/status. Los
+     * contadores de tokens no llevan status: claves con distinto status comparten las mismas instancias.
+     */
+    private LlmMeters registerLlmMeters(MeterKey k) {
+        Timer latency = Timer.builder(LLM_LATENCY)
+            .description("Latencia LLM por modelo/intent/status")
+            .tag("model", k.model())
+            .tag("intent", k.intent())
+            .tag("status", k.qualifier())
+            .register(registry);
+        Counter prompt = Counter.builder(LLM_PROMPT_TOKENS).description("Prompt tokens consumidos")
+            .tag("model", k.model()).tag("intent", k.intent()).register(registry);
+        Counter completion = Counter.builder(LLM_COMPLETION_TOKENS).description("Completion tokens generados")
+            .tag("model", k.model()).tag("intent", k.intent()).register(registry);
+        Counter total = Counter.builder(LLM_TOTAL_TOKENS).description("Total tokens (prompt+completion)")
+            .tag("model", k.model()).tag("intent", k.intent()).register(registry);
+        return new LlmMeters(latency, prompt, completion, total);
+    }
+
+    /**
+     * Guarda de cardinalidad: sólo los primeros {@code metrics.max-models} modelos distintos tienen
+     * etiqueta propia; el resto se agrupa en "other". Los modelos agrupados no se memorizan, así que
+     * el mapa queda acotado aunque lleguen nombres arbitrarios (p. ej. overrides en runtime).
+     */
+    String modelLabel(String model) {
+        if (model == null) return "unknown";
+        String label = modelLabels.get(model);
+        if (label != null) return label;
+        // Carrera benigna: varios hilos pueden admitir a la vez y sobrepasar el límite en unos pocos
+        if (modelLabels.size() >= maxModels) return OTHER_MODEL;
+        return modelLabels.computeIfAbsent(model, m -> m);
     }
 
     public es.agonzalez.multiagent.app.core.models.LlmResponse timeAndRecord(String model, String intent, Supplier<es.agonzalez.multiagent.app.core.models.LlmResponse> sup) {
@@ -0,0 +1,132 @@
+package es.agonzalez.multiagent.app.config;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import io.github.bucket4j.Bucket;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Buckets de rate limiting acotados: como mucho {@code maxKeys} claves (API key o IP remota).
+ *
+ * - Mapa concurrente con la marca de último acceso en cada entrada: una clave ya conocida se resuelve
+ *   sin lock, sólo con un {@code get} y una escritura de la marca.
+ * - Al superar el límite se expulsa la entrada con acceso más antiguo de una muestra de
+ *   {@value #EVICTION_SAMPLE}, tomada con un cursor que avanza por el mapa entre expulsiones (LRU
+ *   aproximado). Sólo ese caso, un alta por encima de la capacidad, toma el lock.
+ * - Las claves sin actividad durante {@code idleTimeout} las expulsa el barrido periódico
+ *   ({@link #evictIdle()}), que recorre el mapa sin bloquear las peticiones.
+ * - Una clave expulsada empieza con el bucket lleno si vuelve: el idle timeout debe ser al menos el
+ *   periodo de refill para que expulsar no regale tokens a un cliente activo.
+ */
+class RateLimitBuckets {
+    /** Entradas que se comparan para elegir cada expulsión por tamaño */
+    private static final int EVICTION_SAMPLE = 8;
+
+    private static final class Entry {
+        final Bucket bucket;
+        volatile long lastAccess;
+        Entry(Bucket bucket, long now) { this.bucket = bucket; this.lastAccess = now; }
+    }
+
+    private final int maxKeys;
+    private final long idleNanos;
+    private final Supplier<Bucket> factory;
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>(1024);
+    // Serializa sólo las expulsiones por tamaño (y protege el cursor de muestreo)
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private Iterator<Map.Entry<String, Entry>> cursor;
+
+    private final Counter idleEvictions;
+    private final Counter sizeEvictions;
+
+    RateLimitBuckets(int maxKeys, Duration idleTimeout, Supplier<Bucket> factory, LongSupplier clock, MeterRegistry meterRegistry) {
+        this.maxKeys = Math.max(1, maxKeys);
+        this.idleNanos = idleTimeout.toNanos();
+        this.factory = factory;
+        this.clock = clock;
+        idleEvictions = Counter.builder("rate_limit_evictions_total")
+            .description("Buckets de rate limiting expulsados")
+            .tag("cause", "idle")
+            .register(meterRegistry);
+        sizeEvictions = Counter.builder("rate_limit_evictions_total")
+            .description("Buckets de rate limiting expulsados")
+            .tag("cause", "size")
+            .register(meterRegistry);
+        Gauge.builder("rate_limit_buckets", this, RateLimitBuckets::size)
+            .description("Claves (API key o IP) con bucket activo")
+            .register(meterRegistry);
+    }
+
+    /** Devuelve el bucket de la clave, creándolo (y expulsando si hace falta) si no existe. */
+    Bucket resolve(String key) {
+        long now = clock.getAsLong();
+        Entry e = entries.get(key);
+        if (e != null) {
+            e.lastAccess = now;
+            return e.bucket;
+        }
+        Entry created = new Entry(factory.get(), now);
+        e = entries.putIfAbsent(key, created);
+        if (e != null) {
+            // Otro hilo la dio de alta a la vez
+            e.lastAccess = now;
+            return e.bucket;
+        }
+        if (entries.size() > maxKeys) evictOverCapacity(created);
+        return created.bucket;
+    }
+
+    /** Expulsa todas las claves inactivas; devuelve cuántas. */
+    int evictIdle() {
+        long now = clock.getAsLong();
+        int evicted = 0;
+        for (Map.Entry<String, Entry> me : entries.entrySet()) {
+            Entry e = me.getValue();
+            // remove(key, value): si la entrada se sustituyó entre medias no se toca
+            if (now - e.lastAccess >= idleNanos && entries.remove(me.getKey(), e)) evicted++;
+        }
+        if (evicted > 0) idleEvictions.increment(evicted);
+        return evicted;
+    }
+
+    private void evictOverCapacity(Entry inserted) {
+        evictionLock.lock();
+        try {
+            while (entries.size() > maxKeys) {
+                String victim = null;
+                Entry victimEntry = null;
+                for (int seen = 0; seen < EVICTION_SAMPLE; ) {
+                    if (cursor == null || !cursor.hasNext()) {
+                        cursor = entries.entrySet().iterator();
+                        if (!cursor.hasNext()) break;
+                    }
+                    Map.Entry<String, Entry> candidate = cursor.next();
+                    seen++;
+                    Entry e = candidate.getValue();
+                    if (e == inserted) continue;
+                    if (victimEntry == null || e.lastAccess < victimEntry.lastAccess) {
+                        victim = candidate.getKey();
+                        victimEntry = e;
+                    }
+                }
+                if (victimEntry == null) return;
+                if (entries.remove(victim, victimEntry)) sizeEvictions.increment();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
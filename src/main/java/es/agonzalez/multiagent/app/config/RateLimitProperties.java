@@ -10,6 +10,8 @@ import org.springframework.stereotype.Component;
  * ratelimit.capacity=50
  * ratelimit.refill.tokens=50
  * ratelimit.refill.period=60s
+ * ratelimit.max-keys=100000
+ * ratelimit.idle-timeout=10m
  */
 @Component
 @ConfigurationProperties(prefix = "ratelimit")
@@ -24,6 +26,10 @@ public class RateLimitProperties {
     private String refillPeriod = "60s"; // formato amigable (lo convertiremos con DurationStyle)
     /** Lista de paths excluidos (coma separada) */
     private String excludePaths = "/actuator/health,/v3/api-docs,/swagger-ui,/swagger-ui.html";
+    /** Claves (API key o IP) con bucket en memoria como máximo; al superarlo se expulsa la menos reciente */
+    private int maxKeys = 100_000;
+    /** Inactividad tras la que se expulsa un bucket (mismo formato que refillPeriod; >= refillPeriod) */
+    private String idleTimeout = "10m";
 
     public boolean isEnabled() { return enabled; }
     public void setEnabled(boolean enabled) { this.enabled = enabled; }
@@ -35,4 +41,8 @@ public class RateLimitProperties {
     public void setRefillPeriod(String refillPeriod) { this.refillPeriod = refillPeriod; }
     public String getExcludePaths() { return excludePaths; }
     public void setExcludePaths(String excludePaths) { this.excludePaths = excludePaths; }
+    public int getMaxKeys() { return maxKeys; }
+    public void setMaxKeys(int maxKeys) { this.maxKeys = maxKeys; }
+    public String getIdleTimeout() { return idleTimeout; }
+    public void setIdleTimeout(String idleTimeout) { this.idleTimeout = idleTimeout; }
 }
@@ -6,13 +6,13 @@ import java.time.Instant;
 import java.time.format.DateTimeParseException;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.Ordered;
 import org.springframework.core.annotation.Order;
 import org.springframework.lang.NonNull;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 import org.springframework.web.filter.OncePerRequestFilter;
@@ -23,7 +23,7 @@ import io.github.bucket4j.Bandwidth;
 import io.github.bucket4j.Bucket;
 import io.github.bucket4j.ConsumptionProbe;
 import io.micrometer.core.instrument.Counter;
-import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
@@ -34,6 +34,8 @@ import jakarta.servlet.http.HttpServletResponse;
  * Filtro de rate limiting simple basado en Bucket4j.
  * Estrategia: bucket por API key (cabecera X-API-Key). Si no hay API key (pero debería por filtro anterior)
  * se fallback a IP remota para robustez.
+ * Los buckets viven en un {@link RateLimitBuckets} acotado (LRU aproximado + expiración por inactividad) y las
+ * métricas son agregadas: ninguna serie lleva la clave como tag.
  */
 @Component
 @Order(Ordered.LOWEST_PRECEDENCE - 10) // Después del ApiKeyFilter (que usa default precedence)
@@ -42,23 +44,25 @@ public class RateLimitingFilter extends OncePerRequestFilter {
 
     private final RateLimitProperties props;
     private final ObjectMapper om;
-    private final MeterRegistry meterRegistry;
     private final Counter rateLimitedCounter;
-    private final Map<String, Integer> remainingTokensMap = new ConcurrentHashMap<>();
-
-    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final DistributionSummary remainingTokens;
+    private final RateLimitBuckets buckets;
     private volatile Bandwidth currentBandwidth;
     private Set<String> excluded;
 
     public RateLimitingFilter(RateLimitProperties props, ObjectMapper om, MeterRegistry meterRegistry) {
         this.props = props;
         this.om = om;
-        this.meterRegistry = meterRegistry;
         rebuildBandwidth();
         rebuildExclusions();
         this.rateLimitedCounter = Counter.builder("rate_limit_rejections_total")
             .description("Total de peticiones rechazadas por rate limiting")
             .register(meterRegistry);
+        this.remainingTokens = DistributionSummary.builder("rate_limit_remaining_tokens")
+            .description("Tokens restantes tras cada petición (agregado de todas las claves)")
+            .register(meterRegistry);
+        this.buckets = new RateLimitBuckets(props.getMaxKeys(), parseDuration(props.getIdleTimeout()),
+            () -> Bucket.builder().addLimit(currentBandwidth).build(), System::nanoTime, meterRegistry);
     }
 
     private void rebuildExclusions() {
@@ -88,24 +92,14 @@ public class RateLimitingFilter extends OncePerRequestFilter {
         }
     }
 
-    private Bucket resolveBucket(String key) {
-        return buckets.computeIfAbsent(key, k -> {
-            Bucket b = Bucket.builder().addLimit(currentBandwidth).build();
-            // Registrar gauge para este key (remaining tokens)
-            Gauge.builder("rate_limit_remaining_tokens", remainingTokensMap, m -> m.getOrDefault(k, 0))
-                .description("Tokens restantes en la ventana actual para la API key")
-                .tag("key", anonymizeKey(k))
-                .register(meterRegistry);
-            return b;
-        });
+    /** Barrido periódico de buckets inactivos (las altas sólo expulsan por tamaño) */
+    @Scheduled(fixedDelayString = "${ratelimit.sweep-interval-ms:60000}", initialDelayString = "${ratelimit.sweep-interval-ms:60000}")
+    public void evictIdleBuckets() {
+        int evicted = buckets.evictIdle();
+        if (evicted > 0) log.debug("Rate limiting: {} buckets inactivos expulsados", evicted);
     }
 
-    private String anonymizeKey(String key) {
-        if (key == null) return "unknown";
-        int h = Math.abs(key.hashCode());
-        String hex = Integer.toHexString(h);
-        return hex.length() > 6 ? hex.substring(0,6) : hex;
-    }
+    int bucketCount() { return buckets.size(); }
 
     @Override
     protected boolean shouldNotFilter(@SuppressWarnings("null") HttpServletRequest request) throws ServletException {
@@ -114,6 +108,36 @@ public class RateLimitingFilter extends OncePerRequestFilter {
         return excluded.stream().anyMatch(path::startsWith);
     }
 
+    /**
+     * Clave del bucket de la petición, o {@code null} si el rate limiting no se le aplica. Para consumir
+     * tokens más tarde con {@link #tryConsume(String)}, cuando la petición puede haber terminado.
+     */
+    public String keyFor(HttpServletRequest request) {
+        try {
+            if (shouldNotFilter(request)) return null;
+        } catch (ServletException e) {
+            return null;
+        }
+        String apiKey = request.getHeader("X-API-Key");
+        return StringUtils.hasText(apiKey) ? apiKey : request.getRemoteAddr();
+    }
+
+    /**
+     * Consume un token del bucket de {@code key} fuera del filtro (p. ej. cada elemento de /ai/batch);
+     * true si había token o {@code key} es null.
+     */
+    public boolean tryConsume(String key) {
+        if (key == null) return true;
+        ConsumptionProbe probe = buckets.resolve(key).tryConsumeAndReturnRemaining(1);
+        if (probe.isConsumed()) {
+            remainingTokens.record(probe.getRemainingTokens());
+            return true;
+        }
+        rateLimitedCounter.increment();
+        remainingTokens.record(0);
+        return false;
+    }
+
     @Override
     protected void doFilterInternal(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response, @NonNull FilterChain filterChain)
             throws ServletException, IOException {
@@ -121,16 +145,11 @@ public class RateLimitingFilter extends OncePerRequestFilter {
         if (!StringUtils.hasText(apiKey)) {
             apiKey = request.getRemoteAddr();
         }
-        Bucket bucket = resolveBucket(apiKey);
-        ConsumptionProbe probe = bucket.tryConsumeAndReturnRemaining(1);
-        if (probe.isConsumed()) {
-            remainingTokensMap.put(apiKey, (int) probe.getRemainingTokens());
+        if (tryConsume(apiKey)) {
             filterChain.doFilter(request, response);
             return;
         }
         // limite excedido
-        rateLimitedCounter.increment();
-        remainingTokensMap.put(apiKey, 0);
         response.setStatus(429);
         response.setContentType("application/json");
         Map<String,Object> body = Map.of(
@@ -1,8 +1,10 @@
 package es.agonzalez.multiagent.app.config;
 
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.MessageSource;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -11,19 +13,33 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import es.agonzalez.multiagent.app.core.LlmClient;
 import es.agonzalez.multiagent.app.core.ModelRegistry;
+import es.agonzalez.multiagent.app.core.llm.LlmResponseCache;
+import es.agonzalez.multiagent.app.core.llm.PromptPrefixStore;
+import es.agonzalez.multiagent.app.core.llm.SemanticCache;
 import es.agonzalez.multiagent.app.core.selectors.ModelSelectors;
+import es.agonzalez.multiagent.app.core.workflows.StepGraph;
 import es.agonzalez.multiagent.app.core.workflows.chat.ChatWorkflow;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatContext;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatInput;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatResult;
+import es.agonzalez.multiagent.app.core.workflows.chat.steps.AppendTurnsStep;
 import es.agonzalez.multiagent.app.core.workflows.chat.steps.GenerateStep;
 import es.agonzalez.multiagent.app.core.workflows.chat.steps.LoadMemoryStep;
 import es.agonzalez.multiagent.app.core.workflows.chat.steps.LoadSummaryStep;
 import es.agonzalez.multiagent.app.core.workflows.chat.steps.SaveResultStep;
 import es.agonzalez.multiagent.app.core.workflows.chat.steps.SummarizeIfNeededStep;
 import es.agonzalez.multiagent.app.core.workflows.recipe.RecipeWorkflow;
+import es.agonzalez.multiagent.app.core.workflows.recipe.models.RecipeContext;
+import es.agonzalez.multiagent.app.core.workflows.recipe.models.RecipeRequest;
+import es.agonzalez.multiagent.app.core.workflows.recipe.models.RecipeResponse;
 import es.agonzalez.multiagent.app.core.workflows.recipe.steps.GenerateRecipeStep;
 import es.agonzalez.multiagent.app.core.workflows.recipe.steps.ReadRecipeStep;
 import es.agonzalez.multiagent.app.memory.MemoryService;
+import es.agonzalez.multiagent.app.memory.SummarizationWorker;
 import es.agonzalez.multiagent.app.memory.Summarizer;
 import es.agonzalez.multiagent.app.memory.SummaryStore;
+import static es.agonzalez.multiagent.app.core.workflows.chat.models.ChatContext.Key.*;
+import io.micrometer.core.instrument.MeterRegistry;
 
 @Configuration
 public class WorkflowConfig {
@@ -39,23 +55,54 @@ public class WorkflowConfig {
     private Summarizer summarizer;
     @Autowired
     private ModelSelectors selectors;
+    @Autowired
+    private SummarizationWorker summarizationWorker;
+    @Autowired
+    private AppProperties props;
+    @Autowired
+    private LlmResponseCache responseCache;
+    @Autowired
+    private PromptPrefixStore prefixes;
+    @Autowired
+    private SemanticCache semanticCache;
+    /** Executor de los pasos independientes de un mismo nivel (hilos virtuales si están activos) */
+    @Autowired(required = false)
+    @Qualifier("applicationTaskExecutor")
+    private Executor stepExecutor;
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
     
     @Bean
     public ChatWorkflow chatWorkflow(MessageSource messageSource, MetricsService metrics) {
-        return new ChatWorkflow(List.of(
-            new LoadMemoryStep(memory, messageSource),
-            new LoadSummaryStep(summary),
-            new GenerateStep(client, memory, registry, selectors, metrics),
-            new SummarizeIfNeededStep(summary, summarizer),
-            new SaveResultStep()
-        ), messageSource);
+        client.preEncode(GenerateStep.SYSTEM_PROMPT, Summarizer.SUMMARY_PROMPT, Summarizer.INCREMENTAL_PROMPT);
+        // Niveles: {memoria, resumen} -> generación -> {turnos, resultado} -> resumen si procede
+        boolean reuse = props.getLlm().isPrefixReuse();
+        int window = reuse ? GenerateStep.HISTORY_WINDOW + GenerateStep.HISTORY_SLACK : GenerateStep.HISTORY_WINDOW;
+        StepGraph<ChatInput, ChatResult, ChatContext> graph = StepGraph.<ChatInput, ChatResult, ChatContext>builder("chat")
+            .executor(stepExecutor)
+            .meterRegistry(meterRegistry)
+            .step("loadMemory", new LoadMemoryStep(memory, messageSource, window), Set.of(MEMORY), Set.of(HISTORY))
+            .step("loadSummary", new LoadSummaryStep(summary), Set.of(), Set.of(SUMMARY))
+            .step("generate", new GenerateStep(client, registry, selectors, metrics, reuse ? prefixes : null, semanticCache, stepExecutor),
+                Set.of(HISTORY, SUMMARY, ON_TOKEN), Set.of(ANSWER, MODEL, LATENCY_MS, TURN_COUNT_BEFORE))
+            .step("appendTurns", new AppendTurnsStep(memory), Set.of(ANSWER), Set.of(MEMORY))
+            .step("summarize", new SummarizeIfNeededStep(summarizer, summarizationWorker, props.getSummarization().isAsync()),
+                Set.of(TURN_COUNT_BEFORE, MEMORY), Set.of(SUMMARY_STATE))
+            .step("saveResult", new SaveResultStep(), Set.of(ANSWER, MODEL, LATENCY_MS), Set.of(RESULT))
+            .build();
+        return new ChatWorkflow(graph, messageSource);
     }
 
     @Bean
     public RecipeWorkflow recipeWorkflow(ObjectMapper om, MessageSource messageSource) {
-        return new RecipeWorkflow(List.of(
-            new GenerateRecipeStep(client, registry, selectors),
-            new ReadRecipeStep(om)
-        ), messageSource);
+        client.preEncode(GenerateRecipeStep.TEXT_SYSTEM_PROMPT);
+        var produced = Set.of(RecipeContext.Key.CONTENT_TYPE, RecipeContext.Key.ANSWER, RecipeContext.Key.MODEL, RecipeContext.Key.LATENCY_MS);
+        StepGraph<RecipeRequest, RecipeResponse, RecipeContext> graph = StepGraph.<RecipeRequest, RecipeResponse, RecipeContext>builder("recipe")
+            .executor(stepExecutor)
+            .meterRegistry(meterRegistry)
+            .step("generate", new GenerateRecipeStep(client, registry, selectors, responseCache, semanticCache), Set.of(), produced)
+            .step("read", new ReadRecipeStep(om), produced, Set.of())
+            .build();
+        return new RecipeWorkflow(graph, messageSource);
     }
 }
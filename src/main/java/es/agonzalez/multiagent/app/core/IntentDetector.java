@@ -1,57 +1,166 @@
 package es.agonzalez.multiagent.app.core;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Pattern;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.DefaultResourceLoader;
 import org.springframework.stereotype.Component;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 
+import es.agonzalez.multiagent.app.config.AppProperties;
+import jakarta.annotation.PostConstruct;
 
+/**
+ * Detecta el intent de un mensaje por el comando con el que empieza ({@code !recipe}, {@code !ai}...).
+ *
+ * La tabla comando -> intent -> agente se lee de {@code multiagent.intentconfig} (por defecto
+ * {@code intents.yaml}) y se compila en un trie con las claves en minúsculas: {@link #detect} recorre
+ * el mensaje una sola vez, carácter a carácter, y un mensaje que no empieza por el primer carácter de
+ * ningún comando (lo habitual: conversación sin comando) se descarta tras mirar un solo carácter.
+ */
 @Component
 public class IntentDetector {
 
-        private static final Pattern RECIPE = Pattern.compile("^!recipe\\b", Pattern.CASE_INSENSITIVE);
-        private static final Pattern WEATHER = Pattern.compile("^!weather\\b", Pattern.CASE_INSENSITIVE);
-        private static final Pattern NPC = Pattern.compile("^!npc\\b", Pattern.CASE_INSENSITIVE);
-        private static final Pattern FOLLOW = Pattern.compile("^!follow\\b", Pattern.CASE_INSENSITIVE);
-        private static final Pattern VOICE = Pattern.compile("^!voice\\b", Pattern.CASE_INSENSITIVE);
-        private static final Pattern FORGET = Pattern.compile("^!forget\\b", Pattern.CASE_INSENSITIVE);
-        private static final Pattern MEMON = Pattern.compile("^!memoria\\s+on\\b", Pattern.CASE_INSENSITIVE);
-        private static final Pattern MEMOFF = Pattern.compile("^!voice\\s+off\\b", Pattern.CASE_INSENSITIVE);
-
-        private static final Pattern CHAT = Pattern.compile("^!ai\\b", Pattern.CASE_INSENSITIVE);
-        private static final Map<String, String> INTENTS = Map.of(
-          "chat","Agent.Chat",
-          "recipe_request","Agent.Recipe",
-          "memory_forget","Agent.Memory.Forget",
-          "memory_on", "Agent.Memory.On",
-          "memory_off","Agent.Memory.Off"
-        );
-
-        public String detect(String text) {
-          if (text == null || text.isBlank()) return null;
-
-          var t = text.trim();
-          if (RECIPE.matcher(t).find()) return "recipe_request";
-          if (WEATHER.matcher(t).find()) return "weather";
-          if (NPC.matcher(t).find()) return "npc_chat";
-          if (CHAT.matcher(t).find()) return "chat";
-          if (FOLLOW.matcher(t).find()) return "respond_follow";
-          if (VOICE.matcher(t).find()) return "play_voice";
-          if (FORGET.matcher(t).find()) return "memory_forget";
-          if (MEMON.matcher(t).find()) return "memory_on";
-          if (MEMOFF.matcher(t).find()) return "memory_off";
-
-          return null;
+    static final String DEFAULT_CONFIG = "classpath:intents.yaml";
+
+    /** Nodo del trie: hijos ASCII en array, el resto en mapa; {@code space} consume 1..n espacios */
+    private static final class Node {
+        private Node[] ascii;
+        private Map<Character, Node> other;
+        private Node space;
+        private String intent;
+
+        Node child(char c) {
+            if (c < 128) return ascii == null ? null : ascii[c];
+            return other == null ? null : other.get(c);
+        }
+
+        Node addChild(char c) {
+            if (c < 128) {
+                if (ascii == null) ascii = new Node[128];
+                if (ascii[c] == null) ascii[c] = new Node();
+                return ascii[c];
+            }
+            if (other == null) other = new HashMap<>();
+            return other.computeIfAbsent(c, k -> new Node());
+        }
+    }
+
+    /** Tabla compilada; se sustituye entera al cargar otra configuración */
+    private record Table(Node root, Map<String, String> agents) {}
+
+    @Autowired(required = false)
+    private AppProperties props;
+
+    private volatile Table table;
+
+    public IntentDetector() {
+        this.table = load(DEFAULT_CONFIG);
+    }
+
+    /** Tabla explícita: comando -> intent e intent -> agente */
+    IntentDetector(Map<String, String> commands, Map<String, String> agents) {
+        this.table = compile(commands, agents);
+    }
+
+    @PostConstruct
+    void init() {
+        String location = props == null ? null : props.getIntentconfig();
+        if (location != null && !location.isBlank() && !location.equals(DEFAULT_CONFIG)) {
+            this.table = load(location);
         }
+    }
+
+    public String detect(String text) {
+        if (text == null) return null;
+        int n = text.length();
+        int i = 0;
+        // Mismos caracteres que descarta String.trim()
+        while (i < n && text.charAt(i) <= ' ') i++;
 
-        public String agent(String intent) {
-            if (intent == null) return null;
-            if (INTENTS.containsKey(intent)) return INTENTS.get(intent);
-            return null;
+        Node node = table.root();
+        String found = null;
+        while (i < n) {
+            char c = text.charAt(i);
+            Node next;
+            if (isSpace(c)) {
+                next = node.space;
+                if (next != null) while (i + 1 < n && isSpace(text.charAt(i + 1))) i++;
+            } else {
+                next = node.child(Character.toLowerCase(c));
+            }
+            if (next == null) break;
+            node = next;
+            i++;
+            if (node.intent != null && (i == n || !isWordChar(text.charAt(i)))) found = node.intent;
         }
+        return found;
+    }
+
+    public String agent(String intent) {
+        if (intent == null) return null;
+        return table.agents().get(intent);
+    }
+
+    public boolean isValidIntent(String intent) {
+        return intent != null && table.agents().containsKey(intent);
+    }
 
-        public boolean isValidIntent(String intent) {
-          return intent == null ? false : INTENTS.containsKey(intent); 
+    @SuppressWarnings("unchecked")
+    private static Table load(String location) {
+        var resource = new DefaultResourceLoader().getResource(location);
+        try (InputStream in = resource.getInputStream()) {
+            Map<String, Object> root = new ObjectMapper(new YAMLFactory()).readValue(in, Map.class);
+            return compile(strings((Map<String, Object>) root.get("commands")), strings((Map<String, Object>) root.get("agents")));
+        } catch (IOException e) {
+            throw new IllegalStateException("No pude cargar archivo de intents " + location + ": " + e.getMessage(), e);
         }
+    }
+
+    private static Map<String, String> strings(Map<String, Object> raw) {
+        Map<String, String> out = new LinkedHashMap<>();
+        if (raw != null) raw.forEach((k, v) -> { if (v != null) out.put(k, String.valueOf(v)); });
+        return out;
+    }
+
+    private static Table compile(Map<String, String> commands, Map<String, String> agents) {
+        Node root = new Node();
+        commands.forEach((command, intent) -> {
+            String key = command.strip().toLowerCase(Locale.ROOT);
+            if (key.isEmpty()) throw new IllegalStateException("Comando vacío para el intent " + intent);
+            Node node = root;
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(i);
+                if (isSpace(c)) {
+                    if (node.space == null) node.space = new Node();
+                    node = node.space;
+                    while (i + 1 < key.length() && isSpace(key.charAt(i + 1))) i++;
+                } else {
+                    node = node.addChild(c);
+                }
+            }
+            if (node.intent != null && !node.intent.equals(intent)) {
+                throw new IllegalStateException("Comando duplicado " + command + ": " + node.intent + " / " + intent);
+            }
+            node.intent = intent;
+        });
+        return new Table(root, Map.copyOf(agents));
+    }
+
+    /** \s de java.util.regex */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /** Carácter de palabra según \b de java.util.regex */
+    private static boolean isWordChar(char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
 }
@@ -1,39 +1,80 @@
 package es.agonzalez.multiagent.app.core;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.thread.Threading;
 import org.springframework.context.MessageSource;
 import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.core.env.Environment;
 import es.agonzalez.multiagent.app.util.Sanitizers;
 import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Component;
 
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import es.agonzalez.multiagent.app.core.models.LlmResponse;
+import es.agonzalez.multiagent.app.core.llm.ConcurrencyLimiter;
+import es.agonzalez.multiagent.app.core.llm.LlmBackendPool;
+import es.agonzalez.multiagent.app.core.llm.LlmHedger;
+import es.agonzalez.multiagent.app.core.llm.LlmRequestEncoder;
+import es.agonzalez.multiagent.app.core.llm.SingleFlight;
 import es.agonzalez.multiagent.app.core.llm.exceptions.*;
 import es.agonzalez.multiagent.app.core.models.Message;
 import es.agonzalez.multiagent.app.core.models.dto.OllamaChatResponse;
+import es.agonzalez.multiagent.app.core.models.dto.OllamaEmbeddingResponse;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.tracing.Span;
 import io.micrometer.tracing.Tracer;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
 @Component
 public class LlmClient {
-    private String baseUrl;
+    /**
+     * Opciones de llamada por agente (models.yaml): coalescencia de llamadas idénticas en vuelo y
+     * hedging en otro backend. Ambas sólo para respuestas que no dependen del usuario.
+     */
+    public record CallOptions(boolean coalesce, boolean hedge) {
+        public static final CallOptions NONE = new CallOptions(false, false);
+    }
+
     private int timeoutMs;
     private final ObjectMapper om;
+    private final LlmRequestEncoder encoder;
+    private final ObjectReader ndjsonReader;
     private HttpClient http;
+    /** Clave de coalescencia: endpoint + payload exacto (ByteBuffer compara por contenido) */
+    private record FlightKey(String call, ByteBuffer payload) {}
+    private SingleFlight<FlightKey, LlmResponse> inFlight;
+    /** Pool por defecto (multiagent.llm.urls/url) y pools dedicados por modelo (models.yaml) */
+    private LlmBackendPool backends;
+    private final Map<String, LlmBackendPool> modelBackends = new ConcurrentHashMap<>();
+    private LlmHedger hedger;
+    /** Límite de concurrencia adaptativo por modelo (vacío si multiagent.limiter.enabled=false) */
+    private final Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
 
     @Autowired
     private es.agonzalez.multiagent.app.config.AppProperties props;
@@ -41,72 +82,151 @@ public class LlmClient {
     @Autowired
     private Tracer tracer;
 
+    @Autowired(required = false)
+    private Environment environment;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    @Autowired(required = false)
+    private ModelRegistry models;
+
     private final MessageSource messages;
 
     public LlmClient(ObjectMapper om, MessageSource messages) {
         this.om = om;
         this.messages = messages;
+        this.encoder = new LlmRequestEncoder(om);
+        this.ndjsonReader = om.readerFor(OllamaChatResponse.class);
     }
     
     @PostConstruct
     public HttpClient getClient() {
         if(http == null){
-            this.baseUrl = Sanitizers.normalizePathLike(props.getLlm().getUrl());
+            this.backends = newPool("default", props.getLlm().backends());
             this.timeoutMs = (int) props.getLlm().getTimeoutMs();
-            http = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(timeoutMs)).build();
+            encoder.keepAlive(props.getLlm().getKeepAlive());
+            var builder = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(timeoutMs));
+            if (environment != null && Threading.VIRTUAL.isActive(environment)) {
+                // Modo hilos virtuales: las tareas internas del cliente (handlers, publishers) tampoco ocupan hilos de plataforma
+                builder.executor(Executors.newVirtualThreadPerTaskExecutor());
+            }
+            http = builder.build();
+            inFlight = new SingleFlight<>("llm.coalesce", meterRegistry);
+            hedger = new LlmHedger(props.getHedge(), tracer, meterRegistry);
         }
         return http;
     }
 
+    /** Una llamada en curso no dura más que el timeout del LLM: es lo que se espera al parar */
+    @PreDestroy
+    public void close() {
+        if (hedger != null) hedger.close(timeoutMs);
+    }
+
+    private LlmBackendPool newPool(String name, List<String> urls) {
+        var llm = props.getLlm();
+        return new LlmBackendPool(name, urls.stream().map(Sanitizers::normalizePathLike).toList(),
+            llm.getEjectFailures(), llm.getEjectMs(), llm.getSlowStartMs(), meterRegistry);
+    }
+
+    private LlmBackendPool backendsFor(String model) {
+        getClient();
+        List<String> dedicated = models == null || model == null ? List.of() : models.backendsFor(model);
+        if (dedicated.isEmpty()) return backends;
+        return modelBackends.computeIfAbsent(model, m -> newPool(m, dedicated));
+    }
+
     public LlmResponse chat(String model, List<Message> messages, Map<String, Object> params, boolean generative) {
+        return chat(model, messages, params, generative, CallOptions.NONE);
+    }
+
+    public LlmResponse chat(String model, List<Message> messages, Map<String, Object> params, boolean generative, boolean coalesce) {
+        return chat(model, messages, params, generative, new CallOptions(coalesce, false));
+    }
+
+    /**
+     * Como {@link #chat(String, List, Map, boolean)} con opciones por agente:
+     * - {@code coalesce}: las llamadas concurrentes cuyo payload es idéntico byte a byte comparten una
+     *   única petición HTTP (ver {@link SingleFlight}).
+     * - {@code hedge}: si la llamada supera el percentil de latencia de su modelo se duplica en otro
+     *   backend y gana la primera respuesta (ver {@link LlmHedger}).
+     */
+    public LlmResponse chat(String model, List<Message> messages, Map<String, Object> params, boolean generative, CallOptions options) {
         String call = generative ? "/api/generate" : "/api/chat";
         // Normalizar para evitar NPE posteriores
         List<Message> safeMessages = (messages == null) ? List.of() : messages;
         if (generative && safeMessages.isEmpty()) {
             return new LlmResponse("", -1, -1);
         }
+        byte[] payload;
+        try {
+            payload = buildPayload(model, safeMessages, params, generative, false);
+        } catch (IOException e) {
+            throw new LlmUnknownException("io_error: " + e.getMessage(), e);
+        }
+        CallOptions opts = options == null ? CallOptions.NONE : options;
+        // Dentro de la coalescencia: un grupo de llamadas idénticas ocupa un único hueco del limitador
+        Supplier<LlmResponse> request = opts.hedge()
+            ? () -> limited(model, true, () -> hedged(call, model, safeMessages.size(), generative, payload))
+            : () -> limited(model, true, () -> send(call, model, safeMessages.size(), generative, payload));
+        if (!opts.coalesce()) return request.get();
+        getClient();
+        return inFlight.run(new FlightKey(call, ByteBuffer.wrap(payload)), request);
+    }
 
+    /**
+     * Ejecuta {@code call} dentro del límite de concurrencia de {@code model}; sin hueco ni sitio en la
+     * cola lanza {@link LlmOverloadedException} antes de tocar el LLM. {@code sample=false} para streaming,
+     * cuya duración depende de la longitud de la respuesta y no sirve para ajustar el límite.
+     */
+    private <T> T limited(String model, boolean sample, Supplier<T> call) {
+        getClient();
+        var config = props.getLimiter();
+        if (config == null || !config.isEnabled()) return call.get();
+        return limiterFor(model).execute(sample, call);
+    }
+
+    private ConcurrencyLimiter limiterFor(String model) {
+        String key = model == null ? "default" : model;
+        return limiters.computeIfAbsent(key, m -> new ConcurrencyLimiter(m, props.getLimiter(), meterRegistry));
+    }
+
+    private LlmResponse hedged(String call, String model, int messageCount, boolean generative, byte[] payload) {
+        LlmBackendPool pool = backendsFor(model);
+        return hedger.execute(model, pool, base -> send(base, call, model, messageCount, generative, payload));
+    }
+
+    private LlmResponse send(String call, String model, int messageCount, boolean generative, byte[] payload) {
+        return backendsFor(model).execute(base -> send(base, call, model, messageCount, generative, payload));
+    }
+
+    private LlmResponse send(String base, String call, String model, int messageCount, boolean generative, byte[] payload) {
         // Crear span para tracing de llamada LLM
         Span span = tracer.nextSpan()
             .name("llm.request")
             .tag("llm.model", model)
+            .tag("llm.backend", base)
             .tag("llm.endpoint", call)
             .tag("llm.generative", String.valueOf(generative))
-            .tag("llm.message_count", String.valueOf(safeMessages.size()));
+            .tag("llm.message_count", String.valueOf(messageCount));
 
         try (var ignored = tracer.withSpan(span.start())) {
-            var payload = new HashMap<String, Object>();
-            payload.put("model", model);
-            payload.putIfAbsent("stream", false);
-            if(params != null) payload.putAll(params);
-
-            if(generative) {
-                payload.put("prompt", safeMessages.get(0).content());            
-            } else {
-                payload.put("messages", safeMessages.stream().map(m -> Map.of(
-                    "role", m.role(),
-                    "content", m.content()
-                )).toList());
-            }
-
-
-            
-            var req = HttpRequest.newBuilder()
-            .uri(URI.create(baseUrl + call))
-            .timeout(Duration.ofMillis(timeoutMs))
-            .header(HttpHeaders.CONTENT_TYPE, "application/json")
-            .POST(HttpRequest.BodyPublishers.ofString(om.writeValueAsString(payload)))
-            .build();
+            var req = buildRequest(base, call, payload);
 
-            var resp = getClient().send(req, HttpResponse.BodyHandlers.ofString());
+            var resp = getClient().send(req, HttpResponse.BodyHandlers.ofInputStream());
             int statusCode = resp.statusCode();
             if(statusCode < 200 || statusCode >= 300) {
                 span.tag("error", "true")
                     .tag("http.status_code", String.valueOf(statusCode))
                     .event("llm.provider.error");
-                throw new LlmProviderException(statusCode, resp.body());
+                throw new LlmProviderException(statusCode, readBody(resp.body()));
+            }
+            OllamaChatResponse json;
+            // Parseo directo del stream de respuesta, sin materializar el cuerpo como String
+            try (InputStream body = resp.body()) {
+                json = om.readValue(body, OllamaChatResponse.class);
             }
-            OllamaChatResponse json = om.readValue(resp.body(), OllamaChatResponse.class);
             int prompt = json.promptCount();
             int completion = json.completionCount();
             String content = json.contentOrEmpty(generative);
@@ -133,17 +253,271 @@ public class LlmClient {
 
  
 
+    /**
+     * Variante streaming de {@link #chat}: pide a Ollama "stream": true y parsea el cuerpo NDJSON
+     * línea a línea, entregando cada fragmento de contenido a {@code onToken} en cuanto llega.
+     * Devuelve la respuesta agregada (contenido completo + contadores del chunk final done=true)
+     * para que el llamante pueda persistir historial y registrar métricas igual que en modo bloqueante.
+     */
+    public LlmResponse chatStream(String model, List<Message> messages, Map<String, Object> params, boolean generative, Consumer<String> onToken) {
+        String call = generative ? "/api/generate" : "/api/chat";
+        List<Message> safeMessages = (messages == null) ? List.of() : messages;
+        if (generative && safeMessages.isEmpty()) {
+            return new LlmResponse("", -1, -1);
+        }
+        return limited(model, false,
+            () -> backendsFor(model).execute(base -> stream(base, call, model, safeMessages, params, generative, onToken)));
+    }
+
+    private LlmResponse stream(String base, String call, String model, List<Message> safeMessages, Map<String, Object> params,
+                               boolean generative, Consumer<String> onToken) {
+        Span span = tracer.nextSpan()
+            .name("llm.request")
+            .tag("llm.model", model)
+            .tag("llm.backend", base)
+            .tag("llm.endpoint", call)
+            .tag("llm.generative", String.valueOf(generative))
+            .tag("llm.stream", "true")
+            .tag("llm.message_count", String.valueOf(safeMessages.size()));
+
+        try (var ignored = tracer.withSpan(span.start())) {
+            var req = buildRequest(base, call, buildPayload(model, safeMessages, params, generative, true));
+
+            var resp = getClient().send(req, HttpResponse.BodyHandlers.ofInputStream());
+            int statusCode = resp.statusCode();
+            if(statusCode < 200 || statusCode >= 300) {
+                span.tag("error", "true")
+                    .tag("http.status_code", String.valueOf(statusCode))
+                    .event("llm.provider.error");
+                throw new LlmProviderException(statusCode, readBody(resp.body()));
+            }
+
+            StringBuilder content = new StringBuilder();
+            int prompt = -1;
+            int completion = -1;
+            // NDJSON: cada objeto JSON raíz es un chunk; el MappingIterator los lee del stream según llegan
+            try (InputStream body = resp.body();
+                 MappingIterator<OllamaChatResponse> chunks = ndjsonReader.readValues(body)) {
+                while (chunks.hasNextValue()) {
+                    OllamaChatResponse chunk = chunks.nextValue();
+                    String token = chunk.contentOrEmpty(generative);
+                    if (!token.isEmpty()) {
+                        content.append(token);
+                        if (onToken != null) onToken.accept(token);
+                    }
+                    if (chunk.isDone()) {
+                        prompt = chunk.promptCount();
+                        completion = chunk.completionCount();
+                        break;
+                    }
+                }
+            }
+
+            span.tag("llm.prompt_tokens", String.valueOf(prompt))
+                .tag("llm.completion_tokens", String.valueOf(completion))
+                .tag("llm.total_tokens", String.valueOf(prompt + completion))
+                .tag("http.status_code", String.valueOf(statusCode));
+
+            return new LlmResponse(content.toString(), prompt, completion);
+
+        } catch (IOException e) {
+            span.tag("error", "true").event("llm.io.error");
+            throw new LlmUnknownException("io_error: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            span.tag("error", "true").event("llm.timeout.error");
+            Thread.currentThread().interrupt();
+            throw new LlmTimeoutException("interrupted", e);
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Vector de {@code text} con el modelo de embeddings {@code model} (/api/embeddings). Pasa por el
+     * pool y el limitador de ese modelo como cualquier otra llamada.
+     */
+    public float[] embed(String model, String text) {
+        byte[] payload;
+        try {
+            Map<String, Object> body = new java.util.LinkedHashMap<>();
+            body.put("model", model);
+            body.put("prompt", text == null ? "" : text);
+            String keepAlive = props.getLlm().getKeepAlive();
+            if (keepAlive != null && !keepAlive.isBlank()) body.put("keep_alive", keepAlive.strip());
+            payload = om.writeValueAsBytes(body);
+        } catch (IOException e) {
+            throw new LlmUnknownException("io_error: " + e.getMessage(), e);
+        }
+        return limited(model, true, () -> backendsFor(model).execute(base -> embed(base, model, payload)));
+    }
+
+    private float[] embed(String base, String model, byte[] payload) {
+        Span span = tracer.nextSpan()
+            .name("llm.embed")
+            .tag("llm.model", model)
+            .tag("llm.backend", base)
+            .tag("llm.endpoint", "/api/embeddings");
+
+        try (var ignored = tracer.withSpan(span.start())) {
+            var resp = getClient().send(buildRequest(base, "/api/embeddings", payload), HttpResponse.BodyHandlers.ofInputStream());
+            int statusCode = resp.statusCode();
+            span.tag("http.status_code", String.valueOf(statusCode));
+            if(statusCode < 200 || statusCode >= 300) {
+                span.tag("error", "true").event("llm.provider.error");
+                throw new LlmProviderException(statusCode, readBody(resp.body()));
+            }
+            OllamaEmbeddingResponse json;
+            try (InputStream body = resp.body()) {
+                json = om.readValue(body, OllamaEmbeddingResponse.class);
+            }
+            if (json.embedding() == null || json.embedding().length == 0) {
+                throw new LlmUnknownException("empty_embedding", null);
+            }
+            return json.embedding();
+        } catch (IOException e) {
+            span.tag("error", "true").event("llm.io.error");
+            throw new LlmUnknownException("io_error: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            span.tag("error", "true").event("llm.timeout.error");
+            Thread.currentThread().interrupt();
+            throw new LlmTimeoutException("interrupted", e);
+        } finally {
+            span.end();
+        }
+    }
+
+    private byte[] buildPayload(String model, List<Message> safeMessages, Map<String, Object> params, boolean generative, boolean stream) throws IOException {
+        // El modo lo decide el método invocado (chat/chatStream), no los params
+        return encoder.encode(model, safeMessages, params, generative, stream);
+    }
+
+    private HttpRequest buildRequest(String base, String call, byte[] payload) {
+        return HttpRequest.newBuilder()
+            .uri(URI.create(base + call))
+            .timeout(Duration.ofMillis(timeoutMs))
+            .header(HttpHeaders.CONTENT_TYPE, "application/json")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(payload))
+            .build();
+    }
+
+    /**
+     * Registra textos constantes (system prompts) para que el encoder los escriba ya codificados
+     * en lugar de escaparlos en cada petición.
+     */
+    public void preEncode(String... texts) {
+        encoder.preEncode(texts);
+    }
+
+    private static String readBody(InputStream body) throws IOException {
+        try (body) {
+            return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
     // Eliminado getNumber auxiliar: ahora manejado por DTO tipado
 
+    /**
+     * Variante no bloqueante de {@link #chat(String, List, Map, boolean)}: la petición sale con
+     * {@link HttpClient#sendAsync} y ningún hilo espera a Ollama (ni en la cola del limitador); el future
+     * se completa en el executor del HttpClient al llegar la respuesta. Usa el limitador y el pool de
+     * backends como chat, sin coalescencia ni hedging, que se basan en esperas bloqueantes.
+     *
+     * Retry, CircuitBreaker y TimeLimiter (instancia "llm") actúan al invocarlo desde otro bean (proxy
+     * AOP). Con el circuito abierto falla con {@link LlmOverloadedException} y al vencer el TimeLimiter
+     * con {@link LlmTimeoutException}; cancelar el future aborta la petición HTTP en curso.
+     */
     @io.github.resilience4j.retry.annotation.Retry(name = "llm")
     @io.github.resilience4j.circuitbreaker.annotation.CircuitBreaker(name="llm", fallbackMethod="fallback")
     @io.github.resilience4j.timelimiter.annotation.TimeLimiter(name="llm")
-    @org.springframework.scheduling.annotation.Async
-    public CompletableFuture<LlmResponse> chatAsync(String model, List<Message> messages, Map<String, Object> params, boolean generative) {return CompletableFuture.supplyAsync(() -> this.chatBlocking(model, messages, params, generative)); }
-    private LlmResponse chatBlocking(String model, List<Message> messages, Map<String, Object> params, boolean generative){ return chat(model, messages, params, generative); }
-    public CompletableFuture<LlmResponse> fallback(String model, List<Message> messages, Map<String, Object> params, Throwable t) { 
+    public CompletableFuture<LlmResponse> chatAsync(String model, List<Message> messages, Map<String, Object> params, boolean generative) {
+        String call = generative ? "/api/generate" : "/api/chat";
+        List<Message> safeMessages = (messages == null) ? List.of() : messages;
+        if (generative && safeMessages.isEmpty()) {
+            return CompletableFuture.completedFuture(new LlmResponse("", -1, -1));
+        }
+        byte[] payload;
+        try {
+            payload = buildPayload(model, safeMessages, params, generative, false);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new LlmUnknownException("io_error: " + e.getMessage(), e));
+        }
+        getClient();
+        AtomicReference<CompletableFuture<?>> exchange = new AtomicReference<>();
+        Supplier<CompletableFuture<LlmResponse>> request = () -> backendsFor(model)
+            .executeAsync(base -> sendAsync(base, call, model, safeMessages.size(), generative, payload, exchange));
+        var config = props.getLimiter();
+        CompletableFuture<LlmResponse> result;
+        try {
+            result = config == null || !config.isEnabled() ? request.get() : limiterFor(model).executeAsync(true, request);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((r, e) -> {
+            // La cancelación (TimeLimiter, cliente) no llega sola a la petición HTTP de debajo
+            if (e instanceof CancellationException) {
+                CompletableFuture<?> http = exchange.get();
+                if (http != null) http.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<LlmResponse> sendAsync(String base, String call, String model, int messageCount, boolean generative,
+                                                     byte[] payload, AtomicReference<CompletableFuture<?>> exchange) {
+        Span span = tracer.nextSpan()
+            .name("llm.request")
+            .tag("llm.model", model)
+            .tag("llm.backend", base)
+            .tag("llm.endpoint", call)
+            .tag("llm.generative", String.valueOf(generative))
+            .tag("llm.message_count", String.valueOf(messageCount))
+            .tag("llm.async", "true")
+            .start();
+        // El cuerpo se acumula con el subscriber no bloqueante del HttpClient y se parsea de una vez
+        CompletableFuture<HttpResponse<byte[]>> http = getClient()
+            .sendAsync(buildRequest(base, call, payload), HttpResponse.BodyHandlers.ofByteArray());
+        exchange.set(http);
+        return http.handle((resp, error) -> {
+            try {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (cause instanceof CancellationException ce) throw ce;
+                    span.tag("error", "true").event("llm.io.error");
+                    throw new LlmUnknownException("io_error: " + cause.getMessage(), cause);
+                }
+                int statusCode = resp.statusCode();
+                span.tag("http.status_code", String.valueOf(statusCode));
+                if (statusCode < 200 || statusCode >= 300) {
+                    span.tag("error", "true").event("llm.provider.error");
+                    throw new LlmProviderException(statusCode, new String(resp.body(), StandardCharsets.UTF_8));
+                }
+                OllamaChatResponse json = om.readValue(resp.body(), OllamaChatResponse.class);
+                int prompt = json.promptCount();
+                int completion = json.completionCount();
+                span.tag("llm.prompt_tokens", String.valueOf(prompt))
+                    .tag("llm.completion_tokens", String.valueOf(completion))
+                    .tag("llm.total_tokens", String.valueOf(prompt + completion));
+                return new LlmResponse(json.contentOrEmpty(generative), prompt, completion);
+            } catch (IOException e) {
+                span.tag("error", "true").event("llm.io.error");
+                throw new LlmUnknownException("io_error: " + e.getMessage(), e);
+            } finally {
+                span.end();
+            }
+        });
+    }
+
+    /** Circuito abierto: se rechaza sin llamar al LLM, igual que con el modelo saturado */
+    public CompletableFuture<LlmResponse> fallback(String model, List<Message> messages, Map<String, Object> params, boolean generative,
+                                                   CallNotPermittedException e) {
         var locale = LocaleContextHolder.getLocale();
         String msg = this.messages.getMessage("llm.fallback.busy", null, "Busy, please retry later", locale);
-        return CompletableFuture.completedFuture(LlmResponse.of(msg)); 
-    } 
+        return CompletableFuture.failedFuture(new LlmOverloadedException(msg));
+    }
+
+    /** TimeLimiter vencido: mismo reason que un timeout del HttpClient */
+    public CompletableFuture<LlmResponse> fallback(String model, List<Message> messages, Map<String, Object> params, boolean generative,
+                                                   TimeoutException e) {
+        return CompletableFuture.failedFuture(new LlmTimeoutException("time_limiter: " + e.getMessage(), e));
+    }
 }   
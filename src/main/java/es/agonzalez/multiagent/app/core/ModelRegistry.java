@@ -6,8 +6,12 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import jakarta.annotation.PostConstruct;
@@ -35,9 +39,22 @@ public class ModelRegistry {
     /** Valores por defecto cargados del YAML (inmutables una vez cargados) */
     private volatile Map<String, Object> defaults = Collections.emptyMap();
 
+    /** Agentes cuyas llamadas idénticas en vuelo se comparten (sección coalesce del YAML) */
+    private volatile Set<String> coalesce = Collections.emptySet();
+
+    /** Agentes idempotentes cuyas llamadas lentas se duplican en otro backend (sección hedge del YAML) */
+    private volatile Set<String> hedge = Collections.emptySet();
+
+    /** Agentes que sirven preguntas parecidas desde la caché semántica (sección semantic-cache del YAML) */
+    private volatile Set<String> semanticCache = Collections.emptySet();
+
+    /** Backends propios por modelo (sección backends del YAML); el resto usa el pool por defecto */
+    private volatile Map<String, List<String>> backends = Collections.emptyMap();
+
     /** Overrides aplicados en runtime (no persistidos). */
     private final Map<String, Object> overridesMutable = new ConcurrentHashMap<>();
     private volatile Map<String, Object> overridesView = Collections.emptyMap();
+    private final ReentrantLock overrideLock = new ReentrantLock();
 
     @Autowired
     private es.agonzalez.multiagent.app.config.AppProperties props;
@@ -63,9 +80,20 @@ public class ModelRegistry {
             Map<String, Object> root = yaml.readValue(config.getInputStream(), Map.class);
             Map<String, Object> agents = (Map<String, Object>) root.getOrDefault("agents", Collections.emptyMap());
             Map<String, Object> defs = (Map<String, Object>) root.getOrDefault("defaults", Collections.emptyMap());
+            List<Object> coalesced = (List<Object>) root.getOrDefault("coalesce", Collections.emptyList());
+            List<Object> hedged = (List<Object>) root.getOrDefault("hedge", Collections.emptyList());
+            List<Object> semantic = (List<Object>) root.getOrDefault("semantic-cache", Collections.emptyList());
+            Map<String, Object> perModel = (Map<String, Object>) root.getOrDefault("backends", Collections.emptyMap());
             // snapshots inmutables iniciales
             this.agentToModel = Collections.unmodifiableMap(new HashMap<>(agents));
             this.defaults = Collections.unmodifiableMap(new HashMap<>(defs));
+            this.coalesce = coalesced.stream().map(String::valueOf).collect(Collectors.toUnmodifiableSet());
+            this.hedge = hedged.stream().map(String::valueOf).collect(Collectors.toUnmodifiableSet());
+            this.semanticCache = semantic.stream().map(String::valueOf).collect(Collectors.toUnmodifiableSet());
+            this.backends = perModel.entrySet().stream()
+                .filter(e -> e.getValue() instanceof List<?> l && !l.isEmpty())
+                .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey,
+                    e -> ((List<Object>) e.getValue()).stream().map(String::valueOf).toList()));
             this.overridesView = Collections.unmodifiableMap(new HashMap<>()); // vacío inicial
         } catch (IOException e) {
             throw new IllegalStateException("No pude cargar archivo de modelos: " +  e.getMessage(), e);
@@ -95,19 +123,26 @@ public class ModelRegistry {
     }
 
     /**
-     * Aplica un override sólo en memoria. No se persiste en disco deliberadamente.
-     * Thread-safety: método sincronizado para crear un nuevo snapshot inmutable visible para lectores.
+     * Aplica un override en memoria y lo persiste (best-effort).
+     * Thread-safety: los escritores se serializan con un ReentrantLock (no synchronized: la escritura
+     * a disco dentro de un monitor fijaría el hilo virtual a su carrier) para crear un nuevo snapshot
+     * inmutable visible para lectores.
      */
-    public synchronized void overrideInMemory(String agent, String model) {
-        var newMap = new HashMap<String, Object>(agentToModel);
-        newMap.put(agent, model);
-        agentToModel = Collections.unmodifiableMap(newMap);
-
-        overridesMutable.put(agent, model);
-        // generar nueva vista inmutable de overrides (snapshot) para quien la exponga públicamente
-        overridesView = Collections.unmodifiableMap(new HashMap<>(overridesMutable));
-        // persistir en disco (best-effort)
-        persistOverrides();
+    public void overrideInMemory(String agent, String model) {
+        overrideLock.lock();
+        try {
+            var newMap = new HashMap<String, Object>(agentToModel);
+            newMap.put(agent, model);
+            agentToModel = Collections.unmodifiableMap(newMap);
+
+            overridesMutable.put(agent, model);
+            // generar nueva vista inmutable de overrides (snapshot) para quien la exponga públicamente
+            overridesView = Collections.unmodifiableMap(new HashMap<>(overridesMutable));
+            // persistir en disco (best-effort)
+            persistOverrides();
+        } finally {
+            overrideLock.unlock();
+        }
     }
 
     // Renombrado: método previamente llamado modelForÇ (carácter no ASCII) para evitar problemas de tooling
@@ -116,6 +151,16 @@ public class ModelRegistry {
     }
 
     public Map<String, Object> defaults(){ return defaults; }
+    /** true si el agente comparte llamadas idénticas en vuelo (sólo respuestas no personalizadas) */
+    public boolean coalesces(String agent){ return coalesce.contains(agent); }
+    /** Opciones de llamada al LLM del agente (coalesce y hedge) */
+    public LlmClient.CallOptions callOptions(String agent){
+        return new LlmClient.CallOptions(coalesce.contains(agent), hedge.contains(agent));
+    }
+    /** true si el agente puede responder desde la caché semántica (respuestas que no dependen del historial) */
+    public boolean usesSemanticCache(String agent){ return semanticCache.contains(agent); }
+    /** Backends dedicados del modelo; lista vacía si usa el pool por defecto */
+    public List<String> backendsFor(String model){ return backends.getOrDefault(model, List.of()); }
     public Map<String, Object> currentAgents(){ return agentToModel; }
     /** Overrides activos en memoria (snapshot inmutable). */
     public Map<String, Object> overrides(){ return overridesView; }
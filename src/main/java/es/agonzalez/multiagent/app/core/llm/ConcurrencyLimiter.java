@@ -0,0 +1,292 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmOverloadedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Límite de concurrencia adaptativo para las llamadas a un modelo, con cola de espera acotada.
+ *
+ * El límite sigue un algoritmo de gradiente (estilo Gradient2): se compara la latencia reciente con una
+ * media lenta que hace de referencia. Si la reciente crece por encima de {@value #TOLERANCE}x la
+ * referencia, el límite baja en proporción; si no, crece en sqrt(límite) por muestra (suavizado). Un
+ * timeout o error de E/S lo recorta un 10%. Sólo las llamadas no streaming aportan muestras.
+ *
+ * Cuando no queda hueco se espera en una cola FIFO de {@code queueSize} como máximo y durante
+ * {@code maxWaitMs}; si la cola está llena o la espera vence se lanza {@link LlmOverloadedException}
+ * (reason "overloaded") sin llegar a llamar al LLM.
+ *
+ * Las esperas de {@link #execute} y de {@link #executeAsync} comparten esa cola: cada una es un future
+ * y el hilo que libera un hueco se lo entrega directamente a la más antigua, sea del tipo que sea. La
+ * síncrona bloquea su hilo sobre el future; la asíncrona espera sin ocupar hilo.
+ */
+public final class ConcurrencyLimiter {
+
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    /** Muestras que pesa la media lenta de latencia */
+    private static final int LONG_WINDOW = 100;
+    private static final double BACKOFF = 0.9;
+
+    private final String model;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int queueSize;
+    private final long maxWaitNanos;
+    private final LongSupplier clock;
+
+    // Estado protegido por lock (no synchronized: los llamantes pueden ser hilos virtuales)
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private double limit;
+    private double longRtt;
+    private int inflight;
+    /** Esperas síncronas y asíncronas, en orden de llegada */
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+    private final Timer waitTimer;
+    private final Counter queueFull;
+    private final Counter waitTimeout;
+
+    public ConcurrencyLimiter(String model, AppProperties.Limiter config, MeterRegistry registry) {
+        this(model, config, System::nanoTime, registry);
+    }
+
+    ConcurrencyLimiter(String model, AppProperties.Limiter config, LongSupplier clock, MeterRegistry registry) {
+        this.model = model;
+        this.minLimit = config.getMinLimit();
+        this.maxLimit = Math.max(config.getMinLimit(), config.getMaxLimit());
+        this.limit = Math.clamp(config.getInitialLimit(), minLimit, maxLimit);
+        this.queueSize = config.getQueueSize();
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxWaitMs());
+        this.clock = clock;
+        if (registry != null) {
+            Gauge.builder("llm.limiter.limit", this, ConcurrencyLimiter::limit)
+                .description("Límite de concurrencia adaptativo por modelo").tag("model", model).register(registry);
+            Gauge.builder("llm.limiter.inflight", this, ConcurrencyLimiter::inflight)
+                .description("Llamadas en curso dentro del límite").tag("model", model).register(registry);
+            Gauge.builder("llm.limiter.queue", this, ConcurrencyLimiter::waiting)
+                .description("Llamadas esperando hueco").tag("model", model).register(registry);
+            waitTimer = Timer.builder("llm.limiter.wait")
+                .description("Espera en cola hasta obtener hueco").tag("model", model).register(registry);
+            queueFull = Counter.builder("llm.limiter.rejected")
+                .description("Llamadas rechazadas sin llegar al LLM").tag("model", model).tag("cause", "queue_full")
+                .register(registry);
+            waitTimeout = Counter.builder("llm.limiter.rejected")
+                .description("Llamadas rechazadas sin llegar al LLM").tag("model", model).tag("cause", "timeout")
+                .register(registry);
+        } else {
+            waitTimer = null;
+            queueFull = null;
+            waitTimeout = null;
+        }
+    }
+
+    /**
+     * Ejecuta {@code call} dentro del límite. Con {@code sample=false} (streaming) la duración no se usa
+     * para ajustar el límite.
+     */
+    public <T> T execute(boolean sample, Supplier<T> call) {
+        acquire();
+        long start = clock.getAsLong();
+        boolean ok = false;
+        try {
+            T out = call.get();
+            ok = true;
+            return out;
+        } catch (RuntimeException e) {
+            if (LlmBackendPool.isBackendFailure(e) && !Thread.currentThread().isInterrupted()) onDrop();
+            throw e;
+        } finally {
+            release(ok && sample ? clock.getAsLong() - start : -1);
+        }
+    }
+
+    /**
+     * Variante no bloqueante de {@link #execute}: {@code call} se invoca al obtener hueco y el hueco se
+     * libera cuando su future termina.
+     */
+    public <T> CompletableFuture<T> executeAsync(boolean sample, Supplier<CompletableFuture<T>> call) {
+        return acquireAsync().thenCompose(ignored -> {
+            long start = clock.getAsLong();
+            CompletableFuture<T> out;
+            try {
+                out = call.get();
+            } catch (RuntimeException e) {
+                if (LlmBackendPool.isBackendFailure(e)) onDrop();
+                release(-1);
+                return CompletableFuture.failedFuture(e);
+            }
+            return out.whenComplete((value, error) -> {
+                if (error != null && LlmBackendPool.isBackendFailure(unwrap(error))) onDrop();
+                release(error == null && sample ? clock.getAsLong() - start : -1);
+            });
+        });
+    }
+
+    private CompletableFuture<Void> acquireAsync() {
+        CompletableFuture<Void> waiter;
+        try {
+            waiter = acquireOrEnqueue();
+        } catch (LlmOverloadedException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (waiter == null) return CompletableFuture.completedFuture(null);
+        long start = clock.getAsLong();
+        CompletableFuture.delayedExecutor(maxWaitNanos, TimeUnit.NANOSECONDS).execute(() -> expire(waiter));
+        return waiter.whenComplete((v, e) -> {
+            if (waitTimer != null) waitTimer.record(clock.getAsLong() - start, TimeUnit.NANOSECONDS);
+        });
+    }
+
+    private void expire(CompletableFuture<Void> waiter) {
+        if (!abandon(waiter)) return; // ya tenía hueco
+        if (waitTimeout != null) waitTimeout.increment();
+        waiter.completeExceptionally(new LlmOverloadedException("Modelo " + model + " saturado: espera máxima superada"));
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    private void acquire() {
+        long start = clock.getAsLong();
+        try {
+            CompletableFuture<Void> waiter = acquireOrEnqueue();
+            if (waiter == null) return;
+            try {
+                waiter.get(maxWaitNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (abandon(waiter)) {
+                    if (waitTimeout != null) waitTimeout.increment();
+                    throw new LlmOverloadedException("Modelo " + model + " saturado: espera máxima superada");
+                }
+                // El hueco llegó a la vez que vencía la espera: ya es nuestro
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!abandon(waiter)) release(-1);
+                throw new LlmOverloadedException("Modelo " + model + ": espera interrumpida");
+            } catch (ExecutionException e) {
+                // Las esperas síncronas sólo se completan con éxito
+                throw new IllegalStateException(e.getCause());
+            }
+        } finally {
+            if (waitTimer != null) waitTimer.record(clock.getAsLong() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Toma hueco si lo hay y nadie espera delante (devuelve null) o encola una espera al final de la
+     * cola; con la cola llena lanza {@link LlmOverloadedException}.
+     */
+    private CompletableFuture<Void> acquireOrEnqueue() {
+        lock.lock();
+        try {
+            if (waiters.isEmpty() && inflight < (int) limit) {
+                inflight++;
+                return null;
+            }
+            if (waiters.size() >= queueSize) {
+                if (queueFull != null) queueFull.increment();
+                throw new LlmOverloadedException("Modelo " + model + " saturado: cola de espera llena");
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            waiters.addLast(waiter);
+            return waiter;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Saca la espera de la cola; false si ya se le había entregado un hueco. */
+    private boolean abandon(CompletableFuture<Void> waiter) {
+        lock.lock();
+        try {
+            return waiters.remove(waiter);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long rttNanos) {
+        List<CompletableFuture<Void>> granted = null;
+        lock.lock();
+        try {
+            inflight--;
+            if (rttNanos > 0) update(rttNanos);
+            // Los huecos pasan directamente a las esperas más antiguas, síncronas o asíncronas por igual
+            while (!waiters.isEmpty() && inflight < (int) limit) {
+                if (granted == null) granted = new ArrayList<>(1);
+                granted.add(waiters.pollFirst());
+                inflight++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Fuera del lock: una continuación asíncrona (la llamada al LLM) se lanza desde este hilo
+        if (granted != null) for (CompletableFuture<Void> next : granted) next.complete(null);
+    }
+
+    /** Ajuste por gradiente con una muestra de latencia (bajo lock) */
+    private void update(long rttNanos) {
+        double rtt = rttNanos;
+        longRtt = longRtt == 0 ? rtt : longRtt + (rtt - longRtt) / LONG_WINDOW;
+        // Si la referencia se queda muy por debajo (cambio de régimen), se acerca más deprisa
+        if (longRtt * 2 < rtt) longRtt *= 1.05;
+        // Con pocas llamadas en curso la latencia no dice nada del límite
+        if (inflight + 1 < limit / 2) return;
+        double gradient = Math.clamp(TOLERANCE * longRtt / rtt, 0.5, 1.0);
+        double target = limit * gradient + Math.sqrt(limit);
+        limit = Math.clamp(limit * (1 - SMOOTHING) + target * SMOOTHING, minLimit, maxLimit);
+    }
+
+    private void onDrop() {
+        lock.lock();
+        try {
+            limit = Math.max(minLimit, limit * BACKOFF);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double limit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inflight() {
+        lock.lock();
+        try {
+            return inflight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int waiting() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmProviderException;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmTimeoutException;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmUnknownException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Pool de backends LLM equivalentes (nodos Ollama con los mismos modelos).
+ *
+ * - Enrutado power-of-two-choices: dos backends disponibles al azar y gana el de menos peticiones en
+ *   vuelo, ponderado por su peso de slow-start. Con dos backends equivale a least-outstanding-requests.
+ * - Expulsión pasiva: {@code ejectFailures} fallos seguidos (5xx, timeout, E/S) sacan al backend de la
+ *   rotación durante {@code ejectNanos}. No hay health-checks activos: el tráfico real es la sonda.
+ * - Slow-start: al volver, su peso crece linealmente de 10% a 100% durante {@code slowStartNanos}.
+ * - Si todos están expulsados se usa el que antes vuelve (mejor intentar que fallar sin llamar).
+ */
+public final class LlmBackendPool {
+
+    /** Peso mínimo de un backend en slow-start, para que reciba algo de tráfico desde el primer momento */
+    private static final double MIN_WEIGHT = 0.1;
+
+    static final class Backend {
+        final String url;
+        final AtomicInteger inflight = new AtomicInteger();
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        /** true desde la primera expulsión; con {@code ejectedUntil} indica si está fuera o en slow-start */
+        volatile boolean ejected;
+        volatile long ejectedUntil;
+        final Timer latency;
+        final Counter ejections;
+
+        Backend(String url, String pool, MeterRegistry registry) {
+            this.url = url;
+            if (registry != null) {
+                latency = Timer.builder("llm.backend.latency")
+                    .description("Latencia de las llamadas correctas por backend")
+                    .tag("pool", pool).tag("backend", url)
+                    .register(registry);
+                ejections = Counter.builder("llm.backend.ejections")
+                    .description("Veces que el backend ha salido de la rotación por fallos")
+                    .tag("pool", pool).tag("backend", url)
+                    .register(registry);
+                Gauge.builder("llm.backend.inflight", inflight, AtomicInteger::get)
+                    .description("Peticiones en vuelo por backend")
+                    .tag("pool", pool).tag("backend", url)
+                    .register(registry);
+            } else {
+                latency = null;
+                ejections = null;
+            }
+        }
+    }
+
+    private final Backend[] backends;
+    private final int ejectFailures;
+    private final long ejectNanos;
+    private final long slowStartNanos;
+    private final LongSupplier clock;
+
+    public LlmBackendPool(String name, List<String> urls, int ejectFailures, long ejectMs, long slowStartMs,
+                          MeterRegistry registry) {
+        this(name, urls, ejectFailures, ejectMs, slowStartMs, System::nanoTime, registry);
+    }
+
+    LlmBackendPool(String name, List<String> urls, int ejectFailures, long ejectMs, long slowStartMs,
+                   LongSupplier clock, MeterRegistry registry) {
+        if (urls == null || urls.isEmpty()) throw new IllegalArgumentException("Pool LLM sin backends: " + name);
+        this.backends = urls.stream().distinct().map(u -> new Backend(u, name, registry)).toArray(Backend[]::new);
+        this.ejectFailures = Math.max(1, ejectFailures);
+        this.ejectNanos = TimeUnit.MILLISECONDS.toNanos(ejectMs);
+        this.slowStartNanos = TimeUnit.MILLISECONDS.toNanos(slowStartMs);
+        this.clock = clock;
+        if (registry != null) {
+            for (Backend b : backends) {
+                Gauge.builder("llm.backend.available", b, x -> available(x, clock.getAsLong()) ? 1 : 0)
+                    .description("1 si el backend está en rotación, 0 si está expulsado")
+                    .tag("pool", name).tag("backend", b.url)
+                    .register(registry);
+            }
+        }
+    }
+
+    /**
+     * Ejecuta {@code call} contra el backend elegido (recibe su URL base) contabilizando peticiones en
+     * vuelo, latencia y fallos. Las excepciones se propagan sin reintentar en otro backend.
+     */
+    public <T> T execute(Function<String, T> call) {
+        return execute(call, null);
+    }
+
+    /** Como {@link #execute(Function)} evitando el backend {@code avoid} si hay otro disponible (hedging) */
+    public <T> T execute(Function<String, T> call, String avoid) {
+        Backend b = pick(avoid);
+        b.inflight.incrementAndGet();
+        long start = clock.getAsLong();
+        try {
+            T out = call.apply(b.url);
+            b.consecutiveFailures.set(0);
+            if (b.latency != null) b.latency.record(clock.getAsLong() - start, TimeUnit.NANOSECONDS);
+            return out;
+        } catch (RuntimeException e) {
+            // Una interrupción del llamante (cancelación) no dice nada del backend
+            if (isBackendFailure(e) && !Thread.currentThread().isInterrupted()) onFailure(b);
+            throw e;
+        } finally {
+            b.inflight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Variante no bloqueante de {@link #execute(Function)}: el backend cuenta como ocupado hasta que el
+     * future de {@code call} termina.
+     */
+    public <T> CompletableFuture<T> executeAsync(Function<String, CompletableFuture<T>> call) {
+        Backend b = pick(null);
+        b.inflight.incrementAndGet();
+        long start = clock.getAsLong();
+        CompletableFuture<T> out;
+        try {
+            out = call.apply(b.url);
+        } catch (RuntimeException e) {
+            b.inflight.decrementAndGet();
+            if (isBackendFailure(e)) onFailure(b);
+            throw e;
+        }
+        return out.whenComplete((value, error) -> {
+            b.inflight.decrementAndGet();
+            if (error == null) {
+                b.consecutiveFailures.set(0);
+                if (b.latency != null) b.latency.record(clock.getAsLong() - start, TimeUnit.NANOSECONDS);
+            } else if (isBackendFailure(error instanceof CompletionException ce ? ce.getCause() : error)) {
+                onFailure(b);
+            }
+        });
+    }
+
+    Backend pick(String avoid) {
+        if (backends.length == 1) return backends[0];
+        long now = clock.getAsLong();
+        Backend[] candidates = new Backend[backends.length];
+        int n = 0;
+        for (Backend b : backends) {
+            if (available(b, now) && !b.url.equals(avoid)) candidates[n++] = b;
+        }
+        if (n == 0 && avoid != null) return pick(null);
+        if (n == 0) return soonestBack();
+        if (n == 1) return candidates[0];
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int i = rnd.nextInt(n);
+        int j = rnd.nextInt(n - 1);
+        if (j >= i) j++;
+        Backend a = candidates[i];
+        Backend c = candidates[j];
+        return load(a, now) <= load(c, now) ? a : c;
+    }
+
+    private void onFailure(Backend b) {
+        // En slow-start basta un fallo: el backend aún no ha demostrado que se ha recuperado
+        boolean recovering = b.ejected && clock.getAsLong() - b.ejectedUntil < slowStartNanos;
+        if (!recovering && b.consecutiveFailures.incrementAndGet() < ejectFailures) return;
+        b.consecutiveFailures.set(0);
+        b.ejectedUntil = clock.getAsLong() + ejectNanos;
+        b.ejected = true;
+        if (b.ejections != null) b.ejections.increment();
+    }
+
+    private static boolean available(Backend b, long now) {
+        return !b.ejected || now - b.ejectedUntil >= 0;
+    }
+
+    /** Peticiones en vuelo (+1 por la nueva) divididas por el peso de slow-start */
+    private double load(Backend b, long now) {
+        return (b.inflight.get() + 1) / weight(b, now);
+    }
+
+    double weight(Backend b, long now) {
+        if (!b.ejected) return 1.0;
+        long since = now - b.ejectedUntil;
+        if (since >= slowStartNanos) return 1.0;
+        return Math.max(MIN_WEIGHT, (double) since / slowStartNanos);
+    }
+
+    private Backend soonestBack() {
+        Backend best = backends[0];
+        for (Backend b : backends) {
+            if (b.ejectedUntil - best.ejectedUntil < 0) best = b;
+        }
+        return best;
+    }
+
+    /** Fallos atribuibles al backend; un 4xx (petición o modelo inválidos) no lo es */
+    static boolean isBackendFailure(Throwable e) {
+        if (e instanceof LlmProviderException p) return p.statusCode() >= 500;
+        return e instanceof LlmTimeoutException || e instanceof LlmUnknownException;
+    }
+
+    public int size() {
+        return backends.length;
+    }
+
+    public List<String> urls() {
+        return Arrays.stream(backends).map(b -> b.url).toList();
+    }
+}
@@ -0,0 +1,236 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.MDC;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmTimeoutException;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmUnknownException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.tracing.Tracer;
+
+/**
+ * Hedging de llamadas LLM idempotentes: si la llamada no ha respondido tras el percentil configurado de
+ * la latencia observada para su modelo, se lanza una copia en otro backend del pool y gana la primera
+ * respuesta correcta. La perdedora se cancela interrumpiendo su hilo (HttpClient aborta el envío).
+ *
+ * - La latencia se observa aquí, por modelo, sobre las últimas {@value #WINDOW} llamadas correctas.
+ * - Presupuesto: cada llamada elegible acumula {@code budgetPercent} centésimas de copia (máximo
+ *   {@value #MAX_BURST} copias acumuladas), así las copias no pasan de ese porcentaje aunque el
+ *   backend entero se ralentice.
+ * - Sin muestras suficientes o con un único backend la llamada se ejecuta tal cual.
+ * - Un error de la primera llamada no dispara la copia (eso sería un reintento, no hedging).
+ */
+public final class LlmHedger {
+
+    static final int WINDOW = 128;
+    private static final int MAX_BURST = 10;
+    /** Una copia en centésimas de crédito */
+    private static final long HEDGE_COST = 100;
+
+    /** Ventana circular de latencias con el percentil recalculado cada pocas muestras */
+    static final class LatencyWindow {
+        private static final int RECOMPUTE_EVERY = 8;
+        private final long[] samples = new long[WINDOW];
+        private final ReentrantLock lock = new ReentrantLock();
+        private int next;
+        private int count;
+        private int sinceRecompute;
+        private volatile long cached = -1;
+
+        void record(long nanos) {
+            lock.lock();
+            try {
+                samples[next] = nanos;
+                next = (next + 1) % WINDOW;
+                if (count < WINDOW) count++;
+                sinceRecompute++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Percentil {@code p} (0-100) en nanos, o -1 con menos de {@code minSamples} muestras */
+        long percentile(int p, int minSamples) {
+            lock.lock();
+            try {
+                if (count < minSamples) return -1;
+                if (cached < 0 || sinceRecompute >= RECOMPUTE_EVERY) {
+                    long[] sorted = Arrays.copyOf(samples, count);
+                    Arrays.sort(sorted);
+                    cached = sorted[Math.min(count - 1, (int) Math.ceil(p / 100.0 * count) - 1)];
+                    sinceRecompute = 0;
+                }
+                return cached;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final int percentile;
+    private final long budgetPerCall;
+    private final long minDelayNanos;
+    private final int minSamples;
+    private final Tracer tracer;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, LatencyWindow> windows = new ConcurrentHashMap<>();
+    private final AtomicLong credits = new AtomicLong();
+    private final Counter sent;
+    private final Counter won;
+    private final Counter denied;
+
+    public LlmHedger(AppProperties.Hedge config, Tracer tracer, MeterRegistry registry) {
+        this.percentile = config.getPercentile();
+        this.budgetPerCall = config.getBudgetPercent();
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(config.getMinDelayMs());
+        this.minSamples = config.getMinSamples();
+        this.tracer = tracer;
+        if (registry != null) {
+            sent = Counter.builder("llm.hedge.sent")
+                .description("Copias de llamadas LLM lanzadas por superar el percentil de latencia")
+                .register(registry);
+            won = Counter.builder("llm.hedge.won")
+                .description("Copias que respondieron antes que la llamada original")
+                .register(registry);
+            denied = Counter.builder("llm.hedge.denied")
+                .description("Copias no lanzadas por falta de presupuesto")
+                .register(registry);
+            Gauge.builder("llm.hedge.budget", credits, c -> c.get() / (double) HEDGE_COST)
+                .description("Copias disponibles en el presupuesto de hedging")
+                .register(registry);
+        } else {
+            sent = null;
+            won = null;
+            denied = null;
+        }
+    }
+
+    /** Deja de aceptar llamadas y espera hasta {@code timeoutMs} a las que están en curso antes de interrumpirlas. */
+    public void close(long timeoutMs) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ejecuta {@code call} (recibe la URL base del backend) en {@code pool}, duplicándola en otro backend
+     * si tarda más que el percentil observado para {@code model}.
+     */
+    public <T> T execute(String model, LlmBackendPool pool, Function<String, T> call) {
+        LatencyWindow window = windows.computeIfAbsent(model, m -> new LatencyWindow());
+        earn();
+        long delay = window.percentile(percentile, minSamples);
+        // Tras close() la llamada sigue sin copia en el hilo del llamante
+        if (pool.size() < 2 || delay < 0 || executor.isShutdown()) {
+            return timed(window, () -> pool.execute(call));
+        }
+
+        ExecutorCompletionService<T> ecs = new ExecutorCompletionService<>(executor);
+        AtomicReference<String> primaryBackend = new AtomicReference<>();
+        List<Future<T>> running = new ArrayList<>(2);
+        running.add(ecs.submit(propagate(() -> timed(window,
+            () -> pool.execute(base -> { primaryBackend.set(base); return call.apply(base); })))));
+        try {
+            Future<T> done = ecs.poll(Math.max(delay, minDelayNanos), TimeUnit.NANOSECONDS);
+            if (done == null) {
+                if (!executor.isShutdown() && tryAcquire()) {
+                    if (sent != null) sent.increment();
+                    running.add(ecs.submit(propagate(() -> timed(window, () -> pool.execute(call, primaryBackend.get())))));
+                } else if (denied != null) {
+                    denied.increment();
+                }
+                done = ecs.take();
+            }
+            return firstSuccess(ecs, done, running);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LlmTimeoutException("interrupted", e);
+        } finally {
+            // La perdedora (o ambas si el llamante se interrumpe) se cancela; sobre una terminada no hace nada
+            for (Future<T> f : running) f.cancel(true);
+        }
+    }
+
+    /** Primera respuesta correcta; si todas fallan, la excepción de la primera en terminar */
+    private <T> T firstSuccess(ExecutorCompletionService<T> ecs, Future<T> done, List<Future<T>> running)
+            throws InterruptedException {
+        RuntimeException first = null;
+        for (int pending = running.size(); ; ) {
+            try {
+                T out = done.get();
+                if (running.size() > 1 && done == running.get(1) && won != null) won.increment();
+                return out;
+            } catch (ExecutionException e) {
+                if (first == null) first = unwrap(e);
+            }
+            if (--pending == 0) throw first;
+            done = ecs.take();
+        }
+    }
+
+    private <T> T timed(LatencyWindow window, Supplier<T> body) {
+        long start = System.nanoTime();
+        T out = body.get();
+        window.record(System.nanoTime() - start);
+        return out;
+    }
+
+    private void earn() {
+        if (budgetPerCall == 0) return;
+        credits.accumulateAndGet(budgetPerCall, (c, add) -> Math.min(c + add, MAX_BURST * HEDGE_COST));
+    }
+
+    private boolean tryAcquire() {
+        long c;
+        do {
+            c = credits.get();
+            if (c < HEDGE_COST) return false;
+        } while (!credits.compareAndSet(c, c - HEDGE_COST));
+        return true;
+    }
+
+    /** MDC y contexto de traza del llamante en el hilo de la llamada */
+    private <T> Callable<T> propagate(Callable<T> task) {
+        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        Callable<T> traced = tracer == null ? task : tracer.currentTraceContext().wrap(task);
+        return () -> {
+            if (mdc != null) MDC.setContextMap(mdc);
+            try {
+                return traced.call();
+            } finally {
+                MDC.clear();
+            }
+        };
+    }
+
+    private static RuntimeException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException re) return re;
+        if (cause instanceof Error err) throw err;
+        return new LlmUnknownException("hedge: " + cause, cause);
+    }
+}
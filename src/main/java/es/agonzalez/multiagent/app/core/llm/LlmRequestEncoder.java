@@ -0,0 +1,149 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import es.agonzalez.multiagent.app.core.models.Message;
+
+/**
+ * Serializa el cuerpo de las peticiones a Ollama directamente a bytes UTF-8 con un
+ * {@link JsonGenerator}, sin construir mapas intermedios ni pasar por un String.
+ *
+ * - Los buffers ({@link ByteArrayBuilder}) se reutilizan desde un pool acotado (no ThreadLocal, para
+ *   que también se reaprovechen con hilos virtuales).
+ * - Los textos constantes registrados con {@link #preEncode(String...)} (system prompts) se escriben
+ *   ya escapados y codificados.
+ * - Los params (p. ej. {@code ModelRegistry.defaults()}) se codifican una vez y se reutilizan mientras
+ *   se reciba la misma instancia del mapa.
+ *
+ * Las claves reservadas (model, stream, messages, prompt) las fija siempre el cliente: si aparecen en
+ * params se ignoran. {@code keep_alive} se añade con el valor de {@link #keepAlive(String)} salvo que
+ * params traiga el suyo.
+ */
+public final class LlmRequestEncoder {
+    private static final Set<String> RESERVED = Set.of("model", "stream", "messages", "prompt");
+    private static final int POOL_SIZE = 32;
+    private static final int FIRST_BLOCK = 8 * 1024;
+    private static final SerializedString ROLE = new SerializedString("role");
+    private static final SerializedString CONTENT = new SerializedString("content");
+    private static final String KEEP_ALIVE = "keep_alive";
+
+    private record ParamsFragment(Map<String, Object> source, byte[] bytes) {}
+
+    private final ObjectMapper om;
+    private final ConcurrentHashMap<String, SerializedString> constants = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, SerializedString> roles = new ConcurrentHashMap<>();
+    private final ArrayBlockingQueue<ByteArrayBuilder> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+    private volatile ParamsFragment lastParams = new ParamsFragment(null, new byte[0]);
+    /** Long (segundos) o String (duración), resuelto una vez en {@link #keepAlive(String)} */
+    private volatile Object keepAlive;
+
+    public LlmRequestEncoder(ObjectMapper om) {
+        this.om = om;
+        for (String role : List.of("system", "user", "assistant")) roles.put(role, new SerializedString(role));
+    }
+
+    /** Registra textos que se repiten en muchas peticiones para escribirlos ya codificados. */
+    public void preEncode(String... texts) {
+        for (String t : texts) {
+            if (t == null) continue;
+            SerializedString s = new SerializedString(t);
+            // Fuerza el cálculo (perezoso) del UTF-8 escapado una sola vez
+            s.asQuotedUTF8();
+            constants.put(t, s);
+        }
+    }
+
+    /**
+     * Tiempo que Ollama mantiene el modelo cargado tras cada petición (p. ej. "30m", "-1" = siempre).
+     * Con el modelo en memoria conserva también la caché KV del último prompt, que se reutiliza si la
+     * siguiente petición empieza por el mismo prefijo. {@code null} o vacío deja el valor del servidor.
+     */
+    public void keepAlive(String keepAlive) {
+        if (keepAlive == null || keepAlive.isBlank()) {
+            this.keepAlive = null;
+            return;
+        }
+        String v = keepAlive.strip();
+        // Ollama acepta duración ("30m") o segundos numéricos ("-1", "3600")
+        this.keepAlive = v.matches("-?\\d+") ? (Object) Long.valueOf(v) : v;
+    }
+
+    public byte[] encode(String model, List<Message> messages, Map<String, Object> params, boolean generative, boolean stream) throws IOException {
+        byte[] paramsBytes = paramsFragment(params);
+        ByteArrayBuilder buf = pool.poll();
+        if (buf == null) buf = new ByteArrayBuilder(FIRST_BLOCK);
+        try {
+            try (JsonGenerator gen = om.getFactory().createGenerator(buf, JsonEncoding.UTF8)) {
+                gen.writeStartObject();
+                gen.writeStringField("model", model);
+                gen.writeBooleanField("stream", stream);
+                Object ka = keepAlive;
+                if (ka != null && (params == null || !params.containsKey(KEEP_ALIVE))) {
+                    if (ka instanceof Long secs) gen.writeNumberField(KEEP_ALIVE, secs);
+                    else gen.writeStringField(KEEP_ALIVE, (String) ka);
+                }
+                if (generative) {
+                    gen.writeFieldName("prompt");
+                    writeText(gen, messages.get(0).content());
+                } else {
+                    gen.writeArrayFieldStart("messages");
+                    for (Message m : messages) {
+                        gen.writeStartObject();
+                        gen.writeFieldName(ROLE);
+                        SerializedString role = m.role() == null ? null : roles.get(m.role());
+                        if (role != null) gen.writeString(role); else gen.writeString(m.role());
+                        gen.writeFieldName(CONTENT);
+                        writeText(gen, m.content());
+                        gen.writeEndObject();
+                    }
+                    gen.writeEndArray();
+                }
+                // Los params ya codificados se añaden como ",k:v,..." antes de cerrar el objeto
+                if (paramsBytes.length > 0) {
+                    gen.flush();
+                    buf.write(paramsBytes);
+                }
+                gen.writeEndObject();
+            }
+            return buf.toByteArray();
+        } finally {
+            buf.reset();
+            pool.offer(buf);
+        }
+    }
+
+    private void writeText(JsonGenerator gen, String text) throws IOException {
+        SerializedString pre = text == null ? null : constants.get(text);
+        if (pre != null) gen.writeString(pre); else gen.writeString(text);
+    }
+
+    private byte[] paramsFragment(Map<String, Object> params) throws IOException {
+        if (params == null || params.isEmpty()) return new byte[0];
+        ParamsFragment cached = lastParams;
+        if (cached.source() == params) return cached.bytes();
+        Map<String, Object> filtered = new LinkedHashMap<>();
+        params.forEach((k, v) -> { if (!RESERVED.contains(k)) filtered.put(k, v); });
+        byte[] bytes = new byte[0];
+        if (!filtered.isEmpty()) {
+            byte[] json = om.writeValueAsBytes(filtered);
+            // "{...}" -> ",..."
+            bytes = new byte[json.length - 1];
+            bytes[0] = ',';
+            System.arraycopy(json, 1, bytes, 1, json.length - 2);
+        }
+        lastParams = new ParamsFragment(params, bytes);
+        return bytes;
+    }
+}
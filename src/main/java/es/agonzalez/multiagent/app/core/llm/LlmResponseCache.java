@@ -0,0 +1,283 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.time.Clock;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.core.models.LlmResponse;
+import es.agonzalez.multiagent.app.core.models.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Caché de respuestas del LLM para peticiones repetibles (recetas).
+ *
+ * - Clave: SHA-256 canónico de modelo + modo + mensajes normalizados (NFC, espacios colapsados) +
+ *   params ordenados por clave. Dos prompts que sólo difieren en espaciado comparten entrada.
+ * - Expira por TTL y se expulsa por LRU cuando el tamaño estimado supera {@code maxBytes}.
+ * - Opcionalmente persiste cada entrada en {@code datadir/llm-cache/<clave>.json}; un fallo en memoria
+ *   consulta el disco antes de llamar al LLM, así la caché sobrevive a reinicios.
+ *
+ * No se cachean respuestas vacías ni excepciones: sólo lo que el loader devuelve con contenido.
+ */
+@Component
+public class LlmResponseCache {
+    private static final Logger log = LoggerFactory.getLogger(LlmResponseCache.class);
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    // Coste aproximado por entrada: clave, nodo del mapa y cabeceras de objetos
+    private static final int ENTRY_OVERHEAD_BYTES = 192;
+
+    /** Entrada persistida en disco (también la forma en memoria) */
+    record CachedResponse(long createdAt, String content, int promptToken, int completionToken) {
+        LlmResponse toResponse() { return new LlmResponse(content, promptToken, completionToken); }
+        long cost() { return ENTRY_OVERHEAD_BYTES + 2L * content.length(); }
+    }
+
+    @Autowired
+    private AppProperties props;
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private final ObjectMapper om = new ObjectMapper().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+    private Clock clock = Clock.systemUTC();
+
+    // LRU en orden de acceso; protegido por lock
+    private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private Path dir;
+    private Counter bypassed;
+    private Counter evictions;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (props.getResponseCache().isPersist()) {
+            dir = Paths.get(props.getDatadir(), "llm-cache");
+            Files.createDirectories(dir);
+            purgeExpired();
+        }
+        if (meterRegistry != null) {
+            FunctionCounter.builder("llm.cache.hits", hits, AtomicLong::get)
+                .description("Respuestas LLM servidas desde caché").register(meterRegistry);
+            FunctionCounter.builder("llm.cache.misses", misses, AtomicLong::get)
+                .description("Consultas a la caché de respuestas que acaban en el LLM").register(meterRegistry);
+            bypassed = Counter.builder("llm.cache.bypass")
+                .description("Peticiones que omiten la caché (params.cache=false)").register(meterRegistry);
+            evictions = Counter.builder("llm.cache.evictions")
+                .description("Respuestas expulsadas de memoria por presupuesto").register(meterRegistry);
+            Gauge.builder("llm.cache.hit.ratio", this, LlmResponseCache::hitRatio)
+                .description("Proporción de aciertos de la caché de respuestas").register(meterRegistry);
+            Gauge.builder("llm.cache.bytes", totalBytes, AtomicLong::get)
+                .baseUnit("bytes")
+                .description("Tamaño estimado de la caché de respuestas en memoria").register(meterRegistry);
+            Gauge.builder("llm.cache.entries", this, LlmResponseCache::size)
+                .description("Respuestas en la caché en memoria").register(meterRegistry);
+        }
+    }
+
+    public boolean isEnabled() {
+        return props.getResponseCache().isEnabled();
+    }
+
+    /**
+     * Devuelve la respuesta cacheada o la obtiene con {@code loader} y la guarda. Con
+     * {@code bypass=true} se llama siempre al loader y no se guarda nada.
+     */
+    public LlmResponse getOrLoad(String model, List<Message> messages, Map<String, Object> params, boolean generative,
+                                 boolean bypass, Supplier<LlmResponse> loader) {
+        if (!isEnabled()) return loader.get();
+        if (bypass) {
+            if (bypassed != null) bypassed.increment();
+            return loader.get();
+        }
+        String key = key(model, messages, params, generative);
+        CachedResponse cached = get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached.toResponse();
+        }
+        misses.incrementAndGet();
+        LlmResponse resp = loader.get();
+        if (resp != null && resp.content() != null && !resp.content().isBlank()) {
+            put(key, new CachedResponse(clock.millis(), resp.content(), resp.promptToken(), resp.completionToken()));
+        }
+        return resp;
+    }
+
+    /** Clave canónica (hex SHA-256) de una petición. */
+    public String key(String model, List<Message> messages, Map<String, Object> params, boolean generative) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            update(md, model);
+            update(md, generative ? "generate" : "chat");
+            for (Message m : messages) {
+                update(md, m.role());
+                update(md, normalize(m.content()));
+            }
+            md.update(om.writeValueAsBytes(params == null ? Map.of() : new TreeMap<>(params)));
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException("No se pudo calcular la clave de caché", e);
+        }
+    }
+
+    private CachedResponse get(String key) {
+        long now = clock.millis();
+        lock.lock();
+        try {
+            CachedResponse e = entries.get(key);
+            if (e != null) {
+                if (!expired(e, now)) return e;
+                entries.remove(key);
+                totalBytes.addAndGet(-e.cost());
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (dir == null) return null;
+        CachedResponse fromDisk = readFromDisk(key, now);
+        if (fromDisk != null) install(key, fromDisk);
+        return fromDisk;
+    }
+
+    private void put(String key, CachedResponse value) {
+        install(key, value);
+        if (dir != null) writeToDisk(key, value);
+    }
+
+    private void install(String key, CachedResponse value) {
+        lock.lock();
+        try {
+            CachedResponse previous = entries.put(key, value);
+            if (previous != null) totalBytes.addAndGet(-previous.cost());
+            totalBytes.addAndGet(value.cost());
+            Iterator<Map.Entry<String, CachedResponse>> it = entries.entrySet().iterator();
+            while (totalBytes.get() > props.getResponseCache().getMaxBytes() && it.hasNext()) {
+                CachedResponse eldest = it.next().getValue();
+                it.remove();
+                totalBytes.addAndGet(-eldest.cost());
+                if (evictions != null) evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CachedResponse readFromDisk(String key, long now) {
+        Path p = dir.resolve(key + ".json");
+        if (!Files.exists(p)) return null;
+        try {
+            CachedResponse e = om.readValue(p.toFile(), CachedResponse.class);
+            if (e.content() == null || expired(e, now)) {
+                Files.deleteIfExists(p);
+                return null;
+            }
+            return e;
+        } catch (IOException ex) {
+            log.warn("Entrada de caché ilegible, se descarta {}: {}", p.getFileName(), ex.toString());
+            try { Files.deleteIfExists(p); } catch (IOException ignored) { /* best-effort */ }
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, CachedResponse value) {
+        Path target = dir.resolve(key + ".json");
+        try {
+            Path tmp = Files.createTempFile(dir, key, ".tmp");
+            Files.write(tmp, om.writeValueAsBytes(value));
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // La caché en disco es best-effort: la respuesta ya está en memoria
+            log.warn("No se pudo persistir la entrada de caché {}: {}", key, e.toString());
+        }
+    }
+
+    /** Borra del disco las entradas caducadas (al arrancar y periódicamente). */
+    @Scheduled(fixedDelayString = "${multiagent.response-cache.purge-interval-ms:3600000}",
+               initialDelayString = "${multiagent.response-cache.purge-interval-ms:3600000}")
+    public void purgeExpired() {
+        if (dir == null) return;
+        long now = clock.millis();
+        int purged = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.json")) {
+            for (Path p : ds) {
+                if (now - Files.getLastModifiedTime(p).toMillis() > props.getResponseCache().getTtlMs()) {
+                    Files.deleteIfExists(p);
+                    purged++;
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Fallo purgando la caché de respuestas: {}", e.toString());
+        }
+        if (purged > 0) log.info("Caché de respuestas: {} entradas caducadas borradas de disco", purged);
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private double hitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    private boolean expired(CachedResponse e, long now) {
+        return now - e.createdAt() > props.getResponseCache().getTtlMs();
+    }
+
+    static String normalize(String text) {
+        if (text == null) return "";
+        return WHITESPACE.matcher(Normalizer.normalize(text, Normalizer.Form.NFC)).replaceAll(" ").strip();
+    }
+
+    private static void update(MessageDigest md, String s) {
+        md.update((s == null ? "" : s).getBytes(StandardCharsets.UTF_8));
+        // Separador para que ("ab","c") y ("a","bc") no colisionen
+        md.update((byte) 0);
+    }
+}
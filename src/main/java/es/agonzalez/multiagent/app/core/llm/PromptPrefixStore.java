@@ -0,0 +1,96 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Ancla por usuario de la ventana de historial enviada al LLM en su última petición.
+ *
+ * Ollama conserva la caché KV del último prompt mientras el modelo sigue cargado (keep_alive) y sólo
+ * evalúa lo que viene después del prefijo común. Una ventana deslizante de N turnos cambia el comienzo
+ * del prompt en cada petición y obliga a reevaluarlo entero; anclando la ventana en la misma línea de
+ * historial el prefijo se repite y sólo se evalúan los turnos nuevos. Es el equivalente, sobre
+ * /api/chat, a reenviar el {@code context} de /api/generate.
+ *
+ * Acotado a {@code multiagent.llm.prefix-max-users} usuarios (LRU): un usuario expulsado sólo pierde
+ * la reutilización en su siguiente petición. No hace falta invalidar al borrar memoria: si la línea
+ * anclada ya no está en el historial, GenerateStep vuelve a la ventana normal.
+ */
+@Component
+public class PromptPrefixStore {
+
+    /**
+     * Prefijo de la última petición: modelo, hash de los mensajes de sistema (prompt + resumen), primera
+     * línea de historial de la ventana ({@code null} si iba vacía) y tokens de prompt que cubría
+     * (-1 si Ollama no los informó).
+     */
+    public record Anchor(String model, int systemHash, String firstLine, int promptTokens) {}
+
+    @Autowired(required = false)
+    private AppProperties props;
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    // LRU en orden de acceso; protegido por lock
+    private final LinkedHashMap<String, Anchor> anchors = new LinkedHashMap<>(256, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private int maxUsers = 10000;
+    private Counter evictions;
+
+    @PostConstruct
+    void init() {
+        if (props != null) maxUsers = props.getLlm().getPrefixMaxUsers();
+        if (meterRegistry != null) {
+            Gauge.builder("llm.prefix.users", this, PromptPrefixStore::size)
+                .description("Usuarios con ventana de historial anclada").register(meterRegistry);
+            evictions = Counter.builder("llm.prefix.evictions")
+                .description("Anclas descartadas por superar prefix-max-users").register(meterRegistry);
+        }
+    }
+
+    public Anchor get(String userId) {
+        if (userId == null) return null;
+        lock.lock();
+        try {
+            return anchors.get(userId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(String userId, Anchor anchor) {
+        if (userId == null || anchor == null) return;
+        lock.lock();
+        try {
+            anchors.put(userId, anchor);
+            var it = anchors.entrySet().iterator();
+            while (anchors.size() > maxUsers && it.hasNext()) {
+                Map.Entry<String, Anchor> eldest = it.next();
+                if (eldest.getKey().equals(userId)) continue;
+                it.remove();
+                if (evictions != null) evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return anchors.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
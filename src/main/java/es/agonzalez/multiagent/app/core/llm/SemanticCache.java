@@ -0,0 +1,343 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.core.LlmClient;
+import es.agonzalez.multiagent.app.core.ModelRegistry;
+import es.agonzalez.multiagent.app.core.models.LlmResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Caché semántica de respuestas: una pregunta cuyo embedding se parece lo suficiente (coseno >=
+ * {@code threshold}) al de una ya respondida reutiliza esa respuesta sin llamar al LLM.
+ *
+ * - Los embeddings los calcula Ollama ({@link LlmClient#embed}) y se guardan normalizados, así la
+ *   similitud coseno es un producto escalar.
+ * - Índice plano: cada consulta recorre todas las entradas del mismo ámbito (agente + modelo + modelo de
+ *   embeddings + partición). Los agentes cuya respuesta depende del contexto de un usuario (historial,
+ *   resumen, nombre) pasan su userId como partición para no servir esa respuesta a otro usuario. Con los tamaños previstos (miles de entradas de ~768 floats) son unos pocos ms,
+ *   muy por debajo de una llamada al LLM, y no necesita estructura aproximada ni reconstrucciones.
+ * - Expira por TTL y, llena, expulsa la entrada usada hace más tiempo.
+ * - Con {@code persist} el índice se vuelca a {@code datadir/semantic-cache/index.bin} periódicamente
+ *   (si cambió) y al parar, y se recarga al arrancar.
+ *
+ * Fallar al calcular el embedding no es un error de la petición: se llama al LLM como sin caché.
+ */
+@Component
+public class SemanticCache {
+    private static final Logger log = LoggerFactory.getLogger(SemanticCache.class);
+    private static final int MAGIC = 0x53454d31; // "SEM1"
+
+    /** Entrada del índice; {@code lastUsed} se actualiza con el lock de lectura */
+    static final class Entry {
+        final String scope;
+        final float[] vector;
+        final String answer;
+        final long createdAt;
+        volatile long lastUsed;
+
+        Entry(String scope, float[] vector, String answer, long createdAt, long lastUsed) {
+            this.scope = scope;
+            this.vector = vector;
+            this.answer = answer;
+            this.createdAt = createdAt;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    @Autowired
+    private AppProperties props;
+    @Autowired
+    private LlmClient client;
+    @Autowired
+    private ModelRegistry models;
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private Clock clock = Clock.systemUTC();
+
+    // Lecturas (búsquedas) concurrentes; altas y expulsiones en exclusiva
+    private final List<Entry> entries = new ArrayList<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean dirty;
+
+    private Path file;
+    private Counter errors;
+    private Counter evictions;
+    private DistributionSummary similarity;
+
+    @PostConstruct
+    public void init() throws IOException {
+        var config = props.getSemanticCache();
+        if (config.isEnabled() && config.isPersist()) {
+            Path dir = Paths.get(props.getDatadir(), "semantic-cache");
+            Files.createDirectories(dir);
+            file = dir.resolve("index.bin");
+            load();
+        }
+        if (meterRegistry != null) {
+            FunctionCounter.builder("llm.semantic.hits", hits, AtomicLong::get)
+                .description("Respuestas servidas desde la caché semántica").register(meterRegistry);
+            FunctionCounter.builder("llm.semantic.misses", misses, AtomicLong::get)
+                .description("Consultas a la caché semántica que acaban en el LLM").register(meterRegistry);
+            errors = Counter.builder("llm.semantic.errors")
+                .description("Embeddings fallidos (la petición sigue sin caché)").register(meterRegistry);
+            evictions = Counter.builder("llm.semantic.evictions")
+                .description("Entradas expulsadas de la caché semántica por tamaño").register(meterRegistry);
+            similarity = DistributionSummary.builder("llm.semantic.similarity")
+                .description("Similitud de la entrada más cercana en cada consulta")
+                .publishPercentiles(0.5, 0.9).register(meterRegistry);
+            Gauge.builder("llm.semantic.entries", this, SemanticCache::size)
+                .description("Entradas en la caché semántica").register(meterRegistry);
+        }
+    }
+
+    /** true si la caché está activa y el agente figura en la sección semantic-cache de models.yaml */
+    public boolean isEnabled(String agent) {
+        return props.getSemanticCache().isEnabled() && models.usesSemanticCache(agent);
+    }
+
+    /**
+     * Devuelve la respuesta de la pregunta más parecida si supera el umbral o la obtiene con
+     * {@code loader} y la indexa. Una respuesta cacheada no trae tokens ({@code -1}).
+     */
+    public LlmResponse getOrLoad(String agent, String model, String query, Supplier<LlmResponse> loader) {
+        return getOrLoad(agent, model, null, query, loader);
+    }
+
+    /**
+     * Como {@link #getOrLoad(String, String, String, Supplier)} pero sólo compara con preguntas de la
+     * misma {@code partition} (p. ej. el userId); {@code null} comparte el ámbito entre todos.
+     */
+    public LlmResponse getOrLoad(String agent, String model, String partition, String query, Supplier<LlmResponse> loader) {
+        if (!isEnabled(agent) || query == null || query.isBlank()) return loader.get();
+        var config = props.getSemanticCache();
+        String scope = agent + '|' + model + '|' + config.getEmbedModel();
+        if (partition != null) scope += '|' + partition;
+
+        float[] vector;
+        try {
+            vector = normalized(client.embed(config.getEmbedModel(), LlmResponseCache.normalize(query)));
+        } catch (RuntimeException e) {
+            if (errors != null) errors.increment();
+            log.debug("Embedding no disponible, se omite la caché semántica: {}", e.toString());
+            return loader.get();
+        }
+
+        String cached = vector == null ? null : lookup(scope, vector, config.getThreshold());
+        if (cached != null) {
+            hits.incrementAndGet();
+            return new LlmResponse(cached, -1, -1);
+        }
+        misses.incrementAndGet();
+        LlmResponse resp = loader.get();
+        if (vector != null && resp != null && resp.content() != null && !resp.content().isBlank()) {
+            add(new Entry(scope, vector, resp.content(), clock.millis(), clock.millis()));
+        }
+        return resp;
+    }
+
+    private String lookup(String scope, float[] vector, double threshold) {
+        long now = clock.millis();
+        long ttl = props.getSemanticCache().getTtlMs();
+        Entry best = null;
+        double bestScore = -1;
+        lock.readLock().lock();
+        try {
+            for (Entry e : entries) {
+                if (e.vector.length != vector.length || !e.scope.equals(scope) || now - e.createdAt > ttl) continue;
+                double score = dot(e.vector, vector);
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = e;
+                }
+            }
+            if (best != null && similarity != null) similarity.record(bestScore);
+            if (best == null || bestScore < threshold) return null;
+            best.lastUsed = now;
+            return best.answer;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void add(Entry entry) {
+        long ttl = props.getSemanticCache().getTtlMs();
+        int max = props.getSemanticCache().getMaxEntries();
+        lock.writeLock().lock();
+        try {
+            entries.removeIf(e -> entry.createdAt - e.createdAt > ttl);
+            while (entries.size() >= max) {
+                int eldest = 0;
+                for (int i = 1; i < entries.size(); i++) {
+                    if (entries.get(i).lastUsed < entries.get(eldest).lastUsed) eldest = i;
+                }
+                // Intercambio con la última para no desplazar la lista
+                entries.set(eldest, entries.get(entries.size() - 1));
+                entries.remove(entries.size() - 1);
+                if (evictions != null) evictions.increment();
+            }
+            entries.add(entry);
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Vuelca el índice a disco si cambió desde el último volcado. */
+    @Scheduled(fixedDelayString = "${multiagent.semantic-cache.flush-interval-ms:60000}",
+               initialDelayString = "${multiagent.semantic-cache.flush-interval-ms:60000}")
+    public void flush() {
+        if (file == null || !dirty) return;
+        List<Entry> snapshot;
+        lock.readLock().lock();
+        try {
+            dirty = false;
+            snapshot = List.copyOf(entries);
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            Path tmp = Files.createTempFile(file.getParent(), "index", ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(snapshot.size());
+                for (Entry e : snapshot) {
+                    writeString(out, e.scope);
+                    writeString(out, e.answer);
+                    out.writeLong(e.createdAt);
+                    out.writeLong(e.lastUsed);
+                    out.writeInt(e.vector.length);
+                    for (float f : e.vector) out.writeFloat(f);
+                }
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // Se reintenta en el siguiente volcado; la caché en memoria sigue siendo válida
+            dirty = true;
+            log.warn("No se pudo persistir la caché semántica: {}", e.toString());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        flush();
+    }
+
+    private void load() {
+        if (!Files.exists(file)) return;
+        long now = clock.millis();
+        long ttl = props.getSemanticCache().getTtlMs();
+        List<Entry> loaded = new ArrayList<>();
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException("formato desconocido");
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String scope = readString(in);
+                String answer = readString(in);
+                long createdAt = in.readLong();
+                long lastUsed = in.readLong();
+                float[] vector = new float[in.readInt()];
+                for (int j = 0; j < vector.length; j++) vector[j] = in.readFloat();
+                if (now - createdAt <= ttl) loaded.add(new Entry(scope, vector, answer, createdAt, lastUsed));
+            }
+        } catch (IOException e) {
+            log.warn("Índice de la caché semántica ilegible, se empieza vacío: {}", e.toString());
+            return;
+        }
+        int max = props.getSemanticCache().getMaxEntries();
+        if (loaded.size() > max) {
+            loaded.sort((a, b) -> Long.compare(b.lastUsed, a.lastUsed));
+            loaded = new ArrayList<>(loaded.subList(0, max));
+        }
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            entries.addAll(loaded);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Caché semántica: {} entradas cargadas de {}", loaded.size(), file);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Copia unitaria de {@code v}; {@code null} si es el vector nulo */
+    static float[] normalized(float[] v) {
+        double norm = Math.sqrt(dot(v, v));
+        if (norm == 0 || Double.isNaN(norm)) return null;
+        float[] out = new float[v.length];
+        for (int i = 0; i < v.length; i++) out[i] = (float) (v[i] / norm);
+        return out;
+    }
+
+    /** Producto escalar con cuatro acumuladores independientes (el JIT lo vectoriza mejor que un bucle simple) */
+    static double dot(float[] a, float[] b) {
+        int n = Math.min(a.length, b.length);
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < n; i++) s0 += a[i] * b[i];
+        return (double) s0 + s1 + s2 + s3;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) throw new EOFException("longitud negativa");
+        return new String(in.readNBytes(len), StandardCharsets.UTF_8);
+    }
+}
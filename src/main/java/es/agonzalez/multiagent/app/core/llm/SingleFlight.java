@@ -0,0 +1,85 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Coalescencia de llamadas idénticas en vuelo: el primer hilo con una clave ejecuta el loader y los
+ * que llegan mientras tanto esperan el mismo {@link CompletableFuture} en lugar de repetir la llamada.
+ *
+ * No es una caché: la entrada se retira en cuanto el loader termina (con éxito o error), así que una
+ * llamada posterior vuelve a ejecutarse. Los errores se propagan a todos los suscriptores.
+ */
+public final class SingleFlight<K, V> {
+
+    private static final class Flight<V> {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        /** Llamantes que comparten el resultado, incluido el que ejecuta el loader */
+        final AtomicInteger subscribers = new AtomicInteger(1);
+    }
+
+    private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+    private final Counter joined;
+    private final DistributionSummary subscribers;
+
+    public SingleFlight(String metricPrefix, MeterRegistry meterRegistry) {
+        if (meterRegistry != null) {
+            joined = Counter.builder(metricPrefix + ".joined")
+                .description("Llamadas resueltas uniéndose a una idéntica ya en vuelo")
+                .register(meterRegistry);
+            subscribers = DistributionSummary.builder(metricPrefix + ".subscribers")
+                .description("Llamantes que comparten cada llamada ejecutada")
+                .register(meterRegistry);
+            Gauge.builder(metricPrefix + ".inflight", inFlight, ConcurrentHashMap::size)
+                .description("Llamadas coalescibles en vuelo")
+                .register(meterRegistry);
+        } else {
+            joined = null;
+            subscribers = null;
+        }
+    }
+
+    public V run(K key, Supplier<V> loader) {
+        Flight<V> mine = new Flight<>();
+        Flight<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            existing.subscribers.incrementAndGet();
+            if (joined != null) joined.increment();
+            return await(existing.future);
+        }
+        try {
+            V value = loader.get();
+            mine.future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            mine.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+            if (subscribers != null) subscribers.record(mine.subscribers.get());
+        }
+    }
+
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    private static <V> V await(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            // Mismo tipo de excepción que recibe el hilo que ejecutó la llamada
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            if (e.getCause() instanceof Error err) throw err;
+            throw e;
+        }
+    }
+}
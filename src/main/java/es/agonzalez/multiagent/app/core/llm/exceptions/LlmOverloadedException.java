@@ -0,0 +1,6 @@
+package es.agonzalez.multiagent.app.core.llm.exceptions;
+
+/** La petición no entra en el límite de concurrencia del modelo ni en su cola de espera */
+public class LlmOverloadedException extends LlmException {
+    public LlmOverloadedException(String message) { super("overloaded", message); }
+}
@@ -3,12 +3,15 @@ package es.agonzalez.multiagent.app.core.models.dto;
 
 /**
  * Representa la respuesta JSON de /api/chat de Ollama (simplificada a campos usados).
+ * En modo streaming cada línea NDJSON se mapea a esta misma estructura: los chunks intermedios
+ * traen sólo el fragmento de contenido y el último (done=true) trae los contadores de tokens.
  */
 public record OllamaChatResponse(
     MessageNode message,
     Integer prompt_eval_count,
     Integer eval_count,
-    String response
+    String response,
+    Boolean done
 ) {
     public record MessageNode(String role, String content) {}
 
@@ -19,4 +22,5 @@ public record OllamaChatResponse(
     }
     public int promptCount(){ return java.util.Objects.requireNonNullElse(prompt_eval_count, -1); }
     public int completionCount(){ return java.util.Objects.requireNonNullElse(eval_count, -1); }
+    public boolean isDone(){ return Boolean.TRUE.equals(done); }
 }
@@ -0,0 +1,6 @@
+package es.agonzalez.multiagent.app.core.models.dto;
+
+/**
+ * Respuesta JSON de /api/embeddings de Ollama (sólo el vector).
+ */
+public record OllamaEmbeddingResponse(float[] embedding) {}
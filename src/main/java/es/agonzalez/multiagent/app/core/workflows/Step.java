@@ -1,9 +1,21 @@
 package es.agonzalez.multiagent.app.core.workflows;
 
-import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
-public interface  Step<I, O> {
-    
-    Optional<O> apply(I input, Map<String, Object> context);
+/**
+ * Paso de un workflow. {@code C} es el contexto tipado que comparten los pasos de una misma ejecución.
+ */
+public interface  Step<I, O, C> {
+
+    Optional<O> apply(I input, C context);
+
+    /**
+     * Variante para {@link StepGraph#runAsync}; por defecto ejecuta {@link #apply} en el hilo llamante.
+     * La sobrescriben los pasos que esperan al LLM para no ocupar un hilo mientras tanto.
+     */
+    default CompletionStage<Optional<O>> applyAsync(I input, C context) {
+        return CompletableFuture.completedFuture(apply(input, context));
+    }
 }
@@ -0,0 +1,308 @@
+package es.agonzalez.multiagent.app.core.workflows;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.slf4j.MDC;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Grafo de pasos de un workflow. Cada paso declara las claves del contexto tipado {@code C} que lee y
+ * escribe (constantes de un enum del propio contexto); un paso depende de los declarados antes que
+ * escriben lo que él lee, leen lo que él escribe o escriben lo mismo. Una clave puede no corresponder a
+ * ningún campo y servir sólo para ordenar efectos laterales (p. ej. MEMORY para los appends de historial).
+ *
+ * Los pasos se ejecutan por niveles: los de un mismo nivel son independientes y corren a la vez (uno
+ * en el hilo llamante y el resto en el executor). Un paso que el executor no ha empezado cuando el hilo
+ * llamante acaba el suyo lo ejecuta éste, así que {@link #run} no se bloquea aunque se llame desde un
+ * hilo del mismo executor con todos los hilos ocupados. La semántica es la de la lista secuencial:
+ * - Gana el primer resultado en orden de declaración.
+ * - Un paso no empieza si otro declarado antes ya devolvió resultado. Un paso declarado después
+ *   pero de un nivel anterior puede haberse ejecutado ya; su resultado se descarta.
+ * - Una excepción se propaga tras esperar al resto del nivel (la del primer paso en orden de declaración).
+ *
+ * {@link #runAsync} tiene la misma semántica sin bloquear: usa {@link Step#applyAsync} y, si un nivel
+ * queda pendiente (un paso esperando al LLM), el siguiente arranca en el executor al completarse.
+ */
+public final class StepGraph<I, O, C> {
+
+    private record Node<I, O, C>(String name, Step<I, O, C> step, Set<? extends Enum<?>> reads,
+                                  Set<? extends Enum<?>> writes, Timer timer) {}
+
+    private final List<Node<I, O, C>> nodes;
+    /** Índices de nodo por nivel, en orden de declaración */
+    private final List<List<Integer>> levels;
+    private final Executor executor;
+
+    private StepGraph(List<Node<I, O, C>> nodes, Executor executor) {
+        this.nodes = nodes;
+        this.executor = executor;
+        this.levels = computeLevels(nodes);
+    }
+
+    public static <I, O, C> Builder<I, O, C> builder(String workflow) {
+        return new Builder<>(workflow);
+    }
+
+    public Optional<O> run(I input, C context) {
+        int n = nodes.size();
+        @SuppressWarnings("unchecked")
+        Optional<O>[] results = new Optional[n];
+        int firstResult = n;
+        for (List<Integer> level : levels) {
+            final int cutoff = firstResult;
+            List<Integer> runnable = level.stream().filter(i -> i < cutoff).toList();
+            if (runnable.isEmpty()) continue;
+            runLevel(runnable, input, context, results);
+            for (int i : runnable) {
+                if (results[i].isPresent() && i < firstResult) firstResult = i;
+            }
+        }
+        return firstResult < n ? results[firstResult] : Optional.empty();
+    }
+
+    private void runLevel(List<Integer> level, I input, C context, Optional<O>[] results) {
+        if (level.size() == 1) {
+            int i = level.get(0);
+            results[i] = timed(nodes.get(i), input, context);
+            return;
+        }
+        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        List<Sibling> siblings = new ArrayList<>(level.size() - 1);
+        for (int k = 1; k < level.size(); k++) {
+            Sibling sibling = new Sibling(nodes.get(level.get(k)), input, context, mdc);
+            siblings.add(sibling);
+            try {
+                executor.execute(sibling);
+            } catch (RejectedExecutionException e) {
+                // Sin sitio en el executor: lo ejecuta el hilo llamante abajo
+            }
+        }
+        RuntimeException failure = null;
+        // El primero del nivel corre en el hilo llamante: una transferencia de hilo menos
+        try {
+            results[level.get(0)] = timed(nodes.get(level.get(0)), input, context);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        // Los que el executor aún no ha empezado también: si el hilo llamante es del mismo pool y
+        // éste está lleno, esperarlos en la cola no terminaría nunca
+        for (Sibling sibling : siblings) sibling.runIfUnclaimed();
+        for (int k = 1; k < level.size(); k++) {
+            try {
+                results[level.get(k)] = siblings.get(k - 1).result.join();
+            } catch (CompletionException e) {
+                if (failure == null) failure = e.getCause() instanceof RuntimeException re ? re : e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /** Paso concurrente de un nivel: lo ejecuta quien lo reclame antes, el executor o el hilo llamante */
+    private final class Sibling implements Runnable {
+        private final Node<I, O, C> node;
+        private final I input;
+        private final C context;
+        private final Map<String, String> mdc;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CompletableFuture<Optional<O>> result = new CompletableFuture<>();
+
+        private Sibling(Node<I, O, C> node, I input, C context, Map<String, String> mdc) {
+            this.node = node;
+            this.input = input;
+            this.context = context;
+            this.mdc = mdc;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) return;
+            try {
+                result.complete(withMdc(mdc, () -> timed(node, input, context)));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        /** En el hilo llamante el MDC ya es el de la petición */
+        private void runIfUnclaimed() {
+            if (!claimed.compareAndSet(false, true)) return;
+            try {
+                result.complete(timed(node, input, context));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    public CompletableFuture<Optional<O>> runAsync(I input, C context) {
+        @SuppressWarnings("unchecked")
+        Optional<O>[] results = new Optional[nodes.size()];
+        return continueAsync(0, nodes.size(), input, context, results, MDC.getCopyOfContextMap());
+    }
+
+    /** Ejecuta desde el nivel {@code from}; los niveles que terminan en el acto siguen en el mismo hilo */
+    private CompletableFuture<Optional<O>> continueAsync(int from, int firstResult, I input, C context,
+                                                         Optional<O>[] results, Map<String, String> mdc) {
+        int first = firstResult;
+        for (int l = from; l < levels.size(); l++) {
+            final int cutoff = first;
+            List<Integer> runnable = levels.get(l).stream().filter(i -> i < cutoff).toList();
+            if (runnable.isEmpty()) continue;
+            CompletableFuture<Void> done = runLevelAsync(runnable, input, context, results, mdc);
+            if (!done.isDone()) {
+                int next = l + 1;
+                return done.thenComposeAsync(v -> withMdc(mdc,
+                    () -> continueAsync(next, firstOf(runnable, cutoff, results), input, context, results, mdc)), executor);
+            }
+            if (done.isCompletedExceptionally()) return done.thenApply(v -> Optional.empty());
+            first = firstOf(runnable, first, results);
+        }
+        return CompletableFuture.completedFuture(first < nodes.size() ? results[first] : Optional.empty());
+    }
+
+    private int firstOf(List<Integer> level, int firstResult, Optional<O>[] results) {
+        int first = firstResult;
+        for (int i : level) {
+            if (results[i].isPresent() && i < first) first = i;
+        }
+        return first;
+    }
+
+    private CompletableFuture<Void> runLevelAsync(List<Integer> level, I input, C context, Optional<O>[] results,
+                                                  Map<String, String> mdc) {
+        List<CompletableFuture<Optional<O>>> futures = new ArrayList<>(level.size());
+        for (int k = 0; k < level.size(); k++) {
+            Node<I, O, C> node = nodes.get(level.get(k));
+            futures.add(k == 0
+                ? timedAsync(node, input, context)
+                : CompletableFuture.supplyAsync(() -> withMdc(mdc, () -> timedAsync(node, input, context)), executor)
+                    .thenCompose(f -> f));
+        }
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).handle((v, e) -> {
+            RuntimeException failure = null;
+            for (int k = 0; k < level.size(); k++) {
+                try {
+                    results[level.get(k)] = futures.get(k).join();
+                } catch (CompletionException ce) {
+                    if (failure == null) failure = ce.getCause() instanceof RuntimeException re ? re : ce;
+                } catch (CancellationException ce) {
+                    if (failure == null) failure = ce;
+                }
+            }
+            if (failure != null) throw failure;
+            return null;
+        });
+    }
+
+    private CompletableFuture<Optional<O>> timedAsync(Node<I, O, C> node, I input, C context) {
+        long start = System.nanoTime();
+        CompletableFuture<Optional<O>> out;
+        try {
+            out = node.step().applyAsync(input, context).toCompletableFuture();
+        } catch (RuntimeException e) {
+            out = CompletableFuture.failedFuture(e);
+        }
+        return out.handle((o, e) -> {
+            if (node.timer() != null) node.timer().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (e != null) throw e instanceof CompletionException ce ? ce : new CompletionException(e);
+            return o == null ? Optional.<O>empty() : o;
+        });
+    }
+
+    private Optional<O> timed(Node<I, O, C> node, I input, C context) {
+        long start = System.nanoTime();
+        try {
+            Optional<O> out = node.step().apply(input, context);
+            return out == null ? Optional.empty() : out;
+        } finally {
+            if (node.timer() != null) node.timer().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static <T> T withMdc(Map<String, String> mdc, Supplier<T> body) {
+        Map<String, String> previous = MDC.getCopyOfContextMap();
+        if (mdc != null) MDC.setContextMap(mdc); else MDC.clear();
+        try {
+            return body.get();
+        } finally {
+            if (previous != null) MDC.setContextMap(previous); else MDC.clear();
+        }
+    }
+
+    private static <I, O, C> List<List<Integer>> computeLevels(List<Node<I, O, C>> nodes) {
+        int[] level = new int[nodes.size()];
+        int max = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node<I, O, C> b = nodes.get(i);
+            for (int j = 0; j < i; j++) {
+                Node<I, O, C> a = nodes.get(j);
+                boolean dependent = !Collections.disjoint(a.writes(), b.reads())
+                    || !Collections.disjoint(a.reads(), b.writes())
+                    || !Collections.disjoint(a.writes(), b.writes());
+                if (dependent) level[i] = Math.max(level[i], level[j] + 1);
+            }
+            max = Math.max(max, level[i]);
+        }
+        List<List<Integer>> levels = new ArrayList<>();
+        for (int l = 0; l <= max; l++) levels.add(new ArrayList<>());
+        for (int i = 0; i < nodes.size(); i++) levels.get(level[i]).add(i);
+        return levels;
+    }
+
+    /** Nombres de los pasos agrupados por nivel (diagnóstico y tests). */
+    public List<List<String>> describe() {
+        return levels.stream().map(l -> l.stream().map(i -> nodes.get(i).name()).toList()).toList();
+    }
+
+    public static final class Builder<I, O, C> {
+        private final String workflow;
+        private final List<Node<I, O, C>> nodes = new ArrayList<>();
+        private Executor executor = Runnable::run;
+        private MeterRegistry meterRegistry;
+
+        private Builder(String workflow) {
+            this.workflow = workflow;
+        }
+
+        public <K extends Enum<K>> Builder<I, O, C> step(String name, Step<I, O, C> step, Set<K> reads, Set<K> writes) {
+            Timer timer = meterRegistry == null ? null : Timer.builder("workflow.step.duration")
+                .description("Duración de cada paso de workflow")
+                .tag("workflow", workflow)
+                .tag("step", name)
+                .register(meterRegistry);
+            nodes.add(new Node<>(name, step, Set.copyOf(reads), Set.copyOf(writes), timer));
+            return this;
+        }
+
+        /** Executor para los pasos concurrentes de un nivel (por defecto, el hilo llamante) */
+        public Builder<I, O, C> executor(Executor executor) {
+            if (executor != null) this.executor = executor;
+            return this;
+        }
+
+        /** Debe fijarse antes de añadir pasos para registrar sus timers */
+        public Builder<I, O, C> meterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = meterRegistry;
+            return this;
+        }
+
+        public StepGraph<I, O, C> build() {
+            return new StepGraph<>(List.copyOf(nodes), executor);
+        }
+    }
+}
@@ -1,10 +1,16 @@
 package es.agonzalez.multiagent.app.core.workflows;
 
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Component;
 
 import es.agonzalez.multiagent.app.config.MetricsService;
@@ -34,7 +40,81 @@ public class WorkflowRunner {
     private RecipeWorkflow recipeWorkflow;
     @Autowired
     private ResponseMapper responseMapper;
+    @Autowired(required = false)
+    @Qualifier("applicationTaskExecutor")
+    private TaskExecutor executor;
+
     public AIResponse applyWorkflow(AIRequest request) 
+    {
+        return applyWorkflow(request, null);
+    }
+
+    /**
+     * Variante streaming: los intents que soportan streaming (chat) entregan cada fragmento
+     * generado a {@code onToken}; el resto se ejecuta de forma normal. En ambos casos se devuelve
+     * la AIResponse final una vez completado el workflow.
+     */
+    public AIResponse applyWorkflowStreaming(AIRequest request, Consumer<String> onToken)
+    {
+        return applyWorkflow(request, onToken);
+    }
+
+    /**
+     * Variante no bloqueante: el chat compone sus pasos sobre {@link ChatWorkflow#runAsync} y no ocupa
+     * hilo mientras responde el LLM; el resto de intents se ejecuta en applicationTaskExecutor (o en el
+     * hilo llamante si no existe). Los
+     * errores se traducen a AIResponse igual que en {@link #applyWorkflow(AIRequest)}.
+     */
+    public CompletableFuture<AIResponse> applyWorkflowAsync(AIRequest request)
+    {
+        String intent = getIntent(request);
+        if(!"chat".equals(intent)) {
+            if (executor == null) return CompletableFuture.completedFuture(applyWorkflow(request, null));
+            Map<String, String> mdc = MDC.getCopyOfContextMap();
+            return CompletableFuture.supplyAsync(() -> {
+                if (mdc != null) MDC.setContextMap(mdc);
+                try {
+                    return applyWorkflow(request, null);
+                } finally {
+                    MDC.clear();
+                }
+            }, executor);
+        }
+        metrics.incMessages();
+        if(request.getUserId() != null) {
+            MDC.put("userId", request.getUserId());
+        }
+        MDC.put("intent", intent);
+        CompletableFuture<ChatResult> output;
+        try {
+            output = chatWorkflow.runAsync(chatInput(request, intent));
+        } catch (RuntimeException e) {
+            output = CompletableFuture.failedFuture(e);
+        } finally {
+            MDC.remove("intent");
+            MDC.remove("userId");
+        }
+        return output.handle((result, error) -> {
+            if (error == null) {
+                if(!"ok".equals(result.status()))
+                    metrics.incErrors();
+                return responseMapper.mapChatResult(result, request, intent, getAgent(intent));
+            }
+            return failed(intent, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+        });
+    }
+
+    private AIResponse failed(String intent, Throwable error) {
+        metrics.incErrors();
+        if (error instanceof LlmException le) {
+            LOGGER.error("LLM operation failed: {}", le.reason(), le);
+            return AIResponse.error(getAgent(intent), le.getMessage(), le.reason());
+        }
+        LOGGER.error("Operation failed", error);
+        return AIResponse.error(getAgent(intent), error.getMessage(), "unknown");
+    }
+
+    private AIResponse applyWorkflow(AIRequest request, Consumer<String> onToken)
     {
         metrics.incMessages();
         String intent = getIntent(request);
@@ -51,15 +131,9 @@ public class WorkflowRunner {
             return AIResponse.error(getAgent(intent), "Request not valid", "invalid_intent");
         }
         try {
-            return run(request, intent);
-        } catch (LlmException le) {
-            metrics.incErrors();
-            LOGGER.error("LLM operation failed: {}", le.reason(), le);
-            return AIResponse.error(getAgent(intent), le.getMessage(), le.reason());
+            return run(request, intent, onToken);
         } catch (Exception e) {
-            metrics.incErrors();
-            LOGGER.error("Operation failed", e);
-            return AIResponse.error(getAgent(intent), e.getMessage(), "unknown");
+            return failed(intent, e);
         } finally {
             // model se añade en GenerateStep y se elimina por filtro al final del request
             MDC.remove("intent");
@@ -67,11 +141,11 @@ public class WorkflowRunner {
         }
     }
 
-    private AIResponse run(AIRequest request, String intent) 
+    private AIResponse run(AIRequest request, String intent, Consumer<String> onToken) 
     {
         switch(intent) {
             case "chat" -> {
-                return getChatOperation(request, intent);
+                return getChatOperation(request, intent, onToken);
             }
             case "recipe_request" -> {
                 return getRecipeOperation(request, intent);
@@ -95,7 +169,16 @@ public class WorkflowRunner {
         return responseMapper.mapRecipeResult(out, request, intent, getAgent(intent));
     }
 
-    private AIResponse getChatOperation(AIRequest request, String intent) {
+    private AIResponse getChatOperation(AIRequest request, String intent, Consumer<String> onToken) {
+        ChatInput input = chatInput(request, intent);
+        ChatResult output = onToken == null ? chatWorkflow.run(input) : chatWorkflow.runStreaming(input, onToken);
+        if(!"ok".equals(output.status()))
+            metrics.incErrors();
+
+        return responseMapper.mapChatResult(output, request, intent, getAgent(intent));
+    }
+
+    private ChatInput chatInput(AIRequest request, String intent) {
         String username = "";
         if(request.getParams() != null &&
          !request.getParams().isEmpty()
@@ -104,12 +187,7 @@ public class WorkflowRunner {
             username = us;
         }
 
-        ChatInput input = new ChatInput(request.getUserId(), username, request.getText(), intent);
-        ChatResult output =  chatWorkflow.run(input);
-        if(!"ok".equals(output.status()))
-            metrics.incErrors();
-
-        return responseMapper.mapChatResult(output, request, intent, getAgent(intent));
+        return new ChatInput(request.getUserId(), username, request.getText(), intent);
     }
 
     private String getIntent(AIRequest r) {
@@ -1,37 +1,57 @@
 package es.agonzalez.multiagent.app.core.workflows.chat;
 
-import java.util.HashMap;
-import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import org.springframework.context.MessageSource;
 
-import es.agonzalez.multiagent.app.core.workflows.Step;
+import es.agonzalez.multiagent.app.core.workflows.StepGraph;
 import es.agonzalez.multiagent.app.core.workflows.Workflow;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatContext;
 import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatInput;
 import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatResult;
 
 public class ChatWorkflow implements Workflow<ChatInput, ChatResult> {
     
-    private final List<Step<ChatInput,ChatResult>> steps;
+    private final StepGraph<ChatInput, ChatResult, ChatContext> steps;
     private final MessageSource messages;
 
-    public ChatWorkflow(List<Step<ChatInput, ChatResult>> steps, MessageSource messages) {
+    public ChatWorkflow(StepGraph<ChatInput, ChatResult, ChatContext> steps, MessageSource messages) {
         this.steps = steps;
         this.messages = messages;
     }
 
     @Override
     public ChatResult run(ChatInput input) {
-        Map<String, Object> context = new HashMap<>();
-        for(var s: steps) {
-            var maybe = s.apply(input, context);
-            if(maybe.isPresent()) {
-                return maybe.get();
-            }
+        return execute(input, new ChatContext());
+    }
+
+    /**
+     * Ejecuta el workflow en modo streaming: GenerateStep entrega cada fragmento generado a
+     * {@code onToken} mientras el resto de pasos (historial, resumen, resultado) se ejecutan
+     * igual que en {@link #run(ChatInput)} una vez completado el stream.
+     */
+    public ChatResult runStreaming(ChatInput input, Consumer<String> onToken) {
+        ChatContext context = new ChatContext();
+        context.setOnToken(onToken);
+        return execute(input, context);
+    }
+
+    /** Como {@link #run(ChatInput)} sin bloquear el hilo llamante mientras responde el LLM */
+    public CompletableFuture<ChatResult> runAsync(ChatInput input) {
+        return steps.runAsync(input, new ChatContext()).thenApply(maybe -> maybe.orElseGet(this::noResult));
+    }
+
+    private ChatResult execute(ChatInput input, ChatContext context) {
+        var maybe = steps.run(input, context);
+        if(maybe.isPresent()) {
+            return maybe.get();
         }
+        return noResult();
+    }
 
+    private ChatResult noResult() {
         var msg = messages.getMessage("workflow.chat.no_result", null, Locale.getDefault());
         return ChatResult.error(msg);
     }
@@ -0,0 +1,69 @@
+package es.agonzalez.multiagent.app.core.workflows.chat.models;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Contexto tipado de una ejecución del workflow de chat: un campo por dato intercambiado entre pasos,
+ * sin hashing de claves ni boxing. Cada campo tiene su {@link Key}, que es lo que los pasos declaran
+ * como lecturas/escrituras en el grafo.
+ *
+ * No necesita sincronización: el grafo no pone en el mismo nivel dos pasos que escriban la misma clave
+ * o lean lo que otro escribe, y el cambio de nivel (join de los pasos) publica las escrituras.
+ */
+public final class ChatContext {
+
+    public enum Key {
+        HISTORY, SUMMARY, ON_TOKEN, ANSWER, MODEL, LATENCY_MS, TURN_COUNT_BEFORE, SUMMARY_STATE, RESULT,
+        /** Efecto lateral: turnos añadidos al historial persistido */
+        MEMORY
+    }
+
+    private List<String> history = List.of();
+    private int historyLines;
+    private String summary = "";
+    private Consumer<String> onToken;
+    private String answer = "";
+    private String model;
+    private long latencyMs;
+    private int turnCountBefore;
+    private boolean summaryScheduled;
+    private boolean summaryUpdated;
+    private ChatResult result;
+
+    public List<String> getHistory() { return history; }
+    public void setHistory(List<String> history) { this.history = history == null ? List.of() : history; }
+
+    /** Líneas del historial persistido (clave HISTORY); {@link #getHistory()} es sólo la ventana reciente */
+    public int getHistoryLines() { return historyLines; }
+    public void setHistoryLines(int historyLines) { this.historyLines = historyLines; }
+
+    public String getSummary() { return summary; }
+    public void setSummary(String summary) { this.summary = summary == null ? "" : summary; }
+
+    /** Destino de los fragmentos en modo streaming; null si la petición no es streaming */
+    public Consumer<String> getOnToken() { return onToken; }
+    public void setOnToken(Consumer<String> onToken) { this.onToken = onToken; }
+
+    public String getAnswer() { return answer; }
+    public void setAnswer(String answer) { this.answer = answer == null ? "" : answer; }
+
+    public String getModel() { return model; }
+    public void setModel(String model) { this.model = model; }
+
+    public long getLatencyMs() { return latencyMs; }
+    public void setLatencyMs(long latencyMs) { this.latencyMs = latencyMs; }
+
+    /** Líneas del historial persistido antes de añadir los turnos de esta petición */
+    public int getTurnCountBefore() { return turnCountBefore; }
+    public void setTurnCountBefore(int turnCountBefore) { this.turnCountBefore = turnCountBefore; }
+
+    public boolean isSummaryScheduled() { return summaryScheduled; }
+    public void setSummaryScheduled(boolean summaryScheduled) { this.summaryScheduled = summaryScheduled; }
+
+    public boolean isSummaryUpdated() { return summaryUpdated; }
+    public void setSummaryUpdated(boolean summaryUpdated) { this.summaryUpdated = summaryUpdated; }
+
+    public ChatResult getResult() { return result; }
+    public void setResult(ChatResult result) { this.result = result; }
+}
@@ -0,0 +1,34 @@
+package es.agonzalez.multiagent.app.core.workflows.chat.steps;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+
+import es.agonzalez.multiagent.app.core.workflows.Step;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatContext;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatInput;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatResult;
+import es.agonzalez.multiagent.app.memory.MemoryService;
+
+/**
+ * Guarda en el historial el turno del usuario y la respuesta generada por GenerateStep.
+ */
+public class AppendTurnsStep implements Step<ChatInput, ChatResult, ChatContext> {
+    private final MemoryService memory;
+
+    public AppendTurnsStep(MemoryService memory) {
+        this.memory = memory;
+    }
+
+    @Override
+    public Optional<ChatResult> apply(ChatInput input, ChatContext context) {
+        String answer = context.getAnswer();
+        try {
+            memory.appendTurn(input.userId(), "user", input.text());
+            memory.appendTurn(input.userId(), "assistant", answer);
+            return Optional.empty();
+        } catch (IOException e) {
+            return Optional.of(ChatResult.ok("Estoy teniendo problemas para pensar. Prueba otra vez en unos segundos.", Map.of("degraded", true, "error", e.getClass().getSimpleName())));
+        }
+    }
+}
@@ -1,114 +1,251 @@
 package es.agonzalez.multiagent.app.core.workflows.chat.steps;
 
-import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import es.agonzalez.multiagent.app.core.LlmClient;
 import es.agonzalez.multiagent.app.config.MetricsService;
 import es.agonzalez.multiagent.app.core.ModelRegistry;
+import es.agonzalez.multiagent.app.core.llm.PromptPrefixStore;
+import es.agonzalez.multiagent.app.core.llm.SemanticCache;
 import es.agonzalez.multiagent.app.core.models.LlmResponse;
 import es.agonzalez.multiagent.app.core.llm.exceptions.LlmException;
 import es.agonzalez.multiagent.app.core.models.Message;
 import es.agonzalez.multiagent.app.core.selectors.ModelSelectors;
 import es.agonzalez.multiagent.app.core.workflows.Step;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatContext;
 import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatInput;
 import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatResult;
-import es.agonzalez.multiagent.app.memory.MemoryService;
 import org.slf4j.MDC;
 
-public class GenerateStep implements Step<ChatInput, ChatResult> {
-    
+public class GenerateStep implements Step<ChatInput, ChatResult, ChatContext> {
+    /** Turnos de historial que se envían al LLM en cada petición */
+    public static final int HISTORY_WINDOW = 16;
+    /**
+     * Líneas que puede crecer la ventana anclada (ver {@link PromptPrefixStore}) antes de volver a
+     * {@link #HISTORY_WINDOW}: 8 turnos seguidos reutilizan el prefijo y el noveno lo reevalúa.
+     */
+    public static final int HISTORY_SLACK = 16;
+    /** System prompt por defecto (constante: LlmClient lo envía ya codificado) */
+    public static final String SYSTEM_PROMPT = """
+            Eres un bot amable, breve (máx 320 chars) y sin inventar.
+            Si la pregunta no es clara pide SOLO una aclaración.
+            No repitas el enunciado del usuario
+            """;
+
     private final LlmClient client;
     private final ModelRegistry models;
-    private final MemoryService memory;
     private final ModelSelectors selector;
     private final MetricsService metrics;
-    public GenerateStep(LlmClient client, MemoryService memory, ModelRegistry models, ModelSelectors selector, MetricsService metrics) {
+    private final PromptPrefixStore prefixes;
+    private final SemanticCache semantic;
+    private final Executor blockingExecutor;
+    public GenerateStep(LlmClient client, ModelRegistry models, ModelSelectors selector, MetricsService metrics) {
+        this(client, models, selector, metrics, null);
+    }
+
+    /** Con {@code prefixes} != null la ventana de historial se ancla por usuario para reutilizar el prefijo */
+    public GenerateStep(LlmClient client, ModelRegistry models, ModelSelectors selector, MetricsService metrics,
+                        PromptPrefixStore prefixes) {
+        this(client, models, selector, metrics, prefixes, null);
+    }
+
+    /** Con {@code semantic} != null una pregunta parecida a otra ya respondida puede servirse sin LLM */
+    public GenerateStep(LlmClient client, ModelRegistry models, ModelSelectors selector, MetricsService metrics,
+                        PromptPrefixStore prefixes, SemanticCache semantic) {
+        this(client, models, selector, metrics, prefixes, semantic, null);
+    }
+
+    /**
+     * {@code blockingExecutor} ejecuta la ruta bloqueante de {@link #applyAsync} (caché semántica o
+     * streaming); con {@code null} se ejecuta en el hilo que llama.
+     */
+    public GenerateStep(LlmClient client, ModelRegistry models, ModelSelectors selector, MetricsService metrics,
+                        PromptPrefixStore prefixes, SemanticCache semantic, Executor blockingExecutor) {
+        this.blockingExecutor = blockingExecutor;
         this.client = client;
-        this.memory = memory;
         this.models = models;
         this.selector = selector;
         this.metrics = metrics;
+        this.prefixes = prefixes;
+        this.semantic = semantic;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
-    public Optional<ChatResult> apply(ChatInput input, Map<String, Object> context) {
+    public Optional<ChatResult> apply(ChatInput input, ChatContext context) {
+        Request req = prepare(input, context);
+        LlmResponse resp;
         try {
-            var history = (List<String>)context.getOrDefault("history", List.of());
-            var summary = (String) context.getOrDefault("summary", "");
-
-            String sysPrompt = """
-                    Eres un bot amable, breve (máx 320 chars) y sin inventar.
-                    Si la pregunta no es clara pide SOLO una aclaración.
-                    No repitas el enunciado del usuario
-                    """;
-            if(input.username() != null && !input.username().isBlank()) {
-                sysPrompt = """
-                        Eres un Bot que se llama Botty, encargado de tener una conversacion lo mas natural posible con la siguiente persona %s, adaptate a su forma de hablar y en el idioma en que te hable. Frases cortas
-                        no mas de 300 320 caracteres. Si no le entiendes algo preguntale, 
-                        """.formatted(input.username());
-            }
+            Consumer<String> sink = context.getOnToken();
+            boolean[] called = {false};
+            Supplier<LlmResponse> call = () -> {
+                called[0] = true;
+                return sink != null
+                    ? client.chatStream(req.model(), req.messages(), models.defaults(), false, sink)
+                    : client.chat(req.model(), req.messages(), models.defaults(), false, models.callOptions("Agent.Chat"));
+            };
+            // La respuesta se construye con el historial, el resumen y el nombre de este usuario: no se comparte
+            resp = semantic == null ? call.get()
+                : semantic.getOrLoad("Agent.Chat", req.model(), input.userId(), userText(input.text()), call);
+            // Respuesta de la caché semántica: ni tokens que contar ni prompt evaluado por Ollama
+            if (!called[0] && sink != null) sink.accept(resp.content());
+            finish(input, context, req, resp, called[0]);
+        } catch (RuntimeException rte) {
+            recordError(input, req, rte);
+            throw rte;
+        }
+        return Optional.empty();
+    }
 
-            var messages = new ArrayList<Message>();
-            
-                     
-            messages.add(Message.system(sysPrompt));
-            if(!summary.isBlank()) {
-                messages.add(Message.system("Resumen previo del usuario:\n" + summary));
-            }
-            for(var line : last(history, 16)) {
-                var parts = line.split("\t", 3);
-                if(parts.length < 3) continue;
-                var role = parts[1];
-                var text = parts[2];
-                messages.add(new Message(role.equals("assistant") ? "assistant" : "user", text));
-            }
+    /**
+     * Igual que {@link #apply} pero sin bloquear el hilo mientras responde el LLM
+     * ({@link LlmClient#chatAsync}). El streaming y la caché semántica (que pide el embedding de forma
+     * síncrona) siguen por {@link #apply}, en {@code blockingExecutor}: si los niveles anteriores del
+     * grafo terminaron al momento, el hilo que llama es el de la petición de Tomcat.
+     */
+    @Override
+    public CompletionStage<Optional<ChatResult>> applyAsync(ChatInput input, ChatContext context) {
+        if (context.getOnToken() != null || (semantic != null && semantic.isEnabled("Agent.Chat"))) {
+            if (blockingExecutor == null) return CompletableFuture.completedFuture(apply(input, context));
+            Map<String, String> mdc = MDC.getCopyOfContextMap();
+            return CompletableFuture.supplyAsync(() -> {
+                if (mdc != null) MDC.setContextMap(mdc);
+                try {
+                    return apply(input, context);
+                } finally {
+                    MDC.clear();
+                }
+            }, blockingExecutor);
+        }
+        Request req = prepare(input, context);
+        return client.chatAsync(req.model(), req.messages(), models.defaults(), false)
+            .handle((resp, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (cause instanceof RuntimeException rte) recordError(input, req, rte);
+                    throw error instanceof CompletionException ce ? ce : new CompletionException(cause);
+                }
+                finish(input, context, req, resp, true);
+                return Optional.<ChatResult>empty();
+            });
+    }
 
-            String inp = input.text().startsWith("!ai") ? input.text().replace("!ai", "") : input.text();
-            messages.add(Message.user(inp));
-
-            String model = selector.pick("Agent.Chat", input.userId());
-            MDC.put("model", model);
-            Instant start = Instant.now();
-            var props = models.defaults();
-            LlmResponse resp;
-            try {
-                resp = client.chat(model, messages, props, false);
-                long latency = Duration.between(start, Instant.now()).toMillis();
-                metrics.recordLlmSuccess(model, input.intent(), resp.promptToken(), resp.completionToken(), latency);
-            } catch (LlmException lex) {
-                long latency = Duration.between(start, Instant.now()).toMillis();
-                metrics.recordLlmErrorWithReason(model, input.intent(), lex.reason(), latency);
-                throw lex;
-            } catch (RuntimeException rte) {
-                long latency = Duration.between(start, Instant.now()).toMillis();
-                metrics.recordLlmErrorWithReason(model, input.intent(), "runtime", latency);
-                throw rte;
-            }
+    /** Modelo, ventana de historial y mensajes de una petición, común a {@link #apply} y {@link #applyAsync} */
+    private record Request(String model, List<Message> messages, int systemHash, PromptPrefixStore.Anchor anchor,
+                           List<String> window, List<String> history, Instant start) {}
 
-            String answer = cap(resp.content(), 320);
+    private Request prepare(ChatInput input, ChatContext context) {
+        var history = context.getHistory();
+        var summary = context.getSummary();
 
-            memory.appendTurn(input.userId(), "user", input.text());
-            memory.appendTurn(input.userId(), "assistant", answer);
+        String sysPrompt = SYSTEM_PROMPT;
+        if(input.username() != null && !input.username().isBlank()) {
+            sysPrompt = """
+                    Eres un Bot que se llama Botty, encargado de tener una conversacion lo mas natural posible con la siguiente persona %s, adaptate a su forma de hablar y en el idioma en que te hable. Frases cortas
+                    no mas de 300 320 caracteres. Si no le entiendes algo preguntale, 
+                    """.formatted(input.username());
+        }
 
-            context.put("latencyMs", context.getOrDefault("latencyMs", -1));
-            context.put("model", model);
-            context.put("answer", answer);
-            context.put("turnCountBefore", history.size());
-            
-            return Optional.empty();
+        String model = selector.pick("Agent.Chat", input.userId());
+        int systemHash = Objects.hash(sysPrompt, summary);
+        PromptPrefixStore.Anchor anchor = prefixes == null ? null : prefixes.get(input.userId());
+        List<String> window = anchored(anchor, model, systemHash, history);
 
+        var messages = new ArrayList<Message>();
+        messages.add(Message.system(sysPrompt));
+        if(!summary.isBlank()) {
+            messages.add(Message.system("Resumen previo del usuario:\n" + summary));
+        }
+        for(var line : window != null ? window : last(history, HISTORY_WINDOW)) {
+            var parts = line.split("\t", 3);
+            if(parts.length < 3) continue;
+            var role = parts[1];
+            var text = parts[2];
+            // Mismo texto que se envió en su turno, para que el prefijo coincida byte a byte
+            messages.add(role.equals("assistant") ? Message.assistant(text) : Message.user(userText(text)));
+        }
+
+        messages.add(Message.user(userText(input.text())));
 
-    } catch (IOException e) {
-            
-            return Optional.of(ChatResult.ok("Estoy teniendo problemas para pensar. Prueba otra vez en unos segundos.", Map.of("degraded", true, "error", e.getClass().getSimpleName())));
+        MDC.put("model", model);
+        return new Request(model, messages, systemHash, anchor, window, history, Instant.now());
+    }
+
+    /** {@code called} es false si la respuesta salió de la caché semántica */
+    private void finish(ChatInput input, ChatContext context, Request req, LlmResponse resp, boolean called) {
+        long latency = Duration.between(req.start(), Instant.now()).toMillis();
+        if (called) {
+            metrics.recordLlmSuccess(req.model(), input.intent(), resp.promptToken(), resp.completionToken(), latency);
+        }
+        if (prefixes != null && called) {
+            rememberPrefix(input, req.model(), req.systemHash(),
+                req.window() != null ? req.window() : last(req.history(), HISTORY_WINDOW),
+                req.window() != null ? req.anchor() : null, resp.promptToken());
         }
+
+        String answer = cap(resp.content(), 320);
+
+        // Los turnos se guardan en AppendTurnsStep, en paralelo con SaveResultStep
+        context.setLatencyMs(latency);
+        context.setModel(req.model());
+        context.setAnswer(answer);
+        // Historial completo: la ventana cargada nunca pasa de HISTORY_WINDOW + HISTORY_SLACK líneas
+        context.setTurnCountBefore(Math.max(context.getHistoryLines(), req.history().size()));
+    }
+
+    private void recordError(ChatInput input, Request req, RuntimeException error) {
+        long latency = Duration.between(req.start(), Instant.now()).toMillis();
+        String reason = error instanceof LlmException lex ? lex.reason() : "runtime";
+        metrics.recordLlmErrorWithReason(req.model(), input.intent(), reason, latency);
+    }
+
+    /**
+     * Ventana anclada en la primera línea de la petición anterior si el modelo y los mensajes de sistema
+     * no han cambiado, la línea sigue en el historial y la ventana no pasa de
+     * {@link #HISTORY_WINDOW} + {@link #HISTORY_SLACK}; {@code null} para usar la ventana normal.
+     */
+    private static List<String> anchored(PromptPrefixStore.Anchor anchor, String model, int systemHash, List<String> history) {
+        if (anchor == null || !anchor.model().equals(model) || anchor.systemHash() != systemHash) return null;
+        int from = anchor.firstLine() == null ? 0 : history.lastIndexOf(anchor.firstLine());
+        if (from < 0 || history.size() - from > HISTORY_WINDOW + HISTORY_SLACK) return null;
+        return history.subList(from, history.size());
+    }
+
+    /**
+     * Guarda el ancla de esta petición y registra el ahorro estimado: si la ventana seguía anclada y
+     * Ollama evaluó menos tokens de los que cubría el prompt anterior, ese prompt salió de su caché.
+     */
+    private void rememberPrefix(ChatInput input, String model, int systemHash, List<String> window,
+                                PromptPrefixStore.Anchor previous, int evaluated) {
+        int total = evaluated;
+        int saved = 0;
+        String result = "reset";
+        if (previous != null) {
+            result = "miss";
+            if (evaluated >= 0 && previous.promptTokens() > evaluated) {
+                result = "hit";
+                saved = previous.promptTokens();
+                total = saved + evaluated;
+            }
+        }
+        metrics.recordPromptReuse(model, input.intent(), result, saved);
+        String firstLine = window.isEmpty() ? null : window.get(0);
+        prefixes.put(input.userId(), new PromptPrefixStore.Anchor(model, systemHash, firstLine, total));
+    }
+
+    private static String userText(String text) {
+        return text.startsWith("!ai") ? text.replace("!ai", "") : text;
     }
 
     private static List<String> last(List<String> all, int k) {
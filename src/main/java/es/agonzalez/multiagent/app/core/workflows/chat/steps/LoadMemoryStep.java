@@ -2,31 +2,41 @@ package es.agonzalez.multiagent.app.core.workflows.chat.steps;
 
 import java.io.IOException;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Optional;
 
 import org.springframework.context.MessageSource;
 
 import es.agonzalez.multiagent.app.core.workflows.Step;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatContext;
 import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatInput;
 import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatResult;
 import es.agonzalez.multiagent.app.memory.MemoryService;
 
-public class LoadMemoryStep implements Step<ChatInput, ChatResult> {
+public class LoadMemoryStep implements Step<ChatInput, ChatResult, ChatContext> {
 
     public final MemoryService memory;
     private final MessageSource messages;
+    private final int window;
     public LoadMemoryStep(MemoryService memory, MessageSource messages) { 
+        this(memory, messages, GenerateStep.HISTORY_WINDOW);
+    }
+
+    /** {@code window}: líneas recientes que se cargan (la ventana de GenerateStep más su holgura si la hay) */
+    public LoadMemoryStep(MemoryService memory, MessageSource messages, int window) {
         this.memory = memory; 
         this.messages = messages;
+        this.window = window;
     }
 
     @Override
-    public Optional<ChatResult> apply(ChatInput input, Map<String, Object> context) {
+    public Optional<ChatResult> apply(ChatInput input, ChatContext context) {
         try
         {
-            var history = memory.loadHistory(input.userId());
-            context.put("history", history);
+            // Sólo la ventana que usa GenerateStep: lectura inversa en vez del historial completo
+            var history = memory.loadRecent(input.userId(), window);
+            context.setHistory(history);
+            // El disparo del resumen cuenta el historial completo, no la ventana
+            context.setHistoryLines(memory.countLines(input.userId()));
             return Optional.empty();
         }catch(IOException e) {
             var msg = messages.getMessage("workflow.memory.load_error", new Object[]{e.getMessage()}, Locale.getDefault());
@@ -1,15 +1,15 @@
 package es.agonzalez.multiagent.app.core.workflows.chat.steps;
 
 import java.io.IOException;
-import java.util.Map;
 import java.util.Optional;
 
 import es.agonzalez.multiagent.app.core.workflows.Step;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatContext;
 import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatInput;
 import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatResult;
 import es.agonzalez.multiagent.app.memory.SummaryStore;
 
-public class LoadSummaryStep implements Step<ChatInput, ChatResult> {
+public class LoadSummaryStep implements Step<ChatInput, ChatResult, ChatContext> {
     private final SummaryStore store;
 
     public LoadSummaryStep(SummaryStore store) {
@@ -18,13 +18,13 @@ public class LoadSummaryStep implements Step<ChatInput, ChatResult> {
 
 
     @Override
-    public Optional<ChatResult> apply(ChatInput input, Map<String, Object> context) {
+    public Optional<ChatResult> apply(ChatInput input, ChatContext context) {
         try{    
             String summary = store.load(input.userId());
-            context.put("summary", summary == null ? "" : summary);
+            context.setSummary(summary);
             return Optional.empty();
         }catch(IOException e) {
-            context.put("summary", "");
+            context.setSummary("");
             return Optional.empty();
         }
     }
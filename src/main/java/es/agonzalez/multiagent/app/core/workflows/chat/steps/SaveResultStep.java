@@ -4,22 +4,19 @@ import java.util.Map;
 import java.util.Optional;
 
 import es.agonzalez.multiagent.app.core.workflows.Step;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatContext;
 import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatInput;
 import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatResult;
 
-public class SaveResultStep implements Step<ChatInput, ChatResult> {
+public class SaveResultStep implements Step<ChatInput, ChatResult, ChatContext> {
     
 
     @Override
-    public Optional<ChatResult> apply(ChatInput input, Map<String, Object> context) {
-        String answer = (String) context.getOrDefault("answer", "");
-        String model = (String)context.get("model");
-        long  latency = (long) context.get("latencyMs");
-
-        ChatResult result = ChatResult.ok(answer, Map.of(
-            "model", model, "latencyMs", latency
+    public Optional<ChatResult> apply(ChatInput input, ChatContext context) {
+        ChatResult result = ChatResult.ok(context.getAnswer(), Map.of(
+            "model", context.getModel(), "latencyMs", context.getLatencyMs()
         ));
-        context.put("result", result);
+        context.setResult(result);
         
         return Optional.of(result);
     }
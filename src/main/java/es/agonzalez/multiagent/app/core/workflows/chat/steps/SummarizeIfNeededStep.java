@@ -1,46 +1,45 @@
 package es.agonzalez.multiagent.app.core.workflows.chat.steps;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 
 import es.agonzalez.multiagent.app.core.workflows.Step;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatContext;
 import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatInput;
 import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatResult;
+import es.agonzalez.multiagent.app.memory.SummarizationWorker;
 import es.agonzalez.multiagent.app.memory.Summarizer;
-import es.agonzalez.multiagent.app.memory.SummaryStore;
 
-public class SummarizeIfNeededStep implements Step<ChatInput, ChatResult> {
+public class SummarizeIfNeededStep implements Step<ChatInput, ChatResult, ChatContext> {
     
     private final Summarizer summarizer;
-    private  final SummaryStore store;
+    private final SummarizationWorker worker;
+    private final boolean async;
 
-    public SummarizeIfNeededStep(SummaryStore store, Summarizer summarizer) {
-        this.store = store;
+    public SummarizeIfNeededStep(Summarizer summarizer, SummarizationWorker worker, boolean async) {
         this.summarizer = summarizer;
+        this.worker = worker;
+        this.async = async;
     }
 
 
-    @SuppressWarnings("unchecked")
     @Override
-    public Optional<ChatResult> apply(ChatInput input, Map<String, Object> context) {
+    public Optional<ChatResult> apply(ChatInput input, ChatContext context) {
         try {
-            
-            int turnsBefore = (int)context.getOrDefault("turnsCountBefore", 0);
-            int totalTurns = turnsBefore + 2;
+            int totalTurns = context.getTurnCountBefore() + 2;
 
             if(summarizer.shouldSummarize(totalTurns)) {
-                var history = (List<String>)context.getOrDefault("history", List.of());
-                var summary = summarizer.summarize(history);
-                store.save(input.userId(), summary);
-
-                context.put("summaryUpdated", true);
-
+                if (async) {
+                    // El resumen se guarda cuando termina el trabajo; esta petición no lo espera
+                    context.setSummaryScheduled(worker.submit(input.userId()));
+                } else {
+                    worker.summarizeNow(input.userId());
+                    context.setSummaryUpdated(true);
+                }
             }
 
         } catch (IOException e) {
-            context.put("summaryUpdated", false);
+            context.setSummaryUpdated(false);
         }
 
         return Optional.empty();
@@ -0,0 +1,28 @@
+package es.agonzalez.multiagent.app.core.workflows.recipe.models;
+
+/**
+ * Contexto tipado de una ejecución del workflow de recetas (ver ChatContext para el modelo de claves
+ * y de visibilidad entre pasos).
+ */
+public final class RecipeContext {
+
+    public enum Key { CONTENT_TYPE, ANSWER, MODEL, LATENCY_MS }
+
+    private String contentType;
+    private String answer;
+    private String model;
+    private long latencyMs;
+
+    /** Formato esperado de la respuesta (JSON en modo generativo, texto plano si no) */
+    public String getContentType() { return contentType; }
+    public void setContentType(String contentType) { this.contentType = contentType; }
+
+    public String getAnswer() { return answer; }
+    public void setAnswer(String answer) { this.answer = answer; }
+
+    public String getModel() { return model; }
+    public void setModel(String model) { this.model = model; }
+
+    public long getLatencyMs() { return latencyMs; }
+    public void setLatencyMs(long latencyMs) { this.latencyMs = latencyMs; }
+}
@@ -7,33 +7,53 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.StringJoiner;
+import java.util.function.Supplier;
 
 import org.springframework.http.MediaType;
-import org.springframework.stereotype.Component;
 
 import es.agonzalez.multiagent.app.core.LlmClient;
 import es.agonzalez.multiagent.app.core.ModelRegistry;
+import es.agonzalez.multiagent.app.core.llm.LlmResponseCache;
+import es.agonzalez.multiagent.app.core.llm.SemanticCache;
 import es.agonzalez.multiagent.app.core.models.LlmResponse;
 import es.agonzalez.multiagent.app.core.models.Message;
 import es.agonzalez.multiagent.app.core.selectors.ModelSelectors;
 import es.agonzalez.multiagent.app.core.workflows.Step;
+import es.agonzalez.multiagent.app.core.workflows.recipe.models.RecipeContext;
 import es.agonzalez.multiagent.app.core.workflows.recipe.models.RecipeRequest;
 import es.agonzalez.multiagent.app.core.workflows.recipe.models.RecipeResponse;
 
-@Component
-public class GenerateRecipeStep implements  Step<RecipeRequest, RecipeResponse> 
+public class GenerateRecipeStep implements  Step<RecipeRequest, RecipeResponse, RecipeContext> 
 {
+    /** System prompt de recetas en texto libre (constante: LlmClient lo envía ya codificado) */
+    public static final String TEXT_SYSTEM_PROMPT = """
+        Eres un asistente culinario experto. Genera UNA SOLA receta con la informacion que te diga el usuario.
+        Si con la información que recibes no sabes dí simplemente "Vaya, parece que me pides algo fuera de mis posibilidades". 
+            No inventes de nada, cualquier contradiccion o dato que no entiendas decir la frase anterior: "Vaya, parece que me pides algo fuera de mis posibilidades"
+            Responde en el idioma que viene la petición y no excedas los 320 caracteres.
+            """;
+
     private final ModelSelectors selectors;
     private final ModelRegistry models;
     private final LlmClient client;
-    public GenerateRecipeStep(LlmClient client, ModelRegistry models, ModelSelectors selectors) {
+    private final LlmResponseCache cache;
+    private final SemanticCache semantic;
+    public GenerateRecipeStep(LlmClient client, ModelRegistry models, ModelSelectors selectors, LlmResponseCache cache) {
+        this(client, models, selectors, cache, null);
+    }
+
+    /** {@code semantic} sólo se consulta en modo texto: en modo JSON los ingredientes ya forman una clave exacta */
+    public GenerateRecipeStep(LlmClient client, ModelRegistry models, ModelSelectors selectors, LlmResponseCache cache,
+                              SemanticCache semantic) {
         this.selectors = selectors;
         this.client = client;
         this.models  = models;
+        this.cache = cache;
+        this.semantic = semantic;
     }
     
     @Override
-    public Optional<RecipeResponse> apply(RecipeRequest input, Map<String, Object> context) 
+    public Optional<RecipeResponse> apply(RecipeRequest input, RecipeContext context) 
     {
         var messages = new ArrayList<Message>();
         var props = models.defaults();
@@ -43,7 +63,7 @@ public class GenerateRecipeStep implements  Step<RecipeRequest, RecipeResponse>
         if(input.data() != null && !input.data().isEmpty() && input.data().containsKey("ingredients")) 
         {
             generative = true;
-            context.put(org.springframework.http.HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON.toString());
+            context.setContentType(MediaType.APPLICATION_JSON.toString());
             String ingredients = readList(input.data(),"ingredients");
             String diet = readDiet(input.data());
             String allergns = readList(input.data(), "allergens");
@@ -79,13 +99,8 @@ public class GenerateRecipeStep implements  Step<RecipeRequest, RecipeResponse>
 
         if(input.text() != null && !input.text().isBlank() && !generative) 
         {
-            context.put(org.springframework.http.HttpHeaders.CONTENT_TYPE, MediaType.TEXT_PLAIN.toString());
-            messages.add(Message.system("""
-                Eres un asistente culinario experto. Genera UNA SOLA receta con la informacion que te diga el usuario.
-                Si con la información que recibes no sabes dí simplemente "Vaya, parece que me pides algo fuera de mis posibilidades". 
-                    No inventes de nada, cualquier contradiccion o dato que no entiendas decir la frase anterior: "Vaya, parece que me pides algo fuera de mis posibilidades"
-                    Responde en el idioma que viene la petición y no excedas los 320 caracteres.
-                    """));
+            context.setContentType(MediaType.TEXT_PLAIN.toString());
+            messages.add(Message.system(TEXT_SYSTEM_PROMPT));
                     
                 String inp = input.text().startsWith("!recipe") ? input.text().replace("!recipe", "") : input.text();
                 messages.add(Message.user(inp));
@@ -99,13 +114,24 @@ public class GenerateRecipeStep implements  Step<RecipeRequest, RecipeResponse>
         String model = selectors.pick("Agent.Recipe", null);
         Instant start = Instant.now();
 
-        LlmResponse resp = client.chat(model, messages, props, generative);
+        final boolean gen = generative;
+        // params.cache=false fuerza una generación nueva (p. ej. "otra receta distinta")
+        boolean bypass = input.data() != null && "false".equalsIgnoreCase(String.valueOf(input.data().get("cache")));
+        var options = models.callOptions("Agent.Recipe");
+        // Caché exacta -> caché semántica (texto libre) -> LLM
+        Supplier<LlmResponse> call = () -> client.chat(model, messages, props, gen, options);
+        Supplier<LlmResponse> loader = semantic == null || gen || bypass
+            ? call
+            : () -> semantic.getOrLoad("Agent.Recipe", model, messages.get(messages.size() - 1).content(), call);
+        LlmResponse resp = cache == null
+            ? loader.get()
+            : cache.getOrLoad(model, messages, props, generative, bypass, loader);
         long latency = Duration.between(start, Instant.now()).toMillis();
         String answer = resp.content();
 
-        context.put("latencyMs", latency);
-        context.put("model", model);
-        context.put("answer", answer);
+        context.setLatencyMs(latency);
+        context.setModel(model);
+        context.setAnswer(answer);
 
         return Optional.empty();
 
@@ -114,9 +140,14 @@ public class GenerateRecipeStep implements  Step<RecipeRequest, RecipeResponse>
 
     private String readList(Map<String, Object> map, String property) {
         if(map.containsKey(property) && map.get(property) instanceof List<?> list) {
+            // Orden canónico: la misma combinación produce el mismo prompt (y la misma clave de caché)
             List<String> ing = list.stream()
                 .filter(String.class::isInstance)
                 .map(String.class::cast)
+                .map(String::strip)
+                .filter(s -> !s.isEmpty())
+                .distinct()
+                .sorted(String.CASE_INSENSITIVE_ORDER)
                 .toList();
 
             StringJoiner sj = new StringJoiner(", ");
@@ -3,7 +3,6 @@ package es.agonzalez.multiagent.app.core.workflows.recipe.steps;
 import java.util.Map;
 import java.util.Optional;
 
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 
@@ -11,21 +10,22 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import es.agonzalez.multiagent.app.core.workflows.Step;
+import es.agonzalez.multiagent.app.core.workflows.recipe.models.RecipeContext;
 import es.agonzalez.multiagent.app.core.workflows.recipe.models.RecipeRequest;
 import es.agonzalez.multiagent.app.core.workflows.recipe.models.RecipeResponse;
 
 @Component
-public class ReadRecipeStep implements Step<RecipeRequest, RecipeResponse> {
+public class ReadRecipeStep implements Step<RecipeRequest, RecipeResponse, RecipeContext> {
     private final ObjectMapper om;
     public ReadRecipeStep(ObjectMapper om) { this.om = om; }
 
     @Override
-    public Optional<RecipeResponse> apply(RecipeRequest input, Map<String, Object> context) {
-        if(context != null && context.containsKey(HttpHeaders.CONTENT_TYPE) && context.get(HttpHeaders.CONTENT_TYPE) instanceof String type) {
-            
-            String answer = (String)context.get("answer");
-            String model = (String)context.get("model");
-            long  latency = (long) context.get("latencyMs");
+    public Optional<RecipeResponse> apply(RecipeRequest input, RecipeContext context) {
+        if(context != null && context.getContentType() != null) {
+            String type = context.getContentType();
+            String answer = context.getAnswer();
+            String model = context.getModel();
+            long  latency = context.getLatencyMs();
 
             if(MediaType.APPLICATION_JSON.toString().equals(type)) 
             {   
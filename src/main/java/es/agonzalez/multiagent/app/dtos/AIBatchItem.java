@@ -0,0 +1,14 @@
+package es.agonzalez.multiagent.app.dtos;
+
+/**
+ * Línea NDJSON de /ai/batch: posición del elemento en el lote, su estado y su respuesta.
+ */
+public record AIBatchItem(
+    int index,
+    String status,
+    AIResponse response
+) {
+    public static AIBatchItem of(int index, AIResponse response) {
+        return new AIBatchItem(index, response.status(), response);
+    }
+}
@@ -8,9 +8,13 @@ import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import es.agonzalez.multiagent.app.memory.impl.SegmentedLogMemoryStore;
+
 @Component
 public class MemoryCleaner {
 
@@ -21,6 +25,10 @@ public class MemoryCleaner {
 
     private final long ttlMs = TimeUnit.DAYS.toMillis(3);
 
+    /** Con multiagent.segment-log el historial no está en historyDir: se expira dentro del log */
+    @Autowired
+    private ObjectProvider<SegmentedLogMemoryStore> segmented;
+
     @Scheduled(fixedDelay = 6 * 60 * 60 * 1000) // cada 6h
     public void clean() {
         long start = System.currentTimeMillis();
@@ -28,7 +36,10 @@ public class MemoryCleaner {
         try {
             deleted[0] += cleanDir(historyDir);
             deleted[0] += cleanDir(summaryDir);
-            log.debug("MemoryCleaner ejecutado. Archivos eliminados: {} en {} ms", deleted[0], System.currentTimeMillis()-start);
+            SegmentedLogMemoryStore segmentLog = segmented == null ? null : segmented.getIfAvailable();
+            int expired = segmentLog == null ? 0 : segmentLog.expireIdle(start - ttlMs);
+            log.debug("MemoryCleaner ejecutado. Archivos eliminados: {}, usuarios expirados del log segmentado: {} en {} ms",
+                deleted[0], expired, System.currentTimeMillis()-start);
         } catch (IOException e) {
             log.warn("Error limpiando memorias", e);
         }
@@ -22,6 +22,24 @@ public class MemoryService {
             throw e;
         }
     }
+    /** Sólo las últimas {@code n} líneas: evita cargar el historial completo cuando basta una ventana. */
+    public List<String> loadRecent(String userId, int n) throws IOException {
+        try {
+            return store.loadLast(userId, n);
+        } catch (IOException e) {
+            log.warn("No se pudo cargar historial reciente userId={} n={}", userId, n, e);
+            throw e;
+        }
+    }
+    /** Líneas del historial persistido completo (contador del store, sin leer el fichero) */
+    public int countLines(String userId) throws IOException {
+        try {
+            return store.countLines(userId);
+        } catch (IOException e) {
+            log.warn("No se pudo contar historial userId={}", userId, e);
+            throw e;
+        }
+    }
     public void appendTurn(String userId, String role, String text) throws IOException {
         try {
             store.append(userId, role, text);
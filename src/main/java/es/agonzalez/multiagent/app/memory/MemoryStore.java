@@ -2,11 +2,45 @@ package es.agonzalez.multiagent.app.memory;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public interface  MemoryStore {
     List<String> load(String userId) throws  IOException;
-    void append(String userId, String role, String text) throws  IOException;
-    void rotateIfNeeded(String userId) throws  IOException;
+    /** Últimas {@code n} líneas del historial (o menos si no hay tantas), en orden cronológico. */
+    List<String> loadLast(String userId, int n) throws IOException;
+    /** Añade un turno y devuelve la línea tal y como ha quedado persistida (sin salto final). */
+    String append(String userId, String role, String text) throws  IOException;
+
+    /**
+     * Línea añadida y, si el store confirma la durabilidad aparte (group-commit PER_WRITE), el future
+     * de esa confirmación; {@code null} si no hay nada que esperar.
+     */
+    record Appended(String line, CompletableFuture<Void> durable) {
+        /** Espera a la durabilidad (si la hay) y devuelve la línea, como {@link MemoryStore#append}. */
+        public String await() throws IOException {
+            if (durable == null) return line;
+            try {
+                durable.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrumpido esperando group-commit", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+            return line;
+        }
+    }
+
+    /**
+     * Como {@link #append} pero sin esperar a que la línea sea durable, para que un decorador no retenga
+     * sus locks durante esa espera. Quien lo llame debe hacer {@link Appended#await()} después.
+     */
+    default Appended appendDeferred(String userId, String role, String text) throws IOException {
+        return new Appended(append(userId, role, text), null);
+    }
+    /** Rota el historial si supera el límite; devuelve true si ha rotado. */
+    boolean rotateIfNeeded(String userId) throws  IOException;
     int countLines(String userId) throws IOException;
     void clearUser(String userId) throws IOException;
 }
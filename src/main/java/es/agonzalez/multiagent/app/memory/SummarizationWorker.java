@@ -0,0 +1,173 @@
+package es.agonzalez.multiagent.app.memory;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Pool de resúmenes en segundo plano: saca la segunda llamada al LLM del camino de la petición.
+ *
+ * - Cola acotada ({@code queueCapacity}); si está llena el trabajo se descarta y se contabiliza en
+ *   {@code summary.jobs.rejected}: el siguiente disparo volverá a intentarlo con más historial.
+ * - Deduplicación por usuario: mientras un resumen del usuario espera en cola no se encola otro.
+ * - Al parar la aplicación se dejan terminar los trabajos encolados durante {@code drainTimeoutMs}.
+ */
+@Component
+public class SummarizationWorker {
+    private static final Logger log = LoggerFactory.getLogger(SummarizationWorker.class);
+
+    @Autowired
+    private AppProperties props;
+    @Autowired
+    private Summarizer summarizer;
+    @Autowired
+    private SummaryStore store;
+    @Autowired
+    private MemoryService memory;
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor executor;
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+    private Counter completed;
+    private Counter failed;
+    private Counter rejected;
+    private Counter deduplicated;
+    private Timer waitTimer;
+    private Timer runTimer;
+    private DistributionSummary linesSummarized;
+
+    @PostConstruct
+    public void init() {
+        AppProperties.Summarization cfg = props.getSummarization();
+        AtomicInteger seq = new AtomicInteger();
+        executor = new ThreadPoolExecutor(cfg.getConcurrency(), cfg.getConcurrency(), 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(cfg.getQueueCapacity()), r -> {
+                Thread t = new Thread(r, "summary-worker-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        if (meterRegistry != null) {
+            completed = Counter.builder("summary.jobs.completed").description("Resúmenes generados en segundo plano").register(meterRegistry);
+            failed = Counter.builder("summary.jobs.failed").description("Resúmenes en segundo plano fallidos").register(meterRegistry);
+            rejected = Counter.builder("summary.jobs.rejected").description("Resúmenes descartados por cola llena (backpressure)").register(meterRegistry);
+            deduplicated = Counter.builder("summary.jobs.deduplicated").description("Resúmenes no encolados por haber otro pendiente del mismo usuario").register(meterRegistry);
+            waitTimer = Timer.builder("summary.job.wait").description("Tiempo en cola de un resumen").register(meterRegistry);
+            runTimer = Timer.builder("summary.job.duration").description("Duración de un resumen (carga, LLM y guardado)").register(meterRegistry);
+            linesSummarized = DistributionSummary.builder("summary.incremental.lines")
+                .baseUnit("lines")
+                .description("Turnos nuevos enviados al LLM en cada resumen incremental")
+                .register(meterRegistry);
+            Gauge.builder("summary.queue.size", executor, e -> e.getQueue().size())
+                .description("Resúmenes pendientes en cola")
+                .register(meterRegistry);
+            Gauge.builder("summary.jobs.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Resúmenes en ejecución")
+                .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Encola el resumen de un usuario. Devuelve false si ya había uno pendiente o la cola está llena.
+     */
+    public boolean submit(String userId) {
+        if (!queued.add(userId)) {
+            if (deduplicated != null) deduplicated.increment();
+            return false;
+        }
+        long enqueuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                // Se libera al empezar: un disparo durante la ejecución verá historial más reciente
+                queued.remove(userId);
+                if (waitTimer != null) waitTimer.record(System.nanoTime() - enqueuedAt, TimeUnit.NANOSECONDS);
+                run(userId);
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            queued.remove(userId);
+            if (rejected != null) rejected.increment();
+            log.warn("Cola de resúmenes llena, se descarta userId={}", userId);
+            return false;
+        }
+    }
+
+    /**
+     * Genera y guarda el resumen de forma síncrona (modo no asíncrono y ejecución de los trabajos).
+     * En modo incremental sólo se envían al LLM el resumen previo y los turnos posteriores a su
+     * marca de agua.
+     */
+    public void summarizeNow(String userId) throws IOException {
+        // El contexto sólo trae la ventana de generación; el resumen necesita una cola más amplia
+        var history = memory.loadRecent(userId, Summarizer.MAX_LINES);
+        if (history.isEmpty()) return;
+        String watermark = Summarizer.timestampOf(history.get(history.size() - 1));
+        if (!props.getSummarization().isIncremental()) {
+            store.save(userId, summarizer.summarize(history), watermark);
+            return;
+        }
+        String previous = store.load(userId);
+        String previousMark = store.loadWatermark(userId);
+        if (previous.isBlank() || previousMark == null) {
+            store.save(userId, summarizer.summarize(history), watermark);
+            return;
+        }
+        var fresh = Summarizer.linesAfter(history, previousMark);
+        if (fresh.isEmpty()) return;
+        if (linesSummarized != null) linesSummarized.record(fresh.size());
+        store.save(userId, summarizer.summarizeIncremental(previous, fresh), watermark);
+    }
+
+    private void run(String userId) {
+        long start = System.nanoTime();
+        try {
+            summarizeNow(userId);
+            if (completed != null) completed.increment();
+        } catch (IOException | RuntimeException e) {
+            if (failed != null) failed.increment();
+            log.warn("Fallo generando resumen userId={}: {}", userId, e.toString());
+        } finally {
+            if (runTimer != null) runTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public int pending() {
+        return executor.getQueue().size() + executor.getActiveCount();
+    }
+
+    /** Deja de aceptar trabajos y espera a que terminen los encolados (acotado por drainTimeoutMs). */
+    @PreDestroy
+    public void drain() {
+        executor.shutdown();
+        long timeout = props.getSummarization().getDrainTimeoutMs();
+        try {
+            if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                int dropped = executor.shutdownNow().size();
+                log.warn("Parada con resúmenes pendientes: descartados={} tras {} ms", dropped, timeout);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
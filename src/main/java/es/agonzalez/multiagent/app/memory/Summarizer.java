@@ -1,5 +1,7 @@
 package es.agonzalez.multiagent.app.memory;
 
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -12,6 +14,16 @@ import es.agonzalez.multiagent.app.core.models.Message;
 
 @Component
 public class Summarizer {
+    /** Máximo de líneas de historial que entran en el prompt de resumen */
+    public static final int MAX_LINES = 120;
+    public static final String SUMMARY_PROMPT = """
+            Resume la conversación en 3-5 viñetas, neutras y sin inventar.
+            No incluyas datos sensibles; máximo 400 caracteres.
+            """;
+    public static final String INCREMENTAL_PROMPT = """
+            Actualiza el resumen previo con los turnos nuevos en 3-5 viñetas, neutras y sin inventar.
+            Conserva lo relevante del resumen previo. No incluyas datos sensibles; máximo 400 caracteres.
+            """;
     @Autowired
     private AppProperties appProperties;
     @Autowired
@@ -24,26 +36,80 @@ public class Summarizer {
     }
 
     public String summarize(List<String> historyLines) {
-        var recent = historyLines.size() > 120 ? historyLines.subList(historyLines.size() - 120, historyLines.size()) : historyLines;
-        String conversation = recent.stream().map(l -> {
-            var parts = l.split("\t", 3);
-            if(parts.length < 3) return "";
-            var role = parts[1];
-            var text = parts[2];
-            return (role.equals("assistant")) ? "Asistente: " : "Usuario: " + text;
-        }).filter(s -> !s.isBlank()).reduce("", (a, b) -> a + b + "\n");
-
-        var sys = """
-                Resume la conversación en 3-5 viñetas, neutras y sin inventar.
-                No incluyas datos sensibles; máximo 400 caracteres.
-                """;
+        var recent = historyLines.size() > MAX_LINES ? historyLines.subList(historyLines.size() - MAX_LINES, historyLines.size()) : historyLines;
+        return ask(SUMMARY_PROMPT, renderConversation(recent, 0));
+    }
+
+    /**
+     * Resumen incremental: actualiza el resumen anterior sólo con los turnos nuevos en lugar de
+     * volver a enviar toda la ventana de historial.
+     */
+    public String summarizeIncremental(String previousSummary, List<String> newLines) {
+        var recent = newLines.size() > MAX_LINES ? newLines.subList(newLines.size() - MAX_LINES, newLines.size()) : newLines;
+        String prefix = "Resumen previo:\n";
+        String separator = "\n\nTurnos nuevos:\n";
+        StringBuilder prompt = renderConversation(recent, prefix.length() + previousSummary.length() + separator.length());
+        prompt.insert(0, separator).insert(0, previousSummary).insert(0, prefix);
+        return ask(INCREMENTAL_PROMPT, prompt);
+    }
 
+    private String ask(String sys, CharSequence conversation) {
         var resp = client.chat(registry.modelFor("Agent.Chat"), List.of(
             Message.system(sys),    
-            Message.user(conversation)), registry.defaults(), false);
+            Message.user(conversation.toString())), registry.defaults(), false, registry.callOptions("Agent.Summarizer"));
 
         var s = resp.content() == null ? "" : resp.content().strip();
         return s.length()    <= 500 ? s : s.substring(0,499) + "...";
     }
 
+    /**
+     * Convierte líneas "timestamp\trole\ttexto" en "Usuario: ..." / "Asistente: ..." con un único
+     * StringBuilder dimensionado de antemano ({@code reserve} caracteres extra para quien lo amplíe).
+     */
+    static StringBuilder renderConversation(List<String> lines, int reserve) {
+        int capacity = reserve;
+        for (String l : lines) capacity += l.length() + 12;
+        StringBuilder sb = new StringBuilder(capacity);
+        for (String l : lines) {
+            int t1 = l.indexOf('\t');
+            int t2 = t1 < 0 ? -1 : l.indexOf('\t', t1 + 1);
+            if (t2 < 0 || t2 + 1 >= l.length()) continue;
+            boolean assistant = t2 - t1 - 1 == "assistant".length() && l.startsWith("assistant", t1 + 1);
+            sb.append(assistant ? "Asistente: " : "Usuario: ").append(l, t2 + 1, l.length()).append('\n');
+        }
+        return sb;
+    }
+
+    /** Timestamp (primer campo) de una línea de historial o null si no tiene el formato esperado. */
+    public static String timestampOf(String line) {
+        int tab = line == null ? -1 : line.indexOf('\t');
+        return tab > 0 ? line.substring(0, tab) : null;
+    }
+
+    /**
+     * Líneas posteriores a la marca de agua (timestamp ISO-8601 de la última línea resumida). Los
+     * timestamps de Instant.toString() no tienen ancho fijo, así que se comparan como Instant.
+     */
+    public static List<String> linesAfter(List<String> lines, String watermark) {
+        Instant mark = parseInstant(watermark);
+        if (mark == null) return lines;
+        // El historial está en orden cronológico: basta buscar desde el final el primer turno ya resumido
+        int from = lines.size();
+        while (from > 0) {
+            Instant ts = parseInstant(timestampOf(lines.get(from - 1)));
+            if (ts != null && !ts.isAfter(mark)) break;
+            from--;
+        }
+        return lines.subList(from, lines.size());
+    }
+
+    private static Instant parseInstant(String s) {
+        if (s == null || s.isBlank()) return null;
+        try {
+            return Instant.parse(s.trim());
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
 }
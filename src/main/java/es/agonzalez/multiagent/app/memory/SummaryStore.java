@@ -72,6 +72,47 @@ public class SummaryStore {
         }
     }
 
+    /**
+     * Guarda el resumen junto con su marca de agua (timestamp de la última línea de historial que
+     * incluye) para que el siguiente resumen incremental sólo procese los turnos posteriores.
+     */
+    public void save(String userId, String summary, String watermark) throws IOException {
+        ReentrantLock lock = lockFor(userId);
+        lock.lock();
+        try {
+            save(userId, summary);
+            Path wm = pathWatermark(userId);
+            if (watermark == null) {
+                Files.deleteIfExists(wm);
+            } else {
+                Files.writeString(wm, watermark, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Marca de agua del último resumen o null si no hay (o el resumen ya no existe). */
+    public String loadWatermark(String userId) throws IOException {
+        ReentrantLock lock = lockFor(userId);
+        lock.lock();
+        try {
+            Path wm = pathWatermark(userId);
+            // Sin resumen (p. ej. tras clearUser) la marca no sirve: se vuelve a resumir desde cero
+            if (!Files.exists(wm) || !Files.exists(pathTxt(userId))) return null;
+            String value = Files.readString(wm, StandardCharsets.UTF_8).strip();
+            return value.isEmpty() ? null : value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Path pathWatermark(String userId) {
+        String safe = userId == null ? "unknown" : userId.replaceAll("[^a-zA-Z0-9._-]","_");
+        return baseDir.resolve(safe + ".wm");
+    }
+
     private Path pathMd(String userId) {
         String safe = userId == null ? "unknown" : userId.replaceAll("[^a-zA-Z0-9._-]","_");
         return baseDir.resolve(safe + ".md");
@@ -0,0 +1,291 @@
+package es.agonzalez.multiagent.app.memory.impl;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+import es.agonzalez.multiagent.app.memory.MemoryStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Decorador de {@link MemoryStore} con caché en proceso de los últimos turnos de cada usuario.
+ *
+ * - Por usuario guarda un anillo acotado ({@code linesPerUser}) con las líneas más recientes tal y
+ *   como las persistió el store subyacente; {@code append} lo actualiza sin releer el fichero.
+ * - {@code clearUser} y una rotación efectiva invalidan la entrada.
+ * - Las entradas se expulsan por LRU cuando el tamaño estimado supera {@code maxBytes}.
+ * - Una entrada caduca {@code ttlMs} después de cargarse del store: así se dejan de servir líneas
+ *   que otro proceso (p. ej. {@code MemoryCleaner}) haya borrado sin pasar por {@code clearUser}.
+ *
+ * La clave es el userId normalizado con {@link HistoryRecords#sanitizeUserId}, igual que en los
+ * stores: " alice" y "alice" comparten fichero y por tanto también entrada y lock.
+ * Una lectura con {@code n} mayor que el anillo va siempre al store. Las operaciones que cambian
+ * el historial de un usuario y la carga tras un fallo de caché se serializan con locks por franjas
+ * (striped) para que una carga lenta no instale un snapshot anterior a un append concurrente.
+ */
+public class CachingMemoryStore implements MemoryStore {
+    private static final int STRIPES = 64;
+    // Coste aproximado por línea: cabecera de String + array + nodo del deque
+    private static final int LINE_OVERHEAD_BYTES = 64;
+    public static final long DEFAULT_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final class Entry {
+        final ArrayDeque<String> lines;
+        /** true si el anillo contiene el historial completo (hay menos líneas que capacidad) */
+        boolean complete;
+        long bytes;
+        /** Instante de carga desde el store (nanoTime) */
+        final long loadedAt;
+        Entry(int capacity, long loadedAt) {
+            this.lines = new ArrayDeque<>(capacity);
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final MemoryStore delegate;
+    private final int linesPerUser;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    // LRU en orden de acceso; protegido por cacheLock
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final ReentrantLock cacheLock = new ReentrantLock();
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public CachingMemoryStore(MemoryStore delegate, int linesPerUser, long maxBytes, MeterRegistry meterRegistry) {
+        this(delegate, linesPerUser, maxBytes, DEFAULT_TTL_MS, meterRegistry);
+    }
+
+    public CachingMemoryStore(MemoryStore delegate, int linesPerUser, long maxBytes, long ttlMs, MeterRegistry meterRegistry) {
+        this(delegate, linesPerUser, maxBytes, ttlMs, System::nanoTime, meterRegistry);
+    }
+
+    /** Con reloj inyectable (nanosegundos) para los tests de caducidad */
+    public CachingMemoryStore(MemoryStore delegate, int linesPerUser, long maxBytes, long ttlMs,
+                              LongSupplier clock, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.linesPerUser = Math.max(1, linesPerUser);
+        this.maxBytes = Math.max(0, maxBytes);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, ttlMs));
+        this.clock = clock;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+        if (meterRegistry != null) {
+            hits = Counter.builder("memory.cache.hits").description("Lecturas de historial servidas desde caché").register(meterRegistry);
+            misses = Counter.builder("memory.cache.misses").description("Lecturas de historial que requieren ir al store").register(meterRegistry);
+            evictions = Counter.builder("memory.cache.evictions").description("Usuarios expulsados de la caché de historial por presupuesto de memoria").register(meterRegistry);
+            Gauge.builder("memory.cache.bytes", totalBytes, AtomicLong::get)
+                .baseUnit("bytes")
+                .description("Tamaño estimado de la caché de historial")
+                .register(meterRegistry);
+            Gauge.builder("memory.cache.users", this, CachingMemoryStore::size)
+                .description("Usuarios con historial en caché")
+                .register(meterRegistry);
+        } else {
+            hits = misses = evictions = null;
+        }
+    }
+
+    @Override
+    public List<String> load(String userId) throws IOException {
+        // load() aplica el límite maxHistoryLines del store subyacente, que la caché no conoce
+        return delegate.load(userId);
+    }
+
+    @Override
+    public List<String> loadLast(String userId, int n) throws IOException {
+        if (n <= 0) return List.of();
+        String key = HistoryRecords.sanitizeUserId(userId);
+        List<String> cached = cachedTail(key, n, true);
+        if (cached != null) return cached;
+        if (n > linesPerUser) return delegate.loadLast(userId, n);
+        ReentrantLock lock = stripeFor(key);
+        lock.lock();
+        try {
+            // Otro hilo puede haberla cargado mientras esperábamos el lock
+            cached = cachedTail(key, n, false);
+            if (cached != null) return cached;
+            // El reloj se lee antes de cargar: la caducidad cuenta desde la lectura más antigua posible
+            long loadedAt = clock.getAsLong();
+            List<String> loaded = delegate.loadLast(userId, linesPerUser);
+            install(key, loaded, loadedAt);
+            return tail(loaded, n);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String append(String userId, String role, String text) throws IOException {
+        // La espera de durabilidad (PER_WRITE) va fuera del lock de franja: otros usuarios de la misma
+        // franja no hacen cola detrás de un group-commit ajeno
+        return appendDeferred(userId, role, text).await();
+    }
+
+    /** Sólo la escritura en el store y la actualización del anillo se serializan por franja. */
+    @Override
+    public Appended appendDeferred(String userId, String role, String text) throws IOException {
+        String key = HistoryRecords.sanitizeUserId(userId);
+        ReentrantLock lock = stripeFor(key);
+        lock.lock();
+        try {
+            Appended appended = delegate.appendDeferred(userId, role, text);
+            String line = appended.line();
+            cacheLock.lock();
+            try {
+                Entry e = entries.get(key);
+                if (e != null) {
+                    if (e.lines.size() == linesPerUser) {
+                        long dropped = cost(e.lines.pollFirst());
+                        e.bytes -= dropped;
+                        totalBytes.addAndGet(-dropped);
+                        e.complete = false;
+                    }
+                    e.lines.addLast(line);
+                    long c = cost(line);
+                    e.bytes += c;
+                    totalBytes.addAndGet(c);
+                    evictIfNeededUnsafe();
+                }
+            } finally {
+                cacheLock.unlock();
+            }
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean rotateIfNeeded(String userId) throws IOException {
+        String key = HistoryRecords.sanitizeUserId(userId);
+        ReentrantLock lock = stripeFor(key);
+        lock.lock();
+        try {
+            boolean rotated = delegate.rotateIfNeeded(userId);
+            if (rotated) invalidate(key);
+            return rotated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int countLines(String userId) throws IOException {
+        return delegate.countLines(userId);
+    }
+
+    @Override
+    public void clearUser(String userId) throws IOException {
+        String key = HistoryRecords.sanitizeUserId(userId);
+        ReentrantLock lock = stripeFor(key);
+        lock.lock();
+        try {
+            invalidate(key);
+            delegate.clearUser(userId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        cacheLock.lock();
+        try {
+            return entries.size();
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    /** Devuelve las últimas n líneas desde caché o null si la caché no puede responder. */
+    private List<String> cachedTail(String key, int n, boolean recordMiss) {
+        cacheLock.lock();
+        try {
+            Entry e = entries.get(key);
+            if (e != null && clock.getAsLong() - e.loadedAt >= ttlNanos) {
+                entries.remove(key);
+                totalBytes.addAndGet(-e.bytes);
+                e = null;
+            }
+            if (e == null || (!e.complete && e.lines.size() < n)) {
+                if (recordMiss && misses != null) misses.increment();
+                return null;
+            }
+            if (hits != null) hits.increment();
+            int skip = Math.max(0, e.lines.size() - n);
+            List<String> out = new ArrayList<>(Math.min(n, e.lines.size()));
+            Iterator<String> it = e.lines.iterator();
+            for (int i = 0; it.hasNext(); i++) {
+                String line = it.next();
+                if (i >= skip) out.add(line);
+            }
+            return List.copyOf(out);
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    private void install(String key, List<String> loaded, long loadedAt) {
+        Entry e = new Entry(linesPerUser, loadedAt);
+        e.complete = loaded.size() < linesPerUser;
+        for (String line : loaded) {
+            e.lines.addLast(line);
+            e.bytes += cost(line);
+        }
+        cacheLock.lock();
+        try {
+            Entry previous = entries.put(key, e);
+            if (previous != null) totalBytes.addAndGet(-previous.bytes);
+            totalBytes.addAndGet(e.bytes);
+            evictIfNeededUnsafe();
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    private void invalidate(String key) {
+        cacheLock.lock();
+        try {
+            Entry removed = entries.remove(key);
+            if (removed != null) totalBytes.addAndGet(-removed.bytes);
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    private void evictIfNeededUnsafe() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes.get() > maxBytes && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            totalBytes.addAndGet(-eldest.bytes);
+            if (evictions != null) evictions.increment();
+        }
+    }
+
+    private ReentrantLock stripeFor(String key) {
+        return stripes[Math.floorMod(key.hashCode(), STRIPES)];
+    }
+
+    private static long cost(String line) {
+        return LINE_OVERHEAD_BYTES + 2L * line.length();
+    }
+
+    private static List<String> tail(List<String> lines, int n) {
+        return lines.size() <= n ? lines : lines.subList(lines.size() - n, lines.size());
+    }
+}
@@ -7,22 +7,26 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.time.Instant;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import es.agonzalez.multiagent.app.config.AppProperties;
 import es.agonzalez.multiagent.app.memory.MemoryStore;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
 @Component
 public class FileMemoryStore  implements MemoryStore{
@@ -45,6 +49,9 @@ public class FileMemoryStore  implements MemoryStore{
     private Counter appendsCounter;
     private Counter recountsCounter; // número de recuentos completos (fallback) para medir eficiencia
     private DistributionSummary lineLengthSummary;
+    private DistributionSummary driftSummary;
+    // Journal write-behind (null si multiagent.write-behind.enabled=false)
+    private WriteBehindJournal journal;
 
     @PostConstruct
     public void init() throws  IOException {
@@ -52,11 +59,19 @@ public class FileMemoryStore  implements MemoryStore{
         this.maxLines = props.getMaxHistoryLines();
         basedir = Paths.get(dataDir, "history");
         Files.createDirectories(basedir);
+        // Checkpoint único de contadores (modo write-behind): gana a los .meta más antiguos que él
+        Map<String, Integer> checkpoint = WriteBehindJournal.readCheckpoint(basedir);
+        Path checkpointFile = basedir.resolve(WriteBehindJournal.CHECKPOINT_FILE);
+        long checkpointMtime = checkpoint.isEmpty() ? Long.MIN_VALUE : Files.getLastModifiedTime(checkpointFile).toMillis();
         // Cargar metadatos de conteo existentes (best-effort)
         try (var paths = Files.list(basedir)) {
             paths.filter(p -> p.getFileName().toString().endsWith(".meta"))
                 .forEach(meta -> {
                     try {
+                        String metaUser = meta.getFileName().toString().replace(".meta", "");
+                        if (checkpoint.containsKey(metaUser) && Files.getLastModifiedTime(meta).toMillis() <= checkpointMtime) {
+                            return;
+                        }
                         String content = Files.readString(meta, StandardCharsets.UTF_8).trim();
                         if (!content.isEmpty()) {
                             int idx = content.indexOf(':');
@@ -69,8 +84,7 @@ public class FileMemoryStore  implements MemoryStore{
                                 String expected = java.util.HexFormat.of().formatHex(md.digest(numStr.getBytes(StandardCharsets.UTF_8)));
                                 if (expected.equalsIgnoreCase(checksum)) {
                                     int count = Integer.parseInt(numStr);
-                                    String user = meta.getFileName().toString().replace(".meta", "");
-                                    userLineCounts.put(user, count);
+                                    userLineCounts.put(metaUser, count);
                                 }
                             }
                         }
@@ -79,6 +93,7 @@ public class FileMemoryStore  implements MemoryStore{
                     }
                 });
         } catch (IOException ignore) {}
+        checkpoint.forEach(userLineCounts::putIfAbsent);
         if (meterRegistry != null && truncationsCounter == null) {
             truncationsCounter = Counter.builder("memory.lines.truncated")
                 .description("Número de líneas truncadas por exceder max-line-length")
@@ -97,53 +112,75 @@ public class FileMemoryStore  implements MemoryStore{
                 .description("Distribución de longitudes de líneas (ya saneadas y posiblemente truncadas)")
                 .publishPercentileHistogram()
                 .register(meterRegistry);
+            driftSummary = DistributionSummary.builder("memory.line.count.drift")
+                .baseUnit("lines")
+                .description("Diferencia absoluta entre contador incremental y recuento real en cada reconciliación")
+                .register(meterRegistry);
             // Gauge de usuarios con metadata cargada (tamaño del mapa de contadores)
             io.micrometer.core.instrument.Gauge.builder("memory.users.tracked", userLineCounts, java.util.Map::size)
                 .description("Número de usuarios con contador de líneas en memoria")
                 .register(meterRegistry);
         }
+        AppProperties.WriteBehind wb = props.getWriteBehind();
+        if (wb != null && wb.isEnabled() && journal == null) {
+            journal = new WriteBehindJournal(basedir, wb.getDurability(), wb.getFlushIntervalMs(), wb.getCheckpointIntervalMs(),
+                this::pathOf, this::lockFor, () -> Map.copyOf(userLineCounts), meterRegistry);
+            log.info("Historial en modo write-behind durability={} flushIntervalMs={}", wb.getDurability(), wb.getFlushIntervalMs());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (journal != null) journal.close();
     }
 
     @Override
     public List<String> load(String userId) throws IOException {
+        return loadLast(userId, Math.max(1, maxLines));
+    }
+
+    @Override
+    public List<String> loadLast(String userId, int n) throws IOException {
         Path p = pathOf(userId);
-        if(!Files.exists(p)) return Collections.emptyList();
+        if (journal != null) journal.flushUser(sanitizeUserId(userId));
+        if(!Files.exists(p) || n <= 0) return Collections.emptyList();
         ReentrantLock lock = lockFor(userId);
         lock.lock();
         try {
-            int limit = Math.max(1, maxLines);
-            java.util.ArrayDeque<String> deque = new java.util.ArrayDeque<>(limit);
-            try (var stream = Files.lines(p, StandardCharsets.UTF_8)) {
-                stream.forEach(line -> {
-                    if (deque.size() == limit) {
-                        deque.pollFirst(); // descartamos la más antigua para mantener sólo las últimas
-                    }
-                    deque.addLast(line);
-                });
-            }
-            return java.util.List.copyOf(deque);
+            // Lectura inversa desde el final: coste proporcional a n, no al tamaño del fichero
+            return TailReader.lastLines(p, n);
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public void append(String userId, String role, String text) throws IOException {
+    public String append(String userId, String role, String text) throws IOException {
+        // PER_WRITE: esperar al group-commit fuera del lock (el escritor lo necesita para volcar)
+        return appendDeferred(userId, role, text).await();
+    }
+
+    @Override
+    public Appended appendDeferred(String userId, String role, String text) throws IOException {
         Path p = pathOf(userId);
-        String safe = sanitizeSingleLine(text);
-        int maxLen = props.getMaxLineLength();
-        if (safe.length() > maxLen) {
-            String original = safe;
-            safe = safe.substring(0, Math.max(0, maxLen - 20)) + "...[truncated]";
+        String original = HistoryRecords.sanitizeSingleLine(text);
+        String safe = HistoryRecords.truncate(original, props.getMaxLineLength());
+        if (safe != original) {
             log.debug("Truncado input largo userId={} role={} originalLength={} newLength={}", userId, role, original.length(), safe.length());
             if (truncationsCounter != null) truncationsCounter.increment();
         }
-        String line = "%s\t%s\t%s%n".formatted(Instant.now().toString(), role, safe);
+        String record = HistoryRecords.format(role, safe);
+        String line = record + System.lineSeparator();
         ReentrantLock lock = lockFor(userId);
+        CompletableFuture<Void> durable = null;
         lock.lock();
         try {
-            Files.writeString(p, line, StandardCharsets.UTF_8,
-                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            if (journal != null) {
+                durable = journal.enqueue(sanitizeUserId(userId), line);
+            } else {
+                Files.writeString(p, line, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
             if (appendsCounter != null) appendsCounter.increment();
             if (lineLengthSummary != null) lineLengthSummary.record(safe.length());
             incrementLineCountUnsafe(userId, 1);
@@ -153,47 +190,51 @@ public class FileMemoryStore  implements MemoryStore{
         } finally {
             lock.unlock();
         }
+        return new Appended(record, durable);
     }
 
+    /**
+     * Rota el historial cuando el contador incremental supera {@code maxHistoryLines} o el fichero
+     * supera {@code maxHistoryBytes}. No recorre el fichero: la única lectura completa ocurre si el
+     * usuario aún no tiene contador (primer acceso) y, en segundo plano, en {@link #reconcileCounts()}.
+     */
     @Override
-    public void rotateIfNeeded(String userId) throws IOException {
+    public boolean rotateIfNeeded(String userId) throws IOException {
+        String key = sanitizeUserId(userId);
         Path p = pathOf(userId);
-        if (!Files.exists(p)) return;
+        // Precheck sin lock: en el caso común (no hay que rotar) sólo se consulta el mapa y un stat
+        if (!rotationDue(key, p)) return false;
         ReentrantLock lock = lockFor(userId);
         lock.lock();
-        try (var stream = Files.lines(p)) {
-            long lines = stream.count();
-            if (lines > maxLines) {
-                String rotatedName = fileName(userId).replace(".txt", "-" + System.currentTimeMillis() + ".log");
-                Path rotated = p.resolveSibling(rotatedName);
-                boolean rotatedOk = false;
+        try {
+            if (journal != null) journal.flushUser(key);
+            if (!Files.exists(p) || !rotationDue(key, p)) return false;
+            int lines = userLineCounts.getOrDefault(key, 0);
+            String rotatedName = fileName(userId).replace(".txt", "-" + System.currentTimeMillis() + ".log");
+            Path rotated = p.resolveSibling(rotatedName);
+            try {
+                Files.move(p, rotated, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException atomicEx) {
+                log.debug("ATOMIC_MOVE falló para userId={}, intentando move estándar: {}", userId, atomicEx.getMessage());
                 try {
-                    Files.move(p, rotated, StandardCopyOption.ATOMIC_MOVE);
-                    rotatedOk = true;
-                } catch (IOException atomicEx) {
-                    log.debug("ATOMIC_MOVE falló para userId={}, intentando move estándar: {}", userId, atomicEx.getMessage());
-                    try {
-                        Files.move(p, rotated); // fallback no atómico
-                        rotatedOk = true;
-                    } catch (IOException fallbackEx) {
-                        log.error("Fallback move también falló userId={} error={}", userId, fallbackEx.toString());
-                        throw fallbackEx;
-                    }
-                }
-                if(rotatedOk) {
-                    try {
-                        Files.createFile(p);
-                        // Tras rotar, reseteamos contador a 0 y persistimos
-                        userLineCounts.put(userId, 0);
-                        persistMeta(userId, 0);
-                    } catch (IOException recreateEx) {
-                        log.error("Historial rotado pero no se pudo recrear archivo vacío userId={} error={}", userId, recreateEx.toString());
-                        throw recreateEx;
-                    }
-                    log.debug("Rotado historial userId={} -> {} (lineas={})", userId, rotated.getFileName(), lines);
-                    if (rotationsCounter != null) rotationsCounter.increment();
+                    Files.move(p, rotated); // fallback no atómico
+                } catch (IOException fallbackEx) {
+                    log.error("Fallback move también falló userId={} error={}", userId, fallbackEx.toString());
+                    throw fallbackEx;
                 }
             }
+            try {
+                Files.createFile(p);
+                // Tras rotar, reseteamos contador a 0 y persistimos
+                userLineCounts.put(key, 0);
+                persistMeta(userId, 0);
+            } catch (IOException recreateEx) {
+                log.error("Historial rotado pero no se pudo recrear archivo vacío userId={} error={}", userId, recreateEx.toString());
+                throw recreateEx;
+            }
+            log.debug("Rotado historial userId={} -> {} (lineas={})", userId, rotated.getFileName(), lines);
+            if (rotationsCounter != null) rotationsCounter.increment();
+            return true;
         } catch (IOException e) {
             log.error("Error rotando historial userId={}", userId, e);
             throw e;
@@ -202,6 +243,77 @@ public class FileMemoryStore  implements MemoryStore{
         }
     }
 
+    private boolean rotationDue(String key, Path p) throws IOException {
+        Integer tracked = userLineCounts.get(key);
+        // Sin contador (arranque sin metadata): un único recuento completo que lo inicializa
+        int lines = tracked != null ? tracked : countLines(key);
+        if (lines > maxLines) return true;
+        long maxBytes = props.getMaxHistoryBytes();
+        return maxBytes > 0 && Files.exists(p) && Files.size(p) > maxBytes;
+    }
+
+    /**
+     * Reconciliación en segundo plano de los contadores incrementales con el contenido real de los
+     * ficheros (p. ej. tras un crash entre append y checkpoint, o ficheros borrados por MemoryCleaner).
+     * Cada usuario se recuenta bajo su lock; la diferencia encontrada se publica en
+     * {@code memory.line.count.drift} y se corrige el contador.
+     */
+    @Scheduled(fixedDelayString = "${multiagent.history-reconcile-interval-ms:600000}",
+        initialDelayString = "${multiagent.history-reconcile-interval-ms:600000}")
+    public void reconcileCounts() {
+        java.util.Set<String> keys = new java.util.HashSet<>(userLineCounts.keySet());
+        try (var paths = Files.list(basedir)) {
+            paths.map(f -> f.getFileName().toString())
+                .filter(name -> name.endsWith(".txt"))
+                .forEach(name -> keys.add(name.substring(0, name.length() - ".txt".length())));
+        } catch (IOException e) {
+            log.warn("No se pudo listar historiales para reconciliar: {}", e.getMessage());
+            return;
+        }
+        int drifted = 0;
+        for (String key : keys) {
+            try {
+                if (reconcileUser(key) != 0) drifted++;
+            } catch (IOException | java.io.UncheckedIOException e) {
+                log.debug("No se pudo reconciliar contador userId={}: {}", key, e.getMessage());
+            }
+        }
+        if (drifted > 0) log.info("Reconciliación de contadores de historial: {} usuarios corregidos de {}", drifted, keys.size());
+    }
+
+    /** Recuenta un usuario y corrige su contador. Devuelve la deriva (real - contador). */
+    int reconcileUser(String key) throws IOException {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (journal != null) journal.flushUser(key);
+            Path p = pathOf(key);
+            int actual = 0;
+            if (Files.exists(p)) {
+                try (var s = Files.lines(p)) {
+                    actual = (int) s.count();
+                }
+            }
+            Integer tracked = userLineCounts.get(key);
+            int drift = actual - (tracked == null ? 0 : tracked);
+            if (driftSummary != null) driftSummary.record(Math.abs(drift));
+            if (!Files.exists(p)) {
+                // Historial eliminado externamente: el contador ya no tiene sentido
+                if (tracked != null) {
+                    userLineCounts.remove(key);
+                    deleteMeta(key);
+                }
+            } else if (tracked == null || drift != 0) {
+                userLineCounts.put(key, actual);
+                persistMeta(key, actual);
+            }
+            if (drift != 0) log.debug("Deriva de contador userId={} contador={} real={}", key, tracked, actual);
+            return drift;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public int countLines(String userId) throws IOException {
         // Fast path usando contador incremental persistido
@@ -209,6 +321,7 @@ public class FileMemoryStore  implements MemoryStore{
         if (cached != null) return cached;
         // Fallback: cálculo completo (primer acceso tras migración / ausencia meta)
         Path p = pathOf(userId);
+        if (journal != null) journal.flushUser(sanitizeUserId(userId));
         if (!Files.exists(p)) return 0;
         ReentrantLock lock = lockFor(userId);
         lock.lock();
@@ -232,6 +345,7 @@ public class FileMemoryStore  implements MemoryStore{
         ReentrantLock lock = lockFor(userId);
         lock.lock();
         try {
+            if (journal != null) journal.discardUnsafe(sanitizeUserId(userId));
             // Historial principal (ruta correcta)
             Path hist = pathOf(userId);
             boolean deletedMain = Files.deleteIfExists(hist);
@@ -276,12 +390,7 @@ public class FileMemoryStore  implements MemoryStore{
     }
 
     private static String sanitizeUserId(String s) {
-        // Improvement 10: we now expect controllers/DTO validation to enforce non-blank userId.
-        // Null safety kept (maps to "unknown"), but blank should not reach here after validation.
-        if (s == null) return "unknown"; // legacy safeguard
-        String trimmed = s.trim();
-        if (trimmed.isEmpty()) return "unknown"; // fallback kept to avoid NPEs if validation missed some path
-        return trimmed.replaceAll("[^a-zA-Z0-9._-]", "_");
+        return HistoryRecords.sanitizeUserId(s);
     }
 
     private void incrementLineCountUnsafe(String userId, int delta) {
@@ -291,6 +400,11 @@ public class FileMemoryStore  implements MemoryStore{
     }
 
     private void persistMeta(String userId, int count) {
+        if (journal != null) {
+            // En write-behind los contadores van al checkpoint por lotes, no a un fichero por append
+            journal.markCountsDirty();
+            return;
+        }
         Path meta = basedir.resolve(sanitizeUserId(userId) + ".meta");
         try {
             // checksum simple sha256 del número textual
@@ -314,12 +428,7 @@ public class FileMemoryStore  implements MemoryStore{
     private void deleteMeta(String userId) {
         Path meta = basedir.resolve(sanitizeUserId(userId) + ".meta");
         try { Files.deleteIfExists(meta); } catch (IOException ignore) {}
-    }
-
-    private static String sanitizeSingleLine(String s) {
-        if (s == null) return "";
-        // Quita saltos de línea y tabuladores para no romper el formato TSV
-        return s.replaceAll("\\R", " ").replace("\t", " ").trim();
+        if (journal != null) journal.markCountsDirty();
     }
 
 
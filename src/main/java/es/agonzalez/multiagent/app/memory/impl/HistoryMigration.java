@@ -0,0 +1,80 @@
+package es.agonzalez.multiagent.app.memory.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Migración del historial TSV de {@link FileMemoryStore} ({@code history/<user>.txt}) al log
+ * segmentado de {@link SegmentedLogMemoryStore}.
+ *
+ * De cada usuario se copian sólo las últimas {@code maxLines} líneas (lo que {@code load} devolvería),
+ * leídas con {@link TailReader}; los ficheros rotados ({@code -<timestamp>.log}) son archivo y no se
+ * migran. Los ficheros originales no se modifican. Al terminar se escribe un marcador
+ * ({@value #MARKER_FILE}) en el directorio de segmentos para no repetir la migración.
+ *
+ * Uso manual: {@code java -cp <app> es.agonzalez.multiagent.app.memory.impl.HistoryMigration <datadir> [maxLines]}
+ */
+public final class HistoryMigration {
+    private static final Logger log = LoggerFactory.getLogger(HistoryMigration.class);
+    public static final String MARKER_FILE = "MIGRATED";
+
+    private HistoryMigration() {}
+
+    /** Número de usuarios y líneas copiados. */
+    public record Result(int users, int lines, boolean skipped) {}
+
+    public static Result migrate(Path historyDir, Path segmentsDir, SegmentedLogMemoryStore target, int maxLines) throws IOException {
+        Path marker = segmentsDir.resolve(MARKER_FILE);
+        if (Files.exists(marker)) return new Result(0, 0, true);
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(historyDir)) {
+            try (var stream = Files.list(historyDir)) {
+                stream.filter(p -> p.getFileName().toString().endsWith(".txt")).sorted().forEach(files::add);
+            }
+        }
+        int users = 0;
+        int lines = 0;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            String key = HistoryRecords.sanitizeUserId(name.substring(0, name.length() - ".txt".length()));
+            // Usuarios que ya tienen historial en el log (migración interrumpida) no se duplican
+            if (target.nextTurn(key) > 0) continue;
+            List<String> tail = TailReader.lastLines(file, Math.max(1, maxLines));
+            for (String line : tail) {
+                if (line.isBlank()) continue;
+                target.appendRecord(key, line);
+                lines++;
+            }
+            users++;
+        }
+        Files.writeString(marker, Instant.now() + " users=" + users + " lines=" + lines + "\n", StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        log.info("Historial TSV migrado a log segmentado: usuarios={} lineas={}", users, lines);
+        return new Result(users, lines, false);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Uso: HistoryMigration <datadir> [maxLines]");
+            System.exit(2);
+        }
+        Path datadir = Path.of(args[0]);
+        int maxLines = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Path segmentsDir = datadir.resolve("segments");
+        try (SegmentedLogMemoryStore store = new SegmentedLogMemoryStore(segmentsDir, datadir.resolve("summary"),
+                64L * 1024 * 1024, maxLines, 0, Integer.MAX_VALUE, null)) {
+            Result r = migrate(datadir.resolve("history"), segmentsDir, store, maxLines);
+            System.out.println(r.skipped() ? "Migración ya realizada (" + MARKER_FILE + " presente)"
+                : "Migrados " + r.users() + " usuarios, " + r.lines() + " líneas");
+        }
+    }
+}
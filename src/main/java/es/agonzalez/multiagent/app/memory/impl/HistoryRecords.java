@@ -0,0 +1,50 @@
+package es.agonzalez.multiagent.app.memory.impl;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Formato de línea de historial compartido por las implementaciones de MemoryStore:
+ * "timestamp\trole\ttexto" con el texto en una sola línea y sin tabuladores.
+ */
+final class HistoryRecords {
+    private static final String TRUNCATED_SUFFIX = "...[truncated]";
+
+    private HistoryRecords() {}
+
+    static String sanitizeUserId(String s) {
+        // Improvement 10: we now expect controllers/DTO validation to enforce non-blank userId.
+        // Null safety kept (maps to "unknown"), but blank should not reach here after validation.
+        if (s == null) return "unknown"; // legacy safeguard
+        String trimmed = s.trim();
+        if (trimmed.isEmpty()) return "unknown"; // fallback kept to avoid NPEs if validation missed some path
+        return trimmed.replaceAll("[^a-zA-Z0-9._-]", "_");
+    }
+
+    static String sanitizeSingleLine(String s) {
+        if (s == null) return "";
+        // Quita saltos de línea y tabuladores para no romper el formato TSV
+        return s.replaceAll("\\R", " ").replace("\t", " ").trim();
+    }
+
+    /** Recorta el texto ya saneado a {@code maxLen} caracteres marcándolo como truncado. */
+    static String truncate(String safe, int maxLen) {
+        if (safe.length() <= maxLen) return safe;
+        return safe.substring(0, Math.max(0, maxLen - 20)) + TRUNCATED_SUFFIX;
+    }
+
+    /** Instante (epoch ms) del timestamp con que empieza la línea, o {@code fallback} si no se puede leer. */
+    static long timestampMillis(String record, long fallback) {
+        int tab = record == null ? -1 : record.indexOf('\t');
+        if (tab <= 0) return fallback;
+        try {
+            return Instant.parse(record.substring(0, tab)).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return fallback;
+        }
+    }
+
+    static String format(String role, String safe) {
+        return "%s\t%s\t%s".formatted(Instant.now().toString(), role, safe);
+    }
+}
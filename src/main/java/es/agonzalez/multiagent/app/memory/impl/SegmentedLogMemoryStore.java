@@ -0,0 +1,652 @@
+package es.agonzalez.multiagent.app.memory.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.agonzalez.multiagent.app.memory.MemoryStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * MemoryStore sobre un log binario segmentado compartido por todos los usuarios.
+ *
+ * Cada turno se escribe como un registro con prefijo de longitud en el segmento activo
+ * ({@code seg-NNNNNNNN.log}); al superar {@code segmentBytes} se abre uno nuevo. En memoria se
+ * mantiene, por usuario, un índice compacto con la posición (segmento, offset) y longitud de cada
+ * línea viva más el número de turno de la primera, de modo que:
+ * - {@code countLines} es O(1) y {@code loadLast(n)} / {@link #loadSince(String, long)} son O(k)
+ *   lecturas posicionales, sin recorrer ficheros.
+ * - Rotar o limpiar un usuario escribe un marcador (RESET / CLEAR) en lugar de mover ficheros: las
+ *   líneas anteriores quedan muertas y no se conservan archivos rotados.
+ * - Los ficheros de segmento son compartidos y MemoryCleaner no puede borrarlos por antigüedad:
+ *   {@link #expireIdle(long)} limpia con un CLEAR a los usuarios sin turnos nuevos desde un instante.
+ *
+ * Registro: int longitud del payload, int CRC32C del payload y payload
+ * [tipo(1) | len usuario(2) | usuario UTF-8 | turno(8) | len línea(4) | línea UTF-8].
+ *
+ * Al arrancar el índice se reconstruye leyendo los segmentos (un registro truncado al final del
+ * último se descarta). Los segmentos sin líneas vivas se borran y los que tienen menos de la mitad
+ * vivas se compactan reescribiendo esas líneas al final del log; siempre empezando por el más antiguo,
+ * para que un marcador nunca desaparezca antes que las líneas que invalida.
+ */
+public class SegmentedLogMemoryStore implements MemoryStore, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(SegmentedLogMemoryStore.class);
+    static final String SEGMENT_PREFIX = "seg-";
+    static final String SEGMENT_SUFFIX = ".log";
+    private static final byte TYPE_APPEND = 1;
+    private static final byte TYPE_RESET = 2;
+    private static final byte TYPE_CLEAR = 3;
+    // int longitud + int crc
+    private static final int HEADER_BYTES = 8;
+    private static final double COMPACT_LIVE_RATIO = 0.5;
+
+    /** Líneas vivas de un usuario. Se accede sincronizando sobre la instancia. */
+    private static final class UserIndex {
+        long[] positions = new long[8]; // (segmento << 32) | offset
+        int[] lengths = new int[8];
+        int size;
+        long firstTurn;
+        long bytes;
+        /** Timestamp (epoch ms) de la última línea añadida */
+        long lastAppend;
+
+        void add(long position, int length) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            positions[size] = position;
+            lengths[size] = length;
+            size++;
+            bytes += length;
+        }
+
+        long nextTurn() { return firstTurn + size; }
+
+        void reset() {
+            positions = new long[8];
+            lengths = new int[8];
+            size = 0;
+            bytes = 0;
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        int records;
+        int live;
+        Segment(int id, Path path, FileChannel channel) { this.id = id; this.path = path; this.channel = channel; }
+    }
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final int maxLines;
+    private final long maxBytes;
+    private final int maxLineLength;
+    private final Path summaryDir;
+
+    private final ConcurrentHashMap<String, UserIndex> indexes = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    // Serializa escrituras (un único segmento activo) y cambios estructurales del índice
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Lecturas posicionales (read) frente a borrado de segmentos (write)
+    private final ReentrantReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+    private Segment active;
+    private long activeSize;
+    // Hay segmentos cerrados pendientes de revisar por collectUnsafe()
+    private boolean collectPending;
+    private boolean collecting;
+
+    private Counter appendsCounter;
+    private Counter truncationsCounter;
+    private Counter rotationsCounter;
+    private Counter compactionsCounter;
+
+    /**
+     * @param dir directorio de segmentos
+     * @param summaryDir directorio de resúmenes que se limpia junto al usuario en {@code clearUser}
+     */
+    public SegmentedLogMemoryStore(Path dir, Path summaryDir, long segmentBytes, int maxLines, long maxBytes,
+                                   int maxLineLength, MeterRegistry meterRegistry) throws IOException {
+        this.dir = dir;
+        this.summaryDir = summaryDir;
+        // Los offsets se guardan en 32 bits dentro de la posición
+        this.segmentBytes = Math.min(Integer.MAX_VALUE, Math.max(4096, segmentBytes));
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+        this.maxLineLength = maxLineLength;
+        Files.createDirectories(dir);
+        writeLock.lock();
+        try {
+            recover();
+            collectUnsafe();
+        } finally {
+            writeLock.unlock();
+        }
+        if (meterRegistry != null) {
+            appendsCounter = Counter.builder("memory.lines.appended")
+                .description("Número de líneas añadidas al historial")
+                .register(meterRegistry);
+            truncationsCounter = Counter.builder("memory.lines.truncated")
+                .description("Número de líneas truncadas por exceder max-line-length")
+                .register(meterRegistry);
+            rotationsCounter = Counter.builder("memory.history.rotations")
+                .description("Número de rotaciones de archivos de historial")
+                .register(meterRegistry);
+            compactionsCounter = Counter.builder("memory.segments.compactions")
+                .description("Segmentos de historial compactados o eliminados por no tener líneas vivas")
+                .register(meterRegistry);
+            Gauge.builder("memory.segments.count", segments, Map::size)
+                .description("Número de segmentos de historial en disco")
+                .register(meterRegistry);
+        }
+    }
+
+    @Override
+    public List<String> load(String userId) throws IOException {
+        return loadLast(userId, Math.max(1, maxLines));
+    }
+
+    @Override
+    public List<String> loadLast(String userId, int n) throws IOException {
+        UserIndex idx = indexes.get(HistoryRecords.sanitizeUserId(userId));
+        if (idx == null || n <= 0) return List.of();
+        segmentsLock.readLock().lock();
+        try {
+            long[] positions;
+            int[] lengths;
+            synchronized (idx) {
+                int from = Math.max(0, idx.size - n);
+                positions = Arrays.copyOfRange(idx.positions, from, idx.size);
+                lengths = Arrays.copyOfRange(idx.lengths, from, idx.size);
+            }
+            return readLinesUnsafe(positions, lengths);
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    /** Líneas con número de turno mayor o igual que {@code turn} (las ya rotadas no se devuelven). */
+    public List<String> loadSince(String userId, long turn) throws IOException {
+        UserIndex idx = indexes.get(HistoryRecords.sanitizeUserId(userId));
+        if (idx == null) return List.of();
+        segmentsLock.readLock().lock();
+        try {
+            long[] positions;
+            int[] lengths;
+            synchronized (idx) {
+                int from = (int) Math.min(idx.size, Math.max(0, turn - idx.firstTurn));
+                positions = Arrays.copyOfRange(idx.positions, from, idx.size);
+                lengths = Arrays.copyOfRange(idx.lengths, from, idx.size);
+            }
+            return readLinesUnsafe(positions, lengths);
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    /** Número de turno que recibirá el próximo append del usuario (crece también a través de rotaciones). */
+    public long nextTurn(String userId) {
+        UserIndex idx = indexes.get(HistoryRecords.sanitizeUserId(userId));
+        if (idx == null) return 0;
+        synchronized (idx) {
+            return idx.nextTurn();
+        }
+    }
+
+    @Override
+    public String append(String userId, String role, String text) throws IOException {
+        String original = HistoryRecords.sanitizeSingleLine(text);
+        String safe = HistoryRecords.truncate(original, maxLineLength);
+        if (safe != original && truncationsCounter != null) truncationsCounter.increment();
+        String record = HistoryRecords.format(role, safe);
+        appendRecord(HistoryRecords.sanitizeUserId(userId), record);
+        return record;
+    }
+
+    /** Añade una línea ya formateada (usado también por la migración desde TSV). */
+    void appendRecord(String key, String record) throws IOException {
+        writeLock.lock();
+        try {
+            UserIndex idx = indexes.computeIfAbsent(key, k -> new UserIndex());
+            long turn;
+            synchronized (idx) {
+                turn = idx.nextTurn();
+            }
+            ByteBuffer buf = encode(TYPE_APPEND, key, turn, record);
+            int length = buf.remaining();
+            long position = writeUnsafe(buf);
+            synchronized (idx) {
+                idx.add(position, length);
+                idx.lastAppend = Math.max(idx.lastAppend, HistoryRecords.timestampMillis(record, System.currentTimeMillis()));
+            }
+            active.live++;
+            if (appendsCounter != null) appendsCounter.increment();
+            if (collectPending) collectUnsafe();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean rotateIfNeeded(String userId) throws IOException {
+        String key = HistoryRecords.sanitizeUserId(userId);
+        UserIndex idx = indexes.get(key);
+        if (idx == null || !rotationDue(idx)) return false;
+        writeLock.lock();
+        try {
+            if (indexes.get(key) != idx || !rotationDue(idx)) return false;
+            long nextTurn;
+            synchronized (idx) {
+                nextTurn = idx.nextTurn();
+            }
+            writeUnsafe(encode(TYPE_RESET, key, nextTurn, null));
+            active.records--; // los marcadores no cuentan como registros compactables
+            int dropped;
+            synchronized (idx) {
+                dropped = idx.size;
+                releaseUnsafe(idx);
+                idx.firstTurn = nextTurn;
+            }
+            log.debug("Rotado historial userId={} (lineas={}, turno={})", userId, dropped, nextTurn);
+            if (rotationsCounter != null) rotationsCounter.increment();
+            collectUnsafe();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private boolean rotationDue(UserIndex idx) {
+        synchronized (idx) {
+            return idx.size > maxLines || (maxBytes > 0 && idx.bytes > maxBytes);
+        }
+    }
+
+    @Override
+    public int countLines(String userId) {
+        UserIndex idx = indexes.get(HistoryRecords.sanitizeUserId(userId));
+        if (idx == null) return 0;
+        synchronized (idx) {
+            return idx.size;
+        }
+    }
+
+    @Override
+    public void clearUser(String userId) throws IOException {
+        String key = HistoryRecords.sanitizeUserId(userId);
+        UserIndex idx;
+        writeLock.lock();
+        try {
+            idx = indexes.remove(key);
+            if (idx != null) clearUnsafe(key, idx);
+        } finally {
+            writeLock.unlock();
+        }
+        boolean deletedSummary = summaryDir != null && Files.deleteIfExists(summaryDir.resolve(userId + ".txt"));
+        log.info("Cleanup userId={} deleted(history={}, summary={})", userId, idx != null, deletedSummary);
+    }
+
+    /**
+     * Limpia (marcador CLEAR) a los usuarios cuya última línea es anterior a {@code cutoffMillis}, el
+     * equivalente de borrar por antigüedad su {@code .txt}. Los resúmenes los sigue limpiando MemoryCleaner.
+     * Devuelve el número de usuarios limpiados.
+     */
+    public int expireIdle(long cutoffMillis) throws IOException {
+        List<String> candidates = new ArrayList<>();
+        indexes.forEach((key, idx) -> {
+            synchronized (idx) {
+                if (idx.lastAppend < cutoffMillis) candidates.add(key);
+            }
+        });
+        int expired = 0;
+        for (String key : candidates) {
+            writeLock.lock();
+            try {
+                // Puede haber escrito entre la selección y el lock
+                UserIndex idx = indexes.get(key);
+                if (idx == null || idx.lastAppend >= cutoffMillis) continue;
+                indexes.remove(key);
+                clearUnsafe(key, idx);
+                expired++;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        if (expired > 0) log.info("Historial segmentado: {} usuarios inactivos limpiados", expired);
+        return expired;
+    }
+
+    /** Escribe el CLEAR de un usuario ya quitado de {@code indexes}; requiere writeLock. */
+    private void clearUnsafe(String key, UserIndex idx) throws IOException {
+        writeUnsafe(encode(TYPE_CLEAR, key, 0, null));
+        active.records--;
+        synchronized (idx) {
+            releaseUnsafe(idx);
+        }
+        collectUnsafe();
+    }
+
+    /** Número de segmentos en disco (incluido el activo). */
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            if (active != null) active.channel.force(false);
+            for (Segment s : segments.values()) s.channel.close();
+            segments.clear();
+            active = null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // --- Lectura ---
+
+    /** Lecturas posicionales; requiere el read lock de segmentos para que no se borren entre medias. */
+    private List<String> readLinesUnsafe(long[] positions, int[] lengths) throws IOException {
+        List<String> out = new ArrayList<>(positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            Segment seg = segments.get(segmentOf(positions[i]));
+            if (seg == null) throw new IOException("Segmento de historial no disponible: " + segmentOf(positions[i]));
+            ByteBuffer buf = ByteBuffer.allocate(lengths[i]);
+            readFully(seg.channel, buf, offsetOf(positions[i]));
+            out.add(decodeLine(buf));
+        }
+        return List.copyOf(out);
+    }
+
+    private static String decodeLine(ByteBuffer record) {
+        int pos = HEADER_BYTES + 1;
+        int userLen = record.getShort(pos) & 0xFFFF;
+        pos += 2 + userLen + 8;
+        int lineLen = record.getInt(pos);
+        pos += 4;
+        return new String(record.array(), pos, lineLen, StandardCharsets.UTF_8);
+    }
+
+    // --- Escritura y gestión de segmentos (con writeLock) ---
+
+    private long writeUnsafe(ByteBuffer buf) throws IOException {
+        int length = buf.remaining();
+        if (active == null || (activeSize > 0 && activeSize + length > segmentBytes)) {
+            rollUnsafe();
+        }
+        long offset = activeSize;
+        while (buf.hasRemaining()) {
+            active.channel.write(buf, offset + buf.position());
+        }
+        activeSize += length;
+        active.records++;
+        return position(active.id, offset);
+    }
+
+    private void rollUnsafe() throws IOException {
+        int nextId = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        if (active != null) active.channel.force(false);
+        Path path = dir.resolve(segmentName(nextId));
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active = new Segment(nextId, path, ch);
+        activeSize = 0;
+        segments.put(nextId, active);
+        collectPending = true;
+    }
+
+    private void releaseUnsafe(UserIndex idx) {
+        for (int i = 0; i < idx.size; i++) {
+            Segment seg = segments.get(segmentOf(idx.positions[i]));
+            if (seg != null) seg.live--;
+        }
+        idx.reset();
+    }
+
+    /**
+     * Borra el segmento más antiguo mientras no tenga líneas vivas y lo compacta si tiene menos de la
+     * mitad. Sólo se actúa sobre el más antiguo: así los marcadores RESET/CLEAR desaparecen después de
+     * las líneas que invalidan y la reconstrucción del índice sigue siendo correcta.
+     */
+    private void collectUnsafe() throws IOException {
+        // La compaction escribe en el segmento activo y puede abrir otro: no se reentra
+        if (collecting) return;
+        collecting = true;
+        collectPending = false;
+        try {
+            while (segments.size() > 1) {
+                Segment oldest = segments.firstEntry().getValue();
+                if (oldest == active) return;
+                if (oldest.live > 0 && oldest.live >= oldest.records * COMPACT_LIVE_RATIO) return;
+                int relocated = oldest.live;
+                if (relocated > 0) compactUnsafe(oldest);
+                segmentsLock.writeLock().lock();
+                try {
+                    segments.remove(oldest.id);
+                    oldest.channel.close();
+                    Files.deleteIfExists(oldest.path);
+                } finally {
+                    segmentsLock.writeLock().unlock();
+                }
+                if (compactionsCounter != null) compactionsCounter.increment();
+                log.debug("Segmento de historial {} eliminado (vivas reubicadas={})", oldest.path.getFileName(), relocated);
+            }
+        } finally {
+            collecting = false;
+        }
+    }
+
+    /** Reescribe al final del log las líneas vivas de un segmento y actualiza sus posiciones en el índice. */
+    private void compactUnsafe(Segment seg) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(seg.path)))) {
+            long offset = 0;
+            while (true) {
+                DecodedRecord r = readRecord(in, offset);
+                if (r == null) break;
+                if (r.type == TYPE_APPEND) {
+                    UserIndex idx = indexes.get(r.user);
+                    if (idx != null) relocateUnsafe(idx, position(seg.id, offset), r);
+                }
+                offset += r.length;
+            }
+        }
+    }
+
+    private void relocateUnsafe(UserIndex idx, long oldPosition, DecodedRecord r) throws IOException {
+        int slot;
+        synchronized (idx) {
+            slot = (int) (r.turn - idx.firstTurn);
+            if (slot < 0 || slot >= idx.size || idx.positions[slot] != oldPosition) return;
+        }
+        long newPosition = writeUnsafe(encode(TYPE_APPEND, r.user, r.turn, r.line));
+        synchronized (idx) {
+            // Rotar o limpiar requiere writeLock, que tenemos: el slot sigue siendo válido
+            idx.positions[slot] = newPosition;
+        }
+        segments.get(segmentOf(oldPosition)).live--;
+        active.live++;
+    }
+
+    // --- Recuperación al arrancar ---
+
+    private record DecodedRecord(byte type, String user, long turn, String line, int length) {}
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (var stream = Files.list(dir)) {
+            stream.filter(p -> p.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                    && p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                .sorted()
+                .forEach(files::add);
+        }
+        // Reconstrucción por turno: tras una compaction interrumpida una línea puede aparecer dos veces
+        Map<String, TreeMap<Long, long[]>> byUser = new HashMap<>();
+        Map<String, Long> firstTurns = new HashMap<>();
+        Map<String, Long> lastAppends = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            int id = segmentId(file);
+            boolean last = i == files.size() - 1;
+            long valid = 0;
+            int records = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                while (true) {
+                    DecodedRecord r = readRecord(in, valid);
+                    if (r == null) break;
+                    switch (r.type) {
+                        case TYPE_APPEND -> {
+                            byUser.computeIfAbsent(r.user, k -> new TreeMap<>()).put(r.turn, new long[]{position(id, valid), r.length});
+                            // Una compaction reescribe líneas antiguas al final: vale el mayor timestamp
+                            lastAppends.merge(r.user, HistoryRecords.timestampMillis(r.line, 0), Math::max);
+                            records++;
+                        }
+                        case TYPE_RESET -> {
+                            TreeMap<Long, long[]> lines = byUser.get(r.user);
+                            if (lines != null) lines.headMap(r.turn).clear();
+                            firstTurns.put(r.user, r.turn);
+                        }
+                        case TYPE_CLEAR -> {
+                            byUser.remove(r.user);
+                            firstTurns.remove(r.user);
+                            lastAppends.remove(r.user);
+                        }
+                        default -> { }
+                    }
+                    valid += r.length;
+                }
+            }
+            long size = Files.size(file);
+            if (valid < size) {
+                log.warn("Segmento {}: {} bytes finales inválidos o truncados{}", file.getFileName(), size - valid,
+                    last ? ", se descartan" : "");
+            }
+            FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (last && valid < size) ch.truncate(valid);
+            Segment seg = new Segment(id, file, ch);
+            seg.records = records;
+            segments.put(id, seg);
+            if (last) {
+                active = seg;
+                activeSize = valid;
+            }
+        }
+        byUser.forEach((user, lines) -> {
+            if (lines.isEmpty()) return;
+            UserIndex idx = new UserIndex();
+            idx.lastAppend = lastAppends.getOrDefault(user, 0L);
+            long expected = Math.max(lines.firstKey(), firstTurns.getOrDefault(user, 0L));
+            idx.firstTurn = expected;
+            for (Map.Entry<Long, long[]> e : lines.tailMap(expected).entrySet()) {
+                // Un hueco en la numeración invalida lo anterior: el índice sólo guarda un tramo contiguo
+                if (e.getKey() != expected) {
+                    idx.reset();
+                    idx.firstTurn = e.getKey();
+                    expected = e.getKey();
+                }
+                idx.add(e.getValue()[0], (int) e.getValue()[1]);
+                expected++;
+            }
+            indexes.put(user, idx);
+        });
+        // Las líneas vivas por segmento se recalculan a partir del índice final
+        indexes.values().forEach(idx -> {
+            for (int i = 0; i < idx.size; i++) segments.get(segmentOf(idx.positions[i])).live++;
+        });
+        if (!files.isEmpty()) {
+            log.info("Historial segmentado cargado: {} segmentos, {} usuarios", segments.size(), indexes.size());
+        }
+    }
+
+    /** Lee un registro completo; devuelve null al llegar al final o ante un registro incompleto o corrupto. */
+    private DecodedRecord readRecord(DataInputStream in, long offset) throws IOException {
+        int payloadLen;
+        int crc;
+        try {
+            payloadLen = in.readInt();
+            crc = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (payloadLen <= 0 || payloadLen > segmentBytes) return null;
+        byte[] payload = new byte[payloadLen];
+        try {
+            in.readFully(payload);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32C check = new CRC32C();
+        check.update(payload, 0, payloadLen);
+        if ((int) check.getValue() != crc) {
+            log.debug("CRC inválido en offset {}", offset);
+            return null;
+        }
+        ByteBuffer p = ByteBuffer.wrap(payload);
+        byte type = p.get();
+        int userLen = p.getShort() & 0xFFFF;
+        String user = new String(payload, p.position(), userLen, StandardCharsets.UTF_8);
+        p.position(p.position() + userLen);
+        long turn = p.getLong();
+        int lineLen = p.getInt();
+        String line = lineLen > 0 ? new String(payload, p.position(), lineLen, StandardCharsets.UTF_8) : null;
+        return new DecodedRecord(type, user, turn, line, HEADER_BYTES + payloadLen);
+    }
+
+    private static ByteBuffer encode(byte type, String user, long turn, String line) throws IOException {
+        byte[] u = user.getBytes(StandardCharsets.UTF_8);
+        if (u.length > 0xFFFF) throw new IOException("userId demasiado largo para el historial segmentado");
+        byte[] l = line == null ? new byte[0] : line.getBytes(StandardCharsets.UTF_8);
+        int payloadLen = 1 + 2 + u.length + 8 + 4 + l.length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + payloadLen);
+        buf.putInt(payloadLen).putInt(0)
+            .put(type).putShort((short) u.length).put(u).putLong(turn).putInt(l.length).put(l);
+        CRC32C crc = new CRC32C();
+        crc.update(buf.array(), HEADER_BYTES, payloadLen);
+        buf.putInt(4, (int) crc.getValue());
+        return buf.flip();
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, offset + buf.position()) < 0) throw new EOFException("Registro de historial truncado");
+        }
+    }
+
+    private static long position(int segment, long offset) { return ((long) segment << 32) | offset; }
+    private static int segmentOf(long position) { return (int) (position >>> 32); }
+    private static long offsetOf(long position) { return position & 0xFFFFFFFFL; }
+
+    static String segmentName(int id) {
+        return SEGMENT_PREFIX + "%08d".formatted(id) + SEGMENT_SUFFIX;
+    }
+
+    private static int segmentId(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
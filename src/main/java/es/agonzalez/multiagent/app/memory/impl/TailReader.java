@@ -0,0 +1,87 @@
+package es.agonzalez.multiagent.app.memory.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lectura de las últimas N líneas de un fichero recorriéndolo hacia atrás desde el final con
+ * {@link FileChannel}, en bloques fijos, hasta encontrar N saltos de línea. Sólo se leen (dos veces
+ * como máximo) los bytes de la cola pedida, no el fichero completo.
+ *
+ * Es seguro con UTF-8: el byte '\n' (0x0A) nunca forma parte de una secuencia multibyte, así que se
+ * puede buscar a nivel de bytes y decodificar después sólo el tramo final. Acepta terminadores
+ * "\n" y "\r\n" (el '\r' final se elimina).
+ */
+public final class TailReader {
+    private static final int BLOCK_SIZE = 8192;
+
+    private TailReader() {}
+
+    public static List<String> lastLines(Path file, int n) throws IOException {
+        if (n <= 0) return List.of();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size == 0) return List.of();
+            long start = findTailStart(ch, size, n);
+            int length = Math.toIntExact(size - start);
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, start + buf.position()) < 0) break;
+            }
+            buf.flip();
+            return split(StandardCharsets.UTF_8.decode(buf).toString(), n);
+        }
+    }
+
+    /** Offset del primer byte de la N-ésima línea empezando por el final. */
+    private static long findTailStart(FileChannel ch, long size, int n) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate((int) Math.min(BLOCK_SIZE, size));
+        // El terminador de la última línea no separa líneas: se excluye de la búsqueda
+        long end = size;
+        if (readByte(ch, size - 1) == '\n') end--;
+        int newlines = 0;
+        long pos = end;
+        while (pos > 0) {
+            int chunk = (int) Math.min(block.capacity(), pos);
+            long blockStart = pos - chunk;
+            block.clear().limit(chunk);
+            while (block.hasRemaining()) {
+                if (ch.read(block, blockStart + block.position()) < 0) break;
+            }
+            for (int i = chunk - 1; i >= 0; i--) {
+                if (block.get(i) == '\n' && ++newlines == n) {
+                    return blockStart + i + 1;
+                }
+            }
+            pos = blockStart;
+        }
+        return 0;
+    }
+
+    private static byte readByte(FileChannel ch, long position) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        ch.read(one, position);
+        return one.get(0);
+    }
+
+    private static List<String> split(String tail, int n) {
+        List<String> lines = new ArrayList<>(n);
+        int from = 0;
+        int len = tail.length();
+        while (from < len) {
+            int nl = tail.indexOf('\n', from);
+            int to = nl < 0 ? len : nl;
+            int stop = (to > from && tail.charAt(to - 1) == '\r') ? to - 1 : to;
+            lines.add(tail.substring(from, stop));
+            if (nl < 0) break;
+            from = nl + 1;
+        }
+        return List.copyOf(lines.size() <= n ? lines : lines.subList(lines.size() - n, lines.size()));
+    }
+}
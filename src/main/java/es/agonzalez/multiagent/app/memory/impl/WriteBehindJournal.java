@@ -0,0 +1,297 @@
+package es.agonzalez.multiagent.app.memory.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.agonzalez.multiagent.app.config.AppProperties.WriteBehind.Durability;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Journal write-behind con group-commit para {@link FileMemoryStore}.
+ *
+ * Los appends se encolan en un buffer por usuario (protegido por el lock de usuario del store) y un
+ * único hilo escritor los vuelca por lotes cada {@code flushIntervalMs}: una apertura de fichero y,
+ * según la durabilidad, un único fsync por usuario y lote. Los contadores de líneas no se persisten
+ * por append sino en un checkpoint único ({@value #CHECKPOINT_FILE}) cada {@code checkpointIntervalMs}.
+ *
+ * Durabilidad:
+ * - NONE: el lote se escribe al page cache del SO, sin fsync.
+ * - BATCH: fsync por lote; un crash puede perder como mucho el último intervalo.
+ * - PER_WRITE: igual que BATCH pero append() espera a que su lote esté en disco (group-commit clásico).
+ *
+ * Si un volcado falla, el fichero se trunca al tamaño previo (sin líneas parciales ni duplicadas en el
+ * reintento) y el lote sigue en el buffer: los futures de PER_WRITE quedan pendientes hasta que un
+ * reintento lo escriba. Sólo al cerrar se da por perdido lo que no se pudo volcar.
+ *
+ * Las lecturas del store llaman a {@link #flushUser(String)} antes de tocar el fichero para mantener
+ * read-your-writes dentro del proceso.
+ */
+public class WriteBehindJournal implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindJournal.class);
+    public static final String CHECKPOINT_FILE = "line-counts.checkpoint";
+    private static final String CHECKSUM_PREFIX = "sha256:";
+
+    private record Pending(String line, CompletableFuture<Void> done) {}
+
+    private final Path basedir;
+    private final Durability durability;
+    private final Function<String, Path> pathResolver;
+    private final Function<String, ReentrantLock> locks;
+    private final Supplier<Map<String, Integer>> countsSnapshot;
+    private final long checkpointIntervalMs;
+
+    // Buffers por usuario: sólo se tocan con el lock del usuario adquirido
+    private final ConcurrentHashMap<String, ArrayDeque<Pending>> buffers = new ConcurrentHashMap<>();
+    private final Set<String> dirtyUsers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger pendingLines = new AtomicInteger();
+    private final AtomicBoolean countsDirty = new AtomicBoolean();
+    private final ScheduledExecutorService writer;
+    private volatile long lastCheckpoint = System.currentTimeMillis();
+
+    private DistributionSummary batchSizeSummary;
+
+    public WriteBehindJournal(Path basedir, Durability durability, long flushIntervalMs, long checkpointIntervalMs,
+                              Function<String, Path> pathResolver, Function<String, ReentrantLock> locks,
+                              Supplier<Map<String, Integer>> countsSnapshot, MeterRegistry meterRegistry) {
+        this.basedir = basedir;
+        this.durability = durability == null ? Durability.BATCH : durability;
+        this.pathResolver = pathResolver;
+        this.locks = locks;
+        this.countsSnapshot = countsSnapshot;
+        this.checkpointIntervalMs = checkpointIntervalMs;
+        if (meterRegistry != null) {
+            Gauge.builder("memory.journal.pending", pendingLines, AtomicInteger::get)
+                .description("Líneas de historial pendientes de volcar a disco (write-behind)")
+                .register(meterRegistry);
+            batchSizeSummary = DistributionSummary.builder("memory.journal.batch.size")
+                .baseUnit("lines")
+                .description("Líneas escritas por usuario en cada group-commit")
+                .register(meterRegistry);
+        }
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "memory-journal-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(1, flushIntervalMs);
+        writer.scheduleWithFixedDelay(this::flushAllQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Encola una línea ya formateada (con salto final). Debe llamarse con el lock del usuario adquirido.
+     * Devuelve un future que se completa cuando la línea está en disco si la durabilidad es PER_WRITE,
+     * o null en otro caso (evita la asignación en el camino caliente).
+     */
+    public CompletableFuture<Void> enqueue(String key, String line) {
+        CompletableFuture<Void> done = durability == Durability.PER_WRITE ? new CompletableFuture<>() : null;
+        buffers.computeIfAbsent(key, k -> new ArrayDeque<>()).addLast(new Pending(line, done));
+        pendingLines.incrementAndGet();
+        dirtyUsers.add(key);
+        return done;
+    }
+
+    /** Marca los contadores como modificados para incluirlos en el próximo checkpoint. */
+    public void markCountsDirty() {
+        countsDirty.set(true);
+    }
+
+    /** Vuelca de forma síncrona lo pendiente de un usuario (lecturas, rotación, limpieza). */
+    public void flushUser(String key) throws IOException {
+        ReentrantLock lock = locks.apply(key);
+        lock.lock();
+        try {
+            flushUnsafe(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Descarta lo pendiente de un usuario (clearUser). Debe llamarse con el lock del usuario adquirido. */
+    public void discardUnsafe(String key) {
+        ArrayDeque<Pending> buffer = buffers.remove(key);
+        dirtyUsers.remove(key);
+        if (buffer == null) return;
+        pendingLines.addAndGet(-buffer.size());
+        buffer.forEach(p -> { if (p.done() != null) p.done().complete(null); });
+    }
+
+    public int pending() {
+        return pendingLines.get();
+    }
+
+    private void flushAllQuietly() {
+        for (String key : List.copyOf(dirtyUsers)) {
+            try {
+                flushUser(key);
+            } catch (IOException e) {
+                // Las líneas siguen en el buffer y se reintentan en el siguiente ciclo
+                log.warn("Fallo en group-commit de historial userId={}: {}", key, e.getMessage());
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (countsDirty.get() && now - lastCheckpoint >= checkpointIntervalMs) {
+            checkpointQuietly();
+        }
+    }
+
+    private void flushUnsafe(String key) throws IOException {
+        ArrayDeque<Pending> buffer = buffers.get(key);
+        if (buffer == null || buffer.isEmpty()) {
+            dirtyUsers.remove(key);
+            return;
+        }
+        StringBuilder sb = new StringBuilder(buffer.size() * 96);
+        for (Pending p : buffer) sb.append(p.line());
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(sb.toString());
+        Path p = pathResolver.apply(key);
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long sizeBefore = ch.size();
+            try {
+                while (bytes.hasRemaining()) ch.write(bytes);
+                if (durability != Durability.NONE) ch.force(false);
+            } catch (IOException e) {
+                // Se deshace lo que llegó a escribirse: el lote sigue en el buffer y se reintenta entero
+                try {
+                    ch.truncate(sizeBefore);
+                } catch (IOException te) {
+                    e.addSuppressed(te);
+                }
+                throw e;
+            }
+        }
+        int written = buffer.size();
+        List<CompletableFuture<Void>> waiters = new ArrayList<>();
+        for (Pending pending : buffer) if (pending.done() != null) waiters.add(pending.done());
+        buffer.clear();
+        pendingLines.addAndGet(-written);
+        dirtyUsers.remove(key);
+        if (batchSizeSummary != null) batchSizeSummary.record(written);
+        waiters.forEach(f -> f.complete(null));
+    }
+
+    private void checkpointQuietly() {
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            log.warn("No se pudo escribir checkpoint de contadores: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Escribe un snapshot de todos los contadores en un único fichero (tmp + rename atómico).
+     * Formato: primera línea "sha256:&lt;hex&gt;" del resto; después una línea "usuario\tcontador" por usuario.
+     */
+    void writeCheckpoint() throws IOException {
+        countsDirty.set(false);
+        lastCheckpoint = System.currentTimeMillis();
+        StringBuilder body = new StringBuilder();
+        countsSnapshot.get().forEach((user, count) -> body.append(user).append('\t').append(count).append('\n'));
+        String payload = body.toString();
+        String content = CHECKSUM_PREFIX + sha256Hex(payload) + "\n" + payload;
+        Path target = basedir.resolve(CHECKPOINT_FILE);
+        Path tmp = target.resolveSibling(CHECKPOINT_FILE + ".tmp");
+        try {
+            Files.writeString(tmp, content, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            if (durability != Durability.NONE) {
+                try (var ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) { ch.force(true); }
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException atomicEx) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            countsDirty.set(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Lee el checkpoint de contadores si existe y su checksum es válido; si no, devuelve mapa vacío.
+     */
+    public static Map<String, Integer> readCheckpoint(Path basedir) {
+        Path file = basedir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) return Map.of();
+        try {
+            String content = Files.readString(file, StandardCharsets.UTF_8);
+            int nl = content.indexOf('\n');
+            if (nl < 0 || !content.startsWith(CHECKSUM_PREFIX)) return Map.of();
+            String declared = content.substring(CHECKSUM_PREFIX.length(), nl).trim();
+            String payload = content.substring(nl + 1);
+            if (!declared.equalsIgnoreCase(sha256Hex(payload))) {
+                log.warn("Checksum de checkpoint de contadores inválido, se ignora");
+                return Map.of();
+            }
+            Map<String, Integer> counts = new HashMap<>();
+            for (String line : payload.split("\n")) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) continue;
+                counts.put(line.substring(0, tab), Integer.parseInt(line.substring(tab + 1).trim()));
+            }
+            return counts;
+        } catch (IOException | NumberFormatException e) {
+            log.debug("Ignorando checkpoint de contadores corrupto: {}", e.getMessage());
+            return Map.of();
+        }
+    }
+
+    /** Detiene el hilo escritor y vuelca todo lo pendiente junto con un checkpoint final. */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS)) writer.shutdownNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushAllQuietly();
+        checkpointQuietly();
+        // Lo que no se pudo volcar ya no se reintentará: no dejar a nadie esperando
+        for (String key : List.copyOf(buffers.keySet())) {
+            ArrayDeque<Pending> buffer = buffers.remove(key);
+            if (buffer == null || buffer.isEmpty()) continue;
+            log.warn("Se descartan {} líneas de historial sin volcar userId={}", buffer.size(), key);
+            IOException lost = new IOException("Journal cerrado sin poder volcar el historial");
+            buffer.forEach(pending -> { if (pending.done() != null) pending.done().completeExceptionally(lost); });
+        }
+    }
+
+    private static String sha256Hex(String data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(md.digest(data.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package es.agonzalez.multiagent.app.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.config.GlobalExceptionHandler;
+import es.agonzalez.multiagent.app.config.MetricsService;
+import es.agonzalez.multiagent.app.config.RateLimitProperties;
+import es.agonzalez.multiagent.app.config.RateLimitingFilter;
+import es.agonzalez.multiagent.app.config.WorkflowConfig;
+import es.agonzalez.multiagent.app.core.IntentDetector;
+import es.agonzalez.multiagent.app.core.LlmClient;
+import es.agonzalez.multiagent.app.core.ModelRegistry;
+import es.agonzalez.multiagent.app.core.llm.PromptPrefixStore;
+import es.agonzalez.multiagent.app.core.mappers.ResponseMapper;
+import es.agonzalez.multiagent.app.core.models.LlmResponse;
+import es.agonzalez.multiagent.app.core.selectors.ModelSelectors;
+import es.agonzalez.multiagent.app.core.workflows.WorkflowRunner;
+import es.agonzalez.multiagent.app.dtos.AIRequest;
+import es.agonzalez.multiagent.app.dtos.AIResponse;
+import es.agonzalez.multiagent.app.memory.MemoryService;
+import es.agonzalez.multiagent.app.memory.SummarizationWorker;
+import es.agonzalez.multiagent.app.memory.Summarizer;
+import es.agonzalez.multiagent.app.memory.SummaryStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.validation.Validation;
+
+class AIControllerBatchTest {
+
+    private final ObjectMapper om = new ObjectMapper();
+    private final WorkflowRunner runner = mock(WorkflowRunner.class);
+    private final AppProperties props = new AppProperties();
+    private final RateLimitProperties rateProps = new RateLimitProperties();
+    private AIController controller;
+    private MockMvc mvc;
+
+    @BeforeEach
+    void setUp() {
+        StaticMessageSource messages = new StaticMessageSource();
+        messages.setUseCodeAsDefaultMessage(true);
+        controller = new AIController();
+        ReflectionTestUtils.setField(controller, "runner", runner);
+        ReflectionTestUtils.setField(controller, "appProperties", props);
+        ReflectionTestUtils.setField(controller, "om", om);
+        ReflectionTestUtils.setField(controller, "validator", Validation.buildDefaultValidatorFactory().getValidator());
+        ReflectionTestUtils.setField(controller, "messages", messages);
+        ReflectionTestUtils.setField(controller, "rateLimiter", new RateLimitingFilter(rateProps, om, new SimpleMeterRegistry()));
+        mvc = MockMvcBuilders.standaloneSetup(controller).setControllerAdvice(new GlobalExceptionHandler()).build();
+        doAnswer(inv -> {
+            AIRequest req = inv.getArgument(0);
+            return AIResponse.ok("Agent.Chat", "re: " + req.getText(), Map.of());
+        }).when(runner).applyWorkflow(any());
+    }
+
+    @AfterEach
+    void tearDown() {
+        controller.drain();
+    }
+
+    private static Map<String, Object> item(String text) {
+        return Map.of("userId", "u1", "text", text);
+    }
+
+    private List<JsonNode> batch(List<?> items) throws Exception {
+        MvcResult started = mvc.perform(post("/api/v1/ai/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header("X-API-Key", "k1")
+                .content(om.writeValueAsBytes(items)))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        started.getAsyncResult(10_000);
+        assertThat(started.getResponse().getContentType()).startsWith(MediaType.APPLICATION_NDJSON_VALUE);
+        List<JsonNode> lines = new ArrayList<>();
+        for (String line : started.getResponse().getContentAsString(StandardCharsets.UTF_8).split("\n")) {
+            lines.add(om.readTree(line));
+        }
+        return lines;
+    }
+
+    private static JsonNode byIndex(List<JsonNode> lines, int index) {
+        return lines.stream().filter(l -> l.get("index").asInt() == index).findFirst().orElseThrow();
+    }
+
+    @Test
+    void syncChatDoesNotStartAsyncProcessing() throws Exception {
+        mvc.perform(post("/api/v1/ai").contentType(MediaType.APPLICATION_JSON)
+                .content(om.writeValueAsBytes(item("!ai hola"))))
+            .andExpect(request().asyncNotStarted())
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.message").value("re: !ai hola"));
+    }
+
+    @Test
+    void asyncChatReturnsAFuture() throws Exception {
+        props.getLlm().setAsync(true);
+        when(runner.applyWorkflowAsync(any()))
+            .thenReturn(CompletableFuture.completedFuture(AIResponse.ok("Agent.Chat", "async", Map.of())));
+
+        MvcResult started = mvc.perform(post("/api/v1/ai").contentType(MediaType.APPLICATION_JSON)
+                .content(om.writeValueAsBytes(item("!ai hola"))))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        mvc.perform(asyncDispatch(started))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.message").value("async"));
+    }
+
+    @Test
+    void streamsOneLinePerItem() throws Exception {
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (int i = 0; i < 20; i++) items.add(item("!ai pregunta " + i));
+
+        List<JsonNode> lines = batch(items);
+
+        assertThat(lines).hasSize(20);
+        assertThat(lines.stream().map(l -> l.get("index").asInt())).containsExactlyInAnyOrderElementsOf(
+            java.util.stream.IntStream.range(0, 20).boxed().toList());
+        JsonNode seventh = byIndex(lines, 7);
+        assertThat(seventh.get("status").asText()).isEqualTo("ok");
+        assertThat(seventh.at("/response/message").asText()).isEqualTo("re: !ai pregunta 7");
+    }
+
+    @Test
+    void parallelismIsBounded() throws Exception {
+        props.getBatch().setParallelism(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        doAnswer(inv -> {
+            peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            running.decrementAndGet();
+            return AIResponse.ok("Agent.Chat", "ok", Map.of());
+        }).when(runner).applyWorkflow(any());
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (int i = 0; i < 15; i++) items.add(item("!ai " + i));
+
+        assertThat(batch(items)).hasSize(15);
+        assertThat(peak.get()).isBetween(2, 3);
+    }
+
+    @Test
+    void invalidAndRateLimitedItemsDoNotStopTheBatch() throws Exception {
+        rateProps.setCapacity(2);
+        rateProps.setRefillTokens(2);
+        setUp();
+
+        List<JsonNode> lines = batch(List.of(item("!ai a"), item("!ai b"), Map.of("userId", "u1", "text", " "),
+            item("!ai c"), item("!ai d")));
+
+        assertThat(lines).hasSize(5);
+        assertThat(byIndex(lines, 0).get("status").asText()).isEqualTo("ok"); // token de la propia petición
+        assertThat(byIndex(lines, 1).get("status").asText()).isEqualTo("ok");
+        assertThat(byIndex(lines, 2).at("/response/reason").asText()).isEqualTo("validation_error");
+        assertThat(byIndex(lines, 3).get("status").asText()).isEqualTo("ok");
+        assertThat(byIndex(lines, 4).at("/response/reason").asText()).isEqualTo("rate_limited");
+    }
+
+    @Test
+    void drainWaitsForRunningItemsAndClosesTheRest() throws Exception {
+        props.getBatch().setParallelism(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(inv -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return AIResponse.ok("Agent.Chat", "terminado", Map.of());
+        }).when(runner).applyWorkflow(any());
+
+        MvcResult result = mvc.perform(post("/api/v1/ai/batch").contentType(MediaType.APPLICATION_JSON)
+                .content(om.writeValueAsBytes(List.of(item("a"), item("b"), item("c")))))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<Void> drained = CompletableFuture.runAsync(controller::drain);
+        Thread.sleep(50);
+        assertThat(drained).isNotDone();
+        release.countDown();
+        drained.get(5, TimeUnit.SECONDS);
+
+        result.getAsyncResult(5_000);
+        List<JsonNode> lines = new ArrayList<>();
+        for (String line : result.getResponse().getContentAsString(StandardCharsets.UTF_8).split("\n")) {
+            lines.add(om.readTree(line));
+        }
+        assertThat(lines).hasSize(3);
+        assertThat(byIndex(lines, 0).at("/response/message").asText()).isEqualTo("terminado");
+        assertThat(byIndex(lines, 1).at("/response/reason").asText()).isEqualTo("shutting_down");
+        assertThat(byIndex(lines, 2).at("/response/reason").asText()).isEqualTo("shutting_down");
+    }
+
+    @Test
+    void streamsDoNotQueueBehindEachOther() throws Exception {
+        // Más streams simultáneos que hilos tiene applicationTaskExecutor por defecto: cada uno espera a todos
+        int streams = 12;
+        CountDownLatch running = new CountDownLatch(streams);
+        when(runner.applyWorkflowStreaming(any(), any())).thenAnswer(inv -> {
+            running.countDown();
+            running.await(5, TimeUnit.SECONDS);
+            return AIResponse.ok("Agent.Chat", "fin", Map.of());
+        });
+        AIRequest req = new AIRequest();
+        req.setUserId("u1");
+        req.setText("!ai hola");
+
+        for (int i = 0; i < streams; i++) controller.stream(req);
+
+        assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+        @Test
+    void emptyAndOversizedBatchesAreRejected() throws Exception {
+        props.getBatch().setMaxItems(2);
+
+        mvc.perform(post("/api/v1/ai/batch").contentType(MediaType.APPLICATION_JSON).content("[]"))
+            .andExpect(status().isBadRequest())
+            .andExpect(jsonPath("$.error").value("validation"))
+            .andExpect(jsonPath("$.details[0]").value("validation.batch.empty"));
+        mvc.perform(post("/api/v1/ai/batch").contentType(MediaType.APPLICATION_JSON)
+                .content(om.writeValueAsBytes(List.of(item("a"), item("b"), item("c")))))
+            .andExpect(status().isBadRequest())
+            .andExpect(jsonPath("$.details[0]").value("validation.batch.size"));
+    }
+
+    /**
+     * Grafo de chat real de WorkflowConfig con sus pasos en un pool del tamaño del applicationTaskExecutor
+     * por defecto (8 hilos), que también es el executor del controlador.
+     */
+    @Test
+    void chatItemsFinishWithTheDefaultSizedTaskExecutor() throws Exception {
+        ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
+        pool.setCorePoolSize(8);
+        pool.initialize();
+        try {
+            ReflectionTestUtils.setField(controller, "runner", chatRunner(pool));
+            List<Map<String, Object>> items = new ArrayList<>();
+            for (int i = 0; i < 24; i++) items.add(Map.of("userId", "u" + i, "text", "!ai hola " + i));
+
+            List<JsonNode> lines = batch(items);
+
+            assertThat(lines).hasSize(24);
+            assertThat(lines).allSatisfy(l -> assertThat(l.get("status").asText()).as(l.toString()).isEqualTo("ok"));
+            assertThat(byIndex(lines, 5).at("/response/message").asText()).isEqualTo("respuesta");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private WorkflowRunner chatRunner(ThreadPoolTaskExecutor pool) throws Exception {
+        LlmClient client = mock(LlmClient.class);
+        when(client.chat(anyString(), anyList(), any(), anyBoolean(), any())).thenAnswer(inv -> {
+            Thread.sleep(10);
+            return new LlmResponse("respuesta", 10, 5);
+        });
+        ModelSelectors selectors = mock(ModelSelectors.class);
+        when(selectors.pick(anyString(), anyString())).thenReturn("m");
+        MemoryService memory = mock(MemoryService.class);
+        when(memory.loadRecent(anyString(), anyInt())).thenReturn(List.of());
+        SummaryStore summaries = mock(SummaryStore.class);
+        when(summaries.load(anyString())).thenAnswer(inv -> {
+            Thread.sleep(5);
+            return "";
+        });
+
+        WorkflowConfig config = new WorkflowConfig();
+        ReflectionTestUtils.setField(config, "client", client);
+        ReflectionTestUtils.setField(config, "registry", mock(ModelRegistry.class));
+        ReflectionTestUtils.setField(config, "memory", memory);
+        ReflectionTestUtils.setField(config, "summary", summaries);
+        ReflectionTestUtils.setField(config, "summarizer", mock(Summarizer.class));
+        ReflectionTestUtils.setField(config, "selectors", selectors);
+        ReflectionTestUtils.setField(config, "summarizationWorker", mock(SummarizationWorker.class));
+        ReflectionTestUtils.setField(config, "props", props);
+        ReflectionTestUtils.setField(config, "prefixes", new PromptPrefixStore());
+        ReflectionTestUtils.setField(config, "stepExecutor", pool);
+        StaticMessageSource messages = new StaticMessageSource();
+        messages.setUseCodeAsDefaultMessage(true);
+
+        WorkflowRunner real = new WorkflowRunner();
+        ReflectionTestUtils.setField(real, "chatWorkflow", config.chatWorkflow(messages, mock(MetricsService.class)));
+        ReflectionTestUtils.setField(real, "detector", new IntentDetector());
+        ReflectionTestUtils.setField(real, "responseMapper", new ResponseMapper());
+        ReflectionTestUtils.setField(real, "metrics", mock(MetricsService.class));
+        return real;
+    }
+}
@@ -0,0 +1,57 @@
+package es.agonzalez.multiagent.app.config;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class MetricsServiceTest {
+
+    private SimpleMeterRegistry registry;
+    private MetricsService metrics;
+
+    @BeforeEach
+    void setup() {
+        AppProperties props = new AppProperties();
+        props.getMetrics().setMaxModels(2);
+        registry = new SimpleMeterRegistry();
+        metrics = new MetricsService();
+        ReflectionTestUtils.setField(metrics, "registry", registry);
+        ReflectionTestUtils.setField(metrics, "props", props);
+        metrics.init();
+    }
+
+    @Test
+    void cachedMetersAccumulateOnRegisteredSeries() {
+        metrics.recordLlmSuccess("m1", "CHAT", 10, 5, 100);
+        metrics.recordLlmSuccess("m1", "CHAT", 1, 2, 50);
+        metrics.recordLlmErrorWithReason("m1", "CHAT", "timeout", 30);
+        metrics.recordLlmErrorWithReason("m1", "CHAT", "timeout", 30);
+
+        var ok = registry.get("multiagent_llm_latency").tags("model", "m1", "intent", "CHAT", "status", "ok").timer();
+        assertThat(ok.count()).isEqualTo(2);
+        assertThat(ok.totalTime(TimeUnit.MILLISECONDS)).isEqualTo(150);
+        assertThat(registry.get("multiagent_llm_latency").tags("status", "error").timer().count()).isEqualTo(2);
+        assertThat(registry.get("multiagent_llm_prompt_tokens_total").tags("model", "m1").counter().count()).isEqualTo(11);
+        assertThat(registry.get("multiagent_llm_tokens_total").tags("model", "m1").counter().count()).isEqualTo(18);
+        assertThat(registry.get("multiagent_llm_errors_total").tags("reason", "timeout").counter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void foldsModelsBeyondLimitIntoOther() {
+        metrics.recordLlmSuccess("m1", "CHAT", 1, 1, 1);
+        metrics.recordLlmSuccess("m2", "CHAT", 1, 1, 1);
+        metrics.recordLlmSuccess("m3", "CHAT", 1, 1, 1);
+        metrics.recordLlmErrorWithReason("m4", "CHAT", null, 1);
+        metrics.recordLlmSuccess("m1", "CHAT", 1, 1, 1);
+
+        assertThat(registry.get("multiagent_llm_latency").tags("model", "m1").timer().count()).isEqualTo(2);
+        assertThat(registry.get("multiagent_llm_latency").tags("model", MetricsService.OTHER_MODEL, "status", "ok").timer().count()).isEqualTo(1);
+        assertThat(registry.get("multiagent_llm_errors_total").tags("model", MetricsService.OTHER_MODEL, "reason", "unknown").counter().count()).isEqualTo(1);
+        assertThat(registry.find("multiagent_llm_latency").tags("model", "m3").timer()).isNull();
+    }
+}
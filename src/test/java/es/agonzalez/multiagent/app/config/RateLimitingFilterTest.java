@@ -0,0 +1,105 @@
+package es.agonzalez.multiagent.app.config;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.Bucket;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class RateLimitingFilterTest {
+
+    @Test
+    void millionSyntheticIpsStayBounded() throws Exception {
+        RateLimitProperties props = new RateLimitProperties();
+        props.setMaxKeys(10_000);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        RateLimitingFilter filter = new RateLimitingFilter(props, new ObjectMapper(), registry);
+        int metersBefore = registry.getMeters().size();
+
+        MockHttpServletRequest req = new MockHttpServletRequest("POST", "/api/v1/chat");
+        for (int i = 0; i < 1_000_000; i++) {
+            req.setRemoteAddr("10." + (i >>> 16) + "." + ((i >>> 8) & 0xff) + "." + (i & 0xff));
+            MockHttpServletResponse resp = new MockHttpServletResponse();
+            filter.doFilter(req, resp, new MockFilterChain());
+            assertThat(resp.getStatus()).isEqualTo(200);
+        }
+
+        assertThat(filter.bucketCount()).isEqualTo(10_000);
+        assertThat(registry.get("rate_limit_evictions_total").tag("cause", "size").counter().count()).isEqualTo(990_000);
+        assertThat(registry.get("rate_limit_buckets").gauge().value()).isEqualTo(10_000);
+        assertThat(registry.get("rate_limit_remaining_tokens").summary().count()).isEqualTo(1_000_000);
+        assertThat(registry.getMeters()).hasSize(metersBefore);
+    }
+
+    @Test
+    void idleBucketsExpireAndActiveOnesSurvive() {
+        AtomicLong now = new AtomicLong();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Bandwidth limit = Bandwidth.builder().capacity(2).refillGreedy(2, Duration.ofMinutes(1)).build();
+        RateLimitBuckets buckets = new RateLimitBuckets(100, Duration.ofSeconds(10),
+            () -> Bucket.builder().addLimit(limit).build(), now::get, registry);
+
+        Bucket a = buckets.resolve("a");
+        buckets.resolve("b");
+        now.set(Duration.ofSeconds(6).toNanos());
+        assertThat(buckets.resolve("a")).isSameAs(a); // refresca "a"
+        now.set(Duration.ofSeconds(12).toNanos());
+
+        assertThat(buckets.evictIdle()).isEqualTo(1);
+        assertThat(buckets.size()).isEqualTo(1);
+        assertThat(buckets.resolve("a")).isSameAs(a);
+        assertThat(registry.get("rate_limit_evictions_total").tag("cause", "idle").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void sizeEvictionDropsLeastRecentlyUsed() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Bandwidth limit = Bandwidth.builder().capacity(1).refillGreedy(1, Duration.ofMinutes(1)).build();
+        AtomicLong now = new AtomicLong();
+        RateLimitBuckets buckets = new RateLimitBuckets(2, Duration.ofHours(1),
+            () -> Bucket.builder().addLimit(limit).build(), now::incrementAndGet, registry);
+
+        Bucket a = buckets.resolve("a");
+        Bucket b = buckets.resolve("b");
+        buckets.resolve("a");
+        buckets.resolve("c"); // expulsa "b"
+
+        assertThat(buckets.resolve("a")).isSameAs(a);
+        assertThat(buckets.resolve("b")).isNotSameAs(b);
+        assertThat(registry.get("rate_limit_evictions_total").tag("cause", "size").counter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void knownKeysResolveWhileAnEvictionHoldsTheLock() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Bandwidth limit = Bandwidth.builder().capacity(1).refillGreedy(1, Duration.ofMinutes(1)).build();
+        RateLimitBuckets buckets = new RateLimitBuckets(10, Duration.ofHours(1),
+            () -> Bucket.builder().addLimit(limit).build(), System::nanoTime, registry);
+        Bucket a = buckets.resolve("a");
+
+        ReentrantLock lock = (ReentrantLock) ReflectionTestUtils.getField(buckets, "evictionLock");
+        lock.lock();
+        try {
+            Bucket hit = CompletableFuture.supplyAsync(() -> buckets.resolve("a")).get(1, TimeUnit.SECONDS);
+            assertThat(hit).isSameAs(a);
+            // Un alta por debajo de la capacidad tampoco lo necesita, ni el barrido de inactivas
+            assertThat(CompletableFuture.supplyAsync(() -> buckets.resolve("b")).get(1, TimeUnit.SECONDS)).isNotNull();
+            assertThat(CompletableFuture.supplyAsync(buckets::evictIdle).get(1, TimeUnit.SECONDS)).isZero();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package es.agonzalez.multiagent.app.core;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+class IntentDetectorTest {
+
+    private final IntentDetector detector = new IntentDetector();
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+        "!recipe tortilla        | recipe_request",
+        "!RECIPE                 | recipe_request",
+        "!recipe-rápida          | recipe_request",
+        "!weather Madrid         | weather",
+        "!npc hola               | npc_chat",
+        "!ai ¿qué tal?           | chat",
+        "!Ai,hola                | chat",
+        "!follow                 | respond_follow",
+        "!voice hola             | play_voice",
+        "!forget                 | memory_forget",
+        "!memoria on             | memory_on",
+        "'!Memoria \t  ON ya'    | memory_on",
+        "!memoria off            | memory_off",
+    })
+    void detectsConfiguredCommands(String text, String intent) {
+        assertThat(detector.detect(text)).isEqualTo(intent);
+    }
+
+    @Test
+    void leadingWhitespaceIsIgnored() {
+        assertThat(detector.detect("  \t!ai hola")).isEqualTo("chat");
+    }
+
+    @Test
+    void voiceOffIsNotMemoryOff() {
+        // El patrón anterior de memory_off era "^!voice\s+off": "!voice off" es un comando de voz
+        assertThat(detector.detect("!voice off")).isEqualTo("play_voice");
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', nullValues = "NULL", value = {
+        "hola, ¿qué tal?",
+        "!aiuda",
+        "!recipes",
+        "!recipeñ",
+        "!memoria",
+        "!memoria onda",
+        "!",
+        "ai !ai",
+        "'   '",
+        "NULL",
+    })
+    void plainTextAndPartialCommandsHaveNoIntent(String text) {
+        assertThat(detector.detect(text)).isNull();
+    }
+
+    @Test
+    void agentsComeFromTheSameTable() {
+        assertThat(detector.agent("chat")).isEqualTo("Agent.Chat");
+        assertThat(detector.agent("memory_off")).isEqualTo("Agent.Memory.Off");
+        assertThat(detector.agent("weather")).isNull();
+        assertThat(detector.isValidIntent("recipe_request")).isTrue();
+        assertThat(detector.isValidIntent("weather")).isFalse();
+        assertThat(detector.isValidIntent(null)).isFalse();
+    }
+
+    @Test
+    void longestCommandWinsInCustomTables() {
+        IntentDetector custom = new IntentDetector(
+            Map.of("!set", "settings", "!set lang", "language", "¡hola", "greeting"),
+            Map.of("settings", "Agent.Settings"));
+
+        assertThat(custom.detect("!set lang es")).isEqualTo("language");
+        assertThat(custom.detect("!set langes")).isEqualTo("settings");
+        assertThat(custom.detect("!SET")).isEqualTo("settings");
+        assertThat(custom.detect("¡HOLA a todos")).isEqualTo("greeting");
+        assertThat(custom.detect("!recipe x")).isNull();
+        assertThat(custom.agent("settings")).isEqualTo("Agent.Settings");
+    }
+
+    @Test
+    void conflictingCommandsAreRejected() {
+        assertThatThrownBy(() -> new IntentDetector(Map.of("!a  b", "x", "!A b", "y"), Map.of()))
+            .isInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,129 @@
+package es.agonzalez.multiagent.app.core;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmOverloadedException;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmProviderException;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmTimeoutException;
+import es.agonzalez.multiagent.app.core.models.LlmResponse;
+import es.agonzalez.multiagent.app.core.models.Message;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.tracing.Tracer;
+
+/**
+ * chatAsync contra un servidor HTTP local que hace de Ollama y sólo responde cuando el test lo permite:
+ * el future vuelve antes de la respuesta y ningún hilo queda esperándola.
+ */
+class LlmClientAsyncTest {
+
+    private HttpServer server;
+    private final CountDownLatch answer = new CountDownLatch(1);
+    private volatile int status = 200;
+    private AppProperties props;
+    private LlmClient client;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/chat", ex -> {
+            ex.getRequestBody().readAllBytes();
+            try {
+                answer.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] bytes = "{\"message\":{\"role\":\"assistant\",\"content\":\"hola\"},\"prompt_eval_count\":7,\"eval_count\":3,\"done\":true}"
+                .getBytes(StandardCharsets.UTF_8);
+            ex.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+        });
+        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        server.start();
+
+        props = new AppProperties();
+        props.getLlm().setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        ObjectMapper om = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        client = new LlmClient(om, new StaticMessageSource());
+        ReflectionTestUtils.setField(client, "props", props);
+        ReflectionTestUtils.setField(client, "tracer", Tracer.NOOP);
+        ReflectionTestUtils.setField(client, "meterRegistry", new SimpleMeterRegistry());
+        client.getClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        answer.countDown();
+        server.stop(0);
+    }
+
+    private CompletableFuture<LlmResponse> ask() {
+        return client.chatAsync("m", List.of(Message.user("hola")), Map.of(), false);
+    }
+
+    @Test
+    void returnsBeforeTheLlmAnswers() throws Exception {
+        CompletableFuture<LlmResponse> response = ask();
+        assertThat(response).isNotDone();
+
+        answer.countDown();
+        LlmResponse resp = response.get(5, TimeUnit.SECONDS);
+        assertThat(resp.content()).isEqualTo("hola");
+        assertThat(resp.promptToken()).isEqualTo(7);
+        assertThat(resp.completionToken()).isEqualTo(3);
+    }
+
+    @Test
+    void limiterQueuesAsyncCallsWithoutBlocking() throws Exception {
+        props.getLimiter().setEnabled(true);
+        props.getLimiter().setInitialLimit(1);
+        props.getLimiter().setMaxLimit(1);
+
+        List<CompletableFuture<LlmResponse>> calls = List.of(ask(), ask(), ask());
+        assertThat(calls).noneMatch(CompletableFuture::isDone);
+
+        answer.countDown();
+        for (CompletableFuture<LlmResponse> call : calls) {
+            assertThat(call.get(5, TimeUnit.SECONDS).content()).isEqualTo("hola");
+        }
+    }
+
+    @Test
+    void providerErrorsFailTheFuture() {
+        status = 500;
+        answer.countDown();
+
+        assertThatThrownBy(() -> ask().get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(LlmProviderException.class);
+    }
+
+    @Test
+    void fallbacksKeepTheLlmReasons() {
+        CallNotPermittedException open = CallNotPermittedException.createCallNotPermittedException(CircuitBreaker.ofDefaults("llm"));
+        assertThatThrownBy(() -> client.fallback("m", List.of(), Map.of(), false, open).join())
+            .hasCauseInstanceOf(LlmOverloadedException.class);
+        assertThatThrownBy(() -> client.fallback("m", List.of(), Map.of(), false, new TimeoutException("8s")).join())
+            .hasCauseInstanceOf(LlmTimeoutException.class);
+    }
+}
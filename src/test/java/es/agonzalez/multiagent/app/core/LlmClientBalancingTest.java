@@ -0,0 +1,102 @@
+package es.agonzalez.multiagent.app.core;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmProviderException;
+import es.agonzalez.multiagent.app.core.models.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.tracing.Tracer;
+
+/**
+ * Varios servidores HTTP locales hacen de nodos Ollama: el pool reparte entre ellos y deja de enviar
+ * tráfico al que falla.
+ */
+class LlmClientBalancingTest {
+
+    private final List<HttpServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        servers.forEach(s -> s.stop(0));
+    }
+
+    private String node(int status, AtomicInteger hits) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/chat", ex -> {
+            ex.getRequestBody().readAllBytes();
+            hits.incrementAndGet();
+            byte[] bytes = "{\"message\":{\"role\":\"assistant\",\"content\":\"hola\"},\"done\":true}".getBytes(StandardCharsets.UTF_8);
+            ex.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+        });
+        server.start();
+        servers.add(server);
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    private LlmClient client(List<String> urls, SimpleMeterRegistry registry) {
+        AppProperties props = new AppProperties();
+        props.getLlm().setUrl(urls.get(0));
+        props.getLlm().setUrls(urls);
+        props.getLlm().setEjectFailures(2);
+        props.getLlm().setEjectMs(60_000);
+        ObjectMapper om = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        LlmClient client = new LlmClient(om, new StaticMessageSource());
+        ReflectionTestUtils.setField(client, "props", props);
+        ReflectionTestUtils.setField(client, "tracer", Tracer.NOOP);
+        ReflectionTestUtils.setField(client, "meterRegistry", registry);
+        client.getClient();
+        return client;
+    }
+
+    @Test
+    void spreadsLoadAcrossHealthyNodes() throws Exception {
+        AtomicInteger a = new AtomicInteger();
+        AtomicInteger b = new AtomicInteger();
+        LlmClient client = client(List.of(node(200, a), node(200, b)), new SimpleMeterRegistry());
+
+        for (int i = 0; i < 200; i++) {
+            assertThat(client.chat("m", List.of(Message.user("hola")), Map.of(), false).content()).isEqualTo("hola");
+        }
+        assertThat(a.get() + b.get()).isEqualTo(200);
+        assertThat(a.get()).isBetween(50, 150);
+    }
+
+    @Test
+    void failingNodeIsEjected() throws Exception {
+        AtomicInteger healthy = new AtomicInteger();
+        AtomicInteger broken = new AtomicInteger();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        LlmClient client = client(List.of(node(200, healthy), node(500, broken)), registry);
+
+        int errors = 0;
+        for (int i = 0; i < 100; i++) {
+            try {
+                client.chat("m", List.of(Message.user("hola")), Map.of(), false);
+            } catch (LlmProviderException e) {
+                errors++;
+            }
+        }
+        assertThat(broken.get()).isEqualTo(2);
+        assertThat(errors).isEqualTo(2);
+        assertThat(healthy.get()).isEqualTo(98);
+        assertThat(registry.get("llm.backend.ejections").counters()).extracting(c -> c.count()).containsExactlyInAnyOrder(0.0, 1.0);
+    }
+}
@@ -0,0 +1,103 @@
+package es.agonzalez.multiagent.app.core;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.core.models.LlmResponse;
+import es.agonzalez.multiagent.app.core.models.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.tracing.Tracer;
+
+/**
+ * Verifica que las llamadas con coalesce=true y payload idéntico comparten una sola petición HTTP.
+ */
+class LlmClientCoalesceTest {
+
+    private HttpServer server;
+    private LlmClient client;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/generate", ex -> {
+            ex.getRequestBody().readAllBytes();
+            int n = requests.incrementAndGet();
+            try { Thread.sleep(300); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            byte[] bytes = ("{\"response\":\"receta " + n + "\",\"done\":true}").getBytes(StandardCharsets.UTF_8);
+            ex.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+
+        AppProperties props = new AppProperties();
+        props.getLlm().setUrl("http://127.0.0.1:" + server.getAddress().getPort());
+        props.getLlm().setTimeoutMs(5000);
+        ObjectMapper om = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        client = new LlmClient(om, new StaticMessageSource());
+        ReflectionTestUtils.setField(client, "props", props);
+        ReflectionTestUtils.setField(client, "tracer", Tracer.NOOP);
+        ReflectionTestUtils.setField(client, "meterRegistry", new SimpleMeterRegistry());
+        client.getClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void identicalConcurrentCallsShareOneRequest() throws Exception {
+        List<LlmResponse> results = runConcurrently(6, i -> client.chat("m", List.of(Message.user("tortilla")), Map.of("temperature", 0.4), true, true));
+
+        assertThat(requests.get()).isEqualTo(1);
+        assertThat(results).extracting(LlmResponse::content).containsOnly("receta 1");
+    }
+
+    @Test
+    void withoutCoalesceOrWithDifferentPayloadEachCallIsSent() throws Exception {
+        runConcurrently(3, i -> client.chat("m", List.of(Message.user("tortilla")), Map.of(), true));
+        runConcurrently(3, i -> client.chat("m", List.of(Message.user("tortilla " + i)), Map.of(), true, true));
+
+        assertThat(requests.get()).isEqualTo(6);
+    }
+
+    private interface Call { LlmResponse run(int i); }
+
+    private static List<LlmResponse> runConcurrently(int n, Call call) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        try {
+            List<Future<LlmResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                final int idx = i;
+                futures.add(pool.submit(() -> call.run(idx)));
+            }
+            List<LlmResponse> out = new ArrayList<>();
+            for (Future<LlmResponse> f : futures) out.add(f.get());
+            return out;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package es.agonzalez.multiagent.app.core;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmProviderException;
+import es.agonzalez.multiagent.app.core.models.LlmResponse;
+import es.agonzalez.multiagent.app.core.models.Message;
+import io.micrometer.tracing.Tracer;
+
+/**
+ * Verifica que chatStream parsea el NDJSON de Ollama de forma incremental contra un servidor HTTP local.
+ */
+class LlmClientStreamTest {
+
+    private HttpServer server;
+    private LlmClient client;
+    private volatile String requestBody;
+    private volatile int status = 200;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/chat", ex -> {
+            requestBody = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            String body = status != 200 ? "boom" : String.join("\n",
+                "{\"message\":{\"role\":\"assistant\",\"content\":\"Hola\"},\"done\":false}",
+                "{\"message\":{\"role\":\"assistant\",\"content\":\", qué\"},\"done\":false}",
+                "{\"message\":{\"role\":\"assistant\",\"content\":\" tal\"},\"done\":false}",
+                "{\"message\":{\"role\":\"assistant\",\"content\":\"\"},\"done\":true,\"prompt_eval_count\":12,\"eval_count\":3}") + "\n";
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().add("Content-Type", "application/x-ndjson");
+            ex.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+        });
+        server.start();
+
+        AppProperties props = new AppProperties();
+        props.getLlm().setUrl("http://127.0.0.1:" + server.getAddress().getPort());
+        ObjectMapper om = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        client = new LlmClient(om, new StaticMessageSource());
+        ReflectionTestUtils.setField(client, "props", props);
+        ReflectionTestUtils.setField(client, "tracer", Tracer.NOOP);
+        client.getClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void chatStream_DeliversTokensIncrementallyAndAggregates() {
+        List<String> tokens = new ArrayList<>();
+        LlmResponse resp = client.chatStream("m", List.of(Message.user("hola")), Map.of("stream", false), false, tokens::add);
+
+        assertEquals(List.of("Hola", ", qué", " tal"), tokens);
+        assertEquals("Hola, qué tal", resp.content());
+        assertEquals(12, resp.promptToken());
+        assertEquals(3, resp.completionToken());
+        assertTrue(requestBody.contains("\"stream\":true"), "chatStream debe forzar stream=true aunque params diga lo contrario");
+    }
+
+    @Test
+    void chatStream_ProviderErrorThrows() {
+        status = 500;
+        assertThrows(LlmProviderException.class,
+            () -> client.chatStream("m", List.of(Message.user("hola")), Map.of(), false, t -> {}));
+    }
+}
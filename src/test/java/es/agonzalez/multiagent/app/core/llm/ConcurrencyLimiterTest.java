@@ -0,0 +1,227 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmOverloadedException;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmTimeoutException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ConcurrencyLimiterTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private ConcurrencyLimiter limiter(int initial, int max, int queueSize, long maxWaitMs) {
+        AppProperties.Limiter cfg = new AppProperties.Limiter();
+        cfg.setInitialLimit(initial);
+        cfg.setMaxLimit(max);
+        cfg.setQueueSize(queueSize);
+        cfg.setMaxWaitMs(maxWaitMs);
+        return new ConcurrencyLimiter("m", cfg, registry);
+    }
+
+    /** Ocupa un hueco hasta que se abre {@code release} */
+    private Future<String> hold(ConcurrencyLimiter limiter, CountDownLatch release) {
+        return executor.submit(() -> limiter.execute(true, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "retenida";
+        }));
+    }
+
+    private static void awaitUntil(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) Thread.sleep(5);
+        assertThat(condition.getAsBoolean()).isTrue();
+    }
+
+    @Test
+    void queuedCallRunsWhenSlotIsFreed() throws Exception {
+        ConcurrencyLimiter limiter = limiter(1, 1, 4, 2_000);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = hold(limiter, release);
+        awaitUntil(() -> limiter.inflight() == 1);
+
+        Future<String> queued = executor.submit(() -> limiter.<String>execute(true, () -> "encolada"));
+        awaitUntil(() -> limiter.waiting() == 1);
+        assertThat(registry.get("llm.limiter.queue").gauge().value()).isEqualTo(1);
+
+        release.countDown();
+        assertThat(first.get(2, TimeUnit.SECONDS)).isEqualTo("retenida");
+        assertThat(queued.get(2, TimeUnit.SECONDS)).isEqualTo("encolada");
+        assertThat(limiter.inflight()).isZero();
+        assertThat(registry.get("llm.limiter.wait").timer().count()).isEqualTo(2);
+    }
+
+    @Test
+    void fullQueueFailsFastWithOverloadedReason() throws Exception {
+        ConcurrencyLimiter limiter = limiter(1, 1, 1, 10_000);
+        CountDownLatch release = new CountDownLatch(1);
+        hold(limiter, release);
+        awaitUntil(() -> limiter.inflight() == 1);
+        executor.submit(() -> limiter.<String>execute(true, () -> "encolada"));
+        awaitUntil(() -> limiter.waiting() == 1);
+
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> limiter.execute(true, () -> "rechazada"))
+            .isInstanceOf(LlmOverloadedException.class)
+            .satisfies(e -> assertThat(((LlmOverloadedException) e).reason()).isEqualTo("overloaded"));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(1_000);
+        assertThat(registry.get("llm.limiter.rejected").tag("cause", "queue_full").counter().count()).isEqualTo(1);
+        release.countDown();
+    }
+
+    @Test
+    void waitLongerThanMaxWaitIsRejected() throws Exception {
+        ConcurrencyLimiter limiter = limiter(1, 1, 4, 50);
+        CountDownLatch release = new CountDownLatch(1);
+        hold(limiter, release);
+        awaitUntil(() -> limiter.inflight() == 1);
+
+        assertThatThrownBy(() -> limiter.execute(true, () -> "tarde")).isInstanceOf(LlmOverloadedException.class);
+        assertThat(registry.get("llm.limiter.rejected").tag("cause", "timeout").counter().count()).isEqualTo(1);
+        assertThat(limiter.waiting()).isZero();
+        release.countDown();
+    }
+
+    @Test
+    void asyncCallTakesTheSlotWhenTheHolderCompletes() throws Exception {
+        ConcurrencyLimiter limiter = limiter(1, 1, 4, 2_000);
+        CompletableFuture<String> response = new CompletableFuture<>();
+        CompletableFuture<String> first = limiter.executeAsync(true, () -> response);
+        assertThat(limiter.inflight()).isEqualTo(1);
+
+        // La espera es un future en la cola, no un hilo bloqueado
+        CompletableFuture<String> queued = limiter.executeAsync(true, () -> CompletableFuture.completedFuture("encolada"));
+        assertThat(limiter.waiting()).isEqualTo(1);
+        assertThat(queued).isNotDone();
+
+        response.complete("retenida");
+        assertThat(first.get(2, TimeUnit.SECONDS)).isEqualTo("retenida");
+        assertThat(queued.get(2, TimeUnit.SECONDS)).isEqualTo("encolada");
+        assertThat(limiter.inflight()).isZero();
+        assertThat(limiter.waiting()).isZero();
+    }
+
+    @Test
+    void asyncWaitLongerThanMaxWaitIsRejected() throws Exception {
+        ConcurrencyLimiter limiter = limiter(1, 1, 4, 50);
+        CompletableFuture<String> response = new CompletableFuture<>();
+        limiter.executeAsync(true, () -> response);
+
+        CompletableFuture<String> late = limiter.executeAsync(true, () -> CompletableFuture.completedFuture("tarde"));
+        assertThatThrownBy(() -> late.get(2, TimeUnit.SECONDS)).hasCauseInstanceOf(LlmOverloadedException.class);
+        assertThat(registry.get("llm.limiter.rejected").tag("cause", "timeout").counter().count()).isEqualTo(1);
+        assertThat(limiter.waiting()).isZero();
+
+        // El hueco liberado no se entrega a la espera ya rechazada
+        response.complete("ok");
+        assertThat(limiter.inflight()).isZero();
+    }
+
+    @Test
+    void syncAndAsyncWaitersShareOneFifo() throws Exception {
+        ConcurrencyLimiter limiter = limiter(1, 1, 4, 2_000);
+        CompletableFuture<String> response = new CompletableFuture<>();
+        limiter.executeAsync(true, () -> response);
+        List<String> order = java.util.Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<String> held = new CompletableFuture<>();
+
+        // La síncrona llega antes que la asíncrona: el hueco liberado debe ser suyo
+        Future<String> sync = executor.submit(() -> limiter.<String>execute(true, () -> {
+            order.add("sync");
+            return held.join();
+        }));
+        awaitUntil(() -> limiter.waiting() == 1);
+        CompletableFuture<String> async = limiter.executeAsync(true, () -> {
+            order.add("async");
+            return CompletableFuture.completedFuture("async");
+        });
+        assertThat(limiter.waiting()).isEqualTo(2);
+
+        response.complete("retenida");
+        awaitUntil(() -> order.size() == 1);
+        assertThat(order).containsExactly("sync");
+        assertThat(async).isNotDone();
+
+        held.complete("sync");
+        assertThat(sync.get(2, TimeUnit.SECONDS)).isEqualTo("sync");
+        assertThat(async.get(2, TimeUnit.SECONDS)).isEqualTo("async");
+        assertThat(order).containsExactly("sync", "async");
+        assertThat(limiter.inflight()).isZero();
+        assertThat(limiter.waiting()).isZero();
+    }
+
+    @Test
+    void limitGrowsWhileLatencyIsStable() {
+        AppProperties.Limiter cfg = new AppProperties.Limiter();
+        cfg.setInitialLimit(2);
+        AtomicLong clock = new AtomicLong();
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("m", cfg, clock::get, null);
+        for (int i = 0; i < 10; i++) limiter.<String>execute(true, () -> {
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+            return "ok";
+        });
+        assertThat(limiter.limit()).isGreaterThan(2);
+    }
+
+    @Test
+    void limitShrinksWhenLatencyClimbsUnderLoad() throws Exception {
+        ConcurrencyLimiter limiter = limiter(16, 16, 64, 5_000);
+        runRounds(limiter, 4, 5);
+        assertThat(limiter.limit()).isEqualTo(16);
+
+        runRounds(limiter, 3, 150);
+        assertThat(limiter.limit()).isLessThan(16);
+        assertThat(registry.get("llm.limiter.limit").gauge().value()).isEqualTo(limiter.limit());
+    }
+
+    @Test
+    void timeoutsCutTheLimit() {
+        ConcurrencyLimiter limiter = limiter(10, 10, 0, 0);
+        assertThatThrownBy(() -> limiter.execute(true, () -> { throw new LlmTimeoutException("timeout", null); }))
+            .isInstanceOf(LlmTimeoutException.class);
+        assertThat(limiter.limit()).isEqualTo(9);
+        assertThat(limiter.inflight()).isZero();
+    }
+
+    /** {@code rounds} tandas de 16 llamadas concurrentes de {@code sleepMs} cada una */
+    private void runRounds(ConcurrencyLimiter limiter, int rounds, long sleepMs) throws Exception {
+        for (int r = 0; r < rounds; r++) {
+            List<Future<String>> calls = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                calls.add(executor.submit(() -> limiter.<String>execute(true, () -> {
+                    try {
+                        Thread.sleep(sleepMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "ok";
+                })));
+            }
+            for (Future<String> f : calls) f.get(5, TimeUnit.SECONDS);
+        }
+    }
+}
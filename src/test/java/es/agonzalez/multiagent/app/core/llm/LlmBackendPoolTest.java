@@ -0,0 +1,92 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import org.junit.jupiter.api.Test;
+
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmProviderException;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmUnknownException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class LlmBackendPoolTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private LlmBackendPool pool(String... urls) {
+        return new LlmBackendPool("default", List.of(urls), 2, 1000, 10_000, now::get, registry);
+    }
+
+    private static void fail(LlmBackendPool pool, String url, RuntimeException e) {
+        assertThatThrownBy(() -> pool.execute(base -> {
+            if (base.equals(url)) throw e;
+            throw new IllegalStateException("backend inesperado " + base);
+        })).isSameAs(e);
+    }
+
+    @Test
+    void prefersBackendWithFewerRequestsInFlight() {
+        LlmBackendPool pool = pool("a", "b");
+        // "a" ocupado con una llamada larga: las siguientes van a "b"
+        String routed = pool.<String>execute(first -> pool.<String>execute(second -> first + second));
+        assertThat(routed).isIn("ab", "ba");
+        assertThat(registry.get("llm.backend.inflight").tag("backend", "a").gauge().value()).isZero();
+    }
+
+    @Test
+    void consecutiveBackendFailuresEjectAndSlowStartRampsBack() {
+        LlmBackendPool pool = pool("a", "b");
+        // El enrutado es aleatorio: se repite hasta que "a" acumula dos fallos seguidos
+        int failures = 0;
+        while (failures < 2) {
+            try {
+                pool.execute(base -> {
+                    if (base.equals("a")) throw new LlmProviderException(503, "busy");
+                    return base;
+                });
+            } catch (LlmProviderException e) {
+                failures++;
+            }
+        }
+        assertThat(registry.get("llm.backend.ejections").tag("backend", "a").counter().count()).isEqualTo(1);
+        assertThat(registry.get("llm.backend.available").tag("backend", "a").gauge().value()).isZero();
+        for (int i = 0; i < 50; i++) assertThat(pool.<String>execute(base -> base)).isEqualTo("b");
+
+        now.addAndGet(Duration.ofMillis(1000).toNanos()); // fin de la expulsión: empieza el slow-start
+        assertThat(registry.get("llm.backend.available").tag("backend", "a").gauge().value()).isEqualTo(1);
+        Map<String, Integer> hits = new HashMap<>();
+        for (int i = 0; i < 1000; i++) hits.merge(pool.<String>execute(base -> base), 1, Integer::sum);
+        // Sin carga en vuelo ambos empatan a 1 petición; el peso 0.1 de "a" hace que siempre gane "b"
+        assertThat(hits).containsOnlyKeys("b");
+
+        now.addAndGet(Duration.ofMillis(10_000).toNanos());
+        hits.clear();
+        for (int i = 0; i < 1000; i++) hits.merge(pool.<String>execute(base -> base), 1, Integer::sum);
+        assertThat(hits.get("a")).isGreaterThan(300);
+    }
+
+    @Test
+    void clientErrorsDoNotEject() {
+        LlmBackendPool pool = pool("a");
+        for (int i = 0; i < 5; i++) fail(pool, "a", new LlmProviderException(404, "model not found"));
+        assertThat(registry.get("llm.backend.ejections").counter().count()).isZero();
+    }
+
+    @Test
+    void failureDuringSlowStartEjectsImmediately() {
+        LlmBackendPool pool = pool("a");
+        fail(pool, "a", new LlmUnknownException("io_error", null));
+        fail(pool, "a", new LlmUnknownException("io_error", null));
+        now.addAndGet(Duration.ofMillis(1500).toNanos());
+        fail(pool, "a", new LlmUnknownException("io_error", null));
+        assertThat(registry.get("llm.backend.ejections").counter().count()).isEqualTo(2);
+        // Todos expulsados: se sigue intentando con el que antes vuelve
+        assertThat(pool.<String>execute(base -> base)).isEqualTo("a");
+    }
+}
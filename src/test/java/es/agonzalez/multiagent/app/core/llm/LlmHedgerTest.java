@@ -0,0 +1,132 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.Test;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmTimeoutException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.tracing.Tracer;
+
+class LlmHedgerTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+
+    private LlmHedger hedger(int budgetPercent) {
+        AppProperties.Hedge cfg = new AppProperties.Hedge();
+        cfg.setMinSamples(5);
+        cfg.setMinDelayMs(20);
+        cfg.setBudgetPercent(budgetPercent);
+        return new LlmHedger(cfg, Tracer.NOOP, registry);
+    }
+
+    private LlmBackendPool pool(String... urls) {
+        return new LlmBackendPool("default", List.of(urls), 3, 1000, 0, registry);
+    }
+
+    /** La primera invocación se queda colgada hasta que la cancelan; las demás responden al momento */
+    private Function<String, String> firstCallHangs() {
+        AtomicInteger calls = new AtomicInteger();
+        return base -> {
+            if (calls.getAndIncrement() > 0) return "rápido@" + base;
+            try {
+                Thread.sleep(5_000);
+                return "lento@" + base;
+            } catch (InterruptedException e) {
+                cancelled.countDown();
+                Thread.currentThread().interrupt();
+                throw new LlmTimeoutException("interrupted", e);
+            }
+        };
+    }
+
+    private static void warmUp(LlmHedger hedger, LlmBackendPool pool) {
+        for (int i = 0; i < 50; i++) hedger.execute("m", pool, base -> "ok");
+    }
+
+    @Test
+    void slowCallIsHedgedOnAnotherBackendAndLoserCancelled() throws Exception {
+        LlmHedger hedger = hedger(5);
+        LlmBackendPool pool = pool("a", "b");
+        warmUp(hedger, pool);
+
+        long start = System.nanoTime();
+        String out = hedger.execute("m", pool, firstCallHangs());
+
+        assertThat(out).startsWith("rápido@");
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(2_000);
+        assertThat(cancelled.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(registry.get("llm.hedge.sent").counter().count()).isEqualTo(1);
+        assertThat(registry.get("llm.hedge.won").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void closedHedgerRunsCallsWithoutCopies() {
+        LlmHedger hedger = hedger(100);
+        LlmBackendPool pool = pool("a", "b");
+        warmUp(hedger, pool);
+        hedger.close(1_000);
+
+        String out = hedger.execute("m", pool, base -> "ok@" + base);
+        assertThat(out).startsWith("ok@");
+        assertThat(registry.get("llm.hedge.sent").counter().count()).isZero();
+    }
+
+    @Test
+    void hedgesGoToTheOtherBackend() {
+        LlmHedger hedger = hedger(5);
+        LlmBackendPool pool = pool("a", "b");
+        warmUp(hedger, pool);
+
+        AtomicInteger calls = new AtomicInteger();
+        String[] primary = new String[1];
+        String out = hedger.execute("m", pool, base -> {
+            if (calls.getAndIncrement() == 0) {
+                primary[0] = base;
+                try { Thread.sleep(5_000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                throw new LlmTimeoutException("interrupted", null);
+            }
+            return base;
+        });
+        assertThat(out).isNotEqualTo(primary[0]);
+    }
+
+    @Test
+    void withoutBudgetTheCallIsNotDuplicated() {
+        LlmHedger hedger = hedger(0);
+        LlmBackendPool pool = pool("a", "b");
+        warmUp(hedger, pool);
+
+        AtomicInteger calls = new AtomicInteger();
+        String out = hedger.execute("m", pool, base -> {
+            calls.incrementAndGet();
+            try { Thread.sleep(200); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            return "único";
+        });
+
+        assertThat(out).isEqualTo("único");
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(registry.get("llm.hedge.denied").counter().count()).isEqualTo(1);
+        assertThat(registry.get("llm.hedge.sent").counter().count()).isZero();
+    }
+
+    @Test
+    void singleBackendOrColdModelRunsInline() {
+        LlmHedger hedger = hedger(100);
+        String caller = Thread.currentThread().getName();
+        // Sin muestras del modelo: se ejecuta en el hilo llamante, sin copia
+        assertThat(hedger.<String>execute("frío", pool("a", "b"), base -> Thread.currentThread().getName())).isEqualTo(caller);
+
+        LlmBackendPool single = pool("a");
+        warmUp(hedger, single);
+        assertThat(hedger.<String>execute("m", single, base -> Thread.currentThread().getName())).isEqualTo(caller);
+        assertThat(registry.get("llm.hedge.sent").counter().count()).isZero();
+    }
+}
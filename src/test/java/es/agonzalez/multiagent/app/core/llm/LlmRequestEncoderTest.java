@@ -0,0 +1,69 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import es.agonzalez.multiagent.app.core.models.Message;
+
+class LlmRequestEncoderTest {
+
+    private final ObjectMapper om = new ObjectMapper();
+    private final LlmRequestEncoder encoder = new LlmRequestEncoder(om);
+
+    @Test
+    void encodesChatPayloadWithPreEncodedConstantsAndParams() throws Exception {
+        String sys = "Eres \"Botty\"\nresponde en español ñ ✓\t";
+        encoder.preEncode(sys);
+        Map<String, Object> defaults = Map.of("temperature", 0.4, "stream", true, "model", "otro");
+
+        byte[] bytes = encoder.encode("m1", List.of(Message.system(sys), Message.user("hola"), new Message("tool", "x")), defaults, false, false);
+        JsonNode json = om.readTree(bytes);
+
+        assertEquals("m1", json.get("model").asText());
+        assertFalse(json.get("stream").asBoolean(), "stream lo fija el cliente, no los params");
+        assertEquals(0.4, json.get("temperature").asDouble());
+        assertEquals(sys, json.get("messages").get(0).get("content").asText());
+        assertEquals("system", json.get("messages").get(0).get("role").asText());
+        assertEquals("tool", json.get("messages").get(2).get("role").asText());
+        assertEquals(4, json.size());
+
+        // Segunda llamada con la misma instancia de params (fragmento cacheado) y buffer reutilizado
+        JsonNode second = om.readTree(encoder.encode("m2", List.of(Message.user("prompt")), defaults, true, true));
+        assertEquals("prompt", second.get("prompt").asText());
+        assertEquals(true, second.get("stream").asBoolean());
+        assertEquals(0.4, second.get("temperature").asDouble());
+        assertEquals(4, second.size());
+    }
+
+    @Test
+    void encodesWithoutParams() throws Exception {
+        JsonNode json = om.readTree(encoder.encode("m", List.of(Message.user(null)), null, false, false));
+        assertEquals(3, json.size());
+        assertEquals(true, json.get("messages").get(0).get("content").isNull());
+    }
+
+    @Test
+    void addsKeepAliveUnlessParamsOverrideIt() throws Exception {
+        encoder.keepAlive("30m");
+        JsonNode json = om.readTree(encoder.encode("m", List.of(Message.user("hola")), null, false, false));
+        assertEquals("30m", json.get("keep_alive").asText());
+
+        encoder.keepAlive("-1");
+        json = om.readTree(encoder.encode("m", List.of(Message.user("hola")), null, false, false));
+        assertEquals(-1, json.get("keep_alive").asLong());
+
+        json = om.readTree(encoder.encode("m", List.of(Message.user("hola")), Map.of("keep_alive", "5m"), false, false));
+        assertEquals("5m", json.get("keep_alive").asText());
+        assertEquals(4, json.size(), "sin keep_alive duplicado");
+
+        encoder.keepAlive(" ");
+        assertFalse(om.readTree(encoder.encode("m", List.of(Message.user("hola")), null, false, false)).has("keep_alive"));
+    }
+}
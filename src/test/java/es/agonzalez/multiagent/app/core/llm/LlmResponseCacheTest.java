@@ -0,0 +1,132 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.core.models.LlmResponse;
+import es.agonzalez.multiagent.app.core.models.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class LlmResponseCacheTest {
+
+    @TempDir
+    Path tmp;
+
+    private AppProperties props;
+    private SimpleMeterRegistry registry;
+    private final AtomicInteger calls = new AtomicInteger();
+    private final Map<String, Object> defaults = Map.of("temperature", 0.2, "num_ctx", 2048);
+
+    @BeforeEach
+    void setup() {
+        props = new AppProperties();
+        props.setDatadir(tmp.toString());
+        registry = new SimpleMeterRegistry();
+    }
+
+    private LlmResponseCache newCache(Clock clock) throws Exception {
+        LlmResponseCache cache = new LlmResponseCache();
+        ReflectionTestUtils.setField(cache, "props", props);
+        ReflectionTestUtils.setField(cache, "meterRegistry", registry);
+        ReflectionTestUtils.setField(cache, "clock", clock);
+        cache.init();
+        return cache;
+    }
+
+    private LlmResponse ask(LlmResponseCache cache, String user, boolean bypass) {
+        List<Message> msgs = List.of(Message.system("Eres un chef"), Message.user(user));
+        return cache.getOrLoad("llama3.2:3b", msgs, defaults, false, bypass,
+            () -> new LlmResponse("receta " + calls.incrementAndGet(), 10, 20));
+    }
+
+    @Test
+    void normalizedPromptsHitAndBypassSkipsCache() throws Exception {
+        LlmResponseCache cache = newCache(Clock.systemUTC());
+
+        assertThat(ask(cache, "tortilla de patatas", false).content()).isEqualTo("receta 1");
+        assertThat(ask(cache, "  tortilla   de\npatatas ", false).content()).isEqualTo("receta 1");
+        assertThat(ask(cache, "tortilla de patatas", true).content()).isEqualTo("receta 2");
+        assertThat(ask(cache, "paella", false).content()).isEqualTo("receta 3");
+
+        assertThat(registry.get("llm.cache.hits").functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get("llm.cache.misses").functionCounter().count()).isEqualTo(2);
+        assertThat(registry.get("llm.cache.bypass").counter().count()).isEqualTo(1);
+        assertThat(registry.get("llm.cache.hit.ratio").gauge().value()).isEqualTo(1.0 / 3);
+    }
+
+    @Test
+    void keyDependsOnModelAndParams() throws Exception {
+        LlmResponseCache cache = newCache(Clock.systemUTC());
+        List<Message> msgs = List.of(Message.user("hola"));
+        String k = cache.key("m1", msgs, Map.of("a", 1, "b", 2), false);
+        assertThat(cache.key("m1", msgs, new LinkedHashMap<>(Map.of("b", 2, "a", 1)), false)).isEqualTo(k);
+        assertThat(cache.key("m2", msgs, Map.of("a", 1, "b", 2), false)).isNotEqualTo(k);
+        assertThat(cache.key("m1", msgs, Map.of("a", 1, "b", 3), false)).isNotEqualTo(k);
+        assertThat(cache.key("m1", msgs, Map.of("a", 1, "b", 2), true)).isNotEqualTo(k);
+    }
+
+    @Test
+    void entriesExpireAfterTtl() throws Exception {
+        props.getResponseCache().setTtlMs(60_000);
+        MutableClock clock = new MutableClock();
+        LlmResponseCache cache = newCache(clock);
+
+        ask(cache, "gazpacho", false);
+        clock.advance(Duration.ofSeconds(30));
+        assertThat(ask(cache, "gazpacho", false).content()).isEqualTo("receta 1");
+        clock.advance(Duration.ofSeconds(31));
+        assertThat(ask(cache, "gazpacho", false).content()).isEqualTo("receta 2");
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedBeyondMaxBytes() throws Exception {
+        props.getResponseCache().setMaxBytes(450); // dos entradas cortas
+        LlmResponseCache cache = newCache(Clock.systemUTC());
+
+        ask(cache, "a", false);
+        ask(cache, "b", false);
+        ask(cache, "a", false); // "a" pasa a ser la más reciente
+        ask(cache, "c", false); // expulsa "b"
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(ask(cache, "a", false).content()).isEqualTo("receta 1");
+        assertThat(ask(cache, "b", false).content()).isEqualTo("receta 4");
+        assertThat(registry.get("llm.cache.evictions").counter().count()).isGreaterThanOrEqualTo(1);
+    }
+
+    @Test
+    void persistedEntriesSurviveRestart() throws Exception {
+        props.getResponseCache().setPersist(true);
+        ask(newCache(Clock.systemUTC()), "cocido", false);
+        assertThat(Files.list(tmp.resolve("llm-cache"))).hasSize(1);
+
+        LlmResponse again = ask(newCache(Clock.systemUTC()), "cocido", false);
+        assertThat(again.content()).isEqualTo("receta 1");
+        assertThat(again.completionToken()).isEqualTo(20);
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    private static final class MutableClock extends Clock {
+        private Instant now = Instant.parse("2025-01-01T00:00:00Z");
+        void advance(Duration d) { now = now.plus(d); }
+        @Override public ZoneOffset getZone() { return ZoneOffset.UTC; }
+        @Override public Clock withZone(ZoneId zone) { return this; }
+        @Override public Instant instant() { return now; }
+    }
+}
@@ -0,0 +1,287 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.config.MetricsService;
+import es.agonzalez.multiagent.app.core.LlmClient;
+import es.agonzalez.multiagent.app.core.ModelRegistry;
+import es.agonzalez.multiagent.app.core.models.LlmResponse;
+import es.agonzalez.multiagent.app.core.models.Message;
+import es.agonzalez.multiagent.app.core.selectors.ModelSelectors;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatContext;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatInput;
+import es.agonzalez.multiagent.app.core.workflows.chat.steps.GenerateStep;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.tracing.Tracer;
+
+/**
+ * Un servidor HTTP local hace de /api/embeddings de Ollama con vectores fijos por texto: las paráfrasis
+ * tienen vectores casi paralelos y el resto ortogonales.
+ */
+class SemanticCacheTest {
+
+    private static final Map<String, String> VECTORS = Map.of(
+        "qué ceno hoy", "[1.0, 0.0, 0.0]",
+        "qué puedo cenar hoy", "[0.96, 0.28, 0.0]",
+        "¿qué hago de cena?", "[0.8, 0.6, 0.0]",
+        "tiempo en madrid", "[0.0, 0.0, 2.0]");
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private final AtomicInteger embeddings = new AtomicInteger();
+    private final Map<String, Integer> prompts = new ConcurrentHashMap<>();
+    private final ModelRegistry models = mock(ModelRegistry.class);
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final ObjectMapper om = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private AppProperties props;
+    private LlmClient client;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/embeddings", ex -> {
+            var body = om.readTree(ex.getRequestBody());
+            embeddings.incrementAndGet();
+            String prompt = body.get("prompt").asText();
+            prompts.merge(body.get("model").asText() + ":" + prompt, 1, Integer::sum);
+            String vector = VECTORS.get(prompt.toLowerCase());
+            byte[] bytes = (vector == null ? "{\"error\":\"model not found\"}" : "{\"embedding\":" + vector + "}")
+                .getBytes(StandardCharsets.UTF_8);
+            ex.sendResponseHeaders(vector == null ? 500 : 200, bytes.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+        });
+        server.start();
+
+        props = new AppProperties();
+        props.setDatadir(dir.toString());
+        props.getLlm().setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        props.getSemanticCache().setEnabled(true);
+        props.getSemanticCache().setEmbedModel("embed");
+        props.getSemanticCache().setThreshold(0.9);
+        client = new LlmClient(om, new StaticMessageSource());
+        ReflectionTestUtils.setField(client, "props", props);
+        ReflectionTestUtils.setField(client, "tracer", Tracer.NOOP);
+        ReflectionTestUtils.setField(client, "meterRegistry", registry);
+        client.getClient();
+        when(models.usesSemanticCache("Agent.Chat")).thenReturn(true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    private SemanticCache cache() throws Exception {
+        SemanticCache cache = new SemanticCache();
+        ReflectionTestUtils.setField(cache, "props", props);
+        ReflectionTestUtils.setField(cache, "client", client);
+        ReflectionTestUtils.setField(cache, "models", models);
+        ReflectionTestUtils.setField(cache, "meterRegistry", registry);
+        cache.init();
+        return cache;
+    }
+
+    private static LlmResponse ask(SemanticCache cache, String agent, String model, String query, AtomicInteger calls) {
+        return cache.getOrLoad(agent, model, query, () -> new LlmResponse("respuesta " + calls.incrementAndGet(), 10, 5));
+    }
+
+    @Test
+    void paraphraseIsServedFromCache() throws Exception {
+        SemanticCache cache = cache();
+        AtomicInteger calls = new AtomicInteger();
+
+        assertThat(ask(cache, "Agent.Chat", "m", "qué ceno hoy", calls).content()).isEqualTo("respuesta 1");
+        LlmResponse cached = ask(cache, "Agent.Chat", "m", "  Qué puedo   cenar hoy ", calls);
+
+        assertThat(cached.content()).isEqualTo("respuesta 1");
+        assertThat(cached.promptToken()).isEqualTo(-1);
+        assertThat(calls.get()).isEqualTo(1);
+        // El texto se normaliza antes de pedir el embedding y se usa el modelo configurado
+        assertThat(prompts).containsKey("embed:Qué puedo cenar hoy");
+        assertThat(registry.get("llm.semantic.hits").functionCounter().count()).isEqualTo(1.0);
+        assertThat(registry.get("llm.semantic.misses").functionCounter().count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void belowThresholdCallsTheLlm() throws Exception {
+        SemanticCache cache = cache();
+        AtomicInteger calls = new AtomicInteger();
+
+        ask(cache, "Agent.Chat", "m", "qué ceno hoy", calls);
+        // coseno 0.8 < 0.9
+        assertThat(ask(cache, "Agent.Chat", "m", "¿Qué hago de cena?", calls).content()).isEqualTo("respuesta 2");
+        assertThat(ask(cache, "Agent.Chat", "m", "tiempo en Madrid", calls).content()).isEqualTo("respuesta 3");
+        assertThat(cache.size()).isEqualTo(3);
+    }
+
+    @Test
+    void entriesAreScopedByAgentAndModel() throws Exception {
+        when(models.usesSemanticCache("Agent.Recipe")).thenReturn(true);
+        SemanticCache cache = cache();
+        AtomicInteger calls = new AtomicInteger();
+
+        ask(cache, "Agent.Chat", "m", "qué ceno hoy", calls);
+        assertThat(ask(cache, "Agent.Chat", "otro", "qué ceno hoy", calls).content()).isEqualTo("respuesta 2");
+        assertThat(ask(cache, "Agent.Recipe", "m", "qué ceno hoy", calls).content()).isEqualTo("respuesta 3");
+    }
+
+    @Test
+    void chatAnswersAreNotSharedAcrossUsers() throws Exception {
+        // El LLM contesta con lo que sólo está en el contexto de cada usuario (su resumen)
+        client = spy(client);
+        doAnswer(inv -> {
+            List<Message> sent = inv.getArgument(1);
+            return new LlmResponse("respuesta para " + sent.get(1).content(), 10, 5);
+        }).when(client).chat(anyString(), anyList(), any(), eq(false), any());
+        ModelSelectors selectors = mock(ModelSelectors.class);
+        when(selectors.pick(eq("Agent.Chat"), anyString())).thenReturn("m");
+        GenerateStep step = new GenerateStep(client, models, selectors, mock(MetricsService.class), null, cache());
+
+        ChatContext alice = new ChatContext();
+        alice.setSummary("alice vive en Vigo");
+        step.apply(new ChatInput("alice", "", "qué ceno hoy", "chat"), alice);
+        ChatContext bob = new ChatContext();
+        bob.setSummary("bob es vegano");
+        step.apply(new ChatInput("bob", "", "qué ceno hoy", "chat"), bob);
+        ChatContext again = new ChatContext();
+        again.setSummary("alice vive en Vigo");
+        step.apply(new ChatInput("alice", "", "qué puedo cenar hoy", "chat"), again);
+
+        assertThat(alice.getAnswer()).contains("alice vive en Vigo");
+        assertThat(bob.getAnswer()).contains("bob es vegano").doesNotContain("alice");
+        // El mismo usuario sí reutiliza su respuesta
+        assertThat(again.getAnswer()).isEqualTo(alice.getAnswer());
+        assertThat(registry.get("llm.semantic.hits").functionCounter().count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void agentsNotListedInModelsYamlSkipTheCache() throws Exception {
+        SemanticCache cache = cache();
+        AtomicInteger calls = new AtomicInteger();
+
+        ask(cache, "Agent.Recipe", "m", "qué ceno hoy", calls);
+        ask(cache, "Agent.Recipe", "m", "qué ceno hoy", calls);
+
+        assertThat(calls.get()).isEqualTo(2);
+        assertThat(embeddings.get()).isZero();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void embeddingFailuresFallBackToTheLlm() throws Exception {
+        SemanticCache cache = cache();
+        AtomicInteger calls = new AtomicInteger();
+
+        assertThat(ask(cache, "Agent.Chat", "m", "sin vector", calls).content()).isEqualTo("respuesta 1");
+        assertThat(cache.size()).isZero();
+        assertThat(registry.get("llm.semantic.errors").counter().count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void expiredEntriesAreNotServed() throws Exception {
+        props.getSemanticCache().setTtlMs(60_000);
+        SemanticCache cache = cache();
+        Instant t0 = Instant.parse("2026-01-01T00:00:00Z");
+        ReflectionTestUtils.setField(cache, "clock", Clock.fixed(t0, ZoneOffset.UTC));
+        AtomicInteger calls = new AtomicInteger();
+
+        ask(cache, "Agent.Chat", "m", "qué ceno hoy", calls);
+        ReflectionTestUtils.setField(cache, "clock", Clock.fixed(t0.plusSeconds(61), ZoneOffset.UTC));
+
+        assertThat(ask(cache, "Agent.Chat", "m", "qué ceno hoy", calls).content()).isEqualTo("respuesta 2");
+        // La entrada caducada se descarta al insertar la nueva
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    void leastRecentlyUsedEntryIsEvictedWhenFull() throws Exception {
+        props.getSemanticCache().setMaxEntries(2);
+        SemanticCache cache = cache();
+        Instant t0 = Instant.parse("2026-01-01T00:00:00Z");
+        AtomicInteger calls = new AtomicInteger();
+
+        ReflectionTestUtils.setField(cache, "clock", Clock.fixed(t0, ZoneOffset.UTC));
+        ask(cache, "Agent.Chat", "m", "qué ceno hoy", calls);
+        ReflectionTestUtils.setField(cache, "clock", Clock.fixed(t0.plusSeconds(1), ZoneOffset.UTC));
+        ask(cache, "Agent.Chat", "m", "tiempo en Madrid", calls);
+        ReflectionTestUtils.setField(cache, "clock", Clock.fixed(t0.plusSeconds(2), ZoneOffset.UTC));
+        ask(cache, "Agent.Chat", "m", "qué puedo cenar hoy", calls); // acierto: refresca la primera
+        ReflectionTestUtils.setField(cache, "clock", Clock.fixed(t0.plusSeconds(3), ZoneOffset.UTC));
+        ask(cache, "Agent.Chat", "m", "¿Qué hago de cena?", calls);
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(registry.get("llm.semantic.evictions").counter().count()).isEqualTo(1.0);
+        assertThat(ask(cache, "Agent.Chat", "m", "qué ceno hoy", calls).content()).isEqualTo("respuesta 1");
+        assertThat(ask(cache, "Agent.Chat", "m", "tiempo en Madrid", calls).content()).isEqualTo("respuesta 4");
+    }
+
+    @Test
+    void indexSurvivesRestarts() throws Exception {
+        SemanticCache cache = cache();
+        AtomicInteger calls = new AtomicInteger();
+        ask(cache, "Agent.Chat", "m", "qué ceno hoy", calls);
+        cache.close();
+        assertThat(Files.exists(dir.resolve("semantic-cache").resolve("index.bin"))).isTrue();
+
+        SemanticCache restarted = cache();
+        assertThat(restarted.size()).isEqualTo(1);
+        assertThat(ask(restarted, "Agent.Chat", "m", "qué puedo cenar hoy", calls).content()).isEqualTo("respuesta 1");
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    void corruptIndexStartsEmpty() throws Exception {
+        Files.createDirectories(dir.resolve("semantic-cache"));
+        Files.write(dir.resolve("semantic-cache").resolve("index.bin"), new byte[] {1, 2, 3});
+
+        assertThat(cache().size()).isZero();
+    }
+
+    @Test
+    void dotProductMatchesNaiveLoop() {
+        float[] a = new float[13];
+        float[] b = new float[13];
+        double expected = 0;
+        for (int i = 0; i < a.length; i++) {
+            a[i] = i * 0.5f;
+            b[i] = 1 - i * 0.1f;
+            expected += a[i] * b[i];
+        }
+        assertThat(SemanticCache.dot(a, b)).isCloseTo(expected, org.assertj.core.data.Offset.offset(1e-4));
+        assertThat(SemanticCache.normalized(new float[3])).isNull();
+    }
+}
@@ -0,0 +1,69 @@
+package es.agonzalez.multiagent.app.core.llm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class SingleFlightTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final SingleFlight<String, String> flights = new SingleFlight<>("test.coalesce", registry);
+
+    @Test
+    void concurrentCallersShareOneExecution() throws Exception {
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(pool.submit(() -> flights.run("k", () -> {
+                executions.incrementAndGet();
+                started.countDown();
+                await(release);
+                return "v";
+            })));
+            started.await(2, TimeUnit.SECONDS);
+            for (int i = 0; i < 7; i++) {
+                results.add(pool.submit(() -> flights.run("k", () -> "otra " + executions.incrementAndGet())));
+            }
+            long deadline = System.currentTimeMillis() + 2000;
+            while (registry.get("test.coalesce.joined").counter().count() < 7 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<String> f : results) assertThat(f.get(2, TimeUnit.SECONDS)).isEqualTo("v");
+        } finally {
+            pool.shutdownNow();
+        }
+        assertThat(executions.get()).isEqualTo(1);
+        assertThat(registry.get("test.coalesce.subscribers").summary().max()).isEqualTo(8);
+        assertThat(flights.inFlight()).isZero();
+    }
+
+    @Test
+    void failuresPropagateAndAreNotRemembered() {
+        assertThatThrownBy(() -> flights.run("k", () -> { throw new IllegalStateException("boom"); }))
+            .isInstanceOf(IllegalStateException.class);
+        assertThat(flights.run("k", () -> "ok")).isEqualTo("ok");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package es.agonzalez.multiagent.app.core.workflows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class StepGraphTest {
+
+    enum K { X, Y, Z, SIDE, W, ANSWER, MEMORY, S, RESULT }
+
+    /** Contexto de prueba: un slot por clave */
+    private static final class Ctx {
+        final Map<K, String> slots = new ConcurrentHashMap<>();
+    }
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+    private final List<String> ran = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    private Step<String, String, Ctx> put(String name, K key) {
+        return (in, ctx) -> { ran.add(name); ctx.slots.put(key, name); return Optional.empty(); };
+    }
+
+    private Step<String, String, Ctx> result(String name) {
+        return (in, ctx) -> { ran.add(name); return Optional.of(name); };
+    }
+
+    @Test
+    void levelsFollowDeclaredKeys() {
+        StepGraph<String, String, Ctx> g = StepGraph.<String, String, Ctx>builder("t")
+            .step("a", put("a", K.X), Set.of(), Set.of(K.X))
+            .step("b", put("b", K.Y), Set.of(), Set.of(K.Y))
+            .step("c", put("c", K.Z), Set.of(K.X, K.Y), Set.of(K.Z))
+            .step("d", put("d", K.SIDE), Set.of(K.Z), Set.of(K.SIDE))
+            .step("e", result("e"), Set.of(K.Z), Set.of())
+            .step("f", put("f", K.W), Set.of(K.SIDE), Set.of(K.W))
+            .build();
+
+        assertThat(g.describe()).containsExactly(List.of("a", "b"), List.of("c"), List.of("d", "e"), List.of("f"));
+    }
+
+    @Test
+    void independentStepsRunConcurrently() {
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        Step<String, String, Ctx> meet = (in, ctx) -> {
+            try {
+                barrier.await(2, TimeUnit.SECONDS); // sólo pasa si el otro paso corre a la vez
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return Optional.empty();
+        };
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        StepGraph<String, String, Ctx> g = StepGraph.<String, String, Ctx>builder("t")
+            .executor(pool)
+            .meterRegistry(registry)
+            .step("a", meet, Set.of(), Set.of(K.X))
+            .step("b", meet, Set.of(), Set.of(K.Y))
+            .step("c", result("c"), Set.of(K.X, K.Y), Set.of())
+            .build();
+
+        assertThat(g.run("in", new Ctx())).contains("c");
+        assertThat(registry.get("workflow.step.duration").tags("workflow", "t", "step", "a").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    void firstDeclaredResultWinsAndLaterStepsAreSkipped() {
+        StepGraph<String, String, Ctx> g = StepGraph.<String, String, Ctx>builder("t")
+            .executor(pool)
+            .step("gen", put("gen", K.ANSWER), Set.of(), Set.of(K.ANSWER))
+            .step("append", result("append-error"), Set.of(K.ANSWER), Set.of(K.MEMORY))
+            .step("summarize", put("summarize", K.S), Set.of(K.MEMORY), Set.of(K.S))
+            .step("save", result("save"), Set.of(K.ANSWER), Set.of(K.RESULT))
+            .build();
+
+        Ctx ctx = new Ctx();
+        assertThat(g.run("in", ctx)).contains("append-error");
+        // save corre en el mismo nivel que append (su resultado se descarta); summarize no empieza
+        assertThat(ran).containsExactlyInAnyOrder("gen", "append-error", "save");
+    }
+
+    @Test
+    void exceptionPropagatesAfterLevelCompletes() {
+        StepGraph<String, String, Ctx> g = StepGraph.<String, String, Ctx>builder("t")
+            .executor(pool)
+            .step("a", (in, ctx) -> { throw new IllegalArgumentException("boom"); }, Set.of(), Set.of(K.X))
+            .step("b", put("b", K.Y), Set.of(), Set.of(K.Y))
+            .step("c", result("c"), Set.of(K.X, K.Y), Set.of())
+            .build();
+
+        assertThatThrownBy(() -> g.run("in", new Ctx())).isInstanceOf(IllegalArgumentException.class);
+        assertThat(ran).containsExactly("b");
+    }
+
+    @Test
+    void runFromThreadsOfTheSaturatedStepPoolDoesNotDeadlock() throws Exception {
+        // Mismo pool para las peticiones y para los pasos del nivel, como applicationTaskExecutor
+        ExecutorService shared = Executors.newFixedThreadPool(2);
+        try {
+            Step<String, String, Ctx> slow = (in, ctx) -> {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Optional.empty();
+            };
+            StepGraph<String, String, Ctx> g = StepGraph.<String, String, Ctx>builder("t")
+                .executor(shared)
+                .step("a", slow, Set.of(), Set.of(K.X))
+                .step("b", slow, Set.of(), Set.of(K.Y))
+                .step("c", result("c"), Set.of(K.X, K.Y), Set.of())
+                .build();
+
+            List<Future<Optional<String>>> runs = new ArrayList<>();
+            for (int i = 0; i < 4; i++) runs.add(shared.submit(() -> g.run("in", new Ctx())));
+            for (var run : runs) assertThat(run.get(5, TimeUnit.SECONDS)).contains("c");
+        } finally {
+            shared.shutdownNow();
+        }
+    }
+
+    /** Paso que no termina hasta que se completa {@code pending}, sin ocupar hilo */
+    private Step<String, String, Ctx> waitFor(String name, K key, CompletableFuture<String> pending) {
+        return new Step<>() {
+            @Override
+            public Optional<String> apply(String in, Ctx ctx) {
+                throw new AssertionError("runAsync debe usar applyAsync");
+            }
+
+            @Override
+            public CompletionStage<Optional<String>> applyAsync(String in, Ctx ctx) {
+                return pending.thenApply(v -> {
+                    ran.add(name);
+                    ctx.slots.put(key, v);
+                    return Optional.empty();
+                });
+            }
+        };
+    }
+
+    @Test
+    void runAsyncContinuesWhenThePendingStepCompletes() throws Exception {
+        CompletableFuture<String> llm = new CompletableFuture<>();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        StepGraph<String, String, Ctx> g = StepGraph.<String, String, Ctx>builder("t")
+            .executor(pool)
+            .meterRegistry(registry)
+            .step("load", put("load", K.X), Set.of(), Set.of(K.X))
+            .step("gen", waitFor("gen", K.ANSWER, llm), Set.of(K.X), Set.of(K.ANSWER))
+            .step("save", (in, ctx) -> Optional.of("save:" + ctx.slots.get(K.ANSWER)), Set.of(K.ANSWER), Set.of())
+            .build();
+
+        CompletableFuture<Optional<String>> out = g.runAsync("in", new Ctx());
+        // runAsync vuelve sin esperar al paso pendiente
+        assertThat(out).isNotDone();
+        assertThat(ran).containsExactly("load");
+
+        llm.complete("hola");
+        assertThat(out.get(2, TimeUnit.SECONDS)).contains("save:hola");
+        assertThat(registry.get("workflow.step.duration").tags("workflow", "t", "step", "gen").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    void runAsyncKeepsResultAndErrorOrder() throws Exception {
+        StepGraph<String, String, Ctx> ok = StepGraph.<String, String, Ctx>builder("t")
+            .executor(pool)
+            .step("gen", put("gen", K.ANSWER), Set.of(), Set.of(K.ANSWER))
+            .step("append", result("append-error"), Set.of(K.ANSWER), Set.of(K.MEMORY))
+            .step("summarize", put("summarize", K.S), Set.of(K.MEMORY), Set.of(K.S))
+            .step("save", result("save"), Set.of(K.ANSWER), Set.of(K.RESULT))
+            .build();
+        assertThat(ok.runAsync("in", new Ctx()).get(2, TimeUnit.SECONDS)).contains("append-error");
+        assertThat(ran).doesNotContain("summarize");
+
+        CompletableFuture<String> failed = CompletableFuture.failedFuture(new IllegalStateException("llm"));
+        StepGraph<String, String, Ctx> ko = StepGraph.<String, String, Ctx>builder("t")
+            .executor(pool)
+            .step("a", waitFor("a", K.X, failed), Set.of(), Set.of(K.X))
+            .step("b", (in, ctx) -> { throw new IllegalArgumentException("b"); }, Set.of(), Set.of(K.Y))
+            .step("c", result("c"), Set.of(K.X, K.Y), Set.of())
+            .build();
+        assertThatThrownBy(() -> ko.runAsync("in", new Ctx()).get(2, TimeUnit.SECONDS))
+            .hasCauseInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,203 @@
+package es.agonzalez.multiagent.app.core.workflows.chat.steps;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import es.agonzalez.multiagent.app.config.MetricsService;
+import es.agonzalez.multiagent.app.core.LlmClient;
+import es.agonzalez.multiagent.app.core.ModelRegistry;
+import es.agonzalez.multiagent.app.core.llm.PromptPrefixStore;
+import es.agonzalez.multiagent.app.core.llm.SemanticCache;
+import es.agonzalez.multiagent.app.core.llm.exceptions.LlmTimeoutException;
+import es.agonzalez.multiagent.app.core.models.LlmResponse;
+import es.agonzalez.multiagent.app.core.models.Message;
+import es.agonzalez.multiagent.app.core.selectors.ModelSelectors;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatContext;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatInput;
+
+class GenerateStepTest {
+
+    private final LlmClient client = mock(LlmClient.class);
+    private final ModelRegistry models = mock(ModelRegistry.class);
+    private final ModelSelectors selectors = mock(ModelSelectors.class);
+    private final MetricsService metrics = mock(MetricsService.class);
+    private final PromptPrefixStore prefixes = new PromptPrefixStore();
+    private final GenerateStep step = new GenerateStep(client, models, selectors, metrics, prefixes);
+    private final List<String> history = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        when(selectors.pick("Agent.Chat", "u1")).thenReturn("m");
+        for (int i = 0; i < GenerateStep.HISTORY_WINDOW; i++) addTurn(i % 2 == 0 ? "user" : "assistant", "línea " + i);
+    }
+
+    private void addTurn(String role, String text) {
+        history.add("2025-01-01T00:00:" + history.size() + "Z\t" + role + "\t" + text);
+    }
+
+    /** Ejecuta un turno con {@code promptTokens} evaluados y devuelve los mensajes enviados */
+    private List<Message> turn(String text, String summary, int promptTokens) {
+        ArgumentCaptor<List<Message>> sent = ArgumentCaptor.captor();
+        when(client.chat(eq("m"), sent.capture(), anyMap(), eq(false), any(LlmClient.CallOptions.class)))
+            .thenReturn(new LlmResponse("respuesta", promptTokens, 10));
+        when(models.callOptions("Agent.Chat")).thenReturn(LlmClient.CallOptions.NONE);
+        ChatContext ctx = new ChatContext();
+        ctx.setHistory(List.copyOf(history));
+        ctx.setSummary(summary);
+        step.apply(new ChatInput("u1", "", text, "chat"), ctx);
+        addTurn("user", text);
+        addTurn("assistant", ctx.getAnswer());
+        return sent.getValue();
+    }
+
+    @Test
+    void anchoredWindowRepeatsThePreviousPromptAsPrefix() {
+        List<Message> first = turn("hola", "", 500);
+        List<Message> second = turn("!ai qué tal", "", 40);
+
+        // El segundo prompt empieza exactamente por el primero: Ollama sólo evalúa lo nuevo
+        assertThat(second.subList(0, first.size())).isEqualTo(first);
+        assertThat(second).hasSize(first.size() + 2);
+        assertThat(second.get(second.size() - 1).content()).isEqualTo(" qué tal");
+        verify(metrics).recordPromptReuse("m", "chat", "reset", 0);
+        verify(metrics).recordPromptReuse("m", "chat", "hit", 500);
+        assertThat(prefixes.get("u1").promptTokens()).isEqualTo(540);
+    }
+
+    @Test
+    void windowIsReanchoredAfterTheSlack() {
+        turn("t0", "", 500);
+        int turns = GenerateStep.HISTORY_SLACK / 2;
+        for (int i = 1; i <= turns; i++) turn("t" + i, "", 40);
+        List<Message> last = turn("final", "", 900);
+
+        // sistema + ventana normal + mensaje actual
+        assertThat(last).hasSize(1 + GenerateStep.HISTORY_WINDOW + 1);
+        verify(metrics, times(turns)).recordPromptReuse(eq("m"), eq("chat"), eq("hit"), any(Integer.class));
+        verify(metrics, times(2)).recordPromptReuse("m", "chat", "reset", 0);
+    }
+
+    @Test
+    void summaryChangeDropsTheAnchor() {
+        turn("hola", "", 500);
+        List<Message> second = turn("otra", "resumen nuevo", 600);
+
+        assertThat(second).hasSize(2 + GenerateStep.HISTORY_WINDOW + 1);
+        verify(metrics, times(2)).recordPromptReuse("m", "chat", "reset", 0);
+    }
+
+    @Test
+    void prefixKeptButReevaluatedCountsAsMiss() {
+        turn("hola", "", 500);
+        turn("otra", "", 560);
+        verify(metrics).recordPromptReuse("m", "chat", "miss", 0);
+        assertThat(prefixes.get("u1").promptTokens()).isEqualTo(560);
+    }
+
+    @Test
+    void semanticHitSkipsLlmMetricsAndPrefixBookkeeping() {
+        SemanticCache semantic = mock(SemanticCache.class);
+        when(semantic.getOrLoad(eq("Agent.Chat"), eq("m"), eq("u1"), eq(" qué ceno"), any())).thenReturn(new LlmResponse("pasta", -1, -1));
+        GenerateStep cached = new GenerateStep(client, models, selectors, metrics, prefixes, semantic);
+        List<String> tokens = new ArrayList<>();
+        ChatContext ctx = new ChatContext();
+        ctx.setHistory(List.copyOf(history));
+        ctx.setSummary("");
+        ctx.setOnToken(tokens::add);
+
+        cached.apply(new ChatInput("u1", "", "!ai qué ceno", "chat"), ctx);
+
+        assertThat(ctx.getAnswer()).isEqualTo("pasta");
+        assertThat(tokens).containsExactly("pasta");
+        verify(metrics, never()).recordLlmSuccess(anyString(), anyString(), anyInt(), anyInt(), anyLong());
+        verify(metrics, never()).recordPromptReuse(anyString(), anyString(), anyString(), anyInt());
+        assertThat(prefixes.get("u1")).isNull();
+    }
+
+    @Test
+    void applyAsyncCompletesTheContextWhenTheLlmAnswers() throws Exception {
+        CompletableFuture<LlmResponse> llm = new CompletableFuture<>();
+        when(client.chatAsync(eq("m"), any(), anyMap(), eq(false))).thenReturn(llm);
+        ChatContext ctx = new ChatContext();
+        ctx.setHistory(List.copyOf(history));
+        ctx.setSummary("");
+
+        var out = step.applyAsync(new ChatInput("u1", "", "!ai hola", "chat"), ctx).toCompletableFuture();
+        assertThat(out).isNotDone();
+        assertThat(ctx.getModel()).isNull();
+
+        llm.complete(new LlmResponse("respuesta", 120, 10));
+        assertThat(out.get()).isEmpty();
+        assertThat(ctx.getAnswer()).isEqualTo("respuesta");
+        assertThat(ctx.getModel()).isEqualTo("m");
+        verify(metrics).recordLlmSuccess(eq("m"), eq("chat"), eq(120), eq(10), anyLong());
+        verify(metrics).recordPromptReuse("m", "chat", "reset", 0);
+        verify(client, never()).chat(anyString(), any(), anyMap(), eq(false), any(LlmClient.CallOptions.class));
+    }
+
+    @Test
+    void applyAsyncRecordsLlmErrors() {
+        when(client.chatAsync(eq("m"), any(), anyMap(), eq(false)))
+            .thenReturn(CompletableFuture.failedFuture(new LlmTimeoutException("timeout", null)));
+        ChatContext ctx = new ChatContext();
+        ctx.setHistory(List.copyOf(history));
+        ctx.setSummary("");
+
+        var out = step.applyAsync(new ChatInput("u1", "", "hola", "chat"), ctx).toCompletableFuture();
+
+        assertThatThrownBy(out::join).hasCauseInstanceOf(LlmTimeoutException.class);
+        verify(metrics).recordLlmErrorWithReason(eq("m"), eq("chat"), eq("timeout"), anyLong());
+    }
+
+    @Test
+    void applyAsyncRunsTheSemanticPathOffTheCallingThread() throws Exception {
+        SemanticCache semantic = mock(SemanticCache.class);
+        when(semantic.isEnabled("Agent.Chat")).thenReturn(true);
+        CountDownLatch release = new CountDownLatch(1);
+        String[] thread = new String[1];
+        when(semantic.getOrLoad(eq("Agent.Chat"), eq("m"), eq("u1"), anyString(), any())).thenAnswer(inv -> {
+            thread[0] = Thread.currentThread().getName();
+            release.await(5, TimeUnit.SECONDS);
+            return new LlmResponse("pasta", -1, -1);
+        });
+        ExecutorService blocking = Executors.newSingleThreadExecutor(r -> new Thread(r, "blocking-step"));
+        try {
+            GenerateStep cached = new GenerateStep(client, models, selectors, metrics, prefixes, semantic, blocking);
+            ChatContext ctx = new ChatContext();
+            ctx.setHistory(List.copyOf(history));
+            ctx.setSummary("");
+
+            var out = cached.applyAsync(new ChatInput("u1", "", "qué ceno", "chat"), ctx).toCompletableFuture();
+            assertThat(out).isNotDone();
+
+            release.countDown();
+            assertThat(out.get(5, TimeUnit.SECONDS)).isEmpty();
+            assertThat(ctx.getAnswer()).isEqualTo("pasta");
+            assertThat(thread[0]).isEqualTo("blocking-step");
+        } finally {
+            blocking.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package es.agonzalez.multiagent.app.core.workflows.chat.steps;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.config.MetricsService;
+import es.agonzalez.multiagent.app.core.LlmClient;
+import es.agonzalez.multiagent.app.core.ModelRegistry;
+import es.agonzalez.multiagent.app.core.llm.PromptPrefixStore;
+import es.agonzalez.multiagent.app.core.models.LlmResponse;
+import es.agonzalez.multiagent.app.core.selectors.ModelSelectors;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatContext;
+import es.agonzalez.multiagent.app.core.workflows.chat.models.ChatInput;
+import es.agonzalez.multiagent.app.memory.MemoryService;
+import es.agonzalez.multiagent.app.memory.SummarizationWorker;
+import es.agonzalez.multiagent.app.memory.Summarizer;
+import es.agonzalez.multiagent.app.memory.impl.SegmentedLogMemoryStore;
+
+/**
+ * Turnos completos (memoria → generación → append → resumen) sobre un historial real: el disparo del
+ * resumen cuenta todas las líneas guardadas, no la ventana que se carga para el prompt.
+ */
+class SummarizeIfNeededStepTest {
+
+    @TempDir
+    Path tmp;
+
+    private SegmentedLogMemoryStore store;
+    private final MemoryService memory = new MemoryService();
+    private final AppProperties props = new AppProperties();
+    private final SummarizationWorker worker = mock(SummarizationWorker.class);
+    private final Summarizer summarizer = new Summarizer();
+    private LoadMemoryStep load;
+    private GenerateStep generate;
+    private AppendTurnsStep append;
+    private SummarizeIfNeededStep summarize;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        store = new SegmentedLogMemoryStore(tmp.resolve("segments"), tmp.resolve("summary"), 1 << 20, 10_000, 0, 4096, null);
+        ReflectionTestUtils.setField(memory, "store", store);
+        ReflectionTestUtils.setField(summarizer, "appProperties", props);
+        props.setSummarizationEvery(25);
+
+        LlmClient client = mock(LlmClient.class);
+        when(client.chat(anyString(), anyList(), any(), eq(false), any())).thenReturn(new LlmResponse("respuesta", 10, 5));
+        ModelSelectors selectors = mock(ModelSelectors.class);
+        when(selectors.pick("Agent.Chat", "u1")).thenReturn("m");
+
+        int window = GenerateStep.HISTORY_WINDOW + GenerateStep.HISTORY_SLACK;
+        load = new LoadMemoryStep(memory, new StaticMessageSource(), window);
+        generate = new GenerateStep(client, mock(ModelRegistry.class), selectors, mock(MetricsService.class), new PromptPrefixStore());
+        append = new AppendTurnsStep(memory);
+        summarize = new SummarizeIfNeededStep(summarizer, worker, true);
+        when(worker.submit("u1")).thenReturn(true);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        store.close();
+    }
+
+    /** Un turno completo; devuelve el contexto que ve SummarizeIfNeededStep */
+    private ChatContext turn(String text) {
+        ChatInput input = new ChatInput("u1", "", text, "chat");
+        ChatContext ctx = new ChatContext();
+        load.apply(input, ctx);
+        generate.apply(input, ctx);
+        append.apply(input, ctx);
+        summarize.apply(input, ctx);
+        return ctx;
+    }
+
+    @Test
+    void turnCountComesFromThePersistedHistory() throws Exception {
+        for (int i = 0; i < 40; i++) store.append("u1", i % 2 == 0 ? "user" : "assistant", "línea " + i);
+
+        ChatContext ctx = turn("hola");
+
+        assertThat(ctx.getHistory()).hasSize(GenerateStep.HISTORY_WINDOW + GenerateStep.HISTORY_SLACK);
+        assertThat(ctx.getTurnCountBefore()).isEqualTo(40);
+        assertThat(store.countLines("u1")).isEqualTo(42);
+    }
+
+    @Test
+    void summaryFiresOnceEverySummarizationEveryLines() throws Exception {
+        // Cada turno añade 2 líneas: el primer múltiplo de 25 es 50, en el turno 25
+        for (int i = 1; i <= 24; i++) turn("mensaje " + i);
+        verify(worker, never()).submit("u1");
+
+        turn("mensaje 25");
+        assertThat(store.countLines("u1")).isEqualTo(50);
+        verify(worker, times(1)).submit("u1");
+    }
+
+    @Test
+    void shortEveryDoesNotFireOnEveryTurnOnceTheWindowIsFull() throws Exception {
+        props.setSummarizationEvery(18);
+        for (int i = 0; i < 40; i++) store.append("u1", i % 2 == 0 ? "user" : "assistant", "línea " + i);
+
+        turn("a"); // 42 líneas
+        turn("b"); // 44
+        verify(worker, never()).submit("u1");
+        for (int i = 0; i < 4; i++) turn("c" + i); // 46..52: sólo 54 sería múltiplo
+        verify(worker, never()).submit("u1");
+        turn("d"); // 54
+        verify(worker, times(1)).submit("u1");
+    }
+}
@@ -0,0 +1,174 @@
+package es.agonzalez.multiagent.app.integration;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.core.LlmClient;
+import es.agonzalez.multiagent.app.core.ModelRegistry;
+import es.agonzalez.multiagent.app.core.models.Message;
+import es.agonzalez.multiagent.app.memory.SummaryStore;
+import es.agonzalez.multiagent.app.memory.impl.FileMemoryStore;
+import io.micrometer.tracing.Tracer;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Informe de pinning con JFR: ejecuta en hilos virtuales los componentes bloqueantes del pipeline
+ * (historial, resúmenes, overrides de modelos y cliente LLM) y comprueba que ningún evento
+ * {@code jdk.VirtualThreadPinned} tiene frames de la aplicación.
+ */
+class VirtualThreadPinningTest {
+
+    private static final String PINNED = "jdk.VirtualThreadPinned";
+    private static final String APP_PACKAGE = "es.agonzalez.";
+
+    @TempDir
+    Path tmp;
+
+    private HttpServer server;
+    private Recording recording;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/chat", ex -> {
+            ex.getRequestBody().readAllBytes();
+            try { Thread.sleep(20); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            byte[] bytes = "{\"message\":{\"role\":\"assistant\",\"content\":\"ok\"},\"done\":true}".getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().add("Content-Type", "application/json");
+            ex.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+
+        recording = new Recording();
+        recording.enable(PINNED).withThreshold(Duration.ZERO).withStackTrace();
+        recording.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        recording.close();
+    }
+
+    @Test
+    void blockingPipelineDoesNotPinCarrierThreads() throws Exception {
+        AppProperties props = new AppProperties();
+        props.setDatadir(tmp.toString());
+        props.setModelconfig("models.yaml");
+        props.getLlm().setUrl("http://127.0.0.1:" + server.getAddress().getPort());
+
+        FileMemoryStore memory = new FileMemoryStore();
+        ReflectionTestUtils.setField(memory, "props", props);
+        memory.init();
+        SummaryStore summaries = new SummaryStore();
+        ReflectionTestUtils.setField(summaries, "props", props);
+        summaries.init();
+        ModelRegistry registry = new ModelRegistry();
+        ReflectionTestUtils.setField(registry, "props", props);
+        registry.initialize();
+        ObjectMapper om = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        LlmClient client = new LlmClient(om, new StaticMessageSource());
+        ReflectionTestUtils.setField(client, "props", props);
+        ReflectionTestUtils.setField(client, "tracer", Tracer.NOOP);
+        client.getClient();
+
+        try {
+            runOnVirtualThreads(64, i -> {
+                String user = "u" + (i % 8);
+                memory.append(user, "user", "hola " + i);
+                memory.loadLast(user, 10);
+                summaries.save(user, "resumen " + i, null);
+                summaries.load(user);
+                registry.overrideInMemory("Agent.Chat", "m" + (i % 3));
+                client.chat(registry.modelFor("Agent.Chat"), List.of(Message.user("hola")), Map.of(), false);
+                return null;
+            });
+        } finally {
+            memory.shutdown();
+        }
+
+        List<String> appPins = pinnedEvents().stream()
+            .filter(e -> e.getStackTrace() != null)
+            .filter(e -> e.getStackTrace().getFrames().stream().anyMatch(VirtualThreadPinningTest::isAppFrame))
+            .map(VirtualThreadPinningTest::describe)
+            .toList();
+        assertThat(appPins).as("hilos virtuales fijados en código de la aplicación").isEmpty();
+    }
+
+    /** Control: un monitor con bloqueo dentro debe aparecer en el informe (valida la grabación). */
+    @Test
+    void reportDetectsBlockingInsideMonitor() throws Exception {
+        Object monitor = new Object();
+        runOnVirtualThreads(2, i -> {
+            synchronized (monitor) {
+                Thread.sleep(30);
+            }
+            return null;
+        });
+        assertThat(pinnedEvents()).isNotEmpty();
+    }
+
+    private interface Task { Object run(int i) throws Exception; }
+
+    private static void runOnVirtualThreads(int tasks, Task task) throws Exception {
+        try (ExecutorService vt = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < tasks; i++) {
+                final int n = i;
+                futures.add(vt.submit((Callable<Object>) () -> task.run(n)));
+            }
+            for (Future<Object> f : futures) f.get();
+        }
+    }
+
+    private List<RecordedEvent> pinnedEvents() throws Exception {
+        recording.stop();
+        Path dump = tmp.resolve("pinning.jfr");
+        recording.dump(dump);
+        return RecordingFile.readAllEvents(dump).stream()
+            .filter(e -> PINNED.equals(e.getEventType().getName()))
+            .toList();
+    }
+
+    private static boolean isAppFrame(RecordedFrame f) {
+        return f.getMethod() != null && f.getMethod().getType().getName().startsWith(APP_PACKAGE);
+    }
+
+    private static String describe(RecordedEvent e) {
+        StringBuilder sb = new StringBuilder(e.getDuration().toString());
+        for (RecordedFrame f : e.getStackTrace().getFrames()) {
+            if (!f.isJavaFrame()) continue;
+            sb.append("\n  at ").append(f.getMethod().getType().getName()).append('.').append(f.getMethod().getName())
+              .append(':').append(f.getLineNumber());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,164 @@
+package es.agonzalez.multiagent.app.memory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.memory.impl.CachingMemoryStore;
+import es.agonzalez.multiagent.app.memory.impl.FileMemoryStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Tests del decorador de caché de historial delante de FileMemoryStore.
+ */
+public class CachingMemoryStoreTest {
+
+    @TempDir
+    Path tmp;
+
+    private FileMemoryStore fileStore;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        AppProperties props = new AppProperties();
+        props.setDatadir(tmp.toString());
+        props.setMaxHistoryLines(10);
+        fileStore = new FileMemoryStore();
+        ReflectionTestUtils.setField(fileStore, "props", props);
+        fileStore.init();
+        registry = new SimpleMeterRegistry();
+    }
+
+    private double counter(String name) {
+        return registry.get(name).counter().count();
+    }
+
+    @Test
+    @DisplayName("Tras la primera carga los appends actualizan la caché sin releer el fichero")
+    void appendsUpdateCachedTail() throws Exception {
+        CachingMemoryStore store = new CachingMemoryStore(fileStore, 8, 1 << 20, registry);
+        for (int i = 0; i < 5; i++) store.append("c1", "user", "m" + i);
+        assertThat(store.loadLast("c1", 3)).hasSize(3); // miss: carga y llena el anillo
+        assertThat(counter("memory.cache.misses")).isEqualTo(1);
+
+        // Si la caché no se actualizase, borrar el fichero haría fallar las siguientes lecturas
+        Files.delete(tmp.resolve("history").resolve("c1.txt"));
+        store.append("c1", "assistant", "nuevo");
+        List<String> tail = store.loadLast("c1", 2);
+        assertThat(tail).hasSize(2);
+        assertThat(tail.get(0)).endsWith("m4");
+        assertThat(tail.get(1)).endsWith("nuevo");
+        assertThat(store.loadLast("c1", 8)).hasSize(6); // historial completo en caché: el fichero recreado sólo tiene 1 línea
+        assertThat(counter("memory.cache.hits")).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("Rotación efectiva y clearUser invalidan la entrada")
+    void rotationAndClearInvalidate() throws Exception {
+        CachingMemoryStore store = new CachingMemoryStore(fileStore, 32, 1 << 20, registry);
+        for (int i = 0; i < 11; i++) store.append("c2", "user", "m" + i);
+        assertThat(store.loadLast("c2", 20)).hasSize(11);
+        assertThat(store.rotateIfNeeded("c2")).isTrue();
+        assertThat(store.loadLast("c2", 20)).isEmpty();
+
+        store.append("c2", "user", "otra");
+        assertThat(store.loadLast("c2", 20)).hasSize(1);
+        store.clearUser("c2");
+        assertThat(store.size()).isZero();
+        assertThat(store.loadLast("c2", 20)).isEmpty();
+    }
+
+    @Test
+    @DisplayName("LRU por presupuesto de memoria expulsa los usuarios menos recientes")
+    void evictsLeastRecentlyUsedWithinBudget() throws Exception {
+        // Presupuesto para algo más de una línea: sólo cabe un usuario
+        CachingMemoryStore store = new CachingMemoryStore(fileStore, 4, 200, registry);
+        store.append("a", "user", "x");
+        store.append("b", "user", "y");
+        store.loadLast("a", 1);
+        store.loadLast("b", 1);
+        assertThat(store.size()).isEqualTo(1);
+        assertThat(counter("memory.cache.evictions")).isEqualTo(1);
+        assertThat(store.loadLast("a", 1)).hasSize(1); // vuelve a leerse del fichero
+    }
+
+    @Test
+    @DisplayName("La clave de caché es el userId saneado, igual que el fichero")
+    void keysBySanitizedUserId() throws Exception {
+        CachingMemoryStore store = new CachingMemoryStore(fileStore, 8, 1 << 20, registry);
+        store.append("alice", "user", "m0");
+        assertThat(store.loadLast(" alice ", 4)).hasSize(1);
+        // Mismo fichero history/alice.txt: el append por la otra forma debe verse en la entrada cacheada
+        store.append("alice", "user", "m1");
+        assertThat(store.loadLast(" alice ", 4)).hasSize(2);
+        assertThat(store.size()).isEqualTo(1);
+
+        store.clearUser(" alice ");
+        assertThat(store.size()).isZero();
+        assertThat(store.loadLast("alice", 4)).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Una entrada caducada no sirve el historial borrado por fuera (MemoryCleaner)")
+    void expiredEntryIsReloadedAfterExternalDelete() throws Exception {
+        AtomicLong now = new AtomicLong();
+        CachingMemoryStore store = new CachingMemoryStore(fileStore, 8, 1 << 20, 1000, now::get, registry);
+        for (int i = 0; i < 3; i++) store.append("c3", "user", "m" + i);
+        assertThat(store.loadLast("c3", 8)).hasSize(3);
+
+        Files.delete(tmp.resolve("history").resolve("c3.txt"));
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertThat(store.loadLast("c3", 8)).hasSize(3); // aún dentro del TTL
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertThat(store.loadLast("c3", 8)).isEmpty();
+        assertThat(counter("memory.cache.misses")).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("La espera de durabilidad no retiene el lock de franja")
+    void durableWaitDoesNotBlockTheStripe() throws Exception {
+        // "Aa" y "BB" tienen el mismo hashCode: comparten franja
+        MemoryStore delegate = mock(MemoryStore.class);
+        CompletableFuture<Void> groupCommit = new CompletableFuture<>();
+        when(delegate.appendDeferred(eq("Aa"), anyString(), anyString())).thenReturn(new MemoryStore.Appended("a", groupCommit));
+        when(delegate.appendDeferred(eq("BB"), anyString(), anyString())).thenReturn(new MemoryStore.Appended("b", null));
+        CachingMemoryStore store = new CachingMemoryStore(delegate, 8, 1 << 20, registry);
+
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return store.append("Aa", "user", "x");
+            } catch (java.io.IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertThat(first).isNotDone();
+        assertThat(CompletableFuture.supplyAsync(() -> {
+            try {
+                return store.append("BB", "user", "y");
+            } catch (java.io.IOException e) {
+                throw new RuntimeException(e);
+            }
+        }).get(1, TimeUnit.SECONDS)).isEqualTo("b");
+
+        groupCommit.complete(null);
+        assertThat(first.get(1, TimeUnit.SECONDS)).isEqualTo("a");
+    }
+}
@@ -13,6 +13,7 @@ import org.springframework.test.util.ReflectionTestUtils;
 
 import es.agonzalez.multiagent.app.config.AppProperties;
 import es.agonzalez.multiagent.app.memory.impl.FileMemoryStore;
+import es.agonzalez.multiagent.app.memory.impl.TailReader;
 
 /**
  * Verifica que load() ahora sólo mantiene las últimas maxHistoryLines líneas
@@ -58,4 +59,34 @@ public class FileMemoryStoreTailLoadTest {
         assertTrue(lines.get(0).contains("line-150"), "Esperado comienzo tail en line-150");
         assertTrue(lines.get(49).contains("line-199"), "Esperado final tail en line-199");
     }
+
+    @Test
+    void loadLastReturnsExactlyRequestedTail() throws Exception {
+        for (int i = 0; i < 30; i++) store.append("userLast", "user", "line-" + i);
+        List<String> last = store.loadLast("userLast", 16);
+        assertEquals(16, last.size());
+        assertTrue(last.get(0).endsWith("line-14"));
+        assertTrue(last.get(15).endsWith("line-29"));
+        // n mayor que el número de líneas devuelve todas
+        assertEquals(30, store.loadLast("userLast", 500).size());
+        assertTrue(store.loadLast("userLast", 0).isEmpty());
+        assertTrue(store.loadLast("nobody", 5).isEmpty());
+    }
+
+    @Test
+    void tailReaderCrossesBlocksAndHandlesUtf8AndCrlf() throws Exception {
+        Path file = tmp.resolve("raw.txt");
+        StringBuilder sb = new StringBuilder();
+        String longText = "ñandú-€-".repeat(2000); // líneas > bloque de lectura, multibyte
+        for (int i = 0; i < 5; i++) sb.append(i).append('\t').append(longText).append("\r\n");
+        sb.append("ultima-sin-salto");
+        java.nio.file.Files.writeString(file, sb.toString(), java.nio.charset.StandardCharsets.UTF_8);
+
+        List<String> tail = TailReader.lastLines(file, 3);
+        assertEquals(3, tail.size());
+        assertEquals("3\t" + longText, tail.get(0));
+        assertEquals("4\t" + longText, tail.get(1));
+        assertEquals("ultima-sin-salto", tail.get(2));
+        assertEquals(6, TailReader.lastLines(file, 10).size());
+    }
 }
@@ -3,6 +3,7 @@ package es.agonzalez.multiagent.app.memory;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
@@ -10,6 +11,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import org.junit.jupiter.api.BeforeEach;
@@ -89,4 +91,34 @@ public class FileMemoryStoreTest {
         int lines = store.countLines("conc");
         assertEquals(threads*perThread, lines);
     }
+
+    @Test
+    void rotateWhenFileExceedsMaxBytes() throws Exception {
+        props.setMaxHistoryBytes(64);
+        store.append("big", "user", "x".repeat(100));
+        assertTrue(store.rotateIfNeeded("big"), "Debe rotar por tamaño aunque haya pocas líneas");
+        assertEquals(0, store.countLines("big"));
+    }
+
+    @Test
+    void rotationUsesCounterAndReconcileFixesDrift() throws Exception {
+        store.append("drift", "user", "hola");
+        // Líneas escritas por fuera del store: el contador no las ve y no se recorre el fichero
+        Path hist = tmp.resolve("history").resolve("drift.txt");
+        Files.writeString(hist, "a\tuser\t1\nb\tuser\t2\nc\tuser\t3\nd\tuser\t4\ne\tuser\t5\n", StandardOpenOption.APPEND);
+        assertFalse(store.rotateIfNeeded("drift"));
+        assertEquals(1, store.countLines("drift"));
+
+        store.reconcileCounts();
+        assertEquals(6, store.countLines("drift"));
+        assertTrue(store.rotateIfNeeded("drift"));
+    }
+
+    @Test
+    void reconcileDropsCounterOfDeletedHistory() throws Exception {
+        store.append("gone", "user", "hola");
+        Files.delete(tmp.resolve("history").resolve("gone.txt"));
+        store.reconcileCounts();
+        assertEquals(0, store.countLines("gone"));
+    }
 }
@@ -0,0 +1,132 @@
+package es.agonzalez.multiagent.app.memory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import es.agonzalez.multiagent.app.config.AppProperties.WriteBehind.Durability;
+import es.agonzalez.multiagent.app.memory.impl.FileMemoryStore;
+import es.agonzalez.multiagent.app.memory.impl.WriteBehindJournal;
+
+/**
+ * Tests del modo write-behind (group-commit) de FileMemoryStore.
+ */
+public class FileMemoryStoreWriteBehindTest {
+
+    @TempDir
+    Path tmp;
+
+    private FileMemoryStore store;
+
+    private FileMemoryStore newStore(Durability durability, long flushIntervalMs) throws Exception {
+        AppProperties props = new AppProperties();
+        props.setDatadir(tmp.toString());
+        props.setMaxHistoryLines(100);
+        props.getWriteBehind().setEnabled(true);
+        props.getWriteBehind().setDurability(durability);
+        props.getWriteBehind().setFlushIntervalMs(flushIntervalMs);
+        FileMemoryStore s = new FileMemoryStore();
+        ReflectionTestUtils.setField(s, "props", props);
+        s.init();
+        return s;
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (store != null) store.shutdown();
+    }
+
+    @Test
+    @DisplayName("Los appends quedan en buffer pero load() ve sus propias escrituras")
+    void bufferedAppendsAreVisibleToLoad() throws Exception {
+        store = newStore(Durability.BATCH, 60_000); // el escritor no llega a ejecutarse en el test
+        store.append("wb1", "user", "hola");
+        store.append("wb1", "assistant", "respuesta");
+        assertThat(tmp.resolve("history").resolve("wb1.txt")).doesNotExist();
+        assertThat(tmp.resolve("history").resolve("wb1.meta")).doesNotExist();
+
+        List<String> lines = store.load("wb1");
+        assertThat(lines).hasSize(2);
+        assertThat(lines.get(1)).contains("respuesta");
+        assertThat(store.countLines("wb1")).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("PER_WRITE espera al group-commit: la línea está en disco al volver append()")
+    void perWriteIsDurableOnReturn() throws Exception {
+        store = newStore(Durability.PER_WRITE, 5);
+        store.append("wb2", "user", "durable");
+        assertThat(Files.readString(tmp.resolve("history").resolve("wb2.txt"))).contains("durable");
+    }
+
+    @Test
+    @DisplayName("Appends concurrentes se vuelcan completos y el checkpoint sobrevive a un reinicio")
+    void concurrentAppendsAndCheckpointReload() throws Exception {
+        store = newStore(Durability.NONE, 2);
+        int threads = 8;
+        int perThread = 25;
+        var exec = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(threads);
+        IntStream.range(0, threads).forEach(t -> exec.submit(() -> {
+            try {
+                for (int i = 0; i < perThread; i++) store.append("wbc", "user", "m" + t + "-" + i);
+            } catch (java.io.IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                latch.countDown();
+            }
+        }));
+        latch.await(5, TimeUnit.SECONDS);
+        exec.shutdownNow();
+        store.shutdown();
+
+        Path history = tmp.resolve("history");
+        assertThat(Files.readAllLines(history.resolve("wbc.txt"))).hasSize(threads * perThread);
+        assertThat(history.resolve(WriteBehindJournal.CHECKPOINT_FILE)).exists();
+        assertThat(history.resolve("wbc.meta")).doesNotExist();
+
+        store = newStore(Durability.NONE, 2);
+        assertThat(store.countLines("wbc")).isEqualTo(threads * perThread);
+    }
+
+    @Test
+    @DisplayName("Un volcado fallido deja el lote pendiente y el reintento lo escribe una sola vez")
+    void failedFlushKeepsWaitersPendingUntilRetry() throws Exception {
+        // Hasta crear el directorio abrir el fichero falla
+        Path dir = tmp.resolve("later");
+        ReentrantLock lock = new ReentrantLock();
+        WriteBehindJournal journal = new WriteBehindJournal(tmp, Durability.PER_WRITE, 60_000, 60_000,
+            key -> dir.resolve(key + ".txt"), key -> lock, Map::of, null);
+        try {
+            CompletableFuture<Void> done = journal.enqueue("wbf", "línea\n");
+            assertThatThrownBy(() -> journal.flushUser("wbf")).isInstanceOf(java.io.IOException.class);
+            // El lote sigue en el buffer y quien espera no recibe un error por una línea que se escribirá
+            assertThat(done).isNotDone();
+            assertThat(journal.pending()).isEqualTo(1);
+
+            Files.createDirectories(dir);
+            journal.flushUser("wbf");
+            assertThat(done).isCompleted();
+            assertThat(Files.readAllLines(dir.resolve("wbf.txt"))).containsExactly("línea");
+            assertThat(journal.pending()).isZero();
+        } finally {
+            journal.close();
+        }
+    }
+}
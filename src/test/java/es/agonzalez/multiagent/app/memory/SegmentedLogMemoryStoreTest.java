@@ -0,0 +1,146 @@
+package es.agonzalez.multiagent.app.memory;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import es.agonzalez.multiagent.app.memory.impl.HistoryMigration;
+import es.agonzalez.multiagent.app.memory.impl.SegmentedLogMemoryStore;
+
+/**
+ * Tests del historial en log binario segmentado y de la migración desde el formato TSV.
+ */
+public class SegmentedLogMemoryStoreTest {
+
+    @TempDir
+    Path tmp;
+
+    private SegmentedLogMemoryStore open(long segmentBytes, int maxLines) throws Exception {
+        return new SegmentedLogMemoryStore(tmp.resolve("segments"), tmp.resolve("summary"), segmentBytes, maxLines, 0, 4096, null);
+    }
+
+    @Test
+    @DisplayName("append / loadLast / countLines / loadSince usan el índice por usuario")
+    void appendAndRead() throws Exception {
+        try (SegmentedLogMemoryStore store = open(1 << 20, 50)) {
+            for (int i = 0; i < 10; i++) store.append("u1", "user", "m" + i);
+            store.append("u2", "user", "otro\tusuario");
+            assertThat(store.countLines("u1")).isEqualTo(10);
+            List<String> last = store.loadLast("u1", 3);
+            assertThat(last).hasSize(3);
+            assertThat(last.get(2)).endsWith("\tuser\tm9");
+            assertThat(store.loadSince("u1", 8)).hasSize(2);
+            assertThat(store.load("u2").get(0)).endsWith("\tuser\totro usuario");
+            assertThat(store.loadLast("nadie", 5)).isEmpty();
+        }
+    }
+
+    @Test
+    @DisplayName("El índice se reconstruye al reabrir, respetando rotaciones y clearUser")
+    void recoversIndexAfterReopen() throws Exception {
+        try (SegmentedLogMemoryStore store = open(1 << 20, 5)) {
+            for (int i = 0; i < 7; i++) store.append("rot", "user", "m" + i);
+            assertThat(store.rotateIfNeeded("rot")).isTrue();
+            store.append("rot", "user", "tras-rotar");
+            store.append("gone", "user", "x");
+            store.clearUser("gone");
+        }
+        try (SegmentedLogMemoryStore store = open(1 << 20, 5)) {
+            assertThat(store.countLines("rot")).isEqualTo(1);
+            assertThat(store.loadLast("rot", 10).get(0)).endsWith("tras-rotar");
+            assertThat(store.nextTurn("rot")).isEqualTo(8);
+            assertThat(store.countLines("gone")).isZero();
+        }
+    }
+
+    @Test
+    @DisplayName("Un registro truncado al final del último segmento se descarta al arrancar")
+    void truncatedTailIsDiscarded() throws Exception {
+        try (SegmentedLogMemoryStore store = open(1 << 20, 50)) {
+            store.append("t", "user", "uno");
+            store.append("t", "user", "dos");
+        }
+        Path seg = Files.list(tmp.resolve("segments")).filter(p -> p.toString().endsWith(".log")).findFirst().orElseThrow();
+        try (FileChannel ch = FileChannel.open(seg, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 3);
+        }
+        try (SegmentedLogMemoryStore store = open(1 << 20, 50)) {
+            assertThat(store.countLines("t")).isEqualTo(1);
+            store.append("t", "user", "tres");
+            assertThat(store.loadLast("t", 5)).hasSize(2);
+            assertThat(store.loadLast("t", 5).get(1)).endsWith("tres");
+        }
+    }
+
+    @Test
+    @DisplayName("Segmentos sin líneas vivas se eliminan y los poco ocupados se compactan")
+    void segmentsAreCollected() throws Exception {
+        try (SegmentedLogMemoryStore store = open(4096, 10)) {
+            String text = "x".repeat(200);
+            for (int i = 0; i < 11; i++) store.append("busy", "user", text);
+            store.append("quiet", "user", "sigo vivo");
+            for (int round = 0; round < 5; round++) {
+                assertThat(store.rotateIfNeeded("busy")).isTrue();
+                for (int i = 0; i < 11; i++) store.append("busy", "user", text);
+            }
+            // ~13 KiB escritos en segmentos de 4 KiB: sin recolección habría al menos 4
+            assertThat(store.segmentCount()).isLessThanOrEqualTo(3);
+            assertThat(store.loadLast("quiet", 1).get(0)).endsWith("sigo vivo");
+            assertThat(store.countLines("busy")).isEqualTo(11);
+        }
+        try (SegmentedLogMemoryStore store = open(4096, 10)) {
+            assertThat(store.loadLast("quiet", 1).get(0)).endsWith("sigo vivo");
+            assertThat(store.countLines("busy")).isEqualTo(11);
+        }
+    }
+
+    @Test
+    @DisplayName("La migración copia la cola de cada historial TSV una sola vez")
+    void migratesTsvHistory() throws Exception {
+        Path history = Files.createDirectories(tmp.resolve("history"));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) sb.append("2024-01-01T00:00:0").append(i).append("Z\tuser\tm").append(i).append('\n');
+        Files.writeString(history.resolve("legacy.txt"), sb);
+        Files.writeString(history.resolve("legacy-123.log"), "archivo rotado\n");
+        try (SegmentedLogMemoryStore store = open(1 << 20, 5)) {
+            HistoryMigration.Result r = HistoryMigration.migrate(history, tmp.resolve("segments"), store, 5);
+            assertThat(r.users()).isEqualTo(1);
+            assertThat(r.lines()).isEqualTo(5);
+            assertThat(store.loadLast("legacy", 10).get(0)).isEqualTo("2024-01-01T00:00:03Z\tuser\tm3");
+            assertThat(HistoryMigration.migrate(history, tmp.resolve("segments"), store, 5).skipped()).isTrue();
+            assertThat(store.countLines("legacy")).isEqualTo(5);
+        }
+    }
+
+    @Test
+    @DisplayName("expireIdle limpia a los usuarios sin turnos desde el corte, también tras reabrir")
+    void expiresIdleUsers() throws Exception {
+        Path history = Files.createDirectories(tmp.resolve("history"));
+        Files.writeString(history.resolve("idle.txt"), "2024-01-01T00:00:00Z\tuser\tviejo\n");
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(3);
+        try (SegmentedLogMemoryStore store = open(1 << 20, 50)) {
+            HistoryMigration.migrate(history, tmp.resolve("segments"), store, 50);
+            store.append("active", "user", "hoy");
+            assertThat(store.countLines("idle")).isEqualTo(1);
+
+            assertThat(store.expireIdle(cutoff)).isEqualTo(1);
+            assertThat(store.countLines("idle")).isZero();
+            assertThat(store.countLines("active")).isEqualTo(1);
+        }
+        try (SegmentedLogMemoryStore store = open(1 << 20, 50)) {
+            // El CLEAR sobrevive al reinicio y el último turno se recupera del timestamp de la línea
+            assertThat(store.countLines("idle")).isZero();
+            assertThat(store.expireIdle(cutoff)).isZero();
+            assertThat(store.countLines("active")).isEqualTo(1);
+            assertThat(store.expireIdle(System.currentTimeMillis() + 1000)).isEqualTo(1);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package es.agonzalez.multiagent.app.memory;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import es.agonzalez.multiagent.app.config.AppProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class SummarizationWorkerTest {
+
+    @TempDir
+    Path tmp;
+
+    private SummarizationWorker worker;
+    private SummaryStore store;
+    private SimpleMeterRegistry registry;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @BeforeEach
+    void setup() throws Exception {
+        AppProperties props = new AppProperties();
+        props.setDatadir(tmp.toString());
+        props.getSummarization().setConcurrency(1);
+        props.getSummarization().setQueueCapacity(1);
+        store = new SummaryStore();
+        ReflectionTestUtils.setField(store, "props", props);
+        store.init();
+
+        Summarizer summarizer = mock(Summarizer.class);
+        when(summarizer.summarize(anyList())).thenAnswer(inv -> {
+            release.await(5, TimeUnit.SECONDS);
+            return "resumen de " + inv.getArgument(0, List.class).size();
+        });
+        MemoryService memory = mock(MemoryService.class);
+        when(memory.loadRecent(anyString(), anyInt())).thenReturn(List.of("l1", "l2"));
+
+        registry = new SimpleMeterRegistry();
+        worker = new SummarizationWorker();
+        ReflectionTestUtils.setField(worker, "props", props);
+        ReflectionTestUtils.setField(worker, "summarizer", summarizer);
+        ReflectionTestUtils.setField(worker, "store", store);
+        ReflectionTestUtils.setField(worker, "memory", memory);
+        ReflectionTestUtils.setField(worker, "meterRegistry", registry);
+        worker.init();
+    }
+
+    @Test
+    void deduplicatesQueuedUsersAndRejectsWhenFull() throws Exception {
+        assertThat(worker.submit("a")).isTrue();   // en ejecución (bloqueado)
+        awaitActive();
+        assertThat(worker.submit("b")).isTrue();   // ocupa la única plaza de la cola
+        assertThat(worker.submit("b")).isFalse();  // ya pendiente
+        assertThat(worker.submit("c")).isFalse();  // cola llena
+        assertThat(registry.get("summary.jobs.deduplicated").counter().count()).isEqualTo(1);
+        assertThat(registry.get("summary.jobs.rejected").counter().count()).isEqualTo(1);
+
+        release.countDown();
+        worker.drain();
+        assertThat(store.load("a")).isEqualTo("resumen de 2");
+        assertThat(store.load("b")).isEqualTo("resumen de 2");
+        assertThat(store.load("c")).isEmpty();
+        assertThat(registry.get("summary.jobs.completed").counter().count()).isEqualTo(2);
+    }
+
+    private void awaitActive() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (worker.pending() == 0 || registry.get("summary.queue.size").gauge().value() > 0) {
+            if (System.currentTimeMillis() > deadline) break;
+            Thread.sleep(5);
+        }
+    }
+}
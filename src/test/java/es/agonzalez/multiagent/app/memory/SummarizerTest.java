@@ -0,0 +1,33 @@
+package es.agonzalez.multiagent.app.memory;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import org.junit.jupiter.api.Test;
+
+class SummarizerTest {
+
+    private static final List<String> LINES = List.of(
+        "2024-05-01T10:00:00Z\tuser\thola",
+        "2024-05-01T10:00:01.5Z\tassistant\tbuenas",
+        "malformada",
+        "2024-05-01T10:00:02Z\tuser\t",
+        "2024-05-01T10:00:03.123456Z\tuser\tadiós");
+
+    @Test
+    void rendersRolesWithTextAndSkipsMalformedLines() {
+        String rendered = Summarizer.renderConversation(LINES, 0).toString();
+        assertThat(rendered).isEqualTo("Usuario: hola\nAsistente: buenas\nUsuario: adiós\n");
+    }
+
+    @Test
+    void linesAfterWatermarkComparesInstantsNotStrings() {
+        // "10:00:01.5Z" > "10:00:01Z" como Instant aunque no como cadena
+        List<String> fresh = Summarizer.linesAfter(LINES, "2024-05-01T10:00:01Z");
+        assertThat(fresh).hasSize(4);
+        assertThat(fresh.get(0)).contains("buenas");
+        assertThat(Summarizer.linesAfter(LINES, "2024-05-01T10:00:03.123456Z")).isEmpty();
+        assertThat(Summarizer.linesAfter(LINES, null)).isEqualTo(LINES);
+        assertThat(Summarizer.timestampOf(LINES.get(4))).isEqualTo("2024-05-01T10:00:03.123456Z");
+    }
+}
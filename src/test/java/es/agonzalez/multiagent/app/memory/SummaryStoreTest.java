@@ -41,4 +41,12 @@ public class SummaryStoreTest {
         String s = store.load("u1");
         assertEquals("B", s);
     }
+
+    @Test
+    void watermarkIsStoredWithSummaryAndIgnoredWithoutIt() throws Exception {
+        store.save("u2", "Resumen", "2024-05-01T10:00:00Z");
+        assertEquals("2024-05-01T10:00:00Z", store.loadWatermark("u2"));
+        java.nio.file.Files.delete(tmp.resolve("summary").resolve("u2.txt"));
+        assertEquals(null, store.loadWatermark("u2"));
+    }
 }